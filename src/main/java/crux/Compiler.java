@@ -43,12 +43,66 @@ public final class Compiler {
                 case "--print-ir":
                     driver.enablePrintIR();
                     break;
+                case "--pack-ir":
+                    driver.enablePackedIR();
+                    break;
+                case "--ssa":
+                    driver.enableSSA();
+                    break;
+                case "--opt-stats":
+                    driver.enableOptimizerStats();
+                    break;
+                case "--partial-eval":
+                    driver.enablePartialEvaluation();
+                    break;
+                case "--partial-eval-steps":
+                    driver.setPartialEvaluationSteps(Long.parseLong(args[++i]));
+                    break;
                 case "--emulator":
                     driver.enableEmulator();
                     break;
                 case "--debug-emulator":
                     driver.enableDebugEmulator();
                     break;
+                case "--emulator-trace":
+                    driver.setEmulatorTraceFile(args[++i]);
+                    break;
+                case "--emulator-trace-ring":
+                    driver.setEmulatorTraceRing(Integer.parseInt(args[++i]));
+                    break;
+                case "--emulator-profile":
+                    driver.setEmulatorProfileFile(args[++i]);
+                    break;
+                case "--emulator-batch":
+                    driver.setEmulatorBatchInputs(args[++i]);
+                    break;
+                case "--emulator-batch-output":
+                    driver.setEmulatorBatchOutput(args[++i]);
+                    break;
+                case "--emulator-threads":
+                    driver.setEmulatorThreads(Integer.parseInt(args[++i]));
+                    break;
+                case "--emulator-checkpoint":
+                    driver.setEmulatorCheckpointFile(args[++i]);
+                    break;
+                case "--emulator-checkpoint-every":
+                    driver.setEmulatorCheckpointInterval(Long.parseLong(args[++i]));
+                    break;
+                case "--emulator-restore":
+                    driver.setEmulatorRestoreFile(args[++i]);
+                    break;
+                case "--emulator-memoize":
+                    driver.enableEmulatorMemoize();
+                    break;
+                case "--emulator-memo-size":
+                    driver.setEmulatorMemoSize(Integer.parseInt(args[++i]));
+                    break;
+                case "--emulator-stats":
+                    driver.enableEmulatorStats();
+                    break;
+                case "--emulator-max-depth":
+                    driver.setEmulatorMaxCallDepth(Integer.parseInt(args[++i]));
+                    break;
                 case "--emulator-input": {
                     if(driver.hasEmulatorInputFile())
                         throw new RuntimeException("multiple input files");
@@ -57,6 +111,14 @@ public final class Compiler {
                     break;
                 }
                 default:
+                    if (arg.startsWith("--emulator-engine=")) {
+                        driver.setEmulatorEngine(arg.substring("--emulator-engine=".length()));
+                        break;
+                    }
+                    if (arg.matches("-O[0-9]+")) {
+                        driver.setOptimizationLevel(Integer.parseInt(arg.substring(2)));
+                        break;
+                    }
                     if (arg.startsWith("-"))
                         throw new RuntimeException(String.format("unrecognized command line option '%s'", arg));
                     if (driver.hasInputFile())
@@ -81,9 +143,29 @@ public final class Compiler {
         System.out.println("--include-types\t\tInclude type information in printed ast (see --print-ast).");
         System.out.println("--print-pt\t\t\tPrint the parse tree to stdout.");
         System.out.println("--print-ast\t\t\tPrint the abstract syntax tree to stdout.");
+        System.out.println("--pack-ir\t\t\tKeep the IR of every function in packed arrays while it is not in use, to save memory.");
+        System.out.println("--ssa\t\t\tPut the IR in SSA form, with phis where control flow joins.");
+        System.out.println("-O<n>\t\t\t\tOptimize the IR at level n: 0 (default) for none, 1 for constant and copy propagation, value numbering, loop-invariant code motion, dead code elimination and copy coalescing.");
+        System.out.println("--opt-stats\t\t\tPrint the number of instructions each optimization pass changed or removed to stderr.");
+        System.out.println("--partial-eval\t\t\tEvaluate main at compile time as far as it does not read input.");
+        System.out.println("--partial-eval-steps <n>\t\t\tStep budget of --partial-eval (default 1000000).");
         System.out.println("--emulator\t\t\tRun Emulator on IR.");
         System.out.println("--debug-emulator\t\t\tRun Emulator on IR with debugging turned on.");
         System.out.println("--emulator-input <input file>\t\t\tInput File for the emulator");
+        System.out.println("--emulator-trace <trace file>\t\t\tRun Emulator on IR and write a binary trace of every instruction.");
+        System.out.println("--emulator-trace-ring <n>\t\t\tOnly keep the last n records of the trace.");
+        System.out.println("--emulator-profile <file>\t\t\tRun Emulator on IR and write collapsed stacks to file, hit counts to file.dot and a summary to stderr.");
+        System.out.println("--emulator-batch <dir or list file>\t\t\tRun Emulator on IR once per .in file in dir, or per file listed.");
+        System.out.println("--emulator-batch-output <dir>\t\t\tDirectory for the batch output files (default emulator-output).");
+        System.out.println("--emulator-threads <n>\t\t\tNumber of batch runs in parallel (default: number of processors).");
+        System.out.println("--emulator-checkpoint <file>\t\t\tWrite the emulator state to file whenever file.request is created (register engine).");
+        System.out.println("--emulator-checkpoint-every <n>\t\t\tAlso write a checkpoint every n steps.");
+        System.out.println("--emulator-restore <file>\t\t\tContinue the run saved in a checkpoint file, with the same program and input.");
+        System.out.println("--emulator-memoize\t\t\tCache the results of pure functions and print hits and misses to stderr.");
+        System.out.println("--emulator-memo-size <n>\t\t\tResults cached per function with --emulator-memoize (default 16384).");
+        System.out.println("--emulator-stats\t\t\tPrint emulator statistics such as the memory footprint to stderr.");
+        System.out.println("--emulator-max-depth <n>\t\t\tMaximum call depth of the emulated program (default 100000).");
+        System.out.println("--emulator-engine=<name>\t\t\tEmulator engine to use: interpreter (default), register, closure, jit or ast");
     }
 
     private static void displayAuthors() {
@@ -7,9 +7,24 @@ import crux.frontend.pt.CruxLexer;
 import crux.frontend.pt.CruxParser;
 import crux.frontend.types.TypeChecker;
 import crux.midend.ASTLower;
+import crux.midend.interp.ASTInterpreter;
 import crux.printing.IRPrinter;
 import crux.midend.ir.core.Program;
 import crux.midend.ir.core.Emulator;
+import crux.midend.ir.core.PartialEvaluator;
+import crux.midend.ir.emulator.BatchRunner;
+import crux.midend.ir.emulator.BinaryTraceSink;
+import crux.midend.ir.emulator.ClosureEmulator;
+import crux.midend.ir.emulator.EngineKind;
+import crux.midend.ir.emulator.ExecutionEngine;
+import crux.midend.ir.emulator.Memoizer;
+import crux.midend.ir.emulator.Profiler;
+import crux.midend.ir.emulator.RegisterEmulator;
+import crux.midend.ir.emulator.TextTraceSink;
+import crux.midend.ir.emulator.TraceSink;
+import crux.midend.ir.opt.Optimizer;
+import crux.midend.ir.opt.SSABuilder;
+import crux.midend.ir.opt.SSADestructor;
 import crux.backend.CodeGen;
 import crux.printing.ASTPrinter;
 import crux.printing.ParseTreePrinter;
@@ -18,6 +33,8 @@ import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.function.Supplier;
 
 enum State {
@@ -42,6 +59,9 @@ enum State {
  * DO NOT MODIFY ANY SIGNATURES OF PUBLIC FUNCTION IN THIS CLASS OR WE CAN'T GRADE YOUR PROJECT!
  */
 public final class Driver {
+    /** How often a run with checkpoints looks for a request file, in milliseconds. */
+    private static final long CHECKPOINT_POLL_MILLIS = 100;
+
     private final InputStream in;
     private final PrintStream out;
     private final PrintStream err;
@@ -51,8 +71,31 @@ public final class Driver {
     private boolean includeTypes = false;
     private boolean typeCheck = false;
     private boolean printIR = false;
+    private boolean packIR = false;
+    private boolean ssa = false;
+    private int optimizationLevel = 0;
+    private boolean printOptimizerStats = false;
     private boolean runEmulator = false;
-
+    private boolean partialEvaluation = false;
+    private long partialEvaluationSteps = PartialEvaluator.DEFAULT_MAX_STEPS;
+    private EngineKind emulatorEngine = EngineKind.INTERPRETER;
+    private boolean emulatorEngineSelected = false;
+    private boolean printEmulatorStats = false;
+    private int emulatorMaxCallDepth = ExecutionEngine.DEFAULT_MAX_CALL_DEPTH;
+    private boolean debugEmulator = false;
+    private String emulatorTraceFile = null;
+    private int emulatorTraceRing = 0;
+    private String emulatorProfileFile = null;
+    private String emulatorCheckpointFile = null;
+    private long emulatorCheckpointInterval = 0;
+    private String emulatorRestoreFile = null;
+    private boolean emulatorMemoize = false;
+    private int emulatorMemoSize = Memoizer.DEFAULT_CAPACITY;
+    private String emulatorBatchInputs = null;
+    private String emulatorBatchOutput = "emulator-output";
+    private int emulatorThreads = Runtime.getRuntime().availableProcessors();
+
+    private String assemblyFile = "a.s";
     private String inputFile;
     private InputStream inputStream;
     private String emulatorInputFile = null;
@@ -95,13 +138,100 @@ public final class Driver {
 
     public void enablePrintIR() { printIR = true; }
 
+    public void enablePackedIR() { packIR = true; }
+
+    public void enableSSA() { ssa = true; }
+
+    public void setOptimizationLevel(int level) {
+        optimizationLevel = level;
+    }
+
+    public void enableOptimizerStats() {
+        printOptimizerStats = true;
+    }
+
+    public void enablePartialEvaluation() {
+        partialEvaluation = true;
+    }
+
+    public void setPartialEvaluationSteps(long maxSteps) {
+        partialEvaluationSteps = maxSteps;
+    }
+
     public void enableEmulator() {
         runEmulator = true;
     }
 
     public void enableDebugEmulator() {
         runEmulator = true;
-        Emulator.DEBUG = true;
+        debugEmulator = true;
+    }
+
+    public void setEmulatorTraceFile(String traceFile) {
+        runEmulator = true;
+        emulatorTraceFile = traceFile;
+    }
+
+    public void setEmulatorTraceRing(int records) {
+        emulatorTraceRing = records;
+    }
+
+    public void setEmulatorProfileFile(String profileFile) {
+        runEmulator = true;
+        emulatorProfileFile = profileFile;
+    }
+
+    public void setEmulatorCheckpointFile(String checkpointFile) {
+        runEmulator = true;
+        emulatorCheckpointFile = checkpointFile;
+    }
+
+    public void setEmulatorCheckpointInterval(long steps) {
+        emulatorCheckpointInterval = steps;
+    }
+
+    public void setEmulatorRestoreFile(String checkpointFile) {
+        runEmulator = true;
+        emulatorRestoreFile = checkpointFile;
+    }
+
+    public void enableEmulatorMemoize() {
+        emulatorMemoize = true;
+    }
+
+    public void setEmulatorMemoSize(int entries) {
+        emulatorMemoSize = entries;
+    }
+
+    public void enableEmulatorStats() {
+        printEmulatorStats = true;
+    }
+
+    public void setEmulatorMaxCallDepth(int maxDepth) {
+        emulatorMaxCallDepth = maxDepth;
+    }
+
+    public void setEmulatorEngine(String name) {
+        emulatorEngine = EngineKind.fromName(name);
+        emulatorEngineSelected = true;
+    }
+
+    public void setEmulatorBatchInputs(String inputs) {
+        runEmulator = true;
+        emulatorBatchInputs = inputs;
+    }
+
+    public void setEmulatorBatchOutput(String outputDir) {
+        emulatorBatchOutput = outputDir;
+    }
+
+    public void setEmulatorThreads(int threads) {
+        emulatorThreads = threads;
+    }
+
+    /** Writes the generated assembly to {@code assemblyFile} instead of a.s in the working directory. */
+    public void setAssemblyFile(String assemblyFile) {
+        this.assemblyFile = assemblyFile;
     }
 
     public boolean hasInputFile() {
@@ -212,8 +342,28 @@ public final class Driver {
     }
 
     private State emitIR() {
+        // The AST interpreter runs the program without lowering it
+        if (runEmulator && !printIR && emulatorBatchInputs == null && selectEngine() == EngineKind.AST)
+            return State.Continue;
+
         var astLower = new ASTLower(typeChecker);
+        if (packIR)
+            astLower.enablePacking();
         irProgram = astLower.lower(ast);
+        if (partialEvaluation)
+            irProgram = new PartialEvaluator(partialEvaluationSteps).evaluate(irProgram);
+        if (ssa || optimizationLevel > 0) {
+            // The optimizations work on SSA form, which is left again right away unless it was asked for
+            SSABuilder.build(irProgram);
+            var optimizer = new Optimizer(optimizationLevel);
+            optimizer.optimize(irProgram);
+            if (!ssa)
+                optimizer.leaveSSA(irProgram);
+            if (printOptimizerStats)
+                optimizer.printStats(err);
+            if (packIR)
+                irProgram.pack();
+        }
 
         if(printIR) {
             var printer = new IRPrinter(out);
@@ -225,23 +375,196 @@ public final class Driver {
     }
 
     private State emitASM() {
-        var codegen = new CodeGen(irProgram);
+        leaveSSA();
+        var codegen = new CodeGen(irProgram, assemblyFile);
         codegen.genCode();
         
         return State.Finished;
     }
 
     private State emulator() {
+        // Only the IR interpreter runs phis
+        if (runEmulator && (emulatorBatchInputs != null || selectEngine() != EngineKind.INTERPRETER))
+            leaveSSA();
+        if (runEmulator && emulatorBatchInputs != null) {
+            batchEmulator();
+            return State.Finished;
+        }
+        if (runEmulator && (emulatorCheckpointFile != null || emulatorRestoreFile != null) && emulatorEngineSelected
+                && emulatorEngine != EngineKind.REGISTER) {
+            err.printf("error: the %s engine cannot checkpoint or restore a run, only the register engine can%n",
+                    emulatorEngine.getName());
+            return State.Error;
+        }
+        String observation = requestedObservation();
+        if (runEmulator && observation != null && !canObserve(emulatorEngine)) {
+            err.printf("error: the %s engine cannot %s a run, only the interpreter and register engines can%n",
+                    emulatorEngine.getName(), observation);
+            return State.Error;
+        }
         if (runEmulator) {
             var emulatorInput = openEmulatorInput();
-            var emulator = new Emulator(irProgram, emulatorInput, out);
-            emulator.run();
+            ExecutionEngine emulator;
+            TraceSink trace = null;
+            if (emulatorTraceFile != null)
+                trace = new BinaryTraceSink(irProgram, Path.of(emulatorTraceFile), emulatorTraceRing);
+            else if (debugEmulator)
+                trace = new TextTraceSink(out);
+            var profiler = emulatorProfileFile != null ? new Profiler() : null;
+            var memoizer = emulatorMemoize ? new Memoizer(irProgram, emulatorMemoSize) : null;
+            Thread checkpointRequests = null;
+            switch (selectEngine()) {
+                case REGISTER: {
+                    var register = new RegisterEmulator(irProgram, emulatorInput, out);
+                    register.setTraceSink(trace);
+                    if (profiler != null)
+                        register.setProfiler(profiler);
+                    if (memoizer != null)
+                        register.setMemoizer(memoizer);
+                    if (emulatorCheckpointFile != null) {
+                        register.setCheckpoint(Path.of(emulatorCheckpointFile), emulatorCheckpointInterval);
+                        // Creating <file>.request writes a checkpoint at the next opportunity
+                        checkpointRequests = watchCheckpointRequests(register,
+                                Path.of(emulatorCheckpointFile + ".request"));
+                    }
+                    if (emulatorRestoreFile != null) {
+                        long output = register.restore(Path.of(emulatorRestoreFile));
+                        err.printf("restored checkpoint '%s', continuing after %d bytes of output%n",
+                                emulatorRestoreFile, output);
+                    }
+                    emulator = register;
+                    break;
+                }
+                case JIT: {
+                    var tiered = new RegisterEmulator(irProgram, emulatorInput, out);
+                    tiered.enableJit();
+                    emulator = tiered;
+                    break;
+                }
+                case CLOSURE:
+                    emulator = new ClosureEmulator(irProgram, emulatorInput, out);
+                    break;
+                case AST:
+                    emulator = new ASTInterpreter(ast, typeChecker, emulatorInput, out);
+                    break;
+                default: {
+                    var interpreter = new Emulator(irProgram, emulatorInput, out);
+                    interpreter.setTraceSink(trace);
+                    interpreter.setProfiler(profiler);
+                    interpreter.setMemoizer(memoizer);
+                    emulator = interpreter;
+                    break;
+                }
+            }
+            emulator.setMaxCallDepth(emulatorMaxCallDepth);
+            try {
+                emulator.run();
+            } finally {
+                if (checkpointRequests != null)
+                    checkpointRequests.interrupt();
+                if (trace != null)
+                    trace.close();
+                if (profiler != null)
+                    writeProfile(profiler);
+            }
+            if (memoizer != null)
+                memoizer.printSummary(err);
+            if (printEmulatorStats)
+                emulator.printStats(err);
             return State.Finished;
         }
 
         return State.Continue;
     }
 
+    /** Replaces the phis of an SSA program by copies, for the consumers of the IR that know no phis. */
+    private void leaveSSA() {
+        if (ssa && irProgram != null) {
+            SSADestructor.destruct(irProgram);
+            ssa = false;
+        }
+    }
+
+    /** Starts a daemon thread that asks {@code register} for a checkpoint whenever {@code request} appears. */
+    private Thread watchCheckpointRequests(RegisterEmulator register, Path request) {
+        var thread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (Files.deleteIfExists(request))
+                        register.requestCheckpoint();
+                    Thread.sleep(CHECKPOINT_POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                // The run is over
+            } catch (IOException e) {
+                err.printf("cannot watch checkpoint request file '%s': %s%n", request, e.getMessage());
+            }
+        }, "checkpoint requests");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * The engine to run the program with: the one selected, or the register interpreter if no engine was selected for
+     * a run with checkpoints.
+     */
+    private EngineKind selectEngine() {
+        // Only the register interpreter has its whole state in a form that can be saved; any other engine selected
+        // for such a run is an error
+        if (!emulatorEngineSelected && (emulatorCheckpointFile != null || emulatorRestoreFile != null))
+            return EngineKind.REGISTER;
+        return emulatorEngine;
+    }
+
+    /** What the run is asked to trace, profile or memoize, or null if nothing. */
+    private String requestedObservation() {
+        if (emulatorTraceFile != null || debugEmulator)
+            return "trace";
+        if (emulatorProfileFile != null)
+            return "profile";
+        if (emulatorMemoize)
+            return "memoize";
+        return null;
+    }
+
+    /** Compiled engines and the AST interpreter cannot be traced, profiled or memoized. */
+    private static boolean canObserve(EngineKind engine) {
+        return engine == EngineKind.INTERPRETER || engine == EngineKind.REGISTER;
+    }
+
+    /** Runs the program once per batch input, writing one output file per input and a summary to stderr. */
+    private void batchEmulator() {
+        // Batches share one lowered program between their runs, which the AST interpreter does not use
+        var engine = emulatorEngine == EngineKind.AST ? EngineKind.REGISTER : emulatorEngine;
+        var runner = new BatchRunner(irProgram, engine, emulatorThreads);
+        runner.setMaxCallDepth(emulatorMaxCallDepth);
+        try {
+            var inputs = BatchRunner.listInputs(Path.of(emulatorBatchInputs));
+            long start = System.nanoTime();
+            var results = runner.run(inputs, Path.of(emulatorBatchOutput));
+            BatchRunner.printSummary(results, System.nanoTime() - start, emulatorThreads, err);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("cannot run batch '%s': %s", emulatorBatchInputs,
+                    e.getMessage()), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("batch run interrupted", e);
+        }
+    }
+
+    /** Writes collapsed stacks to the profile file, the annotated IR next to it and a summary to stderr. */
+    private void writeProfile(Profiler profiler) {
+        try (var collapsed = new PrintStream(emulatorProfileFile);
+             var dot = new PrintStream(emulatorProfileFile + ".dot")) {
+            profiler.writeCollapsed(collapsed);
+            profiler.writeAnnotatedIR(irProgram, dot);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("cannot write file '%s'", emulatorProfileFile), e);
+        }
+        profiler.printSummary(err);
+    }
+
     private CharStream openInput() {
         if (inputStream == null) {
             try {
@@ -16,27 +16,67 @@ public final class CodeGen extends InstVisitor {
     private Function currentFunction;
 
     public CodeGen(Program p) {
-        this.p = p;
         // Do not change the file name that is outputted or it will
         // break the grader!
-        out = new CodePrinter("a.s");
+        this(p, "a.s");
+    }
 
+    /** Writes the assembly to {@code fileName} instead of a.s. */
+    public CodeGen(Program p, String fileName) {
+        this.p = p;
+        out = new CodePrinter(fileName);
     }
 
     public void genCode() {
+        List<GlobalDecl> initialized = new ArrayList<>();
         for (Iterator<GlobalDecl> it = p.getGlobals(); it.hasNext(); ) {
             GlobalDecl globalDecl = it.next();
+            if (globalDecl.getInitialValues() != null) {
+                initialized.add(globalDecl);
+                continue;
+            }
             out.printCode(".comm " + globalDecl.getAllocatedAddress().getName().substring(1) + ", " + ((IntegerConstant)globalDecl.getNumElement()).getValue()*8 + ", 8");
         }
+        if (!initialized.isEmpty()) {
+            genData(initialized);
+        }
 
         for (Iterator<Function> it = p.getFunctions(); it.hasNext();){
             Function f = it.next();
+            boolean packed = f.isPacked();
             genCode(f);
+            // Only unpack one function at a time
+            if (packed)
+                f.pack();
         }
         //This function should generate code for the entire program.
         out.close();
     }
 
+    /** Emits globals with initial values into .data, with runs of zeros as .zero */
+    private void genData(List<GlobalDecl> globals) {
+        out.printCode(".data");
+        for (GlobalDecl globalDecl : globals) {
+            out.printCode(".align 8");
+            out.printLabel(globalDecl.getAllocatedAddress().getName().substring(1) + ":");
+            long[] values = globalDecl.getInitialValues();
+            int i = 0;
+            while (i < values.length) {
+                if (values[i] != 0) {
+                    out.printCode(".quad " + values[i++]);
+                    continue;
+                }
+                int zeros = 0;
+                while (i < values.length && values[i] == 0) {
+                    zeros++;
+                    i++;
+                }
+                out.printCode(".zero " + zeros * 8);
+            }
+        }
+        out.printCode(".text");
+    }
+
     private int labelcount = 1;
 
     private String getNewLabel() {
@@ -100,73 +140,83 @@ public final class CodeGen extends InstVisitor {
         checkMain(f);
         // first print label
         out.printLabel(f.getName() + ":");
-        // next print enter
-        out.printCode("enter $(8 * "+ numLocalVar + "), $0");
+        // next print enter, keeping the stack 16-byte aligned for the calls made from here
+        int frameWords = numLocalVar + numLocalVar % 2;
+        out.printCode("enter $(8 * "+ frameWords + "), $0");
         // emit body and epilogue
         out.outputBuffer();
     }
 
     private void outputCodeBody(Function f){
         currentFunction = f;
-        Stack<Instruction> tovisit = new Stack<>();
-        HashSet<Instruction> discovered = new HashSet<>();
-        tovisit.push(f.getStart());
+        ControlFlowGraph cfg = f.getControlFlowGraph();
+        if (cfg.getEntry().isExit()) {
+            outputEpilogue(f);
+            return;
+        }
+        // Lay out blocks depth-first, so that the false edge of a jump falls through whenever possible
+        Stack<BasicBlock> tovisit = new Stack<>();
+        boolean[] discovered = new boolean[cfg.size()];
+        tovisit.push(cfg.getEntry());
+        discovered[cfg.getEntry().getId()] = true;
         while (!tovisit.isEmpty()) {
-            Instruction inst = tovisit.pop();
-            if (curr_label_map.containsKey(inst)){
-                out.bufferLabel(curr_label_map.get(inst) + ":");
+            BasicBlock block = tovisit.pop();
+            if (curr_label_map.containsKey(block.getFirst())){
+                out.bufferLabel(curr_label_map.get(block.getFirst()) + ":");
+            }
+            for (int idx = 0; idx < block.size(); idx++) {
+                block.get(idx).accept(this);
             }
-            inst.accept(this);
-            Instruction first = inst.getNext(0);
-            Instruction second = inst.getNext(1);
+            // A return already emitted its epilogue
+            if (block.getLast() instanceof ReturnInst)
+                continue;
+            BasicBlock first = block.getSuccessor(0);
+            BasicBlock second = block.numSuccessors() > 1 ? block.getSuccessor(1) : null;
 
-            if ((second != null) && (!discovered.contains(second))){
+            if ((second != null) && (!discovered[second.getId()])){
                 tovisit.push(second);
-                discovered.add(second);
+                discovered[second.getId()] = true;
             }
-            if ((first != null) && (!discovered.contains(first))){
+            if (first.isExit()){
+                outputEpilogue(f);
+            } else if (!discovered[first.getId()]){
                 tovisit.push(first);
-                discovered.add(first);
-            } else if (first != null && (tovisit.isEmpty() || first != tovisit.peek())){
-                out.bufferCode("jmp " + curr_label_map.get(first));
-            } else {
-                // we return 0 for main
-                if (f.getName().equals("main")){
-                    out.bufferCode("movq $0, %rax");
-                }
-                // process end of function
-                out.bufferCode("leave");
-                out.bufferCode("ret");
+                discovered[first.getId()] = true;
+            } else if (tovisit.isEmpty() || tovisit.peek() != first) {
+                // A successor that is laid out next is reached by falling through
+                out.bufferCode("jmp " + curr_label_map.get(first.getFirst()));
             }
         }
     }
 
-    /** Assigns Labels to any Instruction that might be the target of a
-     * conditional or unconditional jump. */
+    /** Returns from a function that ran off its end. */
+    private void outputEpilogue(Function f){
+        // we return 0 for main
+        if (f.getName().equals("main")){
+            out.bufferCode("movq $0, %rax");
+        }
+        // process end of function
+        out.bufferCode("leave");
+        out.bufferCode("ret");
+    }
+
+    /** Assigns Labels to the first Instruction of any block that might be the
+     * target of a conditional or unconditional jump. */
 
     private HashMap<Instruction, String> assignLabels(Function f) {
         HashMap<Instruction, String> labelMap = new HashMap<>();
-        Stack<Instruction> tovisit = new Stack<>();
-        HashSet<Instruction> discovered = new HashSet<>();
-        tovisit.push(f.getStart());
-        while (!tovisit.isEmpty()) {
-            Instruction inst = tovisit.pop();
-
-            for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
-                Instruction child = inst.getNext(childIdx);
-                if (discovered.contains(child)) {
-                    //Found the node for a second time...need a label for merge points
-                    if (!labelMap.containsKey(child)) {
-                        labelMap.put(child, getNewLabel());
-                    }
-                } else {
-                    discovered.add(child);
-                    tovisit.push(child);
-                    //Need a label for jump targets also
-                    if (childIdx == 1 && !labelMap.containsKey(child)) {
-                        labelMap.put(child, getNewLabel());
-                    }
-                }
+        for (BasicBlock block : f.getControlFlowGraph().getReversePostOrder()) {
+            if (block.isExit())
+                continue;
+            //Need a label for merge points
+            boolean label = block.numPredecessors() > 1;
+            for (int idx = 0; idx < block.numPredecessors() && !label; idx++) {
+                //Need a label for jump targets also
+                BasicBlock pred = block.getPredecessor(idx);
+                label = pred.numSuccessors() > 1 && pred.getSuccessor(1) == block;
+            }
+            if (label) {
+                labelMap.put(block.getFirst(), getNewLabel());
             }
         }
         return labelMap;
@@ -27,12 +27,18 @@ public final class ASTLower implements NodeVisitor {
     // mCurrentExpression, mLastControlInstruction
     private Instruction mLastControlInstruction;
     private Value mCurrentExpression;
+    private boolean mPackFunctions = false;
   
     public ASTLower(TypeChecker checker) {
         mTypeChecker = checker;
         initBuiltInFunctions();
     }
 
+    /** Packs every function as soon as it is lowered, so only one function at a time is held as objects. */
+    public void enablePacking() {
+        mPackFunctions = true;
+    }
+
     private void add_adge(Instruction src, Instruction dst){
         if (src == null){
             mCurrentFunction.setStart(dst);
@@ -104,6 +110,8 @@ public final class ASTLower implements NodeVisitor {
         // this will set currentfunction's start instruction....
         functionDefinition.getStatements().accept(this);
         mCurrentProgram.addFunction(mCurrentFunction);  // finally we add the function to the program
+        if (mPackFunctions)
+            mCurrentFunction.pack();
     }
 
     @Override
@@ -0,0 +1,99 @@
+package crux.midend.interp;
+
+import crux.frontend.Symbol;
+import crux.frontend.ast.*;
+import crux.frontend.types.ArrayType;
+import crux.frontend.types.TypeChecker;
+import crux.midend.ir.emulator.DeepStack;
+import crux.midend.ir.emulator.EmulatorException;
+import crux.midend.ir.emulator.EmulatorIO;
+import crux.midend.ir.emulator.ExecutionEngine;
+import crux.midend.ir.emulator.PagedMemory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Executes the type-checked AST directly, without lowering it to IR first. This saves the lowering for short runs;
+ * long runs are still served by the tree specializing itself as it goes, see {@link Specializer}.
+ * <p>
+ * Globals are laid out in declaration order, the same as in the lowered program, so the program sees the same memory
+ * as in the IR engines, including the warnings for reads of uninitialized globals. Crux calls are Java calls with a
+ * fresh frame of {@code long} slots per call.
+ */
+public final class ASTInterpreter implements ExecutionEngine {
+    final EmulatorIO io;
+    final PagedMemory memory;
+    private final Map<Symbol, FunctionNode> functions = new LinkedHashMap<>();
+    private final Specializer specializer;
+    private final FunctionNode main;
+
+    /** The value of the last {@code return}, read by the caller right after the call. */
+    long returnValue;
+    private int depth = 0;
+    private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+
+    public ASTInterpreter(DeclarationList ast, TypeChecker checker, InputStream emulatorInput,
+                          OutputStream emulatorOutput) {
+        io = new EmulatorIO(emulatorInput, emulatorOutput);
+        var globals = new HashMap<Symbol, Long>();
+        long words = 0;
+        FunctionNode main = null;
+        for (Node declaration : ast.getChildren()) {
+            if (declaration instanceof VariableDeclaration) {
+                globals.put(((VariableDeclaration) declaration).getSymbol(), 8 * words);
+                words += 1;
+            } else if (declaration instanceof ArrayDeclaration) {
+                Symbol symbol = ((ArrayDeclaration) declaration).getSymbol();
+                globals.put(symbol, 8 * words);
+                words += ((ArrayType) symbol.getType()).getExtent();
+            } else if (declaration instanceof FunctionDefinition) {
+                var f = new FunctionNode((FunctionDefinition) declaration);
+                functions.put(f.definition.getSymbol(), f);
+                if (f.name.equals("main"))
+                    main = f;
+            }
+        }
+        if (main == null)
+            throw new RuntimeException("program has no main function");
+        this.main = main;
+        memory = new PagedMemory(words, () -> io.println("Reading from uninitialized memory"));
+        specializer = new Specializer(this, checker, globals, functions);
+    }
+
+    public void setMaxCallDepth(int maxDepth) {
+        maxCallDepth = maxDepth;
+    }
+
+    public void run() {
+        try {
+            specializer.prepare(main);
+            DeepStack.run(maxCallDepth, () -> invoke(main, new long[main.frameSize]));
+        } catch (StackOverflowError e) {
+            throw new EmulatorException(String.format("stack overflow: JVM stack exhausted at call depth %d", depth));
+        } finally {
+            io.flush();
+        }
+    }
+
+    /** Runs {@code f} in {@code frame}, which holds the arguments, and returns its result. */
+    long invoke(FunctionNode f, long[] frame) {
+        if (depth == maxCallDepth)
+            throw EmulatorException.stackOverflow(maxCallDepth, f.name);
+        depth++;
+        f.body.execute(frame);
+        depth--;
+        return returnValue;
+    }
+
+    public void printStats(PrintStream ps) {
+        memory.printStats(ps);
+        long prepared = functions.values().stream().filter(FunctionNode::isPrepared).count();
+        ps.printf("ast: %d of %d functions prepared, %d expressions specialized%n", prepared, functions.size(),
+                specializer.getRewrites());
+    }
+}
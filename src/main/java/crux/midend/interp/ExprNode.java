@@ -0,0 +1,437 @@
+package crux.midend.interp;
+
+import crux.frontend.ast.Expression;
+import crux.midend.ir.emulator.EmulatorIO;
+import crux.midend.ir.emulator.PagedMemory;
+
+/**
+ * An executable expression of the {@link ASTInterpreter}. Integers and booleans are both evaluated to a long, with
+ * booleans as 0 and 1, the same as in the emulator registers.
+ * <p>
+ * Children start out as {@link Uninitialized} nodes that replace themselves by a node specialized for their operand
+ * types and shapes when they are first executed, so the tree of a running program only has nodes that were needed
+ * and no checks that could be decided once.
+ */
+abstract class ExprNode {
+    abstract long execute(long[] frame);
+
+    /** A node with expression children, which can be swapped for their specializations. */
+    interface Parent {
+        void replace(ExprNode child, ExprNode replacement);
+    }
+
+    /** Stands in for {@code expression} until it first runs, then puts its specialization in its parent. */
+    static final class Uninitialized extends ExprNode {
+        private final Specializer specializer;
+        private final Expression expression;
+        private final FunctionNode scope;
+        private final Parent parent;
+
+        Uninitialized(Specializer specializer, Expression expression, FunctionNode scope, Parent parent) {
+            this.specializer = specializer;
+            this.expression = expression;
+            this.scope = scope;
+            this.parent = parent;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            ExprNode node = specializer.specialize(expression, scope);
+            parent.replace(this, node);
+            return node.execute(frame);
+        }
+    }
+
+    static final class Const extends ExprNode {
+        private final long value;
+
+        Const(long value) {
+            this.value = value;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return value;
+        }
+    }
+
+    static final class ReadLocal extends ExprNode {
+        private final int slot;
+
+        ReadLocal(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[slot];
+        }
+    }
+
+    /** Reads a global variable, or an array element at a constant index. */
+    static final class ReadGlobal extends ExprNode {
+        private final PagedMemory memory;
+        private final long address;
+
+        ReadGlobal(PagedMemory memory, long address) {
+            this.memory = memory;
+            this.address = address;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return memory.load(address);
+        }
+    }
+
+    static final class ReadElement extends ExprNode implements Parent {
+        private final PagedMemory memory;
+        private final long base;
+        ExprNode index;
+
+        ReadElement(PagedMemory memory, long base) {
+            this.memory = memory;
+            this.base = base;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return memory.load(base + 8 * index.execute(frame));
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            index = replacement;
+        }
+    }
+
+    /** An operation on the values of two children. */
+    abstract static class Binary extends ExprNode implements Parent {
+        ExprNode left, right;
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            if (left == child)
+                left = replacement;
+            else
+                right = replacement;
+        }
+    }
+
+    static final class Add extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) + right.execute(frame);
+        }
+    }
+
+    static final class Sub extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) - right.execute(frame);
+        }
+    }
+
+    static final class Mul extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) * right.execute(frame);
+        }
+    }
+
+    static final class Div extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) / right.execute(frame);
+        }
+    }
+
+    static final class Lt extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) < right.execute(frame) ? 1 : 0;
+        }
+    }
+
+    static final class Le extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) <= right.execute(frame) ? 1 : 0;
+        }
+    }
+
+    static final class Gt extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) > right.execute(frame) ? 1 : 0;
+        }
+    }
+
+    static final class Ge extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) >= right.execute(frame) ? 1 : 0;
+        }
+    }
+
+    static final class Eq extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) == right.execute(frame) ? 1 : 0;
+        }
+    }
+
+    static final class Ne extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) != right.execute(frame) ? 1 : 0;
+        }
+    }
+
+    /** {@code ==} on booleans, which are 0 or 1 and can be compared without a branch. */
+    static final class BoolEq extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return 1 ^ left.execute(frame) ^ right.execute(frame);
+        }
+    }
+
+    static final class BoolNe extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) ^ right.execute(frame);
+        }
+    }
+
+    static final class And extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) != 0 ? right.execute(frame) : 0;
+        }
+    }
+
+    static final class Or extends Binary {
+        @Override
+        long execute(long[] frame) {
+            return left.execute(frame) != 0 ? 1 : right.execute(frame);
+        }
+    }
+
+    static final class Not extends ExprNode implements Parent {
+        ExprNode operand;
+
+        @Override
+        long execute(long[] frame) {
+            return operand.execute(frame) ^ 1;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            operand = replacement;
+        }
+    }
+
+    /** {@code x + c} and {@code x - c} on a local {@code x}, also used for {@code c + x}. */
+    static final class AddLocalConst extends ExprNode {
+        private final int slot;
+        private final long constant;
+
+        AddLocalConst(int slot, long constant) {
+            this.slot = slot;
+            this.constant = constant;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[slot] + constant;
+        }
+    }
+
+    static final class AddLocalLocal extends ExprNode {
+        private final int left, right;
+
+        AddLocalLocal(int left, int right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[left] + frame[right];
+        }
+    }
+
+    /** A comparison of a local with a constant, the condition of most loops. */
+    abstract static class CompareLocalConst extends ExprNode {
+        final int slot;
+        final long constant;
+
+        CompareLocalConst(int slot, long constant) {
+            this.slot = slot;
+            this.constant = constant;
+        }
+    }
+
+    static final class LtLocalConst extends CompareLocalConst {
+        LtLocalConst(int slot, long constant) {
+            super(slot, constant);
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[slot] < constant ? 1 : 0;
+        }
+    }
+
+    static final class LeLocalConst extends CompareLocalConst {
+        LeLocalConst(int slot, long constant) {
+            super(slot, constant);
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[slot] <= constant ? 1 : 0;
+        }
+    }
+
+    static final class GtLocalConst extends CompareLocalConst {
+        GtLocalConst(int slot, long constant) {
+            super(slot, constant);
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[slot] > constant ? 1 : 0;
+        }
+    }
+
+    static final class GeLocalConst extends CompareLocalConst {
+        GeLocalConst(int slot, long constant) {
+            super(slot, constant);
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[slot] >= constant ? 1 : 0;
+        }
+    }
+
+    static final class EqLocalConst extends CompareLocalConst {
+        EqLocalConst(int slot, long constant) {
+            super(slot, constant);
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[slot] == constant ? 1 : 0;
+        }
+    }
+
+    static final class NeLocalConst extends CompareLocalConst {
+        NeLocalConst(int slot, long constant) {
+            super(slot, constant);
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return frame[slot] != constant ? 1 : 0;
+        }
+    }
+
+    /** A call of a function of the program, with the arguments evaluated straight into the callee's frame. */
+    static final class Call extends ExprNode implements Parent {
+        private final ASTInterpreter interpreter;
+        private final FunctionNode function;
+        final ExprNode[] arguments;
+
+        Call(ASTInterpreter interpreter, FunctionNode function, int numArguments) {
+            this.interpreter = interpreter;
+            this.function = function;
+            arguments = new ExprNode[numArguments];
+        }
+
+        @Override
+        long execute(long[] frame) {
+            long[] callee = new long[function.frameSize];
+            for (int i = 0; i < arguments.length; i++) {
+                callee[i] = arguments[i].execute(frame);
+            }
+            return interpreter.invoke(function, callee);
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] == child)
+                    arguments[i] = replacement;
+            }
+        }
+    }
+
+    static final class ReadInt extends ExprNode {
+        private final EmulatorIO io;
+
+        ReadInt(EmulatorIO io) {
+            this.io = io;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            return io.readInt();
+        }
+    }
+
+    static final class PrintInt extends ExprNode implements Parent {
+        private final EmulatorIO io;
+        ExprNode value;
+
+        PrintInt(EmulatorIO io) {
+            this.io = io;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            io.printInt(value.execute(frame));
+            return 0;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            value = replacement;
+        }
+    }
+
+    static final class PrintBool extends ExprNode implements Parent {
+        private final EmulatorIO io;
+        ExprNode value;
+
+        PrintBool(EmulatorIO io) {
+            this.io = io;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            io.printBool(value.execute(frame) != 0);
+            return 0;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            value = replacement;
+        }
+    }
+
+    static final class Println extends ExprNode {
+        private final EmulatorIO io;
+
+        Println(EmulatorIO io) {
+            this.io = io;
+        }
+
+        @Override
+        long execute(long[] frame) {
+            io.println();
+            return 0;
+        }
+    }
+}
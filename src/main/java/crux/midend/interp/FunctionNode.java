@@ -0,0 +1,34 @@
+package crux.midend.interp;
+
+import crux.frontend.Symbol;
+import crux.frontend.ast.FunctionDefinition;
+
+import java.util.Map;
+
+/**
+ * A function of the interpreted program. Its frame layout and statements are only built by {@link
+ * Specializer#prepare} when a call to it is first executed, so functions that never run cost nothing.
+ */
+final class FunctionNode {
+    final String name;
+    final FunctionDefinition definition;
+    /** The frame slot of every parameter and local variable, with the parameters first. */
+    Map<Symbol, Integer> slots;
+    int frameSize;
+    StmtNode body;
+
+    FunctionNode(FunctionDefinition definition) {
+        this.definition = definition;
+        name = definition.getSymbol().getName();
+    }
+
+    boolean isPrepared() {
+        return body != null;
+    }
+
+    /** The slot of {@code symbol}, or -1 if it is not a local of this function. */
+    int slot(Symbol symbol) {
+        Integer slot = slots.get(symbol);
+        return slot != null ? slot : -1;
+    }
+}
@@ -0,0 +1,301 @@
+package crux.midend.interp;
+
+import crux.frontend.Symbol;
+import crux.frontend.ast.*;
+import crux.frontend.types.BoolType;
+import crux.frontend.types.IntType;
+import crux.frontend.types.Type;
+import crux.frontend.types.TypeChecker;
+import crux.midend.ir.emulator.Builtin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the typed AST into the nodes the {@link ASTInterpreter} executes: statements when their function is prepared,
+ * expressions when they first run. Expressions are specialized on the types the {@link TypeChecker} found and on the
+ * shape of their operands, so that for example {@code i + 1} on a local {@code i} becomes a single {@link
+ * ExprNode.AddLocalConst} that reads the frame slot of {@code i} directly.
+ */
+final class Specializer {
+    private final ASTInterpreter interpreter;
+    private final TypeChecker checker;
+    /** The byte address of every global variable and array. */
+    private final Map<Symbol, Long> globals;
+    private final Map<Symbol, FunctionNode> functions;
+    private long rewrites = 0;
+
+    Specializer(ASTInterpreter interpreter, TypeChecker checker, Map<Symbol, Long> globals,
+                Map<Symbol, FunctionNode> functions) {
+        this.interpreter = interpreter;
+        this.checker = checker;
+        this.globals = globals;
+        this.functions = functions;
+    }
+
+    /** Number of expressions specialized so far. */
+    long getRewrites() {
+        return rewrites;
+    }
+
+    /** Lays out the frame of {@code f} and builds its statements, if that was not done yet. */
+    void prepare(FunctionNode f) {
+        if (f.isPrepared())
+            return;
+        var slots = new HashMap<Symbol, Integer>();
+        for (Symbol parameter : f.definition.getParameters()) {
+            slots.put(parameter, slots.size());
+        }
+        collectLocals(f.definition.getStatements(), slots);
+        f.slots = slots;
+        f.frameSize = slots.size();
+        f.body = block(f.definition.getStatements(), f);
+    }
+
+    private static void collectLocals(Node n, Map<Symbol, Integer> slots) {
+        if (n instanceof VariableDeclaration) {
+            slots.put(((VariableDeclaration) n).getSymbol(), slots.size());
+            return;
+        }
+        // Locals are only declared in statement lists, there is no need to look into expressions
+        if (n instanceof StatementList || n instanceof IfElseBranch || n instanceof WhileLoop) {
+            for (Node child : n.getChildren()) {
+                if (child != null)
+                    collectLocals(child, slots);
+            }
+        }
+    }
+
+    private ExprNode uninitialized(Expression e, FunctionNode scope, ExprNode.Parent parent) {
+        return new ExprNode.Uninitialized(this, e, scope, parent);
+    }
+
+    private StmtNode block(StatementList statements, FunctionNode scope) {
+        List<StmtNode> nodes = new ArrayList<>();
+        for (Node child : statements.getChildren()) {
+            StmtNode node = statement((Statement) child, scope);
+            if (node != null)
+                nodes.add(node);
+        }
+        return nodes.size() == 1 ? nodes.get(0) : new StmtNode.Block(nodes.toArray(new StmtNode[0]));
+    }
+
+    /** The node of {@code s}, or null if it does nothing when executed. */
+    private StmtNode statement(Statement s, FunctionNode scope) {
+        if (s instanceof VariableDeclaration) {
+            return null;
+        } else if (s instanceof Assignment) {
+            return assignment((Assignment) s, scope);
+        } else if (s instanceof Call) {
+            var node = new StmtNode.Evaluate();
+            node.expression = uninitialized((Call) s, scope, node);
+            return node;
+        } else if (s instanceof IfElseBranch) {
+            var branch = (IfElseBranch) s;
+            var node = new StmtNode.If(block(branch.getThenBlock(), scope),
+                    branch.getElseBlock() != null ? block(branch.getElseBlock(), scope) : null);
+            node.condition = uninitialized(branch.getCondition(), scope, node);
+            return node;
+        } else if (s instanceof WhileLoop) {
+            var loop = (WhileLoop) s;
+            var node = new StmtNode.While(block(loop.getBody(), scope));
+            node.condition = uninitialized(loop.getCondition(), scope, node);
+            return node;
+        } else if (s instanceof Return) {
+            var node = new StmtNode.Return(interpreter);
+            node.value = uninitialized(((Return) s).getValue(), scope, node);
+            return node;
+        }
+        throw new RuntimeException(String.format("cannot interpret statement %s at %s",
+                s.getClass().getSimpleName(), s.getPosition()));
+    }
+
+    private StmtNode assignment(Assignment assignment, FunctionNode scope) {
+        Expression location = assignment.getLocation();
+        Expression value = assignment.getValue();
+        if (location instanceof Name) {
+            Symbol symbol = ((Name) location).getSymbol();
+            int slot = scope.slot(symbol);
+            if (slot >= 0) {
+                var node = new StmtNode.WriteLocal(slot);
+                node.value = uninitialized(value, scope, node);
+                return node;
+            }
+            var node = new StmtNode.WriteGlobal(interpreter.memory, global(symbol));
+            node.value = uninitialized(value, scope, node);
+            return node;
+        }
+        var access = (ArrayAccess) location;
+        long base = global(access.getBase().getSymbol());
+        Long index = constant(access.getOffset());
+        if (index != null) {
+            var node = new StmtNode.WriteGlobal(interpreter.memory, base + 8 * index);
+            node.value = uninitialized(value, scope, node);
+            return node;
+        }
+        var node = new StmtNode.WriteElement(interpreter.memory, base);
+        node.value = uninitialized(value, scope, node);
+        node.index = uninitialized(access.getOffset(), scope, node);
+        return node;
+    }
+
+    /** The specialized node of {@code e}, whose own operands are left uninitialized unless they were fused into it. */
+    ExprNode specialize(Expression e, FunctionNode scope) {
+        rewrites++;
+        if (e instanceof LiteralInt)
+            return new ExprNode.Const(((LiteralInt) e).getValue());
+        if (e instanceof LiteralBool)
+            return new ExprNode.Const(((LiteralBool) e).getValue() ? 1 : 0);
+        if (e instanceof Dereference)
+            return read(((Dereference) e).getAddress(), scope);
+        if (e instanceof OpExpr)
+            return operation((OpExpr) e, scope);
+        if (e instanceof Call)
+            return call((Call) e, scope);
+        throw new RuntimeException(String.format("cannot interpret expression %s at %s",
+                e.getClass().getSimpleName(), e.getPosition()));
+    }
+
+    private ExprNode read(Expression address, FunctionNode scope) {
+        if (address instanceof Name) {
+            Symbol symbol = ((Name) address).getSymbol();
+            int slot = scope.slot(symbol);
+            if (slot >= 0)
+                return new ExprNode.ReadLocal(slot);
+            return new ExprNode.ReadGlobal(interpreter.memory, global(symbol));
+        }
+        var access = (ArrayAccess) address;
+        long base = global(access.getBase().getSymbol());
+        Long index = constant(access.getOffset());
+        if (index != null)
+            return new ExprNode.ReadGlobal(interpreter.memory, base + 8 * index);
+        var node = new ExprNode.ReadElement(interpreter.memory, base);
+        node.index = uninitialized(access.getOffset(), scope, node);
+        return node;
+    }
+
+    private ExprNode operation(OpExpr op, FunctionNode scope) {
+        if (op.getOp() == OpExpr.Operation.LOGIC_NOT) {
+            var node = new ExprNode.Not();
+            node.operand = uninitialized(op.getLeft(), scope, node);
+            return node;
+        }
+        ExprNode fused = fused(op, scope);
+        if (fused != null)
+            return fused;
+
+        Type operands = checker.getType(op.getLeft());
+        ExprNode.Binary node;
+        switch (op.getOp()) {
+            case ADD: node = new ExprNode.Add(); break;
+            case SUB: node = new ExprNode.Sub(); break;
+            case MULT: node = new ExprNode.Mul(); break;
+            case DIV: node = new ExprNode.Div(); break;
+            case LT: node = new ExprNode.Lt(); break;
+            case LE: node = new ExprNode.Le(); break;
+            case GT: node = new ExprNode.Gt(); break;
+            case GE: node = new ExprNode.Ge(); break;
+            case EQ: node = operands instanceof BoolType ? new ExprNode.BoolEq() : new ExprNode.Eq(); break;
+            case NE: node = operands instanceof BoolType ? new ExprNode.BoolNe() : new ExprNode.Ne(); break;
+            case LOGIC_AND: node = new ExprNode.And(); break;
+            case LOGIC_OR: node = new ExprNode.Or(); break;
+            default:
+                throw new RuntimeException(String.format("cannot interpret operator %s at %s", op.getOp(),
+                        op.getPosition()));
+        }
+        node.left = uninitialized(op.getLeft(), scope, node);
+        node.right = uninitialized(op.getRight(), scope, node);
+        return node;
+    }
+
+    /** A single node for an integer operation on locals and constants, or null if {@code op} has no such form. */
+    private ExprNode fused(OpExpr op, FunctionNode scope) {
+        if (!(checker.getType(op.getLeft()) instanceof IntType))
+            return null;
+        int left = localSlot(op.getLeft(), scope);
+        int right = localSlot(op.getRight(), scope);
+        Long leftConstant = constant(op.getLeft());
+        Long rightConstant = constant(op.getRight());
+        switch (op.getOp()) {
+            case ADD:
+                if (left >= 0 && right >= 0)
+                    return new ExprNode.AddLocalLocal(left, right);
+                if (left >= 0 && rightConstant != null)
+                    return new ExprNode.AddLocalConst(left, rightConstant);
+                if (leftConstant != null && right >= 0)
+                    return new ExprNode.AddLocalConst(right, leftConstant);
+                return null;
+            case SUB:
+                // Wraps around like the subtraction would, even for Long.MIN_VALUE
+                if (left >= 0 && rightConstant != null)
+                    return new ExprNode.AddLocalConst(left, -rightConstant);
+                return null;
+            default:
+                break;
+        }
+        if (left < 0 || rightConstant == null)
+            return null;
+        switch (op.getOp()) {
+            case LT: return new ExprNode.LtLocalConst(left, rightConstant);
+            case LE: return new ExprNode.LeLocalConst(left, rightConstant);
+            case GT: return new ExprNode.GtLocalConst(left, rightConstant);
+            case GE: return new ExprNode.GeLocalConst(left, rightConstant);
+            case EQ: return new ExprNode.EqLocalConst(left, rightConstant);
+            case NE: return new ExprNode.NeLocalConst(left, rightConstant);
+            default: return null;
+        }
+    }
+
+    private ExprNode call(Call call, FunctionNode scope) {
+        List<Expression> arguments = call.getArguments();
+        FunctionNode callee = functions.get(call.getCallee());
+        if (callee != null) {
+            prepare(callee);
+            var node = new ExprNode.Call(interpreter, callee, arguments.size());
+            for (int i = 0; i < arguments.size(); i++) {
+                node.arguments[i] = uninitialized(arguments.get(i), scope, node);
+            }
+            return node;
+        }
+        Builtin builtin = Builtin.fromName(call.getCallee().getName());
+        if (builtin == null)
+            throw new RuntimeException(String.format("call to unknown function '%s' at %s",
+                    call.getCallee().getName(), call.getPosition()));
+        switch (builtin) {
+            case READ_INT:
+                return new ExprNode.ReadInt(interpreter.io);
+            case PRINT_INT: {
+                var node = new ExprNode.PrintInt(interpreter.io);
+                node.value = uninitialized(arguments.get(0), scope, node);
+                return node;
+            }
+            case PRINT_BOOL: {
+                var node = new ExprNode.PrintBool(interpreter.io);
+                node.value = uninitialized(arguments.get(0), scope, node);
+                return node;
+            }
+            default:
+                return new ExprNode.Println(interpreter.io);
+        }
+    }
+
+    /** The slot of the local that {@code e} reads, or -1 if it does not just read a local. */
+    private static int localSlot(Expression e, FunctionNode scope) {
+        if (e instanceof Dereference && ((Dereference) e).getAddress() instanceof Name)
+            return scope.slot(((Name) ((Dereference) e).getAddress()).getSymbol());
+        return -1;
+    }
+
+    private static Long constant(Expression e) {
+        return e instanceof LiteralInt ? ((LiteralInt) e).getValue() : null;
+    }
+
+    private long global(Symbol symbol) {
+        Long address = globals.get(symbol);
+        if (address == null)
+            throw new RuntimeException(String.format("unknown variable '%s'", symbol.getName()));
+        return address;
+    }
+}
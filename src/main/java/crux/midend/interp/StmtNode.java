@@ -0,0 +1,182 @@
+package crux.midend.interp;
+
+import crux.midend.ir.emulator.PagedMemory;
+
+/**
+ * An executable statement of the {@link ASTInterpreter}. Statements are built when their function is first called;
+ * the expressions in them are specialized when they first run, see {@link ExprNode}.
+ */
+abstract class StmtNode {
+    /** Returns true if a {@code return} was executed, whose value is then in {@link ASTInterpreter#returnValue}. */
+    abstract boolean execute(long[] frame);
+
+    static final class Block extends StmtNode {
+        private final StmtNode[] statements;
+
+        Block(StmtNode[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        boolean execute(long[] frame) {
+            for (StmtNode statement : statements) {
+                if (statement.execute(frame))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /** An expression evaluated for its effect, which is always a call. */
+    static final class Evaluate extends StmtNode implements ExprNode.Parent {
+        ExprNode expression;
+
+        @Override
+        boolean execute(long[] frame) {
+            expression.execute(frame);
+            return false;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            expression = replacement;
+        }
+    }
+
+    static final class WriteLocal extends StmtNode implements ExprNode.Parent {
+        private final int slot;
+        ExprNode value;
+
+        WriteLocal(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        boolean execute(long[] frame) {
+            frame[slot] = value.execute(frame);
+            return false;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            value = replacement;
+        }
+    }
+
+    /** Writes a global variable, or an array element at a constant index. */
+    static final class WriteGlobal extends StmtNode implements ExprNode.Parent {
+        private final PagedMemory memory;
+        private final long address;
+        ExprNode value;
+
+        WriteGlobal(PagedMemory memory, long address) {
+            this.memory = memory;
+            this.address = address;
+        }
+
+        @Override
+        boolean execute(long[] frame) {
+            memory.store(address, value.execute(frame));
+            return false;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            value = replacement;
+        }
+    }
+
+    static final class WriteElement extends StmtNode implements ExprNode.Parent {
+        private final PagedMemory memory;
+        private final long base;
+        ExprNode index;
+        ExprNode value;
+
+        WriteElement(PagedMemory memory, long base) {
+            this.memory = memory;
+            this.base = base;
+        }
+
+        @Override
+        boolean execute(long[] frame) {
+            // The value is computed before the address, as in the lowered IR
+            long v = value.execute(frame);
+            memory.store(base + 8 * index.execute(frame), v);
+            return false;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            if (value == child)
+                value = replacement;
+            else
+                index = replacement;
+        }
+    }
+
+    static final class If extends StmtNode implements ExprNode.Parent {
+        ExprNode condition;
+        private final StmtNode thenBlock;
+        private final StmtNode elseBlock;
+
+        If(StmtNode thenBlock, StmtNode elseBlock) {
+            this.thenBlock = thenBlock;
+            this.elseBlock = elseBlock;
+        }
+
+        @Override
+        boolean execute(long[] frame) {
+            if (condition.execute(frame) != 0)
+                return thenBlock.execute(frame);
+            return elseBlock != null && elseBlock.execute(frame);
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            condition = replacement;
+        }
+    }
+
+    static final class While extends StmtNode implements ExprNode.Parent {
+        ExprNode condition;
+        private final StmtNode body;
+
+        While(StmtNode body) {
+            this.body = body;
+        }
+
+        @Override
+        boolean execute(long[] frame) {
+            while (condition.execute(frame) != 0) {
+                if (body.execute(frame))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            condition = replacement;
+        }
+    }
+
+    static final class Return extends StmtNode implements ExprNode.Parent {
+        private final ASTInterpreter interpreter;
+        ExprNode value;
+
+        Return(ASTInterpreter interpreter) {
+            this.interpreter = interpreter;
+        }
+
+        @Override
+        boolean execute(long[] frame) {
+            interpreter.returnValue = value.execute(frame);
+            return true;
+        }
+
+        @Override
+        public void replace(ExprNode child, ExprNode replacement) {
+            value = replacement;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package crux.midend.ir.analysis;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.*;
+import crux.midend.ir.emulator.Builtin;
+
+import java.util.*;
+
+/**
+ * Finds the functions of a {@link Program} whose result only depends on their arguments and that have no effect
+ * besides returning it. A function is pure if it
+ * <ul>
+ * <li>stores to no global,</li>
+ * <li>only loads globals that are never stored to anywhere in the program and have initial values, so that the load
+ * can neither see a different value nor read uninitialized memory,</li>
+ * <li>calls no builtin, since they all do I/O, and</li>
+ * <li>only calls pure functions.</li>
+ * </ul>
+ * Recursion is allowed: functions are assumed pure until one of the rules rules them out, and the assumption is
+ * revised until no more functions change.
+ */
+public final class PurityAnalysis {
+    private final Set<Function> pure = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public PurityAnalysis(Program p) {
+        var functions = new HashMap<String, Function>();
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            Function f = it.next();
+            functions.put(f.getName(), f);
+        }
+        var stored = storedGlobals(functions.values());
+        var readOnly = new HashSet<AddressVar>();
+        for (Iterator<GlobalDecl> it = p.getGlobals(); it.hasNext(); ) {
+            GlobalDecl g = it.next();
+            // A null base is a store through an address of unknown origin, which could be to any global
+            if (g.getInitialValues() != null && !stored.contains(g.getAllocatedAddress()) && !stored.contains(null))
+                readOnly.add(g.getAllocatedAddress());
+        }
+
+        var callees = new IdentityHashMap<Function, Set<Function>>();
+        for (Function f : functions.values()) {
+            var called = Collections.<Function>newSetFromMap(new IdentityHashMap<>());
+            if (isLocallyPure(f, functions, readOnly, called)) {
+                pure.add(f);
+                callees.put(f, called);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = pure.removeIf(f -> !pure.containsAll(callees.get(f)));
+        }
+    }
+
+    public boolean isPure(Function f) {
+        return pure.contains(f);
+    }
+
+    /**
+     * Checks the instructions of {@code f} on their own, without looking at its callees, and adds the functions it
+     * calls to {@code called}.
+     */
+    private static boolean isLocallyPure(Function f, Map<String, Function> functions, Set<AddressVar> readOnly,
+                                         Set<Function> called) {
+        var bases = addressBases(f);
+        for (Instruction inst : instructions(f)) {
+            if (inst instanceof StoreInst)
+                return false;
+            if (inst instanceof LoadInst && !readOnly.contains(bases.get(((LoadInst) inst).getSrcAddress())))
+                return false;
+            if (inst instanceof CallInst) {
+                String name = ((CallInst) inst).getCallee().getName().substring(1);
+                Function callee = functions.get(name);
+                if (Builtin.fromName(name) != null || callee == null)
+                    return false;
+                called.add(callee);
+            }
+        }
+        return true;
+    }
+
+    /** The globals that some {@link StoreInst} may write to, including null for an address of unknown origin. */
+    private static Set<AddressVar> storedGlobals(Collection<Function> functions) {
+        var stored = new HashSet<AddressVar>();
+        for (Function f : functions) {
+            var bases = addressBases(f);
+            for (Instruction inst : instructions(f)) {
+                if (inst instanceof StoreInst)
+                    stored.add(bases.get(((StoreInst) inst).getDestAddress()));
+            }
+        }
+        return stored;
+    }
+
+    /** The global each address variable of {@code f} is computed from by an {@link AddressAt}. */
+    private static Map<AddressVar, AddressVar> addressBases(Function f) {
+        var bases = new HashMap<AddressVar, AddressVar>();
+        for (Instruction inst : instructions(f)) {
+            if (inst instanceof AddressAt)
+                bases.put(((AddressAt) inst).getDst(), ((AddressAt) inst).getBase());
+        }
+        return bases;
+    }
+
+    private static List<Instruction> instructions(Function f) {
+        List<Instruction> instructions = new ArrayList<>();
+        for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+            instructions.addAll(block.getInstructions());
+        }
+        return instructions;
+    }
+}
@@ -17,7 +17,23 @@ public class AddressVar extends Variable {
         mName = String.format("%%%s", mName);
     }
 
+    AddressVar(Type type, int temp) {
+        super(type, temp);
+    }
+
+    /** A variable with the name {@code name}, which already has its prefix, for restoring a packed function. */
+    static AddressVar withName(Type type, String name) {
+        var v = new AddressVar(type);
+        v.mName = name;
+        return v;
+    }
+
+    @Override
+    protected String getPrefix() {
+        return "%";
+    }
+
     public String toString() {
-        return mName;
+        return getName();
     }
 }
@@ -0,0 +1,80 @@
+package crux.midend.ir.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A maximal straight line of instructions in a {@link ControlFlowGraph}: control only enters at the first instruction
+ * and only leaves after the last one.
+ * <p>
+ * Successors are in the order of the {@code next} edges of the last instruction, so a block ending in a {@link
+ * crux.midend.ir.core.insts.JumpInst} has its false successor at index 0 and its true successor at index 1, even when
+ * both are the same block. A block that returns, explicitly or by running off the end of a void function, has the
+ * exit block as its only successor. Predecessors list a block once per edge into it.
+ */
+public final class BasicBlock {
+    private static final BasicBlock[] NONE = new BasicBlock[0];
+
+    private final int id;
+    private final Instruction[] instructions;
+    BasicBlock[] successors = NONE;
+    BasicBlock[] predecessors = NONE;
+
+    BasicBlock(int id, Instruction[] instructions) {
+        this.id = id;
+        this.instructions = instructions;
+    }
+
+    /** The index of this block in its graph, 0 for the entry and the highest index for the exit. */
+    public int getId() {
+        return id;
+    }
+
+    public int size() {
+        return instructions.length;
+    }
+
+    public Instruction get(int i) {
+        return instructions[i];
+    }
+
+    public Instruction getFirst() {
+        return instructions[0];
+    }
+
+    /** The instruction that decides where control goes after this block. */
+    public Instruction getLast() {
+        return instructions[instructions.length - 1];
+    }
+
+    public List<Instruction> getInstructions() {
+        return Collections.unmodifiableList(Arrays.asList(instructions));
+    }
+
+    /** Whether this is the exit block, which has no instructions. */
+    public boolean isExit() {
+        return instructions.length == 0;
+    }
+
+    public int numSuccessors() {
+        return successors.length;
+    }
+
+    public BasicBlock getSuccessor(int i) {
+        return successors[i];
+    }
+
+    public int numPredecessors() {
+        return predecessors.length;
+    }
+
+    public BasicBlock getPredecessor(int i) {
+        return predecessors[i];
+    }
+
+    @Override
+    public String toString() {
+        return "B" + id;
+    }
+}
@@ -0,0 +1,228 @@
+package crux.midend.ir.core;
+
+import crux.midend.ir.core.insts.ReturnInst;
+
+import java.util.*;
+
+/**
+ * The basic blocks of a {@link Function} and the edges between them, for analyses and passes that would otherwise
+ * walk the instruction graph themselves. Get it from {@link Function#getControlFlowGraph}, which builds it once and
+ * rebuilds it after the instruction graph was changed through the methods of the function.
+ * <p>
+ * Only instructions reachable from the start are included. A {@link ReturnInst} ends its block and leads to the exit
+ * block, whatever its {@code next} edges say, since control never follows them. Blocks are numbered densely, so
+ * analyses can keep per-block facts in arrays indexed by {@link BasicBlock#getId}: the entry is block 0 and the exit
+ * block, which has no instructions, is the last one.
+ * <p>
+ * Building takes time linear in the number of instructions and edges.
+ */
+public final class ControlFlowGraph {
+    private final Function function;
+    private final BasicBlock[] blocks;
+    /** The number of every instruction, which indexes {@link #blockIndex}. */
+    private final Map<Instruction, Integer> index;
+    /** The id of the block of every instruction. */
+    private final int[] blockIndex;
+    private final int numInstructions;
+    private List<BasicBlock> reversePostOrder;
+
+    ControlFlowGraph(Function f) {
+        function = f;
+
+        // Number the reachable instructions, remember their successors by number and count the edges into each. Only
+        // this pass looks at the instructions; the others work on the numbers, which keeps large functions fast.
+        index = new IdentityHashMap<>();
+        var order = new ArrayList<Instruction>();
+        int[] first = new int[16], second = new int[16], preds = new int[16];
+        Instruction start = f.getStart();
+        if (start != null) {
+            index.put(start, 0);
+            order.add(start);
+        }
+        Deque<Instruction> worklist = new ArrayDeque<>(order);
+        while (!worklist.isEmpty()) {
+            Instruction inst = worklist.pop();
+            int n = index.get(inst);
+            int succ = numSuccessors(inst);
+            if (succ > 2)
+                throw new RuntimeException(String.format("instruction with %d successors in function %s", succ,
+                        f.getName()));
+            int[] targets = {-1, -1};
+            // Pushed in reverse so that fall-through successors are numbered first
+            for (int i = succ - 1; i >= 0; i--) {
+                Instruction next = inst.getNext(i);
+                if (next == null)
+                    continue;
+                Integer m = index.get(next);
+                if (m == null) {
+                    m = order.size();
+                    index.put(next, m);
+                    order.add(next);
+                    worklist.push(next);
+                    if (m == preds.length) {
+                        first = Arrays.copyOf(first, 2 * m);
+                        second = Arrays.copyOf(second, 2 * m);
+                        preds = Arrays.copyOf(preds, 2 * m);
+                    }
+                }
+                targets[i] = m;
+                preds[m]++;
+            }
+            first[n] = targets[0];
+            second[n] = targets[1];
+        }
+        numInstructions = order.size();
+
+        // An instruction starts a block unless it is the only successor of its only predecessor
+        boolean[] leader = new boolean[numInstructions];
+        if (numInstructions > 0)
+            leader[0] = true;
+        for (int n = 0; n < numInstructions; n++) {
+            if (preds[n] != 1)
+                leader[n] = true;
+            if (second[n] >= 0) {
+                leader[second[n]] = true;
+                if (first[n] >= 0)
+                    leader[first[n]] = true;
+            }
+        }
+
+        var blockList = new ArrayList<BasicBlock>();
+        blockIndex = new int[numInstructions];
+        int[] lastOf = new int[numInstructions + 1];
+        var chain = new ArrayList<Instruction>();
+        for (int n = 0; n < numInstructions; n++) {
+            if (!leader[n])
+                continue;
+            chain.clear();
+            int m = n;
+            while (true) {
+                chain.add(order.get(m));
+                blockIndex[m] = blockList.size();
+                if (second[m] >= 0 || first[m] < 0 || leader[first[m]])
+                    break;
+                m = first[m];
+            }
+            lastOf[blockList.size()] = m;
+            blockList.add(new BasicBlock(blockList.size(), chain.toArray(new Instruction[0])));
+        }
+        var exit = new BasicBlock(blockList.size(), new Instruction[0]);
+        blockList.add(exit);
+        blocks = blockList.toArray(new BasicBlock[0]);
+        link(exit, lastOf, first, second);
+    }
+
+    /** Fills in the successors and predecessors of every block from the successors of its last instruction. */
+    private void link(BasicBlock exit, int[] lastOf, int[] first, int[] second) {
+        int[] numPreds = new int[blocks.length];
+        for (BasicBlock block : blocks) {
+            if (block == exit)
+                continue;
+            int last = lastOf[block.getId()];
+            if (first[last] < 0 && second[last] < 0) {
+                block.successors = new BasicBlock[] {exit};
+            } else if (second[last] < 0) {
+                block.successors = new BasicBlock[] {blocks[blockIndex[first[last]]]};
+            } else if (first[last] < 0) {
+                block.successors = new BasicBlock[] {blocks[blockIndex[second[last]]]};
+            } else {
+                block.successors = new BasicBlock[] {blocks[blockIndex[first[last]]], blocks[blockIndex[second[last]]]};
+            }
+            for (BasicBlock s : block.successors) {
+                numPreds[s.getId()]++;
+            }
+        }
+        for (BasicBlock block : blocks) {
+            block.predecessors = new BasicBlock[numPreds[block.getId()]];
+            numPreds[block.getId()] = 0;
+        }
+        for (BasicBlock block : blocks) {
+            for (BasicBlock s : block.successors) {
+                s.predecessors[numPreds[s.getId()]++] = block;
+            }
+        }
+    }
+
+    /** The number of {@code next} edges of {@code inst} that control can take. */
+    private static int numSuccessors(Instruction inst) {
+        return inst instanceof ReturnInst ? 0 : inst.numNext();
+    }
+
+    public Function getFunction() {
+        return function;
+    }
+
+    /** The number of blocks, including the exit block. */
+    public int size() {
+        return blocks.length;
+    }
+
+    public int numInstructions() {
+        return numInstructions;
+    }
+
+    public BasicBlock getBlock(int id) {
+        return blocks[id];
+    }
+
+    public List<BasicBlock> getBlocks() {
+        return Collections.unmodifiableList(Arrays.asList(blocks));
+    }
+
+    /** The block of the start instruction, or the exit block if the function has no instructions. */
+    public BasicBlock getEntry() {
+        return blocks[0];
+    }
+
+    public BasicBlock getExit() {
+        return blocks[blocks.length - 1];
+    }
+
+    /** The block containing {@code inst}, or null if it cannot be reached from the start. */
+    public BasicBlock blockOf(Instruction inst) {
+        Integer n = index.get(inst);
+        return n != null ? blocks[blockIndex[n]] : null;
+    }
+
+    /**
+     * The blocks reachable from the entry in reverse post-order, so every block comes before its successors except
+     * along back edges. The exit block is missing if the function never returns.
+     */
+    public List<BasicBlock> getReversePostOrder() {
+        if (reversePostOrder == null)
+            reversePostOrder = Collections.unmodifiableList(Arrays.asList(computeReversePostOrder()));
+        return reversePostOrder;
+    }
+
+    private BasicBlock[] computeReversePostOrder() {
+        var postOrder = new BasicBlock[blocks.length];
+        int count = 0;
+        boolean[] visited = new boolean[blocks.length];
+        // Depth-first search with an explicit stack of blocks and the index of their next successor to visit
+        BasicBlock[] stack = new BasicBlock[blocks.length];
+        int[] nextSuccessor = new int[blocks.length];
+        int top = 0;
+        stack[0] = getEntry();
+        visited[getEntry().getId()] = true;
+        while (top >= 0) {
+            BasicBlock block = stack[top];
+            if (nextSuccessor[top] < block.numSuccessors()) {
+                BasicBlock s = block.getSuccessor(nextSuccessor[top]++);
+                if (!visited[s.getId()]) {
+                    visited[s.getId()] = true;
+                    top++;
+                    stack[top] = s;
+                    nextSuccessor[top] = 0;
+                }
+            } else {
+                postOrder[count++] = block;
+                top--;
+            }
+        }
+        var result = new BasicBlock[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = postOrder[count - 1 - i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,324 @@
+package crux.midend.ir.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The dominator tree of a {@link ControlFlowGraph}: block {@code a} dominates block {@code b} if every path from the
+ * entry to {@code b} goes through {@code a}. Get it from {@link Function#getDominatorTree}, which keeps it as long as
+ * the control flow graph it was built from is current.
+ * <p>
+ * The tree is built with the Lengauer-Tarjan algorithm with path compression, in time {@code O(E log V)} for a graph
+ * with {@code V} blocks and {@code E} edges, without recursion. All facts are kept in arrays indexed by {@link
+ * BasicBlock#getId}. Blocks the entry does not reach, which can only be the exit block of a function that never
+ * returns, are in no tree: they have no immediate dominator and dominate nothing and are dominated by nothing.
+ * <p>
+ * {@link #dominates} takes constant time: a preorder walk numbers the tree, and a block dominates exactly the blocks
+ * numbered from its own number up to the highest number in its subtree. Dominance frontiers are computed the first
+ * time one is asked for, in time linear in their total size.
+ */
+public final class DominatorTree {
+    private static final int NONE = -1;
+
+    private final ControlFlowGraph cfg;
+    private final int[] idom;
+    /** The children of block {@code b} are {@code children[childStart[b]]} up to {@code children[childStart[b + 1]]}. */
+    private final int[] childStart;
+    private final int[] children;
+    private final int[] preorder;
+    /** The preorder number of every block, or {@link #NONE} if the entry does not reach it. */
+    private final int[] number;
+    /** The highest preorder number in the subtree of every block. */
+    private final int[] lastNumber;
+    private final int[] depth;
+    private int[][] frontiers;
+
+    DominatorTree(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        int n = cfg.size();
+        idom = new int[n];
+        computeImmediateDominators();
+
+        // Children of every block by counting sort on the immediate dominator
+        childStart = new int[n + 1];
+        for (int b = 0; b < n; b++) {
+            if (idom[b] != NONE)
+                childStart[idom[b] + 1]++;
+        }
+        for (int b = 0; b < n; b++) {
+            childStart[b + 1] += childStart[b];
+        }
+        children = new int[childStart[n]];
+        int[] fill = new int[n];
+        for (int b = 0; b < n; b++) {
+            if (idom[b] != NONE)
+                children[childStart[idom[b]] + fill[idom[b]]++] = b;
+        }
+
+        // Preorder numbers, subtree intervals and depths
+        number = new int[n];
+        lastNumber = new int[n];
+        depth = new int[n];
+        Arrays.fill(number, NONE);
+        int[] order = new int[n];
+        int count = 0;
+        int[] stack = new int[n];
+        int top = 0;
+        stack[0] = 0;
+        while (top >= 0) {
+            int b = stack[top--];
+            number[b] = count;
+            order[count++] = b;
+            // Pushed in reverse so that children are numbered in order
+            for (int k = childStart[b + 1] - 1; k >= childStart[b]; k--) {
+                int c = children[k];
+                depth[c] = depth[b] + 1;
+                stack[++top] = c;
+            }
+        }
+        preorder = Arrays.copyOf(order, count);
+        // Going backwards, every subtree is complete before its root
+        for (int i = count - 1; i >= 0; i--) {
+            int b = preorder[i];
+            int last = number[b];
+            for (int k = childStart[b]; k < childStart[b + 1]; k++) {
+                last = Math.max(last, lastNumber[children[k]]);
+            }
+            lastNumber[b] = last;
+        }
+    }
+
+    /**
+     * Fills in {@link #idom} with the Lengauer-Tarjan algorithm, working on the depth-first numbers of the blocks: a
+     * block's semi-dominator is found from its predecessors through a forest of the blocks already processed, and
+     * the immediate dominators follow from the semi-dominators.
+     */
+    private void computeImmediateDominators() {
+        int n = cfg.size();
+        // Depth-first numbering from the entry; dfnum is indexed by block id, the other arrays by number
+        int[] dfnum = new int[n];
+        Arrays.fill(dfnum, NONE);
+        int[] vertex = new int[n];
+        int[] parent = new int[n];
+        int count = 0;
+        int[] stack = new int[n];
+        int[] nextSuccessor = new int[n];
+        int top = 0;
+        stack[0] = cfg.getEntry().getId();
+        dfnum[stack[0]] = count;
+        vertex[count] = stack[0];
+        parent[count++] = NONE;
+        while (top >= 0) {
+            BasicBlock block = cfg.getBlock(stack[top]);
+            if (nextSuccessor[top] < block.numSuccessors()) {
+                int s = block.getSuccessor(nextSuccessor[top]++).getId();
+                if (dfnum[s] == NONE) {
+                    dfnum[s] = count;
+                    vertex[count] = s;
+                    parent[count++] = dfnum[block.getId()];
+                    top++;
+                    stack[top] = s;
+                    nextSuccessor[top] = 0;
+                }
+            } else {
+                top--;
+            }
+        }
+
+        int[] semi = new int[count];
+        int[] ancestor = new int[count];
+        int[] best = new int[count];
+        int[] dom = new int[count];
+        int[] sameDom = new int[count];
+        int[] bucketHead = new int[count];
+        int[] bucketNext = new int[count];
+        Arrays.fill(ancestor, NONE);
+        Arrays.fill(sameDom, NONE);
+        Arrays.fill(bucketHead, NONE);
+        for (int v = 0; v < count; v++) {
+            semi[v] = v;
+            best[v] = v;
+        }
+        int[] path = new int[count];
+
+        for (int v = count - 1; v > 0; v--) {
+            int p = parent[v];
+            int s = p;
+            BasicBlock block = cfg.getBlock(vertex[v]);
+            for (int i = 0; i < block.numPredecessors(); i++) {
+                int u = dfnum[block.getPredecessor(i).getId()];
+                if (u == NONE)
+                    continue;
+                int candidate = u <= v ? u : semi[eval(u, ancestor, best, semi, path)];
+                if (candidate < s)
+                    s = candidate;
+            }
+            semi[v] = s;
+            bucketNext[v] = bucketHead[s];
+            bucketHead[s] = v;
+            ancestor[v] = p;
+            best[v] = v;
+
+            for (int w = bucketHead[p]; w != NONE; w = bucketNext[w]) {
+                int y = eval(w, ancestor, best, semi, path);
+                if (semi[y] == semi[w])
+                    dom[w] = p;
+                else
+                    sameDom[w] = y;
+            }
+            bucketHead[p] = NONE;
+        }
+        for (int v = 1; v < count; v++) {
+            if (sameDom[v] != NONE)
+                dom[v] = dom[sameDom[v]];
+        }
+
+        Arrays.fill(idom, NONE);
+        for (int v = 1; v < count; v++) {
+            idom[vertex[v]] = vertex[dom[v]];
+        }
+    }
+
+    /**
+     * The vertex with the lowest semi-dominator on the forest path from {@code v} up to, but excluding, its root,
+     * compressing the path on the way. Written as a loop over the path, which can be as long as the function.
+     */
+    private static int eval(int v, int[] ancestor, int[] best, int[] semi, int[] path) {
+        if (ancestor[v] == NONE)
+            return v;
+        int length = 0;
+        int u = v;
+        while (ancestor[ancestor[u]] != NONE) {
+            path[length++] = u;
+            u = ancestor[u];
+        }
+        while (length > 0) {
+            u = path[--length];
+            int a = ancestor[u];
+            if (semi[best[a]] < semi[best[u]])
+                best[u] = best[a];
+            ancestor[u] = ancestor[a];
+        }
+        return best[v];
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        return cfg;
+    }
+
+    /** The immediate dominator of {@code b}, or null for the entry and for blocks the entry does not reach. */
+    public BasicBlock getImmediateDominator(BasicBlock b) {
+        int d = idom[b.getId()];
+        return d != NONE ? cfg.getBlock(d) : null;
+    }
+
+    /** The blocks {@code b} is the immediate dominator of. */
+    public List<BasicBlock> getChildren(BasicBlock b) {
+        var result = new ArrayList<BasicBlock>(childStart[b.getId() + 1] - childStart[b.getId()]);
+        for (int k = childStart[b.getId()]; k < childStart[b.getId() + 1]; k++) {
+            result.add(cfg.getBlock(children[k]));
+        }
+        return result;
+    }
+
+    /** The blocks the entry reaches, each before the blocks it dominates. */
+    public List<BasicBlock> getPreorder() {
+        var result = new ArrayList<BasicBlock>(preorder.length);
+        for (int b : preorder) {
+            result.add(cfg.getBlock(b));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /** The number of blocks between {@code b} and the entry in the tree, 0 for the entry, or -1 if it is unreached. */
+    public int getDepth(BasicBlock b) {
+        return number[b.getId()] != NONE ? depth[b.getId()] : NONE;
+    }
+
+    /** Whether {@code a} dominates {@code b}, which includes {@code a == b}, in constant time. */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        int na = number[a.getId()], nb = number[b.getId()];
+        return na != NONE && nb != NONE && na <= nb && nb <= lastNumber[a.getId()];
+    }
+
+    public boolean strictlyDominates(BasicBlock a, BasicBlock b) {
+        return a != b && dominates(a, b);
+    }
+
+    /**
+     * Whether {@code a} comes before {@code b} on every path from the start to {@code b}, for instructions of reached
+     * blocks.
+     */
+    public boolean dominates(Instruction a, Instruction b) {
+        BasicBlock ba = cfg.blockOf(a), bb = cfg.blockOf(b);
+        if (ba == null || bb == null)
+            return false;
+        if (ba != bb)
+            return dominates(ba, bb);
+        for (int i = 0; i < ba.size(); i++) {
+            if (ba.get(i) == a)
+                return true;
+            if (ba.get(i) == b)
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * The dominance frontier of {@code b}: the blocks that {@code b} does not strictly dominate but that have a
+     * predecessor {@code b} dominates, where the influence of {@code b} ends.
+     */
+    public List<BasicBlock> getDominanceFrontier(BasicBlock b) {
+        if (frontiers == null)
+            frontiers = computeFrontiers();
+        var result = new ArrayList<BasicBlock>(frontiers[b.getId()].length);
+        for (int f : frontiers[b.getId()]) {
+            result.add(cfg.getBlock(f));
+        }
+        return result;
+    }
+
+    /**
+     * Follows Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm": a join block is in the frontier of
+     * each block on the tree path from each of its predecessors up to its immediate dominator.
+     */
+    private int[][] computeFrontiers() {
+        int n = cfg.size();
+        int[] size = new int[n];
+        int[][] result = new int[n][];
+        // Every block on the path gets the join once, even if several predecessors share the path
+        int[] lastJoin = new int[n];
+        Arrays.fill(lastJoin, NONE);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int j = 0; j < n; j++) {
+                BasicBlock join = cfg.getBlock(j);
+                // Control enters the entry from outside as well
+                int edges = join.numPredecessors() + (j == cfg.getEntry().getId() ? 1 : 0);
+                if (number[j] == NONE || edges < 2)
+                    continue;
+                for (int i = 0; i < join.numPredecessors(); i++) {
+                    int runner = join.getPredecessor(i).getId();
+                    if (number[runner] == NONE)
+                        continue;
+                    while (runner != idom[j] && lastJoin[runner] != j + pass * n) {
+                        lastJoin[runner] = j + pass * n;
+                        if (pass == 0)
+                            size[runner]++;
+                        else
+                            result[runner][size[runner]++] = j;
+                        runner = idom[runner];
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int b = 0; b < n; b++) {
+                    result[b] = new int[size[b]];
+                    size[b] = 0;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -3,87 +3,247 @@ import java.util.*;
 import java.io.*;
 import crux.midend.ir.core.insts.*;
 import crux.frontend.types.*;
+import crux.midend.ir.emulator.Builtin;
+import crux.midend.ir.emulator.EmulatorException;
+import crux.midend.ir.emulator.EmulatorIO;
+import crux.midend.ir.emulator.ExecutionEngine;
+import crux.midend.ir.emulator.MemoCache;
+import crux.midend.ir.emulator.Memoizer;
+import crux.midend.ir.emulator.PagedMemory;
+import crux.midend.ir.emulator.Profiler;
+import crux.midend.ir.emulator.TraceSink;
 
-public class Emulator {
-    HashMap<String, Function> functions = new HashMap<>();
-    Stack<CallContext> stack = new Stack<>();
-    HashMap<Long, Long> globalMap = new HashMap<>();
-    HashMap<AddressVar, Long> offsetMap = new HashMap<>();
+public class Emulator implements ExecutionEngine {
+    final LoadedProgram program;
+    /**
+     * The call stack, with the frame of the running function at {@code depth - 1}. Frames are reused by every call at
+     * the same depth, so calls do not allocate once the stack has been that deep.
+     */
+    CallContext[] frames = new CallContext[16];
+    int depth = 0;
+    /** The frame layout of every function called so far. */
+    private final Map<Function, FrameLayout> layouts = new IdentityHashMap<>();
+    int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+    long steps = 0;
+    /** Number of diagnostics printed so far, such as for reads of uninitialized memory. */
+    long diagnostics = 0;
+    PagedMemory globalMemory;
 
-    BufferedReader br;
-    PrintStream out;
-    public static boolean DEBUG = false;
+    EmulatorIO io;
+    TraceSink trace;
+    Profiler profiler;
+    Memoizer memoizer;
   
     public Emulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
-        br = new BufferedReader(new InputStreamReader(emulatorInput));
-        out = new PrintStream(emulatorOutput);
+        this(new LoadedProgram(p), emulatorInput, emulatorOutput);
+    }
 
-        for(Iterator<Function> func_it = p.getFunctions(); func_it.hasNext(); ) {
-            Function f = func_it.next();
-            functions.put(f.getName(), f);
-        }
-        long offset = 0;
-        for(Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext(); ) {
-            GlobalDecl g = glob_it.next();
-            offsetMap.put(g.getAllocatedAddress(), offset);
-            offset += ((IntegerConstant)g.getNumElement()).getValue() * 8;
-        }
+    public Emulator(LoadedProgram program, InputStream emulatorInput, OutputStream emulatorOutput) {
+        this.program = program;
+        io = new EmulatorIO(emulatorInput, emulatorOutput);
+        globalMemory = new PagedMemory(program.globalWords, () -> {
+            diagnostics++;
+            io.println("Reading from uninitialized memory");
+        });
+        program.initialGlobals.forEach(globalMemory::initialize);
     }
 
     public void run() {
-        Function main = functions.get("main");
-        CallContext mainc = new CallContext(main, null, null);
-        stack.push(mainc);
-        while(!stack.isEmpty()) {
-            CallContext c = stack.peek();
-            if (c.pc == null) {
-                //Handle implicit return from void function
-                stack.pop();
-            } else {
-                c.pc.accept(c);
+        Function main = program.main;
+        push(main, null);
+        if (profiler != null)
+            profiler.enter(main);
+        try {
+            while(depth > 0) {
+                CallContext c = frames[depth - 1];
+                if (c.pc == null) {
+                    //Handle implicit return from void function
+                    depth--;
+                    if (profiler != null)
+                        profiler.exit();
+                } else {
+                    if (profiler != null)
+                        profiler.step(c.pc);
+                    steps++;
+                    Instruction at = c.pc;
+                    c.pc.accept(c);
+                    c.prev = at;
+                }
+            }
+        } finally {
+            io.flush();
+        }
+    }
+
+    /**
+     * Runs like {@link #run}, but stops right before a call to {@code readInt} or once {@code maxSteps} instructions
+     * were executed, leaving the call stack as it was. Returns true if the program finished.
+     */
+    boolean runUntilInput(long maxSteps) {
+        push(program.main, null);
+        try {
+            while(depth > 0) {
+                CallContext c = frames[depth - 1];
+                if (c.pc == null) {
+                    depth--;
+                } else if (steps >= maxSteps || isReadInt(c.pc)) {
+                    return false;
+                } else {
+                    steps++;
+                    Instruction at = c.pc;
+                    c.pc.accept(c);
+                    c.prev = at;
+                }
             }
+            return true;
+        } finally {
+            io.flush();
         }
     }
 
-    void debug(String msg) {
-        if (DEBUG)
-            out.println(msg);
+    /** Enters {@code f} in a frame on top of the stack and returns the frame, whose variables are all unset. */
+    private CallContext push(Function f, LocalVar retval) {
+        if (depth == frames.length)
+            frames = Arrays.copyOf(frames, 2 * depth);
+        CallContext frame = frames[depth];
+        if (frame == null)
+            frame = frames[depth] = new CallContext();
+        depth++;
+        frame.enter(f, layouts.computeIfAbsent(f, FrameLayout::new), retval);
+        return frame;
+    }
+
+    /** The frame of the running function. */
+    CallContext top() {
+        return frames[depth - 1];
+    }
+
+    boolean isReadInt(Instruction inst) {
+        return inst instanceof CallInst && program.callTargets.get(inst).builtin == Builtin.READ_INT;
+    }
+
+    public void setMaxCallDepth(int maxDepth) {
+        maxCallDepth = maxDepth;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public void printStats(PrintStream ps) {
+        globalMemory.printStats(ps);
+    }
+
+    public void setTraceSink(TraceSink sink) {
+        trace = sink;
+        // A sink may print to the same stream as the program
+        io.setAutoFlush(sink != null);
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /** Answers calls of pure functions from the caches of {@code memoizer} where possible. */
+    public void setMemoizer(Memoizer memoizer) {
+        this.memoizer = memoizer;
+    }
+
+    static long bits(Object value) {
+        if (value instanceof Boolean)
+            return ((Boolean) value) ? 1 : 0;
+        return value == null ? 0 : (Long) value;
     }
   
+    static Object unbits(Type type, long bits) {
+        if (type instanceof BoolType)
+            return bits != 0;
+        return bits;
+    }
+  
+    /** The slot of every variable of a function in its frames, numbered on its first call. */
+    static final class FrameLayout {
+        final Map<Variable, Integer> slots = new IdentityHashMap<>();
+        final List<Variable> variables = new ArrayList<>();
+        final LocalVar[] arguments;
+
+        FrameLayout(Function f) {
+            arguments = f.getArguments().toArray(new LocalVar[0]);
+            for (LocalVar arg : arguments) {
+                add(arg);
+            }
+            for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+                for (Instruction inst : block.getInstructions()) {
+                    if (inst.getDestination() != null)
+                        add(inst.getDestination());
+                    for (int k = 0; k < inst.numOperands(); k++) {
+                        if (inst.getOperand(k) instanceof Variable)
+                            add((Variable) inst.getOperand(k));
+                    }
+                }
+            }
+        }
+
+        private void add(Variable v) {
+            if (slots.putIfAbsent(v, variables.size()) == null)
+                variables.add(v);
+        }
+    }
+
     class CallContext extends InstVisitor {
         Function f;
+        FrameLayout layout;
         Instruction pc;
-        HashMap<Variable, Object> localMap;
+        /** The instruction executed before {@link #pc}, which tells phis the edge control came from. */
+        Instruction prev;
+        /** The value of every variable by its slot in {@link #layout}, null if it was not written yet. */
+        Object[] values = new Object[0];
         LocalVar retval;
-    
-        CallContext(Function f, Object[] arguments, LocalVar retval) {
+        /** Where the result is cached on return, with the arguments it was called with. */
+        MemoCache memo;
+        long[] memoKey;
+
+        void enter(Function f, FrameLayout layout, LocalVar retval) {
             this.f = f;
-            pc = f.getStart();
-            localMap = new HashMap<>();
-            if (arguments != null) {
-                int index = 0;
-                for(LocalVar arg : f.getArguments()) {
-                    localMap.put(arg, arguments[index++]);
-                }
-            }
+            this.layout = layout;
             this.retval = retval;
+            pc = f.getStart();
+            prev = null;
+            memo = null;
+            memoKey = null;
+            int size = layout.variables.size();
+            if (values.length < size)
+                values = new Object[size];
+            else
+                Arrays.fill(values, 0, size, null);
+        }
+
+        /** The value of {@code v} in this frame, or null if it was not written yet or is no variable of it. */
+        Object get(Value v) {
+            Integer slot = layout.slots.get(v);
+            return slot != null ? values[slot] : null;
+        }
+
+        void put(Variable v, Object value) {
+            values[layout.slots.get(v)] = value;
         }
 
         public void visit(AddressAt i) {
             AddressVar base = i.getBase();
-            long address = offsetMap.get(base);
+            long address = program.offsetMap.get(base);
             Value v = i.getOffset();
             if (v != null) {
-                address += 8 * ((Long) localMap.get(v));
+                address += 8 * ((Long) read(v));
             }
-            localMap.put(i.getDst(), address);
-            debug("AddressAt: "+i.getDst()+" = "+address);
+            put(i.getDst(), address);
+            if (trace != null)
+                trace.address(i, address);
             pc = pc.getNext(0);
         }
 
         public void visit(BinaryOperator i) {
-            Object left = localMap.get(i.getLeftOperand());
-            Object right = localMap.get(i.getRightOperand());
+            Object left = read(i.getLeftOperand());
+            Object right = read(i.getRightOperand());
             Object result = null;
             switch (i.getOperator()) {
             case Add: result = ((Long) left) + ((Long)right); break;
@@ -91,14 +251,15 @@ public class Emulator {
             case Mul: result = ((Long) left) * ((Long)right); break;
             case Div: result = ((Long) left) / ((Long)right); break;
             }
-            localMap.put(i.getDst(), result);
-            debug("BinaryOperator: "+i.getDst() +"="+left+i.getOperator()+right);
+            put(i.getDst(), result);
+            if (trace != null)
+                trace.binop(i, (Long) left, (Long) right, (Long) result);
             pc = pc.getNext(0);
         }
       
         public void visit(CompareInst i) {
-            Long left = (Long) localMap.get(i.getLeftOperand());
-            Long right = (Long) localMap.get(i.getRightOperand());
+            Long left = (Long) read(i.getLeftOperand());
+            Long right = (Long) read(i.getRightOperand());
             Boolean result = null;
             switch(i.getPredicate()) {
             case GE: result = left >= right; break;
@@ -108,8 +269,9 @@ public class Emulator {
             case EQ: result = left.equals(right); break;
             case NE: result = !left.equals(right); break;
             }
-            localMap.put(i.getDst(), result);
-            debug("CompareInst: "+i.getDst() +"="+left+i.getPredicate()+right);
+            put(i.getDst(), result);
+            if (trace != null)
+                trace.compare(i, left, right, result);
             pc = pc.getNext(0);
         }
       
@@ -121,29 +283,76 @@ public class Emulator {
             } else if (srcval instanceof BooleanConstant) {
                 val = ((BooleanConstant) srcval).getValue();
             } else {
-                val = localMap.get(srcval);
+                val = read(srcval);
             }
 
-            debug("CopyInst: "+i.getDstVar()+"="+val);
-            localMap.put(i.getDstVar(), val);
+            if (trace != null)
+                trace.copy(i, bits(val));
+            put(i.getDstVar(), val);
             pc = pc.getNext(0);
         }
       
+        /**
+         * Runs the phi {@code i} together with the phis after it in its block, which all read before any of them
+         * writes, and then the phis of blocks it leads to straight away.
+         */
+        public void visit(PhiInst i) {
+            var phis = new ArrayList<PhiInst>();
+            var values = new ArrayList<Object>();
+            Instruction inst = i;
+            Instruction from = prev;
+            while (inst instanceof PhiInst) {
+                phis.clear();
+                values.clear();
+                do {
+                    var phi = (PhiInst) inst;
+                    int k = phi.indexOfIncoming(from);
+                    if (k < 0)
+                        throw new EmulatorException(String.format("phi for %s has no value for the edge taken",
+                                phi.getDstVar().getName()));
+                    phis.add(phi);
+                    values.add(value(phi.getIncomingValue(k)));
+                    inst = inst.getNext(0);
+                    // The phis of the next block name the last phi of this one as their edge
+                } while (inst instanceof PhiInst && ((PhiInst) inst).indexOfIncoming(phis.get(phis.size() - 1)) < 0);
+                for (int k = 0; k < phis.size(); k++) {
+                    if (trace != null)
+                        trace.copy(phis.get(k), bits(values.get(k)));
+                    put(phis.get(k).getDstVar(), values.get(k));
+                }
+                from = phis.get(phis.size() - 1);
+            }
+            pc = inst;
+        }
+
+        /** The value of {@code v}, or 0 or false if it was never written, as in the compiled engines. */
+        private Object read(Value v) {
+            Object val = get(v);
+            if (val == null)
+                return v.getType() instanceof BoolType ? Boolean.FALSE : Long.valueOf(0);
+            return val;
+        }
+
+        private Object value(Value v) {
+            if (v instanceof IntegerConstant)
+                return ((IntegerConstant) v).getValue();
+            if (v instanceof BooleanConstant)
+                return ((BooleanConstant) v).getValue();
+            return read(v);
+        }
+
         public void visit(JumpInst i) {
-            Boolean pred = (Boolean) localMap.get(i.getPredicate());
-            debug("Jump: "+i.getPredicate()+"="+pred);
+            Boolean pred = (Boolean) read(i.getPredicate());
+            if (trace != null)
+                trace.jump(i, pred);
             pc = pred ? pc.getNext(1) : pc.getNext(0);
         }
       
         public void visit(LoadInst i) {
             AddressVar var = i.getSrcAddress();
-            Long address = (Long) localMap.get(var);
-            Long value = globalMap.get(address);
-            if (value == null) {
-                out.println("Reading from uninitialized memory");
-                value = Long.valueOf(0);
-            }
-            
+            Long address = (Long) read(var);
+            Long value = globalMemory.load(address);
+
             Object val;
             if (var.getType() instanceof IntType) {
               val = value;
@@ -151,84 +360,104 @@ public class Emulator {
               val = Boolean.valueOf(value != 0);
             } 
             
-            debug("LoadInst: "+i.getDst()+"="+val);
-            localMap.put(i.getDst(), val);
+            if (trace != null)
+                trace.load(i, address, bits(val));
+            put(i.getDst(), val);
             pc = pc.getNext(0);
         }
       
         public void visit(NopInst i) {
-            //Do nothing
-            debug("Nop:");
+            if (trace != null)
+                trace.nop(i);
             pc = pc.getNext(0);
         }
       
         public void visit(StoreInst i) {
             Value srcval = i.getSrcValue();
-            Object val = localMap.get(srcval);
+            Object val = read(srcval);
             AddressVar dst = i.getDestAddress();
-            Long address = (Long) localMap.get(dst);
-            debug("StoreInst: *"+address+"="+val);
+            Long address = (Long) read(dst);
+            if (trace != null)
+                trace.store(i, address, bits(val));
 
             if (val instanceof Long) {
-                globalMap.put(address, (Long) val);
+                globalMemory.store(address, (Long) val);
             } else if (val instanceof Boolean) {
-                globalMap.put(address, ((Boolean)val) ? Long.valueOf(1) : Long.valueOf(0));
+                globalMemory.store(address, ((Boolean)val) ? 1 : 0);
             }
             pc = pc.getNext(0);
         }
 
         public void visit(ReturnInst i) {
-            Object val = i.getReturnValue() != null ? localMap.get(i.getReturnValue()) : null;
-            debug("ReturnInst: "+ val);
+            Object val = i.getReturnValue() != null ? read(i.getReturnValue()) : null;
+            if (trace != null)
+                trace.ret(i, bits(val));
+            if (memo != null)
+                memo.put(memoKey, bits(val));
             //Remove ourselves from the stack
-            stack.pop();
+            depth--;
+            if (profiler != null)
+                profiler.exit();
             //Return value to caller
-            if (!stack.isEmpty()) {
-                CallContext caller = stack.peek();
-                if (retval != null)
-                    caller.localMap.put(retval, val);
-            }
+            if (depth > 0 && retval != null)
+                frames[depth - 1].put(retval, val);
         }
 
         public void visit(CallInst i) {
             List<Value> params = i.getParams();
-            Object[] args = new Object[params.size()];
-            for(int j = 0; j < args.length; j++) {
-                args[j] = localMap.get(params.get(j));
+            LoadedProgram.CallTarget target = program.callTargets.get(i);
+            if (trace != null) {
+                long[] values = new long[params.size()];
+                for (int j = 0; j < values.length; j++)
+                    values[j] = bits(read(params.get(j)));
+                trace.call(i, values);
             }
 
-            AddressVar varCallee = i.getCallee();
-            //Chop off leading %
-            String fName = varCallee.getName().substring(1);
-            debug("Calling "+fName + " with " + Arrays.toString(args));
-
-            if (fName.equals("readInt")) {
-                try {
-                    out.print("int?");
-                    String line = br.readLine();
-                    localMap.put(i.mDestVar, Long.valueOf(line));
-                } catch (IOException e) {
-                    throw new Error("Error in inputting Integer.");
+            if (target.builtin != null) {
+                switch (target.builtin) {
+                    case READ_INT: put(i.mDestVar, io.readInt()); break;
+                    case PRINT_BOOL: io.printBool((Boolean) read(params.get(0))); break;
+                    case PRINT_INT: io.printInt((Long) read(params.get(0))); break;
+                    case PRINTLN: io.println(); break;
                 }
-            } else if (fName.equals("printBool")) {
-                out.print(args[0]);
-            } else if (fName.equals("printInt")) {
-                out.print(args[0]);
-            } else if (fName.equals("println")) {
-                out.println("");
             } else {
-                Function f = functions.get(fName);
-                CallContext callee = new CallContext(f, args, (LocalVar)  i.getDst());
-                stack.push(callee);
+                Function f = target.function;
+                MemoCache memo = memoizer != null ? memoizer.cache(f) : null;
+                long[] key = null;
+                if (memo != null) {
+                    key = new long[params.size()];
+                    for (int j = 0; j < key.length; j++)
+                        key[j] = bits(read(params.get(j)));
+                    int entry = memo.find(key);
+                    if (entry >= 0) {
+                        if (i.getDst() != null)
+                            put(i.getDst(), unbits(f.getFuncType().getRet(), memo.value(entry)));
+                        pc = pc.getNext(0);
+                        return;
+                    }
+                }
+                if (depth >= maxCallDepth)
+                    throw EmulatorException.stackOverflow(maxCallDepth, f.getName());
+                pc = pc.getNext(0);
+                // The arguments go straight into the slots of the callee
+                CallContext callee = push(f, i.getDst());
+                for (int j = 0; j < callee.layout.arguments.length; j++)
+                    callee.put(callee.layout.arguments[j], read(params.get(j)));
+                callee.memo = memo;
+                callee.memoKey = key;
+                if (profiler != null)
+                    profiler.enter(f);
+                return;
             }
             pc = pc.getNext(0);
         }
 
         public void visit(UnaryNotInst i) {
-            Object left = localMap.get(i.getInner());
+            Object left = read(i.getInner());
             Object result = ! ((Boolean) left);
-            localMap.put(i.getDst(), result);
-            debug("UnaryNotInst: "+result);
+            put(i.getDst(), result);
+            if (trace != null)
+                trace.not(i, (Boolean) result);
             pc = pc.getNext(0);
         } 
     }
@@ -3,6 +3,9 @@ package crux.midend.ir.core;
 import crux.midend.ir.Formattable;
 import crux.frontend.types.FuncType;
 import crux.frontend.types.Type;
+import crux.midend.ir.core.insts.CopyInst;
+import crux.midend.ir.core.insts.PhiInst;
+import crux.midend.ir.core.insts.ReturnInst;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -21,6 +24,10 @@ public final class Function implements Formattable {
     private static final int FUNC_FORMAT_INDENT = 2;
     private int mTempVarCounter, mTempAddressVarCounter;
     private Instruction startInstruction;
+    private ControlFlowGraph mControlFlowGraph;
+    private DominatorTree mDominatorTree;
+    /** The instructions while the function is packed, in which case there are no instruction objects. */
+    private PackedCode mPacked;
 
     public Function(String name, List<LocalVar> args, FuncType funcType) {
         mFuncName = name;
@@ -38,25 +45,317 @@ public final class Function implements Formattable {
 
     public FuncType getFuncType() { return mFuncType; }
 
+    /** A new temporary, whose name {@code $t<n>} is only made when it is asked for. */
     public LocalVar getTempVar(Type type) {
-        var name = String.format("t%d", mTempVarCounter++);
-        return new LocalVar(type, name);
+        return new LocalVar(type, mTempVarCounter++);
     }
     public AddressVar getTempAddressVar(Type type) {
-        var name = String.format("t%d", mTempAddressVarCounter++);
-        return new AddressVar(type, name);
+        return new AddressVar(type, mTempAddressVarCounter++);
     }
 
     public Instruction getStart() {
+        unpack();
         return startInstruction;
     }
   
     public void setStart(Instruction inst) {
+        mPacked = null;
         startInstruction = inst;
+        invalidate();
+    }
+
+    /**
+     * Stores the instructions in a {@link PackedCode} and drops the instruction objects, which take several times the
+     * memory. The next call of {@link #getStart} or {@link #getControlFlowGraph} builds new objects from it, so callers
+     * see the usual instruction graph, but must not hold on to instructions of the function across a call of this.
+     * Temporaries and local variables are made again as well; arguments, constants and globals keep their objects.
+     */
+    public void pack() {
+        if (mPacked != null)
+            return;
+        var packed = new PackedCode(this);
+        startInstruction = null;
+        invalidate();
+        mPacked = packed;
+    }
+
+    public boolean isPacked() {
+        return mPacked != null;
+    }
+
+    private void unpack() {
+        if (mPacked == null)
+            return;
+        var packed = mPacked;
+        mPacked = null;
+        setStart(packed.unpack());
+    }
+
+    /**
+     * The basic blocks of this function, rebuilt if the instruction graph was changed through the methods here since
+     * they were last asked for.
+     */
+    public ControlFlowGraph getControlFlowGraph() {
+        if (mControlFlowGraph == null)
+            mControlFlowGraph = new ControlFlowGraph(this);
+        return mControlFlowGraph;
+    }
+
+    /** The dominator tree of {@link #getControlFlowGraph}, rebuilt whenever that is. */
+    public DominatorTree getDominatorTree() {
+        ControlFlowGraph cfg = getControlFlowGraph();
+        if (mDominatorTree == null || mDominatorTree.getControlFlowGraph() != cfg)
+            mDominatorTree = new DominatorTree(cfg);
+        return mDominatorTree;
+    }
+
+    /** Drops the control flow graph and dominator tree, which no longer match the instruction graph. */
+    private void invalidate() {
+        mControlFlowGraph = null;
+        mDominatorTree = null;
+    }
+
+    /**
+     * Makes {@code next} the {@code i}th successor of {@code inst}, an instruction of this function. Once the control
+     * flow graph has been asked for, edges must be changed through this or the other methods here rather than {@link
+     * Instruction#setNext}, so that it is rebuilt.
+     */
+    public void setNext(Instruction inst, int i, Instruction next) {
+        inst.setNext(i, next);
+        invalidate();
+    }
+
+    /**
+     * Puts the new instruction {@code inst} in front of {@code pos}: every edge to {@code pos} is redirected to
+     * {@code inst}, which then leads to {@code pos}. Takes time linear in the number of edges to {@code pos}.
+     */
+    public void insertBefore(Instruction pos, Instruction inst) {
+        checkUnlinked(inst);
+        if (pos instanceof PhiInst && !(inst instanceof PhiInst))
+            throw new RuntimeException(String.format("cannot insert '%s' before a phi",
+                    inst.getClass().getSimpleName()));
+        redirectEdges(pos, inst);
+        if (startInstruction == pos)
+            setStart(inst);
+        inst.setNext(0, pos);
+        invalidate();
+    }
+
+    /** Puts the new instruction {@code inst} between {@code pos} and its successor, in constant time. */
+    public void insertAfter(Instruction pos, Instruction inst) {
+        checkUnlinked(inst);
+        if (pos.numNext() > 1)
+            throw new RuntimeException(String.format("cannot insert after '%s', which has %d successors",
+                    pos.getClass().getSimpleName(), pos.numNext()));
+        Instruction next = pos.getNext(0);
+        if (next != null)
+            inst.setNext(0, next);
+        pos.setNext(0, inst);
+        if (next instanceof PhiInst && !(inst instanceof PhiInst))
+            replaceIncoming(next, pos, List.of(inst));
+        invalidate();
+    }
+
+    /** Removes {@code inst}, which must have at most one successor, see {@link #remove(Instruction, int)}. */
+    public void remove(Instruction inst) {
+        if (inst.numNext() > 1)
+            throw new RuntimeException(String.format("cannot remove '%s' without choosing one of its %d successors",
+                    inst.getClass().getSimpleName(), inst.numNext()));
+        remove(inst, 0);
+    }
+
+    /**
+     * Removes {@code inst} from the function and redirects every edge to it to its {@code successor}th successor, for
+     * example to drop a {@link crux.midend.ir.core.insts.JumpInst} whose condition is known. If there is no such
+     * successor the predecessors fall off the end of the function instead. The operands and destination of {@code
+     * inst} stop being uses of their values. Phis after {@code inst} move its edges to the predecessors of {@code inst},
+     * or drop them if that edge is no longer taken, becoming copies once a single edge is left. Takes time linear in the
+     * number of edges to and from {@code inst}.
+     */
+    public void remove(Instruction inst, int successor) {
+        Instruction target = inst.getNext(successor);
+        if (target == inst)
+            throw new RuntimeException(String.format("cannot remove '%s', which only leads to itself",
+                    inst.getClass().getSimpleName()));
+        var pruned = new ArrayList<Instruction>(inst.numNext());
+        // The phis after a phi only name it if it ends its block
+        if (!(inst instanceof PhiInst) || target instanceof PhiInst && ((PhiInst) target).indexOfIncoming(inst) >= 0) {
+            var preds = new ArrayList<Instruction>(inst.numPredecessors());
+            for (int i = 0; i < inst.numPredecessors(); i++) {
+                preds.add(inst.getPredecessor(i));
+            }
+            for (int i = 0; i < inst.numNext(); i++) {
+                Instruction next = inst.getNext(i);
+                if (next instanceof PhiInst) {
+                    replaceIncoming(next, inst, next == target ? preds : List.of());
+                    // Even the target loses an edge if both edges of a jump led to it
+                    pruned.add(next);
+                }
+            }
+        }
+        redirectEdges(inst, target);
+        if (startInstruction == inst)
+            setStart(target);
+        for (int i = 0; i < inst.numNext(); i++) {
+            inst.setNext(i, null);
+        }
+        inst.detach();
+        for (Instruction head : pruned) {
+            replaceSingleEdgePhis(head);
+        }
+        invalidate();
+    }
+
+    /**
+     * Removes the instructions that control cannot reach from the start, such as code after a return or the branch of
+     * a jump that was removed, and returns how many there were. Edges from them to reachable instructions go away,
+     * along with the phi operands for those edges, and so do all {@code next} edges of returns, which control never
+     * takes; phis left with a single edge become copies. Takes time linear in the number of reachable instructions and
+     * removed ones.
+     */
+    public int removeUnreachable() {
+        ControlFlowGraph cfg = getControlFlowGraph();
+        Set<Instruction> dead = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Instruction> worklist = new ArrayDeque<>();
+        var returns = new ArrayList<Instruction>();
+        // Unreachable code is only found through its edges to and from reachable code
+        for (BasicBlock block : cfg.getBlocks()) {
+            for (Instruction inst : block.getInstructions()) {
+                for (int i = 0; i < inst.numPredecessors(); i++) {
+                    if (cfg.blockOf(inst.getPredecessor(i)) == null && dead.add(inst.getPredecessor(i)))
+                        worklist.push(inst.getPredecessor(i));
+                }
+                if (!(inst instanceof ReturnInst) || inst.numNext() == 0)
+                    continue;
+                returns.add(inst);
+                for (int i = 0; i < inst.numNext(); i++) {
+                    Instruction next = inst.getNext(i);
+                    if (next != null && cfg.blockOf(next) == null && dead.add(next))
+                        worklist.push(next);
+                }
+            }
+        }
+        while (!worklist.isEmpty()) {
+            Instruction inst = worklist.pop();
+            for (int i = 0; i < inst.numPredecessors(); i++) {
+                if (cfg.blockOf(inst.getPredecessor(i)) == null && dead.add(inst.getPredecessor(i)))
+                    worklist.push(inst.getPredecessor(i));
+            }
+            for (int i = 0; i < inst.numNext(); i++) {
+                Instruction next = inst.getNext(i);
+                if (next != null && cfg.blockOf(next) == null && dead.add(next))
+                    worklist.push(next);
+            }
+        }
+
+        var pruned = new ArrayList<Instruction>();
+        for (Instruction inst : returns) {
+            for (int i = 0; i < inst.numNext(); i++) {
+                Instruction next = inst.getNext(i);
+                if (next instanceof PhiInst && !dead.contains(next)) {
+                    replaceIncoming(next, inst, List.of());
+                    pruned.add(next);
+                }
+                inst.setNext(i, null);
+            }
+        }
+        for (Instruction inst : dead) {
+            for (int i = 0; i < inst.numNext(); i++) {
+                Instruction next = inst.getNext(i);
+                if (next instanceof PhiInst && !dead.contains(next)) {
+                    replaceIncoming(next, inst, List.of());
+                    pruned.add(next);
+                }
+                inst.setNext(i, null);
+            }
+        }
+        for (Instruction inst : dead) {
+            inst.detach();
+        }
+        for (Instruction head : pruned) {
+            replaceSingleEdgePhis(head);
+        }
+        if (!dead.isEmpty() || !returns.isEmpty())
+            invalidate();
+        return dead.size();
+    }
+
+    /** Makes every edge to {@code from} lead to {@code to}. */
+    private static void redirectEdges(Instruction from, Instruction to) {
+        while (from.numPredecessors() > 0) {
+            Instruction pred = from.getPredecessor(0);
+            for (int i = 0; i < pred.numNext(); i++) {
+                if (pred.getNext(i) == from)
+                    pred.setNext(i, to);
+            }
+        }
+    }
+
+    /**
+     * Makes the phis that start at {@code head} take the value they had for the edges from {@code from} on one edge
+     * from each of {@code to} instead.
+     */
+    private static void replaceIncoming(Instruction head, Instruction from, List<Instruction> to) {
+        for (Instruction inst = head; inst instanceof PhiInst; inst = inst.getNext(0)) {
+            var phi = (PhiInst) inst;
+            int k = phi.indexOfIncoming(from);
+            if (k < 0)
+                continue;
+            Value source = phi.getIncomingValue(k);
+            for (; k >= 0; k = phi.indexOfIncoming(from)) {
+                phi.removeIncoming(k);
+            }
+            for (Instruction pred : to) {
+                phi.addIncoming(source, pred);
+            }
+        }
+    }
+
+    /**
+     * Turns the phis that start at {@code head} into copies if they are left with a single edge, whose block then
+     * joins nothing, so that phis are only ever found at the start of a block.
+     */
+    private void replaceSingleEdgePhis(Instruction head) {
+        if (head.isRemoved() || ((PhiInst) head).numIncoming() != 1)
+            return;
+        Instruction inst = head;
+        while (inst instanceof PhiInst) {
+            var phi = (PhiInst) inst;
+            Instruction next = phi.getNext(0);
+            var copy = new CopyInst(phi.getDstVar(), phi.getIncomingValue(0));
+            redirectEdges(phi, copy);
+            if (startInstruction == phi)
+                setStart(copy);
+            phi.setNext(0, null);
+            if (next != null)
+                copy.setNext(0, next);
+            inst.detach();
+            // The group ends where the phis of the next block name the last phi as their edge
+            if (next instanceof PhiInst && ((PhiInst) next).indexOfIncoming(phi) >= 0) {
+                replaceIncoming(next, phi, List.of(copy));
+                break;
+            }
+            inst = next;
+        }
+    }
+
+    private static void checkUnlinked(Instruction inst) {
+        if (inst.numPredecessors() > 0 || inst.numNext() > 0)
+            throw new RuntimeException(String.format("'%s' is already part of a function",
+                    inst.getClass().getSimpleName()));
     }
 
     @Override
     public String format(java.util.function.Function<Value, String> valueFormatter) {
+        return format(valueFormatter, null);
+    }
+
+    /**
+     * Formats the function like {@link #format(java.util.function.Function)}, but appends a line of text to every
+     * node label: the annotation of the instruction, or nothing if {@code annotator} is null or returns null.
+     */
+    public String format(java.util.function.Function<Value, String> valueFormatter,
+                         java.util.function.Function<Instruction, String> annotator) {
         var funcName = getName();
         var funcDotBuilder = new StringBuilder();
         var indent = FUNC_FORMAT_INDENT;
@@ -77,47 +376,60 @@ public final class Function implements Formattable {
         funcDotBuilder.append(" ".repeat(indent))
                 .append(String.format("label=\"%s\";\n", funcHeader));
 
-        // Print nodes
+        // Print nodes, block by block in depth-first order
         int nodeCounter = 0;
         final var nodePrefix = funcName + "_n";
-        Map<Instruction, String> nodeIdMap = new HashMap<>();
-        // Only print edge labels for nodes that have multiple (out) edges
-        Instruction start = getStart();
-        Stack<Instruction> tovisit = new Stack<>();
-
-        tovisit.add(start);
-        nodeIdMap.put(start, nodePrefix+(nodeCounter++));
+        Map<Instruction, String> nodeIdMap = new IdentityHashMap<>();
+        ControlFlowGraph cfg = getControlFlowGraph();
+        Stack<BasicBlock> tovisit = new Stack<>();
+        if (!cfg.getEntry().isExit()) {
+            tovisit.push(cfg.getEntry());
+            nodeIdMap.put(cfg.getEntry().getFirst(), nodePrefix + (nodeCounter++));
+        }
 
         while(!tovisit.isEmpty()) {
-            Instruction inst = tovisit.pop();
-            String srcId = nodeIdMap.get(inst);
-            
-            funcDotBuilder.append(" ".repeat(indent))
-                            .append(srcId)
-                            .append(" [label=\"");
-            funcDotBuilder.append(inst.format(valueFormatter))
-                            .append("\"];\n");
-
-            for(int i = 0; i < inst.numNext(); i++) {
-                Instruction dst = inst.getNext(i);
-                if (!nodeIdMap.containsKey(dst)) {
-                    nodeIdMap.put(dst, nodePrefix+(nodeCounter++));
-                    tovisit.push(dst);
-                }
-                String dstId = nodeIdMap.get(dst);
+            BasicBlock block = tovisit.pop();
+            for (int k = 0; k < block.size(); k++) {
+                Instruction inst = block.get(k);
+                String srcId = nodeIdMap.get(inst);
+
                 funcDotBuilder.append(" ".repeat(indent))
-                    .append(srcId)
-                    .append(" -> ")
-                    .append(dstId);                
-                if (inst.numNext() == 2) {
-                    funcDotBuilder.append(" [label=\"  ");
-                    if (i == 0)
-                        funcDotBuilder.append("False");
-                    else
-                        funcDotBuilder.append("True");
-                    funcDotBuilder.append("  \"]");
+                                .append(srcId)
+                                .append(" [label=\"");
+                funcDotBuilder.append(inst.format(valueFormatter));
+                var annotation = annotator != null ? annotator.apply(inst) : null;
+                if (annotation != null)
+                    funcDotBuilder.append("\\n").append(annotation);
+                funcDotBuilder.append("\"];\n");
+
+                // Only the last instruction of a block can have several successors, or none
+                boolean last = k == block.size() - 1;
+                int numEdges = last ? block.numSuccessors() : 1;
+                for (int i = 0; i < numEdges; i++) {
+                    BasicBlock dstBlock = last ? block.getSuccessor(i) : null;
+                    if (dstBlock != null && dstBlock.isExit())
+                        continue;
+                    Instruction dst = last ? dstBlock.getFirst() : block.get(k + 1);
+                    if (!nodeIdMap.containsKey(dst)) {
+                        nodeIdMap.put(dst, nodePrefix+(nodeCounter++));
+                        if (last)
+                            tovisit.push(dstBlock);
+                    }
+                    String dstId = nodeIdMap.get(dst);
+                    funcDotBuilder.append(" ".repeat(indent))
+                        .append(srcId)
+                        .append(" -> ")
+                        .append(dstId);
+                    if (inst.numNext() == 2) {
+                        funcDotBuilder.append(" [label=\"  ");
+                        if (i == 0)
+                            funcDotBuilder.append("False");
+                        else
+                            funcDotBuilder.append("True");
+                        funcDotBuilder.append("  \"]");
+                    }
+                    funcDotBuilder.append(";\n");
                 }
-                funcDotBuilder.append(";\n");
             }
         }
 
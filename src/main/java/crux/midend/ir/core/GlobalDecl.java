@@ -19,12 +19,19 @@ import java.util.function.Function;
 public final class GlobalDecl {
     AddressVar mDestVar;
     Constant mNumElement;
+    long[] mInitialValues;
   
     public GlobalDecl(AddressVar destVar, Constant numElement) {
         mDestVar = destVar;
         mNumElement = numElement;
     }
 
+    /** Allocates memory that starts out holding {@code initialValues}, one word per element. */
+    public GlobalDecl(AddressVar destVar, Constant numElement, long[] initialValues) {
+        this(destVar, numElement);
+        mInitialValues = initialValues.clone();
+    }
+
     public AddressVar getAllocatedAddress() {
         return mDestVar;
     }
@@ -33,10 +40,16 @@ public final class GlobalDecl {
         return mNumElement;
     }
 
+    /** The initial contents, or null if the memory starts out zeroed. */
+    public long[] getInitialValues() {
+        return mInitialValues == null ? null : mInitialValues.clone();
+    }
+
     public String format(Function<Value, String> valueFormatter) {
         var destVar = valueFormatter.apply(mDestVar);
         var typeStr = getAllocatedAddress().getType().toString();
         var numElement = valueFormatter.apply(getNumElement());
-        return String.format("%s = allocate %s, %s", destVar, typeStr, numElement);
+        var initialized = mInitialValues != null ? ", initialized" : "";
+        return String.format("%s = allocate %s, %s%s", destVar, typeStr, numElement, initialized);
     }
 }
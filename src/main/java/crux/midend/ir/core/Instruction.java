@@ -2,6 +2,7 @@ package crux.midend.ir.core;
 
 import crux.midend.ir.Formattable;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 import crux.midend.ir.core.insts.InstVisitor;
@@ -10,22 +11,38 @@ import crux.midend.ir.core.insts.InstVisitor;
  * The base class for all instructions. Every instruction consists of a destination variable and a list of operands.
  * Note that not every instruction needs a destination variable (for example a jump instruction that takes a target
  * address as operand). Further, the list operands can be empty as well (e.g. a nop instruction that does nothing.)
+ * <p>
+ * Operands and the destination are recorded as {@link Use}s of their values, and every instruction knows the
+ * instructions whose {@code next} edges lead to it, so that {@link Function} can insert and remove instructions and
+ * passes can rewrite operands without scanning the function.
  */
 public abstract class Instruction implements Formattable {
+    private static final Instruction[] NONE = new Instruction[0];
+
     protected Variable mDestVar;
     protected List<Value> mOperands;
     protected Vector<Instruction> next;
-  
+    private Use[] mUses;
+    private Use mDef;
+    /** The instructions with a {@code next} edge to this one, once per edge. */
+    private Instruction[] mPreds = NONE;
+    private int mNumPreds;
+    private boolean mRemoved;
+
     protected Instruction(Variable destVar, List<Value> operands) {
-        mDestVar = destVar;
-        mOperands = List.copyOf(operands);
+        Value[] values = List.copyOf(operands).toArray(new Value[0]);
+        mOperands = Arrays.asList(values);
+        mUses = new Use[values.length];
+        for (int i = 0; i < values.length; i++) {
+            mUses[i] = new Use(this, i, values[i]);
+            values[i].addUse(mUses[i]);
+        }
         next = new Vector<>();
+        setDestination(destVar);
     }
 
     protected Instruction(List<Value> operands) {
-        mDestVar = null;
-        mOperands = List.copyOf(operands);
-        next = new Vector<>();
+        this(null, operands);
     }
   
     public abstract void accept(InstVisitor v);
@@ -44,6 +61,126 @@ public abstract class Instruction implements Formattable {
     public void setNext(int i, Instruction inst) {
       if (next.size() <= i)
         next.setSize(i + 1);
-      next.set(i, inst);
+      Instruction old = next.set(i, inst);
+      if (old != null)
+        old.removePred(this);
+      if (inst != null)
+        inst.addPred(this);
+    }
+
+    /** The number of {@code next} edges that lead to this instruction. */
+    public int numPredecessors() {
+        return mNumPreds;
+    }
+
+    /** The instruction at the start of the {@code i}th edge to this one, which is listed once for every such edge. */
+    public Instruction getPredecessor(int i) {
+        if (i >= mNumPreds)
+            throw new IndexOutOfBoundsException(i);
+        return mPreds[i];
+    }
+
+    private void addPred(Instruction inst) {
+        if (mNumPreds == mPreds.length)
+            mPreds = Arrays.copyOf(mPreds, Math.max(2, 2 * mNumPreds));
+        mPreds[mNumPreds++] = inst;
+    }
+
+    private void removePred(Instruction inst) {
+        for (int i = 0; i < mNumPreds; i++) {
+            if (mPreds[i] == inst) {
+                mPreds[i] = mPreds[--mNumPreds];
+                mPreds[mNumPreds] = null;
+                return;
+            }
+        }
+    }
+
+    public int numOperands() {
+        return mOperands.size();
+    }
+
+    public Value getOperand(int i) {
+        return mOperands.get(i);
+    }
+
+    public Use getUse(int i) {
+        return mUses[i];
+    }
+
+    /**
+     * Makes this instruction read {@code v} as its {@code i}th operand. The typed getters of the subclasses cast their
+     * operands, so {@code v} has to be of a kind the constructor accepts in that place.
+     */
+    public void setOperand(int i, Value v) {
+        checkNotRemoved();
+        Use u = mUses[i];
+        if (u.value == v)
+            return;
+        u.value.removeUse(u);
+        u.value = v;
+        v.addUse(u);
+        mOperands.set(i, v);
+    }
+
+    /** Adds {@code v} as the last operand, for instructions whose number of operands changes, such as a phi. */
+    protected void addOperand(Value v) {
+        checkNotRemoved();
+        int n = mUses.length;
+        mUses = Arrays.copyOf(mUses, n + 1);
+        mUses[n] = new Use(this, n, v);
+        v.addUse(mUses[n]);
+        Value[] values = mOperands.toArray(new Value[n + 1]);
+        values[n] = v;
+        mOperands = Arrays.asList(values);
+    }
+
+    /** Removes the {@code i}th operand, moving the last operand to index {@code i}. */
+    protected void removeOperand(int i) {
+        checkNotRemoved();
+        int last = mUses.length - 1;
+        setOperand(i, mOperands.get(last));
+        mUses[last].value.removeUse(mUses[last]);
+        mUses = Arrays.copyOf(mUses, last);
+        mOperands = Arrays.asList(mOperands.subList(0, last).toArray(new Value[0]));
+    }
+
+    /** The variable this instruction writes, or null if it writes none. */
+    public Variable getDestination() {
+        return mDestVar;
+    }
+
+    public void setDestination(Variable v) {
+        checkNotRemoved();
+        if (mDef != null)
+            mDestVar.removeDef(mDef);
+        mDestVar = v;
+        mDef = null;
+        if (v != null) {
+            mDef = new Use(this, Use.DESTINATION, v);
+            v.addDef(mDef);
+        }
+    }
+
+    /** Drops the uses of the operands and destination, when this instruction is removed from its function. */
+    void detach() {
+        checkNotRemoved();
+        mRemoved = true;
+        for (Use u : mUses) {
+            u.value.removeUse(u);
+        }
+        if (mDef != null)
+            mDestVar.removeDef(mDef);
+        mDef = null;
+    }
+
+    /** Whether this was removed from its function. */
+    boolean isRemoved() {
+        return mRemoved;
+    }
+
+    private void checkNotRemoved() {
+        if (mRemoved)
+            throw new RuntimeException(String.format("instruction '%s' was removed", this.getClass().getSimpleName()));
     }
 }
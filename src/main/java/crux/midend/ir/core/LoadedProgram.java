@@ -0,0 +1,82 @@
+package crux.midend.ir.core;
+
+import crux.midend.ir.core.insts.CallInst;
+import crux.midend.ir.emulator.Builtin;
+
+import java.util.*;
+
+/**
+ * The immutable part of an {@link Emulator} run: the functions of a {@link Program} by name, the offset of every
+ * global in global memory and the target of every call. A loaded program is never modified after construction, so
+ * one can be shared by any number of emulators, each with its own globals, call stack and I/O.
+ */
+public final class LoadedProgram {
+    /** What a call site calls: exactly one of {@code builtin} and {@code function} is set. */
+    static final class CallTarget {
+        final Builtin builtin;
+        final Function function;
+
+        CallTarget(Builtin builtin, Function function) {
+            this.builtin = builtin;
+            this.function = function;
+        }
+    }
+
+    final Map<String, Function> functions;
+    final Map<AddressVar, Long> offsetMap;
+    final long globalWords;
+    /** The initial contents of the initialized globals, by offset. */
+    final Map<Long, long[]> initialGlobals;
+    final Function main;
+    final Map<CallInst, CallTarget> callTargets;
+
+    public LoadedProgram(Program p) {
+        var functions = new HashMap<String, Function>();
+        for(Iterator<Function> func_it = p.getFunctions(); func_it.hasNext(); ) {
+            Function f = func_it.next();
+            functions.put(f.getName(), f);
+        }
+        var offsetMap = new HashMap<AddressVar, Long>();
+        var initialGlobals = new HashMap<Long, long[]>();
+        long offset = 0;
+        for(Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext(); ) {
+            GlobalDecl g = glob_it.next();
+            offsetMap.put(g.getAllocatedAddress(), offset);
+            if (g.getInitialValues() != null)
+                initialGlobals.put(offset, g.getInitialValues());
+            offset += ((IntegerConstant)g.getNumElement()).getValue() * 8;
+        }
+        this.functions = Collections.unmodifiableMap(functions);
+        this.offsetMap = Collections.unmodifiableMap(offsetMap);
+        this.initialGlobals = Collections.unmodifiableMap(initialGlobals);
+        globalWords = offset / 8;
+
+        main = functions.get("main");
+        if (main == null)
+            throw new RuntimeException("program has no main function");
+
+        var callTargets = new IdentityHashMap<CallInst, CallTarget>();
+        for (Function f : functions.values()) {
+            bindCalls(f, callTargets);
+        }
+        this.callTargets = Collections.unmodifiableMap(callTargets);
+    }
+
+    /** Resolves every call in {@code f}, so that a call to an undefined function fails now rather than mid-run. */
+    private void bindCalls(Function f, Map<CallInst, CallTarget> callTargets) {
+        for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+            for (Instruction inst : block.getInstructions()) {
+                if (!(inst instanceof CallInst))
+                    continue;
+                var call = (CallInst) inst;
+                //Chop off leading %
+                String fName = call.getCallee().getName().substring(1);
+                Builtin builtin = Builtin.fromName(fName);
+                Function callee = builtin == null ? functions.get(fName) : null;
+                if (builtin == null && callee == null)
+                    throw new RuntimeException(String.format("call to undefined function '%s'", fName));
+                callTargets.put(call, new CallTarget(builtin, callee));
+            }
+        }
+    }
+}
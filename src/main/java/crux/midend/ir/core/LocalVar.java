@@ -16,7 +16,23 @@ public final class LocalVar extends Variable {
         mName = String.format("$%s", mName);
     }
 
+    LocalVar(Type type, int temp) {
+        super(type, temp);
+    }
+
+    /** A variable with the name {@code name}, which already has its prefix, for restoring a packed function. */
+    static LocalVar withName(Type type, String name) {
+        var v = new LocalVar(type);
+        v.mName = name;
+        return v;
+    }
+
+    @Override
+    protected String getPrefix() {
+        return "$";
+    }
+
     public String toString() {
-        return mName;
+        return getName();
     }
 }
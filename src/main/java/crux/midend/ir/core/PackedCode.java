@@ -0,0 +1,341 @@
+package crux.midend.ir.core;
+
+import crux.frontend.types.BoolType;
+import crux.frontend.types.IntType;
+import crux.frontend.types.Type;
+import crux.frontend.types.VoidType;
+import crux.midend.ir.core.insts.*;
+
+import java.util.*;
+
+/**
+ * The instructions of a packed {@link Function}, see {@link Function#pack}, in parallel arrays instead of one object
+ * per instruction and variable.
+ * <p>
+ * Instruction {@code i} has the kind {@code opcode[i]}, the operator or predicate {@code aux[i]}, the destination
+ * {@code dest[i]}, the operands {@code operands[operandStart[i]]} up to {@code operands[operandStart[i + 1]]} and the
+ * successors {@code next0[i]} and {@code next1[i]}. The operands of a phi are followed by the numbers of its incoming
+ * instructions. Values are numbers: a number {@code v >= 0} is {@code shared[v]},
+ * a constant, global, function or argument that keeps its object, while {@code ~v} is a local variable of the
+ * function, which only has its type, kind and name recorded. Temporaries store the number of their name rather than
+ * the name.
+ * <p>
+ * All instructions the object graph had are kept, with their edges in order, so {@link #unpack} gives an equivalent
+ * graph.
+ */
+final class PackedCode {
+    private static final byte ADDRESS_AT = 0, BINARY = 1, CALL = 2, COMPARE = 3, COPY = 4, JUMP = 5, LOAD = 6,
+            NOP = 7, RETURN = 8, STORE = 9, NOT = 10, PHI = 11;
+    /** The number of no value, where an instruction has no destination. */
+    private static final int NO_VALUE = Integer.MIN_VALUE;
+    /** A successor that was set to null, as opposed to one that was never set. */
+    private static final int NULL_NEXT = -1, NO_NEXT = -2;
+
+    private final int size;
+    private final int start;
+    private final byte[] opcode;
+    private final byte[] aux;
+    private final int[] dest;
+    private final int[] operandStart;
+    private final int[] operands;
+    private final int[] next0, next1;
+
+    private final Value[] shared;
+    private final Type[] types;
+    /** The index of the type of every local in {@link #types}, negated for address variables. */
+    private final int[] localType;
+    /** The temporary number of every local, or {@code ~i} for the name {@code names[i]}. */
+    private final int[] localName;
+    private final String[] names;
+
+    /** Encodes the instructions of {@code f}, which must not be used anymore afterwards. */
+    PackedCode(Function f) {
+        // Number the instructions depth-first, following every edge
+        var index = new IdentityHashMap<Instruction, Integer>();
+        var order = new ArrayList<Instruction>();
+        Deque<Instruction> worklist = new ArrayDeque<>();
+        if (f.getStart() != null)
+            worklist.push(f.getStart());
+        while (!worklist.isEmpty()) {
+            Instruction inst = worklist.pop();
+            if (index.containsKey(inst))
+                continue;
+            index.put(inst, order.size());
+            order.add(inst);
+            for (int i = inst.numNext() - 1; i >= 0; i--) {
+                if (inst.getNext(i) != null)
+                    worklist.push(inst.getNext(i));
+            }
+        }
+        size = order.size();
+        start = size > 0 ? 0 : NULL_NEXT;
+
+        var encoder = new Encoder(f);
+        opcode = new byte[size];
+        aux = new byte[size];
+        dest = new int[size];
+        operandStart = new int[size + 1];
+        next0 = new int[size];
+        next1 = new int[size];
+        var operandList = new int[size * 2];
+        int numOperands = 0;
+        for (int i = 0; i < size; i++) {
+            Instruction inst = order.get(i);
+            encoder.aux = 0;
+            inst.accept(encoder);
+            opcode[i] = encoder.opcode;
+            aux[i] = encoder.aux;
+            dest[i] = inst.getDestination() != null ? encoder.value(inst.getDestination()) : NO_VALUE;
+            operandStart[i] = numOperands;
+            for (int k = 0; k < inst.numOperands(); k++) {
+                if (numOperands == operandList.length)
+                    operandList = Arrays.copyOf(operandList, 2 * numOperands);
+                operandList[numOperands++] = encoder.value(inst.getOperand(k));
+            }
+            if (inst instanceof PhiInst) {
+                var phi = (PhiInst) inst;
+                for (int k = 0; k < phi.numIncoming(); k++) {
+                    if (numOperands == operandList.length)
+                        operandList = Arrays.copyOf(operandList, 2 * numOperands);
+                    Integer pred = index.get(phi.getIncomingInstruction(k));
+                    operandList[numOperands++] = pred != null ? pred : NULL_NEXT;
+                }
+            }
+            next0[i] = successor(inst, 0, index);
+            next1[i] = successor(inst, 1, index);
+        }
+        operandStart[size] = numOperands;
+        operands = Arrays.copyOf(operandList, numOperands);
+
+        shared = encoder.shared.toArray(new Value[0]);
+        types = encoder.types.toArray(new Type[0]);
+        localType = Arrays.copyOf(encoder.localType, encoder.numLocals);
+        localName = Arrays.copyOf(encoder.localName, encoder.numLocals);
+        names = encoder.names.toArray(new String[0]);
+
+        // The shared values must not keep the dropped instructions alive through their uses
+        for (Instruction inst : order) {
+            inst.detach();
+        }
+    }
+
+    private static int successor(Instruction inst, int i, Map<Instruction, Integer> index) {
+        if (i >= inst.numNext())
+            return NO_NEXT;
+        return inst.getNext(i) != null ? index.get(inst.getNext(i)) : NULL_NEXT;
+    }
+
+    /** The number of instructions. */
+    int size() {
+        return size;
+    }
+
+    /** Builds the instruction objects again and returns the start, or null if there are none. */
+    Instruction unpack() {
+        var locals = new Variable[localType.length];
+        for (int v = 0; v < locals.length; v++) {
+            Type type = types[Math.abs(localType[v]) - 1];
+            int name = localName[v];
+            if (localType[v] > 0)
+                locals[v] = name >= 0 ? new LocalVar(type, name) : LocalVar.withName(type, names[~name]);
+            else
+                locals[v] = name >= 0 ? new AddressVar(type, name) : AddressVar.withName(type, names[~name]);
+        }
+
+        var insts = new Instruction[size];
+        for (int i = 0; i < size; i++) {
+            insts[i] = decode(i, locals);
+        }
+        for (int i = 0; i < size; i++) {
+            link(insts, i, 0, next0[i]);
+            link(insts, i, 1, next1[i]);
+            if (opcode[i] == PHI) {
+                var phi = (PhiInst) insts[i];
+                int first = operandStart[i] + phi.numIncoming();
+                for (int k = 0; k < phi.numIncoming(); k++) {
+                    int pred = operands[first + k];
+                    phi.setIncomingInstruction(k, pred != NULL_NEXT ? insts[pred] : null);
+                }
+            }
+        }
+        return start >= 0 ? insts[start] : null;
+    }
+
+    private static void link(Instruction[] insts, int i, int slot, int target) {
+        if (target != NO_NEXT)
+            insts[i].setNext(slot, target != NULL_NEXT ? insts[target] : null);
+    }
+
+    private Instruction decode(int i, Variable[] locals) {
+        int first = operandStart[i];
+        int count = operandStart[i + 1] - first;
+        Value d = dest[i] != NO_VALUE ? value(dest[i], locals) : null;
+        switch (opcode[i]) {
+            case ADDRESS_AT:
+                if (count == 1)
+                    return new AddressAt((AddressVar) d, (AddressVar) operand(first, locals));
+                return new AddressAt((Variable) d, (AddressVar) operand(first, locals),
+                        (LocalVar) operand(first + 1, locals));
+            case BINARY:
+                return new BinaryOperator(BinaryOperator.Op.values()[aux[i]], (LocalVar) d,
+                        (LocalVar) operand(first, locals), (LocalVar) operand(first + 1, locals));
+            case CALL: {
+                var params = new ArrayList<LocalVar>(count - 1);
+                for (int k = 1; k < count; k++) {
+                    params.add((LocalVar) operand(first + k, locals));
+                }
+                var callee = (AddressVar) operand(first, locals);
+                return d != null ? new CallInst((LocalVar) d, callee, params) : new CallInst(callee, params);
+            }
+            case COMPARE:
+                return new CompareInst((LocalVar) d, CompareInst.Predicate.values()[aux[i]],
+                        (LocalVar) operand(first, locals), (LocalVar) operand(first + 1, locals));
+            case COPY:
+                return new CopyInst((LocalVar) d, operand(first, locals));
+            case JUMP:
+                return new JumpInst((LocalVar) operand(first, locals));
+            case LOAD:
+                return new LoadInst((LocalVar) d, (AddressVar) operand(first, locals));
+            case NOP:
+                return new NopInst();
+            case RETURN:
+                return new ReturnInst((LocalVar) operand(first, locals));
+            case STORE:
+                return new StoreInst((LocalVar) operand(first, locals), (AddressVar) operand(first + 1, locals));
+            case NOT:
+                return new UnaryNotInst((LocalVar) d, (LocalVar) operand(first, locals));
+            case PHI: {
+                // The incoming instructions are filled in once all instructions exist
+                var sources = new ArrayList<Value>(count / 2);
+                for (int k = 0; k < count / 2; k++) {
+                    sources.add(operand(first + k, locals));
+                }
+                return new PhiInst((LocalVar) d, sources, Collections.nCopies(count / 2, null));
+            }
+            default:
+                throw new RuntimeException(String.format("unknown packed opcode %d", opcode[i]));
+        }
+    }
+
+    private Value operand(int k, Variable[] locals) {
+        return value(operands[k], locals);
+    }
+
+    private Value value(int v, Variable[] locals) {
+        return v >= 0 ? shared[v] : locals[~v];
+    }
+
+    /** Gives every instruction its opcode and every value its number. */
+    private static final class Encoder extends InstVisitor {
+        private final Set<Value> arguments;
+        private final Map<Value, Integer> numbers = new IdentityHashMap<>();
+        final List<Value> shared = new ArrayList<>();
+        final List<Type> types = new ArrayList<>();
+        private final Map<Object, Integer> typeIndex = new HashMap<>();
+        final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> nameIndex = new HashMap<>();
+        int[] localType = new int[16];
+        int[] localName = new int[16];
+        int numLocals = 0;
+        byte opcode;
+        byte aux;
+
+        Encoder(Function f) {
+            arguments = Collections.newSetFromMap(new IdentityHashMap<>());
+            arguments.addAll(f.getArguments());
+            for (LocalVar argument : f.getArguments()) {
+                value(argument);
+            }
+        }
+
+        int value(Value v) {
+            Integer n = numbers.get(v);
+            if (n != null)
+                return n;
+            if (isLocal(v)) {
+                var variable = (Variable) v;
+                if (numLocals == localType.length) {
+                    localType = Arrays.copyOf(localType, 2 * numLocals);
+                    localName = Arrays.copyOf(localName, 2 * numLocals);
+                }
+                int type = type(v.getType()) + 1;
+                localType[numLocals] = v instanceof LocalVar ? type : -type;
+                int temp = variable.getTempNumber();
+                localName[numLocals] = temp >= 0 ? temp : ~name(variable.getName());
+                n = ~numLocals++;
+            } else {
+                n = shared.size();
+                shared.add(v);
+            }
+            numbers.put(v, n);
+            return n;
+        }
+
+        /**
+         * Whether {@code v} belongs to this function alone and can be made again when unpacking: its temporaries and
+         * declared variables, but not its arguments, which the function refers to itself.
+         */
+        private boolean isLocal(Value v) {
+            if (arguments.contains(v))
+                return false;
+            if (v instanceof LocalVar)
+                return true;
+            return v instanceof AddressVar && ((AddressVar) v).getTempNumber() >= 0;
+        }
+
+        /** The index of {@code type}, shared by all types of the kinds that carry no further information. */
+        private int type(Type type) {
+            boolean plain = type instanceof IntType || type instanceof BoolType || type instanceof VoidType;
+            Object key = plain ? type.getClass() : new IdentityKey(type);
+            Integer n = typeIndex.get(key);
+            if (n == null) {
+                n = types.size();
+                types.add(type);
+                typeIndex.put(key, n);
+            }
+            return n;
+        }
+
+        private int name(String name) {
+            Integer n = nameIndex.get(name);
+            if (n == null) {
+                n = names.size();
+                names.add(name);
+                nameIndex.put(name, n);
+            }
+            return n;
+        }
+
+        public void visit(AddressAt i) { opcode = ADDRESS_AT; }
+        public void visit(BinaryOperator i) { opcode = BINARY; aux = (byte) i.getOperator().ordinal(); }
+        public void visit(CallInst i) { opcode = CALL; }
+        public void visit(CompareInst i) { opcode = COMPARE; aux = (byte) i.getPredicate().ordinal(); }
+        public void visit(CopyInst i) { opcode = COPY; }
+        public void visit(JumpInst i) { opcode = JUMP; }
+        public void visit(LoadInst i) { opcode = LOAD; }
+        public void visit(NopInst i) { opcode = NOP; }
+        public void visit(ReturnInst i) { opcode = RETURN; }
+        public void visit(StoreInst i) { opcode = STORE; }
+        public void visit(UnaryNotInst i) { opcode = NOT; }
+        public void visit(PhiInst i) { opcode = PHI; }
+    }
+
+    /** Compares a type by identity, for types such as arrays and functions that have their own contents. */
+    private static final class IdentityKey {
+        private final Object object;
+
+        IdentityKey(Object object) {
+            this.object = object;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).object == object;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(object);
+        }
+    }
+}
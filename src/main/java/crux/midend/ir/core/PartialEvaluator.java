@@ -0,0 +1,295 @@
+package crux.midend.ir.core;
+
+import crux.frontend.types.BoolType;
+import crux.frontend.types.IntType;
+import crux.midend.ir.core.insts.*;
+import crux.midend.ir.emulator.Builtin;
+import crux.midend.ir.emulator.TraceSink;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Runs {@code main} at compile time with the {@link Emulator} for as long as it does not need input, and replaces
+ * the computation done so far by its result.
+ * <p>
+ * If the program finishes within the step budget, it becomes a {@code main} that prints the recorded output with
+ * constants. If it stops at a {@code readInt} called directly by {@code main}, {@code main} instead starts with the
+ * recorded output, sets its variables to the values they had and continues at that call, and the globals written so
+ * far become initialized data. Anything else, such as running out of steps, input read inside a callee, a runtime
+ * error, a read of uninitialized memory or a global array that was only partly written, leaves the program as it was.
+ * So does a result that would take more instructions than it saves.
+ */
+public final class PartialEvaluator {
+    public static final long DEFAULT_MAX_STEPS = 1_000_000;
+
+    public enum Outcome {
+        /** The whole program was replaced by its output. */
+        EVALUATED,
+        /** The part of {@code main} before its first input was replaced. */
+        PREFIX_EVALUATED,
+        UNCHANGED
+    }
+
+    private final long maxSteps;
+    private Outcome outcome;
+
+    public PartialEvaluator(long maxSteps) {
+        this.maxSteps = maxSteps;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Returns the evaluated program, or {@code p} itself if nothing could be evaluated. The functions of {@code p}
+     * are reused by a partially evaluated program, whose {@code main} is changed in place.
+     */
+    public Program evaluate(Program p) {
+        outcome = Outcome.UNCHANGED;
+        var loaded = new LoadedProgram(p);
+        var emulator = new Emulator(loaded, InputStream.nullInputStream(), OutputStream.nullOutputStream());
+        var output = new OutputRecorder(loaded);
+        emulator.setTraceSink(output);
+        boolean finished;
+        try {
+            finished = emulator.runUntilInput(maxSteps);
+        } catch (RuntimeException e) {
+            // Keep the error for run time
+            return p;
+        }
+        // Diagnostics go to the output too, but cannot be replayed with the print builtins
+        if (emulator.diagnostics > 0)
+            return p;
+        if (finished)
+            return evaluated(p, loaded, output, emulator.steps);
+        if (emulator.depth == 1 && emulator.isReadInt(emulator.top().pc))
+            return prefixEvaluated(p, loaded, emulator, output);
+        return p;
+    }
+
+    private Program evaluated(Program p, LoadedProgram loaded, OutputRecorder output, long steps) {
+        Function main = loaded.main;
+        var result = new Program();
+        var newMain = new Function(main.getName(), main.getArguments(), main.getFuncType());
+        var code = new CodeBuilder(result, newMain);
+        output.emit(code);
+        if (code.size >= steps)
+            return p;
+        newMain.setStart(code.start != null ? code.start : new NopInst());
+        result.addFunction(newMain);
+        outcome = Outcome.EVALUATED;
+        return result;
+    }
+
+    private Program prefixEvaluated(Program p, LoadedProgram loaded, Emulator emulator, OutputRecorder output) {
+        Emulator.CallContext frame = emulator.top();
+
+        // Everything that can make the evaluation fail is checked before main is changed
+        // Sorted by name so that the generated code does not depend on hashing
+        var variables = new ArrayList<Variable>();
+        for (Variable v : frame.layout.variables) {
+            if (frame.get(v) != null)
+                variables.add(v);
+        }
+        variables.sort(Comparator.comparing(Variable::getName));
+        var targets = new HashMap<AddressVar, GlobalDecl>();
+        long size = output.size();
+        for (Variable v : variables) {
+            if (v instanceof LocalVar) {
+                size += 1;
+                continue;
+            }
+            GlobalDecl g = globalAt(p, loaded, (Long) frame.get(v));
+            if (g == null)
+                return p;
+            targets.put((AddressVar) v, g);
+            size += 2;
+        }
+        if (size >= emulator.steps)
+            return p;
+        var globals = new ArrayList<GlobalDecl>();
+        for (Iterator<GlobalDecl> it = p.getGlobals(); it.hasNext(); ) {
+            GlobalDecl g = written(it.next(), loaded, emulator);
+            if (g == null)
+                return p;
+            globals.add(g);
+        }
+
+        var result = new Program();
+        var code = new CodeBuilder(result, frame.f);
+        output.emit(code);
+        for (Variable v : variables) {
+            Object value = frame.get(v);
+            if (v instanceof LocalVar)
+                code.append(new CopyInst((LocalVar) v, code.constant(value)));
+            else
+                restoreAddress(code, loaded, (AddressVar) v, targets.get(v), (Long) value);
+        }
+        for (GlobalDecl g : globals) {
+            result.addGlobalVar(g);
+        }
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            result.addFunction(it.next());
+        }
+        code.append(frame.pc);
+        frame.f.setStart(code.start);
+        outcome = Outcome.PREFIX_EVALUATED;
+        return result;
+    }
+
+    /** The global that {@code address} points into, or null if it points into none. */
+    private static GlobalDecl globalAt(Program p, LoadedProgram loaded, long address) {
+        for (Iterator<GlobalDecl> it = p.getGlobals(); it.hasNext(); ) {
+            GlobalDecl g = it.next();
+            long start = loaded.offsetMap.get(g.getAllocatedAddress());
+            long numElements = ((IntegerConstant) g.getNumElement()).getValue();
+            if (address >= start && address < start + 8 * numElements)
+                return g;
+        }
+        return null;
+    }
+
+    /** Recomputes the address in {@code v} from {@code g}, the global it points into. */
+    private static void restoreAddress(CodeBuilder code, LoadedProgram loaded, AddressVar v, GlobalDecl g,
+                                       long address) {
+        long start = loaded.offsetMap.get(g.getAllocatedAddress());
+        var index = code.f.getTempVar(new IntType());
+        code.append(new CopyInst(index, code.constant((address - start) / 8)));
+        code.append(new AddressAt(v, g.getAllocatedAddress(), index));
+    }
+
+    /**
+     * {@code g} with the contents it has now if every word of it was written, {@code g} itself if none was, or null
+     * if only some were: initialized data cannot keep the other words uninitialized.
+     */
+    private static GlobalDecl written(GlobalDecl g, LoadedProgram loaded, Emulator emulator) {
+        long offset = loaded.offsetMap.get(g.getAllocatedAddress());
+        var values = new long[(int) ((IntegerConstant) g.getNumElement()).getValue()];
+        int initialized = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (emulator.globalMemory.isInitialized(offset + 8L * i)) {
+                values[i] = emulator.globalMemory.peek(offset + 8L * i);
+                initialized++;
+            }
+        }
+        if (initialized == 0)
+            return g;
+        return initialized == values.length ? new GlobalDecl(g.getAllocatedAddress(), g.getNumElement(), values) : null;
+    }
+
+    /** Appends instructions to a straight line of code in {@code f}. */
+    private static final class CodeBuilder {
+        final Program p;
+        final Function f;
+        Instruction start, last;
+        int size;
+
+        CodeBuilder(Program p, Function f) {
+            this.p = p;
+            this.f = f;
+        }
+
+        void append(Instruction inst) {
+            if (last == null)
+                start = inst;
+            else
+                last.setNext(0, inst);
+            last = inst;
+            size++;
+        }
+
+        Constant constant(Object value) {
+            if (value instanceof Boolean)
+                return BooleanConstant.get(p, (Boolean) value);
+            return IntegerConstant.get(p, (Long) value);
+        }
+    }
+
+    /** Records the calls to the output builtins; all other events are ignored. */
+    private static final class OutputRecorder implements TraceSink {
+        private final LoadedProgram loaded;
+        private final List<CallInst> calls = new ArrayList<>();
+        private final List<Long> values = new ArrayList<>();
+
+        OutputRecorder(LoadedProgram loaded) {
+            this.loaded = loaded;
+        }
+
+        /** The number of instructions {@link #emit} appends. */
+        int size() {
+            int size = 0;
+            for (CallInst call : calls) {
+                Builtin builtin = loaded.callTargets.get(call).builtin;
+                size += builtin == Builtin.PRINT_INT || builtin == Builtin.PRINT_BOOL ? 2 : 1;
+            }
+            return size;
+        }
+
+        /** Appends a call with constant arguments for every recorded call. */
+        void emit(CodeBuilder code) {
+            for (int i = 0; i < calls.size(); i++) {
+                CallInst call = calls.get(i);
+                long value = values.get(i);
+                switch (loaded.callTargets.get(call).builtin) {
+                    case PRINT_INT: {
+                        var arg = code.f.getTempVar(new IntType());
+                        code.append(new CopyInst(arg, IntegerConstant.get(code.p, value)));
+                        code.append(new CallInst(call.getCallee(), List.of(arg)));
+                        break;
+                    }
+                    case PRINT_BOOL: {
+                        var arg = code.f.getTempVar(new BoolType());
+                        code.append(new CopyInst(arg, BooleanConstant.get(code.p, value != 0)));
+                        code.append(new CallInst(call.getCallee(), List.of(arg)));
+                        break;
+                    }
+                    default:
+                        code.append(new CallInst(call.getCallee(), List.of()));
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public void call(Instruction site, long[] args) {
+            Builtin builtin = loaded.callTargets.get(site).builtin;
+            if (builtin == Builtin.PRINT_INT || builtin == Builtin.PRINT_BOOL || builtin == Builtin.PRINTLN) {
+                calls.add((CallInst) site);
+                values.add(args.length > 0 ? args[0] : 0);
+            }
+        }
+
+        @Override
+        public void address(Instruction site, long address) {}
+
+        @Override
+        public void binop(Instruction site, long lhs, long rhs, long result) {}
+
+        @Override
+        public void compare(Instruction site, long lhs, long rhs, boolean result) {}
+
+        @Override
+        public void copy(Instruction site, long value) {}
+
+        @Override
+        public void not(Instruction site, boolean result) {}
+
+        @Override
+        public void jump(Instruction site, boolean taken) {}
+
+        @Override
+        public void nop(Instruction site) {}
+
+        @Override
+        public void load(Instruction site, long address, long value) {}
+
+        @Override
+        public void store(Instruction site, long address, long value) {}
+
+        @Override
+        public void ret(Instruction site, long value) {}
+    }
+}
@@ -36,9 +36,25 @@ public final class Program implements Formattable {
     public Iterator<Function> getFunctions() {
         return mFunctions.iterator();
     }
+
+    /** Packs every function, see {@link Function#pack}. */
+    public void pack() {
+        for (Function function : mFunctions) {
+            function.pack();
+        }
+    }
   
     @Override
     public String format(java.util.function.Function<Value, String> valueFormatter) {
+        return format(valueFormatter, null);
+    }
+
+    /**
+     * Formats the program with an annotation on each instruction, see
+     * {@link Function#format(java.util.function.Function, java.util.function.Function)}.
+     */
+    public String format(java.util.function.Function<Value, String> valueFormatter,
+                         java.util.function.Function<Instruction, String> annotator) {
         var builder = new StringBuilder();
         builder.append("digraph Program {\n");
         // Styles
@@ -79,9 +95,13 @@ public final class Program implements Formattable {
 
         // Print functions
         for(var function : mFunctions) {
+            boolean packed = function.isPacked();
             builder.append("\n")
-                    .append(function.format(valueFormatter))
+                    .append(function.format(valueFormatter, annotator))
                     .append("\n");
+            // Only unpack one function at a time
+            if (packed)
+                function.pack();
         }
 
         builder.append("}");
@@ -0,0 +1,66 @@
+package crux.midend.ir.core;
+
+/**
+ * An occurrence of a {@link Value} in an {@link Instruction}: one of its operands, or its destination. Every value
+ * keeps the uses of it as operands in a list, and every {@link Variable} keeps the instructions that write it, so that
+ * a pass can find and rewrite them without scanning the function.
+ * <p>
+ * The lists are linked through the uses themselves, so adding and removing a use takes constant time.
+ */
+public final class Use {
+    /** The index of the use that stands for the destination of an instruction. */
+    public static final int DESTINATION = -1;
+
+    private final Instruction user;
+    private final int index;
+    Value value;
+    Use prev, next;
+
+    Use(Instruction user, int index, Value value) {
+        this.user = user;
+        this.index = index;
+        this.value = value;
+    }
+
+    public Instruction getUser() {
+        return user;
+    }
+
+    /** The operand index in the user, or {@link #DESTINATION}. */
+    public int getIndex() {
+        return index;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    /** Makes the user read {@code v} in place of the current value, see {@link Instruction#setOperand}. */
+    public void set(Value v) {
+        if (index == DESTINATION)
+            user.setDestination((Variable) v);
+        else
+            user.setOperand(index, v);
+    }
+
+    /** Adds this use in front of the list starting at {@code head} and returns the new head. */
+    Use linkBefore(Use head) {
+        prev = null;
+        next = head;
+        if (head != null)
+            head.prev = this;
+        return this;
+    }
+
+    /** Removes this use from the list starting at {@code head} and returns the new head. */
+    Use unlink(Use head) {
+        if (prev != null)
+            prev.next = next;
+        else
+            head = next;
+        if (next != null)
+            next.prev = prev;
+        prev = next = null;
+        return head;
+    }
+}
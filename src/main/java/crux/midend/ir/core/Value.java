@@ -2,12 +2,21 @@ package crux.midend.ir.core;
 
 import crux.frontend.types.Type;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A value is anything, that can be used as an operand to an instruction. The purpose of the type is primarily to
  * verify, that the generated IR is consistent and that no type errors were introduced during lowering.
+ * <p>
+ * A value knows the instructions that read it, see {@link Use}. An instruction reads its operands from the moment it
+ * is created until it is removed with {@link Function#remove}. Constants and global addresses are shared, so their
+ * uses span all functions.
  */
 public abstract class Value {
     protected Type mType;
+    private Use mFirstUse;
+    private int mNumUses;
 
     protected Value(Type type) {
         mType = type;
@@ -16,4 +25,41 @@ public abstract class Value {
     public Type getType() {
         return mType;
     }
+
+    /** The number of operands that read this value. */
+    public int numUses() {
+        return mNumUses;
+    }
+
+    public boolean hasUses() {
+        return mFirstUse != null;
+    }
+
+    /** The operands that read this value, most recently added first. */
+    public List<Use> getUses() {
+        var uses = new ArrayList<Use>(mNumUses);
+        for (Use u = mFirstUse; u != null; u = u.next) {
+            uses.add(u);
+        }
+        return uses;
+    }
+
+    /** Makes every instruction that reads this value read {@code v} instead, in time linear in the number of uses. */
+    public void replaceAllUsesWith(Value v) {
+        if (v == this)
+            return;
+        while (mFirstUse != null) {
+            mFirstUse.set(v);
+        }
+    }
+
+    void addUse(Use u) {
+        mFirstUse = u.linkBefore(mFirstUse);
+        mNumUses++;
+    }
+
+    void removeUse(Use u) {
+        mFirstUse = u.unlink(mFirstUse);
+        mNumUses--;
+    }
 }
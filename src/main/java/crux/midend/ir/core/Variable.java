@@ -2,15 +2,26 @@ package crux.midend.ir.core;
 
 import crux.frontend.types.Type;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Any sort of value in the memory which holds a value that can be read or written by instructions. This includes both
  * variables declared in the AST, as well as temporaries.
+ * <p>
+ * Besides its uses, a variable knows the instructions that have it as their destination. Temporaries have a single
+ * one; variables declared in the AST have one for every assignment.
  */
 public abstract class Variable extends Value {
     protected String mName = "";
+    /** The number of a temporary of a function, whose name is only made when asked for, or -1. */
+    private final int mTemp;
+    private Use mFirstDef;
+    private int mNumDefs;
 
     protected Variable(Type type) {
         super(type);
+        mTemp = -1;
     }
 
     protected Variable(Type type, String name) {
@@ -18,5 +29,49 @@ public abstract class Variable extends Value {
         mName = name;
     }
 
-    public String getName() { return mName; }
+    /** A temporary named {@code t<temp>} after the prefix of the subclass, see {@link Function#getTempVar}. */
+    Variable(Type type, int temp) {
+        super(type);
+        mName = null;
+        mTemp = temp;
+    }
+
+    public String getName() { return mName != null ? mName : getPrefix() + "t" + mTemp; }
+
+    /** The character the names of this kind of variable start with. */
+    protected abstract String getPrefix();
+
+    /** Whether this is a temporary of a function rather than a variable declared in the AST or an argument. */
+    public boolean isTemporary() {
+        return mTemp >= 0;
+    }
+
+    /** The number of this temporary, or -1 if it is not one. */
+    int getTempNumber() {
+        return mTemp;
+    }
+
+    /** The number of instructions that write this variable. */
+    public int numDefs() {
+        return mNumDefs;
+    }
+
+    /** The instructions that write this variable, most recently added first. */
+    public List<Instruction> getDefs() {
+        var defs = new ArrayList<Instruction>(mNumDefs);
+        for (Use d = mFirstDef; d != null; d = d.next) {
+            defs.add(d.getUser());
+        }
+        return defs;
+    }
+
+    void addDef(Use d) {
+        mFirstDef = d.linkBefore(mFirstDef);
+        mNumDefs++;
+    }
+
+    void removeDef(Use d) {
+        mFirstDef = d.unlink(mFirstDef);
+        mNumDefs--;
+    }
 }
@@ -12,4 +12,5 @@ public abstract class InstVisitor {
     public void visit(UnaryNotInst i) {}
     public void visit(CallInst i) {}
     public void visit(ReturnInst i) {}
+    public void visit(PhiInst i) {}
 }
@@ -0,0 +1,87 @@
+package crux.midend.ir.core.insts;
+
+import crux.midend.ir.core.Instruction;
+import crux.midend.ir.core.LocalVar;
+import crux.midend.ir.core.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Selects the value of its destination by the edge control came from, in functions in SSA form. The phis of a block
+ * come first in it, one after another, and all of them read their operands before any of them writes its destination.
+ * <p>
+ * Each operand belongs to an incoming edge, which is named by the instruction the edge starts at: the last instruction
+ * of a predecessor block. {@link crux.midend.ir.core.Function} keeps these up to date when it inserts or removes that
+ * instruction.
+ * <p>
+ * Operation (pseudo-code): {@code destVar = source[i]} where control came from {@code incoming[i]}
+ */
+public final class PhiInst extends Instruction {
+    private final List<Instruction> mIncoming;
+
+    public PhiInst(LocalVar destVar, List<? extends Value> sources, List<Instruction> incoming) {
+        super(destVar, List.copyOf(sources));
+        if (incoming.size() != sources.size())
+            throw new RuntimeException(String.format("phi with %d sources for %d incoming edges", sources.size(),
+                    incoming.size()));
+        mIncoming = new ArrayList<>(incoming);
+    }
+
+    public LocalVar getDstVar() {
+        return (LocalVar) mDestVar;
+    }
+
+    public int numIncoming() {
+        return mIncoming.size();
+    }
+
+    public Value getIncomingValue(int i) {
+        return mOperands.get(i);
+    }
+
+    public Instruction getIncomingInstruction(int i) {
+        return mIncoming.get(i);
+    }
+
+    /** The index of the first edge from {@code pred}, or -1 if there is none. */
+    public int indexOfIncoming(Instruction pred) {
+        for (int i = 0; i < mIncoming.size(); i++) {
+            if (mIncoming.get(i) == pred)
+                return i;
+        }
+        return -1;
+    }
+
+    public void setIncomingInstruction(int i, Instruction pred) {
+        mIncoming.set(i, pred);
+    }
+
+    public void addIncoming(Value source, Instruction pred) {
+        addOperand(source);
+        mIncoming.add(pred);
+    }
+
+    /** Drops the {@code i}th edge; the last edge takes its index. */
+    public void removeIncoming(int i) {
+        removeOperand(i);
+        int last = mIncoming.size() - 1;
+        mIncoming.set(i, mIncoming.get(last));
+        mIncoming.remove(last);
+    }
+
+    @Override
+    public void accept(InstVisitor v) {
+        v.visit(this);
+    }
+
+    @Override
+    public String format(Function<Value, String> valueFormatter) {
+        var sources = new ArrayList<String>(mOperands.size());
+        for (Value source : mOperands) {
+            sources.add(valueFormatter.apply(source));
+        }
+        return String.format("%s = phi(%s)", valueFormatter.apply(mDestVar), String.join(", ", sources));
+    }
+}
@@ -0,0 +1,160 @@
+package crux.midend.ir.emulator;
+
+import crux.midend.ir.core.Emulator;
+import crux.midend.ir.core.LoadedProgram;
+import crux.midend.ir.core.Program;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs one program against many inputs on a thread pool. The program is lowered and prepared for the chosen engine
+ * once; every run gets a fresh engine with its own globals, call stack, input and output file.
+ */
+public final class BatchRunner {
+    /** The outcome of running the program on one input. */
+    public static final class Result {
+        public final Path input;
+        public final Path output;
+        public final long nanos;
+        public final long steps;
+        /** The error that ended the run early, or null if it finished. */
+        public final String error;
+
+        Result(Path input, Path output, long nanos, long steps, String error) {
+            this.input = input;
+            this.output = output;
+            this.nanos = nanos;
+            this.steps = steps;
+            this.error = error;
+        }
+    }
+
+    private final EngineKind engine;
+    private final int threads;
+    private final LoadedProgram loaded;
+    private final CompiledProgram compiled;
+    private int maxCallDepth = ExecutionEngine.DEFAULT_MAX_CALL_DEPTH;
+
+    public BatchRunner(Program p, EngineKind engine, int threads) {
+        this.engine = engine;
+        this.threads = threads;
+        loaded = engine == EngineKind.INTERPRETER ? new LoadedProgram(p) : null;
+        compiled = engine == EngineKind.INTERPRETER ? null : new CompiledProgram(p);
+    }
+
+    public void setMaxCallDepth(int maxDepth) {
+        maxCallDepth = maxDepth;
+    }
+
+    private ExecutionEngine newEngine(InputStream in, OutputStream out) {
+        switch (engine) {
+            case REGISTER:
+                return new RegisterEmulator(compiled, in, out);
+            case JIT: {
+                var tiered = new RegisterEmulator(compiled, in, out);
+                tiered.enableJit();
+                return tiered;
+            }
+            case CLOSURE:
+                return new ClosureEmulator(compiled, in, out);
+            default:
+                return new Emulator(loaded, in, out);
+        }
+    }
+
+    /**
+     * The inputs named by {@code path}: every {@code .in} file if it is a directory, otherwise the files listed in it,
+     * one per line and relative to the list.
+     */
+    public static List<Path> listInputs(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(f -> f.getFileName().toString().endsWith(".in"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+        Path base = path.toAbsolutePath().getParent();
+        return Files.readAllLines(path).stream()
+                .map(String::trim)
+                .filter(line -> !line.isEmpty())
+                .map(base::resolve)
+                .collect(Collectors.toList());
+    }
+
+    /** {@code name.in} is written to {@code name.out}, anything else gets {@code .out} appended. */
+    static Path outputFor(Path input, Path outputDir) {
+        String name = input.getFileName().toString();
+        if (name.endsWith(".in"))
+            name = name.substring(0, name.length() - ".in".length());
+        return outputDir.resolve(name + ".out");
+    }
+
+    /** Runs every input and returns the results in the order of {@code inputs}. */
+    public List<Result> run(List<Path> inputs, Path outputDir) throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Path input : inputs) {
+                futures.add(pool.submit(() -> runOne(input, outputFor(input, outputDir))));
+            }
+            List<Result> results = new ArrayList<>();
+            for (var future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Result runOne(Path input, Path output) {
+        long start = System.nanoTime();
+        ExecutionEngine emulator = null;
+        String error = null;
+        try (var in = new BufferedInputStream(Files.newInputStream(input));
+             var out = new BufferedOutputStream(Files.newOutputStream(output))) {
+            emulator = newEngine(in, out);
+            emulator.setMaxCallDepth(maxCallDepth);
+            emulator.run();
+        } catch (IOException e) {
+            error = String.format("cannot run '%s': %s", input, e.getMessage());
+        } catch (RuntimeException e) {
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        long nanos = System.nanoTime() - start;
+        return new Result(input, output, nanos, emulator != null ? emulator.getSteps() : -1, error);
+    }
+
+    /**
+     * Prints one line per run, then the totals; {@code wallNanos} is the time the whole batch took. Engines that do
+     * not count the instructions they run, the closure and JIT engines, show {@code n/a} for the steps.
+     */
+    public static void printSummary(List<Result> results, long wallNanos, int threads, PrintStream ps) {
+        long failed = 0, cpuNanos = 0, steps = 0;
+        boolean counted = true;
+        for (var r : results) {
+            ps.printf("%-40s %-6s %10.1f ms %14s%s%n", r.input.getFileName(), r.error == null ? "ok" : "failed",
+                    r.nanos / 1e6, (r.steps >= 0 ? r.steps : "n/a") + " steps", r.error == null ? "" : "  " + r.error);
+            if (r.error != null)
+                failed++;
+            cpuNanos += r.nanos;
+            steps += r.steps;
+            counted &= r.steps >= 0;
+        }
+        ps.printf("batch: %d inputs, %d failed, %d threads, wall %.1f ms, run time %.1f ms, %s steps%n",
+                results.size(), failed, threads, wallNanos / 1e6, cpuNanos / 1e6, counted ? steps : "n/a");
+    }
+}
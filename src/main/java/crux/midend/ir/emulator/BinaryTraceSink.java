@@ -0,0 +1,188 @@
+package crux.midend.ir.emulator;
+
+import crux.midend.ir.core.BasicBlock;
+import crux.midend.ir.core.Function;
+import crux.midend.ir.core.Instruction;
+import crux.midend.ir.core.Program;
+import crux.printing.IRValueFormatter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Writes trace events as fixed-size binary records instead of text, so tracing a long run neither builds strings nor
+ * produces gigabytes of output.
+ * <p>
+ * The file starts with the magic {@code CRXTRACE}, a format version and the record size. Each record is
+ * {@value #RECORD_BYTES} little-endian bytes: the event tag, an extra byte (a boolean result, or the argument count of
+ * a call), two reserved bytes, the id of the IR instruction and three operands. Calls keep only their first three
+ * arguments. Instruction ids are resolved by the {@code .sites} file written next to the trace, one
+ * {@code id<TAB>function<TAB>instruction} line per instruction; {@link TraceReader} decodes both.
+ * <p>
+ * In ring mode only the last records are kept in memory and written out when the sink is closed, which is enough to
+ * see what led up to a crash at almost no cost.
+ */
+public final class BinaryTraceSink implements TraceSink {
+    public static final int VERSION = 1;
+    public static final int RECORD_BYTES = 32;
+    static final byte[] MAGIC = "CRXTRACE".getBytes();
+
+    static final int ADDRESS = 1, BINOP = 2, COMPARE = 3, COPY = 4, NOT = 5, JUMP = 6, LOAD = 7, STORE = 8, CALL = 9,
+            RET = 10, NOP = 11;
+
+    private static final int BUFFER_RECORDS = 4096;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final IdentityHashMap<Instruction, Integer> siteIds = new IdentityHashMap<>();
+    private final ByteBuffer buffer;
+    private final boolean ring;
+    private long records = 0;
+
+    /** Streams every record to {@code path}. */
+    public BinaryTraceSink(Program p, Path path) {
+        this(p, path, 0);
+    }
+
+    /** Keeps only the last {@code ringRecords} records and writes them on {@link #close}; 0 streams everything. */
+    public BinaryTraceSink(Program p, Path path, int ringRecords) {
+        this.path = path;
+        ring = ringRecords > 0;
+        buffer = ByteBuffer.allocate((ring ? ringRecords : BUFFER_RECORDS) * RECORD_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            writeSites(p, Path.of(path + ".sites"));
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putInt(RECORD_BYTES).flip();
+            channel.write(header);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("cannot open trace file %s: %s", path, e.getMessage()));
+        }
+    }
+
+    /** Numbers every instruction of {@code p} in a fixed order and writes the id table. */
+    private void writeSites(Program p, Path sitesPath) throws IOException {
+        var formatter = new IRValueFormatter();
+        try (var ps = new PrintStream(sitesPath.toFile())) {
+            for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+                Function f = it.next();
+                for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+                    for (Instruction inst : block.getInstructions()) {
+                        int id = siteIds.size();
+                        siteIds.put(inst, id);
+                        ps.println(id + "\t" + f.getName() + "\t" + inst.format(formatter));
+                    }
+                }
+            }
+        }
+    }
+
+    private void record(int tag, int extra, Instruction site, long a, long b, long c) {
+        if (!buffer.hasRemaining()) {
+            if (ring)
+                buffer.clear();
+            else
+                flush();
+        }
+        buffer.put((byte) tag).put((byte) extra).putShort((short) 0).putInt(siteIds.getOrDefault(site, -1))
+                .putLong(a).putLong(b).putLong(c);
+        records++;
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("cannot write trace file %s: %s", path, e.getMessage()));
+        }
+        buffer.clear();
+    }
+
+    /** Number of events seen so far, including any that ring mode has already dropped. */
+    public long getRecords() {
+        return records;
+    }
+
+    public void address(Instruction site, long address) {
+        record(ADDRESS, 0, site, address, 0, 0);
+    }
+
+    public void binop(Instruction site, long lhs, long rhs, long result) {
+        record(BINOP, 0, site, lhs, rhs, result);
+    }
+
+    public void compare(Instruction site, long lhs, long rhs, boolean result) {
+        record(COMPARE, result ? 1 : 0, site, lhs, rhs, result ? 1 : 0);
+    }
+
+    public void copy(Instruction site, long value) {
+        record(COPY, 0, site, value, 0, 0);
+    }
+
+    public void not(Instruction site, boolean result) {
+        record(NOT, result ? 1 : 0, site, result ? 1 : 0, 0, 0);
+    }
+
+    public void jump(Instruction site, boolean taken) {
+        record(JUMP, taken ? 1 : 0, site, taken ? 1 : 0, 0, 0);
+    }
+
+    public void nop(Instruction site) {
+        record(NOP, 0, site, 0, 0, 0);
+    }
+
+    public void load(Instruction site, long address, long value) {
+        record(LOAD, 0, site, address, value, 0);
+    }
+
+    public void store(Instruction site, long address, long value) {
+        record(STORE, 0, site, address, value, 0);
+    }
+
+    public void call(Instruction site, long[] args) {
+        int argc = args.length;
+        record(CALL, Math.min(argc, 255), site, argc > 0 ? args[0] : 0, argc > 1 ? args[1] : 0,
+                argc > 2 ? args[2] : 0);
+    }
+
+    public void ret(Instruction site, long value) {
+        record(RET, 0, site, value, 0, 0);
+    }
+
+    public void close() {
+        if (!channel.isOpen())
+            return;
+        if (ring && records * RECORD_BYTES > buffer.capacity()) {
+            // The buffer wrapped around, the oldest surviving record starts at the current position
+            int split = buffer.position();
+            buffer.position(split).limit(buffer.capacity());
+            ByteBuffer older = buffer.slice();
+            buffer.clear().limit(split);
+            ByteBuffer newer = buffer.slice();
+            try {
+                channel.write(older);
+                channel.write(newer);
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("cannot write trace file %s: %s", path, e.getMessage()));
+            }
+            buffer.clear();
+        } else {
+            flush();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("cannot close trace file %s: %s", path, e.getMessage()));
+        }
+    }
+}
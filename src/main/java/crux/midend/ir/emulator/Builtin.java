@@ -0,0 +1,30 @@
+package crux.midend.ir.emulator;
+
+/**
+ * The functions every Crux program can call without defining them.
+ */
+public enum Builtin {
+    READ_INT("readInt"),
+    PRINT_BOOL("printBool"),
+    PRINT_INT("printInt"),
+    PRINTLN("println");
+
+    private final String name;
+
+    Builtin(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** The builtin called {@code name}, or null if there is none. */
+    public static Builtin fromName(String name) {
+        for (Builtin builtin : values()) {
+            if (builtin.name.equals(name))
+                return builtin;
+        }
+        return null;
+    }
+}
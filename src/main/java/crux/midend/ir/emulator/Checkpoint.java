@@ -0,0 +1,97 @@
+package crux.midend.ir.emulator;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * The state of a {@link RegisterEmulator} run between two instructions, saved to a memory-mapped file.
+ * <p>
+ * The file is a sequence of little-endian 8-byte words: a header with {@link #MAGIC}, the fingerprint of the
+ * program, the step count, the input and output positions, the number of frames and the position of the memory;
+ * then every frame, from {@code main} up, as function index, pc, return slot, number of slots and the slots; and
+ * finally the global memory as written by {@link PagedMemory#writeTo}, starting at a 4096 byte boundary.
+ * <p>
+ * A checkpoint is written to a temporary file that then replaces {@code file}, so a crash while writing leaves the
+ * previous checkpoint intact.
+ */
+final class Checkpoint {
+    static final long MAGIC = 0x3150_4B43_5855_5243L; // "CRUXCKP1" in little-endian
+    private static final int HEADER_WORDS = 7;
+
+    long fingerprint;
+    long steps;
+    long inputPosition;
+    long outputPosition;
+    int[] functions;
+    int[] pcs;
+    int[] retSlots;
+    long[][] slots;
+
+    void write(Path file, PagedMemory memory) throws IOException {
+        long frameWords = 0;
+        for (long[] s : slots)
+            frameWords += 4 + s.length;
+        long memoryPosition = PagedMemory.align(8 * (HEADER_WORDS + frameWords));
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var words = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_WORDS + frameWords);
+            words.put(MAGIC).put(fingerprint).put(steps).put(inputPosition).put(outputPosition)
+                    .put(functions.length).put(memoryPosition);
+            for (int i = 0; i < functions.length; i++) {
+                words.put(functions[i]).put(pcs[i]).put(retSlots[i]).put(slots[i].length).put(slots[i]);
+            }
+            memory.writeTo(channel, memoryPosition);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the checkpoint in {@code file}, which must have been written by the program with {@code fingerprint},
+     * and maps its global memory into {@code memory}.
+     */
+    static Checkpoint read(Path file, long fingerprint, PagedMemory memory) throws IOException {
+        var checkpoint = new Checkpoint();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < 8 * HEADER_WORDS)
+                throw new EmulatorException(String.format("'%s' is not a checkpoint", file));
+            var header = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_WORDS);
+            if (header.get() != MAGIC)
+                throw new EmulatorException(String.format("'%s' is not a checkpoint", file));
+            checkpoint.fingerprint = header.get();
+            if (checkpoint.fingerprint != fingerprint)
+                throw new EmulatorException(String.format("checkpoint '%s' was written by a different program", file));
+            checkpoint.steps = header.get();
+            checkpoint.inputPosition = header.get();
+            checkpoint.outputPosition = header.get();
+            int depth = Math.toIntExact(header.get());
+            long memoryPosition = header.get();
+
+            checkpoint.functions = new int[depth];
+            checkpoint.pcs = new int[depth];
+            checkpoint.retSlots = new int[depth];
+            checkpoint.slots = new long[depth][];
+            var frames = map(channel, FileChannel.MapMode.READ_ONLY, 8 * HEADER_WORDS,
+                    memoryPosition / 8 - HEADER_WORDS);
+            for (int i = 0; i < depth; i++) {
+                checkpoint.functions[i] = (int) frames.get();
+                checkpoint.pcs[i] = (int) frames.get();
+                checkpoint.retSlots[i] = (int) frames.get();
+                checkpoint.slots[i] = new long[(int) frames.get()];
+                frames.get(checkpoint.slots[i]);
+            }
+            memory.mapFrom(channel, memoryPosition);
+        }
+        return checkpoint;
+    }
+
+    private static LongBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long words)
+            throws IOException {
+        return channel.map(mode, position, 8 * words).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+}
@@ -0,0 +1,137 @@
+package crux.midend.ir.emulator;
+
+import static crux.midend.ir.emulator.Opcodes.*;
+
+/**
+ * Turns the functions of a {@link CompiledProgram} into graphs of {@link ClosureEmulator.Node}s. Every node has its
+ * slots, constants, successors and call targets bound at construction, so executing it does no decoding at all.
+ */
+final class ClosureCompiler {
+    private final ClosureEmulator.ClosureFunction[] functions;
+
+    ClosureCompiler(ClosureEmulator emulator, CompiledProgram program) {
+        functions = new ClosureEmulator.ClosureFunction[program.numFunctions()];
+        for (int i = 0; i < functions.length; i++) {
+            CompiledFunction f = program.getFunction(i);
+            // One extra slot past the locals receives the return value
+            functions[i] = new ClosureEmulator.ClosureFunction(f.getName(), f.numSlots + 1, f.numSlots);
+        }
+        for (int i = 0; i < functions.length; i++) {
+            functions[i].entry = build(emulator, program.getFunction(i));
+        }
+    }
+
+    ClosureEmulator.ClosureFunction get(int index) {
+        return functions[index];
+    }
+
+    private ClosureEmulator.Node build(ClosureEmulator emulator, CompiledFunction f) {
+        int[] code = f.code;
+        long[] consts = f.constants;
+        var nodes = new ClosureEmulator.Node[code.length];
+
+        for (int pc = 0; pc < code.length; pc += Opcodes.length(code, pc)) {
+            int op = code[pc];
+            int a = op == PRINTLN || op == RET_VOID ? 0 : code[pc + 1];
+            int b = OPERANDS[op] > 1 ? code[pc + 2] : 0;
+            int c = OPERANDS[op] > 2 ? code[pc + 3] : 0;
+            ClosureEmulator.Node node;
+            switch (op) {
+                case CONST: node = new ClosureEmulator.Const(a, consts[b]); break;
+                case MOV: node = new ClosureEmulator.Mov(a, b); break;
+                case ADD: node = new ClosureEmulator.Add(a, b, c); break;
+                case SUB: node = new ClosureEmulator.Sub(a, b, c); break;
+                case MUL: node = new ClosureEmulator.Mul(a, b, c); break;
+                case DIV: node = new ClosureEmulator.Div(a, b, c); break;
+                case CMP_GE: node = new ClosureEmulator.CmpGE(a, b, c); break;
+                case CMP_GT: node = new ClosureEmulator.CmpGT(a, b, c); break;
+                case CMP_LE: node = new ClosureEmulator.CmpLE(a, b, c); break;
+                case CMP_LT: node = new ClosureEmulator.CmpLT(a, b, c); break;
+                case CMP_EQ: node = new ClosureEmulator.CmpEQ(a, b, c); break;
+                case CMP_NE: node = new ClosureEmulator.CmpNE(a, b, c); break;
+                case NOT: node = new ClosureEmulator.Not(a, b); break;
+                case ADDR: node = new ClosureEmulator.Const(a, consts[b]); break;
+                case ADDR_IDX: node = new ClosureEmulator.AddrIdx(a, consts[b], c); break;
+                case LOAD: node = new ClosureEmulator.Load(emulator, a, b); break;
+                case LOAD_BOOL: node = new ClosureEmulator.LoadBool(emulator, a, b); break;
+                case STORE: node = new ClosureEmulator.Store(emulator, a, b); break;
+                case JUMP_IF: node = new ClosureEmulator.JumpIf(a); break;
+                case BR_GE: node = new ClosureEmulator.BrGE(a, b); break;
+                case BR_GT: node = new ClosureEmulator.BrGT(a, b); break;
+                case BR_LE: node = new ClosureEmulator.BrLE(a, b); break;
+                case BR_LT: node = new ClosureEmulator.BrLT(a, b); break;
+                case BR_EQ: node = new ClosureEmulator.BrEQ(a, b); break;
+                case BR_NE: node = new ClosureEmulator.BrNE(a, b); break;
+                case BR_GE_K: node = new ClosureEmulator.BrGEK(a, consts[b]); break;
+                case BR_GT_K: node = new ClosureEmulator.BrGTK(a, consts[b]); break;
+                case BR_LE_K: node = new ClosureEmulator.BrLEK(a, consts[b]); break;
+                case BR_LT_K: node = new ClosureEmulator.BrLTK(a, consts[b]); break;
+                case BR_EQ_K: node = new ClosureEmulator.BrEQK(a, consts[b]); break;
+                case BR_NE_K: node = new ClosureEmulator.BrNEK(a, consts[b]); break;
+                case ADD_K: node = new ClosureEmulator.AddK(a, b, consts[c]); break;
+                case SUB_K: node = new ClosureEmulator.SubK(a, b, consts[c]); break;
+                case MUL_K: node = new ClosureEmulator.MulK(a, b, consts[c]); break;
+                case DIV_K: node = new ClosureEmulator.DivK(a, b, consts[c]); break;
+                case LOAD_IDX: node = new ClosureEmulator.LoadIdx(emulator, a, consts[b], c); break;
+                case STORE_IDX: node = new ClosureEmulator.StoreIdx(emulator, a, consts[b], c); break;
+                case LOAD_GLOBAL: node = new ClosureEmulator.LoadGlobal(emulator, a, consts[b]); break;
+                case STORE_GLOBAL: node = new ClosureEmulator.StoreGlobal(emulator, a, consts[b]); break;
+                case UPDATE:
+                    node = new ClosureEmulator.Update(emulator, a, b, Math.max(c, -1), c >= 0 ? 0 : consts[-1 - c]);
+                    break;
+                case UPDATE_IDX: {
+                    int operand = code[pc + 4];
+                    node = new ClosureEmulator.UpdateIdx(emulator, a, consts[b], c, Math.max(operand, -1),
+                            operand >= 0 ? 0 : consts[-1 - operand]);
+                    break;
+                }
+                case UPDATE_GLOBAL:
+                    node = new ClosureEmulator.UpdateGlobal(emulator, a, consts[b], Math.max(c, -1),
+                            c >= 0 ? 0 : consts[-1 - c]);
+                    break;
+                // Gotos get no node of their own, whoever reaches one is linked to its target instead
+                case GOTO: node = null; break;
+                case READ_INT: node = new ClosureEmulator.ReadInt(emulator, a); break;
+                case PRINT_INT: node = new ClosureEmulator.PrintInt(emulator, a); break;
+                case PRINT_BOOL: node = new ClosureEmulator.PrintBool(emulator, a); break;
+                case PRINTLN: node = new ClosureEmulator.Println(emulator); break;
+                case CALL: {
+                    int[] args = new int[c];
+                    System.arraycopy(code, pc + 4, args, 0, c);
+                    node = new ClosureEmulator.Call(emulator, functions[a], b, args);
+                    break;
+                }
+                case RET: node = new ClosureEmulator.Ret(a, f.numSlots); break;
+                case RET_VOID: node = new ClosureEmulator.RetVoid(); break;
+                default: throw new IllegalStateException("bad opcode " + op);
+            }
+            nodes[pc] = node;
+        }
+
+        for (int pc = 0; pc < code.length; pc += Opcodes.length(code, pc)) {
+            var node = nodes[pc];
+            if (node == null)
+                continue;
+            int target = Opcodes.branchTarget(code, pc);
+            if (target >= 0)
+                ((ClosureEmulator.Branch) node).taken = resolve(nodes, code, target);
+            if (code[pc] != RET && code[pc] != RET_VOID)
+                node.next = resolve(nodes, code, pc + Opcodes.length(code, pc));
+        }
+        return resolve(nodes, code, 0);
+    }
+
+    private static ClosureEmulator.Node resolve(ClosureEmulator.Node[] nodes, int[] code, int pc) {
+        int hops = 0;
+        while (code[pc] == GOTO) {
+            if (++hops > code.length) {
+                // A loop made only of gotos keeps spinning, just like the original program would
+                var spin = new ClosureEmulator.Goto();
+                spin.next = spin;
+                return spin;
+            }
+            pc = code[pc + 1];
+        }
+        return nodes[pc];
+    }
+}
@@ -0,0 +1,472 @@
+package crux.midend.ir.emulator;
+
+import crux.midend.ir.core.Program;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Executes a program as a graph of pre-bound closures instead of interpreting instructions. Each IR instruction
+ * becomes a small {@link Node} object whose operands, successors and call targets were resolved by {@link
+ * ClosureCompiler}, so running a function is just a loop of {@code node = node.exec(regs)} with no decoding, {@code
+ * instanceof} checks or function lookups. Crux calls are Java calls into the callee's {@link ClosureFunction}, with
+ * register files taken from a pool indexed by call depth.
+ */
+public final class ClosureEmulator implements ExecutionEngine {
+    private final ClosureFunction main;
+    private final PagedMemory memory;
+
+    private final EmulatorIO io;
+
+    private long[][] frames = new long[64][];
+    private int depth = 0;
+    private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+
+    public ClosureEmulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
+        this(new CompiledProgram(p), emulatorInput, emulatorOutput);
+    }
+
+    public ClosureEmulator(CompiledProgram program, InputStream emulatorInput, OutputStream emulatorOutput) {
+        io = new EmulatorIO(emulatorInput, emulatorOutput);
+        memory = new PagedMemory(program.getGlobalWords(), () -> io.println("Reading from uninitialized memory"));
+        program.getInitialGlobals().forEach(memory::initialize);
+        main = new ClosureCompiler(this, program).get(program.getMain().getIndex());
+    }
+
+    public void setMaxCallDepth(int maxDepth) {
+        maxCallDepth = maxDepth;
+    }
+
+    public void run() {
+        try {
+            DeepStack.run(maxCallDepth, () -> main.invoke(push(main)));
+        } catch (StackOverflowError e) {
+            throw new EmulatorException(String.format("stack overflow: JVM stack exhausted at call depth %d", depth));
+        } finally {
+            io.flush();
+        }
+    }
+
+    /** Returns a zeroed register file for a call to {@code f}, reusing the one of the last call at this depth. */
+    long[] push(ClosureFunction f) {
+        if (depth == maxCallDepth)
+            throw EmulatorException.stackOverflow(maxCallDepth, f.name);
+        if (depth == frames.length)
+            frames = Arrays.copyOf(frames, depth * 2);
+        long[] regs = frames[depth];
+        if (regs == null || regs.length < f.frameSize)
+            regs = frames[depth] = new long[f.frameSize];
+        else
+            Arrays.fill(regs, 0, f.frameSize, 0);
+        depth++;
+        return regs;
+    }
+
+    long load(long address) {
+        return memory.load(address);
+    }
+
+    void store(long address, long value) {
+        memory.store(address, value);
+    }
+
+    public void printStats(PrintStream ps) {
+        memory.printStats(ps);
+    }
+
+    static final class ClosureFunction {
+        final String name;
+        final int frameSize;
+        final int retSlot;
+        Node entry;
+
+        ClosureFunction(String name, int frameSize, int retSlot) {
+            this.name = name;
+            this.frameSize = frameSize;
+            this.retSlot = retSlot;
+        }
+
+        long invoke(long[] r) {
+            for (Node n = entry; n != null; ) {
+                n = n.exec(r);
+            }
+            return r[retSlot];
+        }
+    }
+
+    /** One pre-bound instruction. Returns the node to execute next, or {@code null} once the function returns. */
+    abstract static class Node {
+        Node next;
+
+        abstract Node exec(long[] r);
+    }
+
+    static final class Const extends Node {
+        final int dst;
+        final long value;
+        Const(int dst, long value) { this.dst = dst; this.value = value; }
+        Node exec(long[] r) { r[dst] = value; return next; }
+    }
+
+    static final class Mov extends Node {
+        final int dst, src;
+        Mov(int dst, int src) { this.dst = dst; this.src = src; }
+        Node exec(long[] r) { r[dst] = r[src]; return next; }
+    }
+
+    static final class Add extends Node {
+        final int dst, lhs, rhs;
+        Add(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] + r[rhs]; return next; }
+    }
+
+    static final class Sub extends Node {
+        final int dst, lhs, rhs;
+        Sub(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] - r[rhs]; return next; }
+    }
+
+    static final class Mul extends Node {
+        final int dst, lhs, rhs;
+        Mul(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] * r[rhs]; return next; }
+    }
+
+    static final class Div extends Node {
+        final int dst, lhs, rhs;
+        Div(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] / r[rhs]; return next; }
+    }
+
+    static final class AddK extends Node {
+        final int dst, lhs;
+        final long k;
+        AddK(int dst, int lhs, long k) { this.dst = dst; this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { r[dst] = r[lhs] + k; return next; }
+    }
+
+    static final class SubK extends Node {
+        final int dst, lhs;
+        final long k;
+        SubK(int dst, int lhs, long k) { this.dst = dst; this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { r[dst] = r[lhs] - k; return next; }
+    }
+
+    static final class MulK extends Node {
+        final int dst, lhs;
+        final long k;
+        MulK(int dst, int lhs, long k) { this.dst = dst; this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { r[dst] = r[lhs] * k; return next; }
+    }
+
+    static final class DivK extends Node {
+        final int dst, lhs;
+        final long k;
+        DivK(int dst, int lhs, long k) { this.dst = dst; this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { r[dst] = r[lhs] / k; return next; }
+    }
+
+    static final class CmpGE extends Node {
+        final int dst, lhs, rhs;
+        CmpGE(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] >= r[rhs] ? 1 : 0; return next; }
+    }
+
+    static final class CmpGT extends Node {
+        final int dst, lhs, rhs;
+        CmpGT(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] > r[rhs] ? 1 : 0; return next; }
+    }
+
+    static final class CmpLE extends Node {
+        final int dst, lhs, rhs;
+        CmpLE(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] <= r[rhs] ? 1 : 0; return next; }
+    }
+
+    static final class CmpLT extends Node {
+        final int dst, lhs, rhs;
+        CmpLT(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] < r[rhs] ? 1 : 0; return next; }
+    }
+
+    static final class CmpEQ extends Node {
+        final int dst, lhs, rhs;
+        CmpEQ(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] == r[rhs] ? 1 : 0; return next; }
+    }
+
+    static final class CmpNE extends Node {
+        final int dst, lhs, rhs;
+        CmpNE(int dst, int lhs, int rhs) { this.dst = dst; this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { r[dst] = r[lhs] != r[rhs] ? 1 : 0; return next; }
+    }
+
+    static final class Not extends Node {
+        final int dst, src;
+        Not(int dst, int src) { this.dst = dst; this.src = src; }
+        Node exec(long[] r) { r[dst] = r[src] == 0 ? 1 : 0; return next; }
+    }
+
+    static final class AddrIdx extends Node {
+        final int dst, index;
+        final long base;
+        AddrIdx(int dst, long base, int index) { this.dst = dst; this.base = base; this.index = index; }
+        Node exec(long[] r) { r[dst] = base + 8 * r[index]; return next; }
+    }
+
+    static final class Load extends Node {
+        final ClosureEmulator emu;
+        final int dst, address;
+        Load(ClosureEmulator emu, int dst, int address) { this.emu = emu; this.dst = dst; this.address = address; }
+        Node exec(long[] r) { r[dst] = emu.load(r[address]); return next; }
+    }
+
+    static final class LoadBool extends Node {
+        final ClosureEmulator emu;
+        final int dst, address;
+        LoadBool(ClosureEmulator emu, int dst, int address) { this.emu = emu; this.dst = dst; this.address = address; }
+        Node exec(long[] r) { r[dst] = emu.load(r[address]) != 0 ? 1 : 0; return next; }
+    }
+
+    static final class LoadIdx extends Node {
+        final ClosureEmulator emu;
+        final int dst, index;
+        final long base;
+        LoadIdx(ClosureEmulator emu, int dst, long base, int index) {
+            this.emu = emu; this.dst = dst; this.base = base; this.index = index;
+        }
+        Node exec(long[] r) { r[dst] = emu.load(base + 8 * r[index]); return next; }
+    }
+
+    static final class LoadGlobal extends Node {
+        final ClosureEmulator emu;
+        final int dst;
+        final long address;
+        LoadGlobal(ClosureEmulator emu, int dst, long address) { this.emu = emu; this.dst = dst; this.address = address; }
+        Node exec(long[] r) { r[dst] = emu.load(address); return next; }
+    }
+
+    static final class StoreIdx extends Node {
+        final ClosureEmulator emu;
+        final int src, index;
+        final long base;
+        StoreIdx(ClosureEmulator emu, int src, long base, int index) {
+            this.emu = emu; this.src = src; this.base = base; this.index = index;
+        }
+        Node exec(long[] r) { emu.store(base + 8 * r[index], r[src]); return next; }
+    }
+
+    static final class StoreGlobal extends Node {
+        final ClosureEmulator emu;
+        final int src;
+        final long address;
+        StoreGlobal(ClosureEmulator emu, int src, long address) { this.emu = emu; this.src = src; this.address = address; }
+        Node exec(long[] r) { emu.store(address, r[src]); return next; }
+    }
+
+    /** {@code a[i] = a[i] op x}: the operand is the slot {@code operand}, or {@code constant} if that is -1. */
+    static final class Update extends Node {
+        final ClosureEmulator emu;
+        final int op, address, operand;
+        final long constant;
+        Update(ClosureEmulator emu, int op, int address, int operand, long constant) {
+            this.emu = emu; this.op = op; this.address = address; this.operand = operand; this.constant = constant;
+        }
+        Node exec(long[] r) {
+            emu.store(r[address], Opcodes.arith(op, emu.load(r[address]), operand >= 0 ? r[operand] : constant));
+            return next;
+        }
+    }
+
+    static final class UpdateIdx extends Node {
+        final ClosureEmulator emu;
+        final int op, index, operand;
+        final long base, constant;
+        UpdateIdx(ClosureEmulator emu, int op, long base, int index, int operand, long constant) {
+            this.emu = emu; this.op = op; this.base = base; this.index = index; this.operand = operand;
+            this.constant = constant;
+        }
+        Node exec(long[] r) {
+            long address = base + 8 * r[index];
+            emu.store(address, Opcodes.arith(op, emu.load(address), operand >= 0 ? r[operand] : constant));
+            return next;
+        }
+    }
+
+    static final class UpdateGlobal extends Node {
+        final ClosureEmulator emu;
+        final int op, operand;
+        final long address, constant;
+        UpdateGlobal(ClosureEmulator emu, int op, long address, int operand, long constant) {
+            this.emu = emu; this.op = op; this.address = address; this.operand = operand; this.constant = constant;
+        }
+        Node exec(long[] r) {
+            emu.store(address, Opcodes.arith(op, emu.load(address), operand >= 0 ? r[operand] : constant));
+            return next;
+        }
+    }
+
+    static final class Store extends Node {
+        final ClosureEmulator emu;
+        final int src, address;
+        Store(ClosureEmulator emu, int src, int address) { this.emu = emu; this.src = src; this.address = address; }
+        Node exec(long[] r) { emu.store(r[address], r[src]); return next; }
+    }
+
+    /** A conditional jump, continuing at {@code taken} or {@code next}. */
+    abstract static class Branch extends Node {
+        Node taken;
+    }
+
+    static final class JumpIf extends Branch {
+        final int predicate;
+        JumpIf(int predicate) { this.predicate = predicate; }
+        Node exec(long[] r) { return r[predicate] != 0 ? taken : next; }
+    }
+
+    static final class BrGE extends Branch {
+        final int lhs, rhs;
+        BrGE(int lhs, int rhs) { this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { return r[lhs] >= r[rhs] ? taken : next; }
+    }
+
+    static final class BrGT extends Branch {
+        final int lhs, rhs;
+        BrGT(int lhs, int rhs) { this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { return r[lhs] > r[rhs] ? taken : next; }
+    }
+
+    static final class BrLE extends Branch {
+        final int lhs, rhs;
+        BrLE(int lhs, int rhs) { this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { return r[lhs] <= r[rhs] ? taken : next; }
+    }
+
+    static final class BrLT extends Branch {
+        final int lhs, rhs;
+        BrLT(int lhs, int rhs) { this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { return r[lhs] < r[rhs] ? taken : next; }
+    }
+
+    static final class BrEQ extends Branch {
+        final int lhs, rhs;
+        BrEQ(int lhs, int rhs) { this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { return r[lhs] == r[rhs] ? taken : next; }
+    }
+
+    static final class BrNE extends Branch {
+        final int lhs, rhs;
+        BrNE(int lhs, int rhs) { this.lhs = lhs; this.rhs = rhs; }
+        Node exec(long[] r) { return r[lhs] != r[rhs] ? taken : next; }
+    }
+
+    static final class BrGEK extends Branch {
+        final int lhs;
+        final long k;
+        BrGEK(int lhs, long k) { this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { return r[lhs] >= k ? taken : next; }
+    }
+
+    static final class BrGTK extends Branch {
+        final int lhs;
+        final long k;
+        BrGTK(int lhs, long k) { this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { return r[lhs] > k ? taken : next; }
+    }
+
+    static final class BrLEK extends Branch {
+        final int lhs;
+        final long k;
+        BrLEK(int lhs, long k) { this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { return r[lhs] <= k ? taken : next; }
+    }
+
+    static final class BrLTK extends Branch {
+        final int lhs;
+        final long k;
+        BrLTK(int lhs, long k) { this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { return r[lhs] < k ? taken : next; }
+    }
+
+    static final class BrEQK extends Branch {
+        final int lhs;
+        final long k;
+        BrEQK(int lhs, long k) { this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { return r[lhs] == k ? taken : next; }
+    }
+
+    static final class BrNEK extends Branch {
+        final int lhs;
+        final long k;
+        BrNEK(int lhs, long k) { this.lhs = lhs; this.k = k; }
+        Node exec(long[] r) { return r[lhs] != k ? taken : next; }
+    }
+
+    static final class Goto extends Node {
+        Node exec(long[] r) { return next; }
+    }
+
+    static final class ReadInt extends Node {
+        final ClosureEmulator emu;
+        final int dst;
+        ReadInt(ClosureEmulator emu, int dst) { this.emu = emu; this.dst = dst; }
+        Node exec(long[] r) {
+            long value = emu.io.readInt();
+            if (dst >= 0)
+                r[dst] = value;
+            return next;
+        }
+    }
+
+    static final class PrintInt extends Node {
+        final ClosureEmulator emu;
+        final int src;
+        PrintInt(ClosureEmulator emu, int src) { this.emu = emu; this.src = src; }
+        Node exec(long[] r) { emu.io.printInt(r[src]); return next; }
+    }
+
+    static final class PrintBool extends Node {
+        final ClosureEmulator emu;
+        final int src;
+        PrintBool(ClosureEmulator emu, int src) { this.emu = emu; this.src = src; }
+        Node exec(long[] r) { emu.io.printBool(r[src] != 0); return next; }
+    }
+
+    static final class Println extends Node {
+        final ClosureEmulator emu;
+        Println(ClosureEmulator emu) { this.emu = emu; }
+        Node exec(long[] r) { emu.io.println(); return next; }
+    }
+
+    static final class Call extends Node {
+        final ClosureEmulator emu;
+        final ClosureFunction target;
+        final int dst;
+        final int[] args;
+        Call(ClosureEmulator emu, ClosureFunction target, int dst, int[] args) {
+            this.emu = emu; this.target = target; this.dst = dst; this.args = args;
+        }
+        Node exec(long[] r) {
+            long[] callee = emu.push(target);
+            for (int j = 0; j < args.length; j++) {
+                callee[j] = r[args[j]];
+            }
+            long value = target.invoke(callee);
+            emu.depth--;
+            if (dst >= 0)
+                r[dst] = value;
+            return next;
+        }
+    }
+
+    static final class Ret extends Node {
+        final int src, retSlot;
+        Ret(int src, int retSlot) { this.src = src; this.retSlot = retSlot; }
+        Node exec(long[] r) { r[retSlot] = r[src]; return null; }
+    }
+
+    static final class RetVoid extends Node {
+        Node exec(long[] r) { return null; }
+    }
+}
@@ -0,0 +1,50 @@
+package crux.midend.ir.emulator;
+
+import crux.midend.ir.core.Function;
+import crux.midend.ir.core.Instruction;
+
+/**
+ * A {@link Function} translated into the flat encoding described in {@link Opcodes}. Every {@link
+ * crux.midend.ir.core.Variable} of the function has been resolved to a slot in a per-frame {@code long[]} register
+ * file; booleans are stored as 0 and 1.
+ */
+public final class CompiledFunction {
+    final Function function;
+    final int index;
+    final int[] code;
+    final long[] constants;
+    final int numSlots;
+    final int numArgs;
+    /** The IR instruction each pc was compiled from, {@code null} for pcs that do not start an instruction. */
+    final Instruction[] sites;
+    /**
+     * For superinstructions, the IR instructions fused into the one at {@code sites[pc]}, in execution order;
+     * otherwise null.
+     */
+    final Instruction[][] fusedSites;
+    /** The nops that run right before the instruction at {@code pc} whenever it is reached, in order, or null. */
+    final Instruction[][] nopSites;
+
+    CompiledFunction(Function function, int index, int[] code, long[] constants, int numSlots, int numArgs,
+                     Instruction[] sites, Instruction[][] fusedSites, Instruction[][] nopSites) {
+        this.function = function;
+        this.index = index;
+        this.code = code;
+        this.constants = constants;
+        this.numSlots = numSlots;
+        this.numArgs = numArgs;
+        this.sites = sites;
+        this.fusedSites = fusedSites;
+        this.nopSites = nopSites;
+    }
+
+    public Function getFunction() { return function; }
+
+    public String getName() { return function.getName(); }
+
+    public int getIndex() { return index; }
+
+    public int getNumSlots() { return numSlots; }
+
+    public int getCodeSize() { return code.length; }
+}
@@ -0,0 +1,76 @@
+package crux.midend.ir.emulator;
+
+import crux.midend.ir.core.*;
+
+import java.util.*;
+
+/**
+ * All functions of a {@link Program} compiled by {@link FunctionCompiler}, together with the layout of the global
+ * memory. A compiled program is never modified after construction and can be shared between runs.
+ */
+public final class CompiledProgram {
+    final CompiledFunction[] functions;
+    final CompiledFunction main;
+    final Map<AddressVar, Long> offsetMap;
+    final long globalWords;
+    final Map<Long, long[]> initialGlobals;
+
+    public CompiledProgram(Program p) {
+        offsetMap = new HashMap<>();
+        initialGlobals = new HashMap<>();
+        long offset = 0;
+        for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext(); ) {
+            GlobalDecl g = glob_it.next();
+            offsetMap.put(g.getAllocatedAddress(), offset);
+            if (g.getInitialValues() != null)
+                initialGlobals.put(offset, g.getInitialValues());
+            offset += ((IntegerConstant) g.getNumElement()).getValue() * 8;
+        }
+        globalWords = offset / 8;
+
+        List<Function> irFunctions = new ArrayList<>();
+        Map<String, Integer> functionIndex = new HashMap<>();
+        for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext(); ) {
+            Function f = func_it.next();
+            functionIndex.put(f.getName(), irFunctions.size());
+            irFunctions.add(f);
+        }
+
+        var compiler = new FunctionCompiler(offsetMap, functionIndex);
+        functions = new CompiledFunction[irFunctions.size()];
+        for (int i = 0; i < functions.length; i++) {
+            functions[i] = compiler.compile(irFunctions.get(i), i);
+        }
+
+        Integer mainIndex = functionIndex.get("main");
+        if (mainIndex == null)
+            throw new RuntimeException("program has no main function");
+        main = functions[mainIndex];
+    }
+
+    public CompiledFunction getMain() { return main; }
+
+    public int numFunctions() { return functions.length; }
+
+    public CompiledFunction getFunction(int index) { return functions[index]; }
+
+    /** A hash of the code and memory layout, which tells whether a checkpoint was written by this program. */
+    public long fingerprint() {
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ globalWords) * 0x100000001b3L;
+        for (CompiledFunction f : functions) {
+            h = (h ^ f.numSlots) * 0x100000001b3L;
+            for (int word : f.code)
+                h = (h ^ word) * 0x100000001b3L;
+            for (long constant : f.constants)
+                h = (h ^ constant) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** Size of the global memory in 8-byte words. */
+    public long getGlobalWords() { return globalWords; }
+
+    /** Initial contents of the initialized globals, by byte offset in the global memory. */
+    public Map<Long, long[]> getInitialGlobals() { return Collections.unmodifiableMap(initialGlobals); }
+}
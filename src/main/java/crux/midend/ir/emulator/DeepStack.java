@@ -0,0 +1,35 @@
+package crux.midend.ir.emulator;
+
+/**
+ * Runs engine code that recurses on the JVM stack once per Crux call in a thread whose stack is large enough for the
+ * configured maximum call depth, instead of the much smaller stack of the calling thread.
+ */
+public final class DeepStack {
+    // Generous upper bound for the JVM frames of one Crux call, the memory is only reserved, not committed
+    private static final long BYTES_PER_CALL = 2048;
+
+    private DeepStack() {}
+
+    public static void run(int maxCallDepth, Runnable body) {
+        Throwable[] failure = new Throwable[1];
+        var thread = new Thread(null, () -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "crux-emulator", BYTES_PER_CALL * maxCallDepth);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new EmulatorException("interrupted");
+        }
+        if (failure[0] instanceof RuntimeException)
+            throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error)
+            throw (Error) failure[0];
+    }
+}
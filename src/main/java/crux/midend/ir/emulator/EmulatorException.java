@@ -0,0 +1,17 @@
+package crux.midend.ir.emulator;
+
+/**
+ * A Crux-level runtime error detected by an emulator engine, such as a stack overflow.
+ */
+public final class EmulatorException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public EmulatorException(String message) {
+        super(message);
+    }
+
+    public static EmulatorException stackOverflow(int maxDepth, String function) {
+        return new EmulatorException(String.format("stack overflow: call depth exceeded %d when calling '%s'",
+                maxDepth, function));
+    }
+}
@@ -0,0 +1,219 @@
+package crux.midend.ir.emulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The I/O behind the {@code readInt}, {@code printInt}, {@code printBool} and {@code println} builtins.
+ * <p>
+ * Input is read in large blocks and split into whitespace separated integers, so numbers need not be on lines of
+ * their own. Output is formatted straight into a byte buffer that is written when it is full, before blocking on
+ * input, and on {@link #flush}. The bytes written are the same as printing through a {@link java.io.PrintStream}.
+ */
+public final class EmulatorIO {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] PROMPT = "int?".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    private final ReadableByteChannel in;
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+    private final OutputStream out;
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private int outputSize = 0;
+    private boolean autoFlush = false;
+    /** Bytes read from the input and written to the output so far, counting from where a checkpoint left off. */
+    private long inputRead = 0;
+    private long outputWritten = 0;
+
+    public EmulatorIO(InputStream in, OutputStream out) {
+        this.in = Channels.newChannel(in);
+        this.out = out;
+        input.limit(0);
+    }
+
+    /** Writes output as soon as it is printed, for when other writers share the output stream. */
+    public void setAutoFlush(boolean autoFlush) {
+        this.autoFlush = autoFlush;
+    }
+
+    /** Prints the {@code int?} prompt and reads the next integer. */
+    public long readInt() {
+        write(PROMPT);
+        int c = skipWhitespace();
+        if (c < 0)
+            throw new EmulatorException("readInt: end of input");
+        boolean negative = c == '-';
+        if (c == '-' || c == '+')
+            c = next();
+        // Accumulate negatively so that Long.MIN_VALUE can be read as well
+        long value = 0;
+        int digits = 0;
+        while (c >= '0' && c <= '9') {
+            int digit = c - '0';
+            if (value < (Long.MIN_VALUE + digit) / 10)
+                throw new EmulatorException("readInt: integer out of range");
+            value = value * 10 - digit;
+            digits++;
+            c = next();
+        }
+        if (digits == 0 || (c >= 0 && !isWhitespace(c)))
+            throw new EmulatorException("readInt: invalid integer");
+        if (negative)
+            return value;
+        if (value == Long.MIN_VALUE)
+            throw new EmulatorException("readInt: integer out of range");
+        return -value;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+    }
+
+    private int skipWhitespace() {
+        int c = next();
+        while (c >= 0 && isWhitespace(c))
+            c = next();
+        return c;
+    }
+
+    /** The next input byte, or -1 at the end of the input. */
+    private int next() {
+        if (!input.hasRemaining() && !fill())
+            return -1;
+        return input.get() & 0xff;
+    }
+
+    private boolean fill() {
+        // Whoever provides the input may be waiting to see the prompt
+        flush();
+        input.clear();
+        try {
+            int n;
+            do {
+                n = in.read(input);
+            } while (n == 0);
+            input.flip();
+            if (n > 0)
+                inputRead += n;
+            return n > 0;
+        } catch (IOException e) {
+            throw new Error("Error in inputting Integer.");
+        }
+    }
+
+    public void printInt(long value) {
+        if (output.length - outputSize < 20)
+            writeOutput();
+        if (value == Long.MIN_VALUE) {
+            // Has no positive counterpart to format
+            write(Long.toString(value).getBytes());
+            return;
+        }
+        if (value < 0) {
+            output[outputSize++] = '-';
+            value = -value;
+        }
+        int end = outputSize + digits(value);
+        for (int pos = end - 1; pos >= outputSize; pos--) {
+            output[pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        outputSize = end;
+        if (autoFlush)
+            flush();
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    public void printBool(boolean value) {
+        write(value ? TRUE : FALSE);
+    }
+
+    public void println() {
+        write(NEWLINE);
+    }
+
+    /** Prints a message of the emulator itself, such as a warning, followed by a line break. */
+    public void println(String message) {
+        write(message.getBytes());
+        write(NEWLINE);
+    }
+
+    private void write(byte[] bytes) {
+        if (output.length - outputSize < bytes.length)
+            writeOutput();
+        if (bytes.length > output.length) {
+            writeRaw(bytes, bytes.length);
+        } else {
+            System.arraycopy(bytes, 0, output, outputSize, bytes.length);
+            outputSize += bytes.length;
+        }
+        if (autoFlush)
+            flush();
+    }
+
+    private void writeOutput() {
+        writeRaw(output, outputSize);
+        outputSize = 0;
+    }
+
+    private void writeRaw(byte[] bytes, int length) {
+        try {
+            outputWritten += length;
+            out.write(bytes, 0, length);
+        } catch (IOException e) {
+            throw new Error("Error in writing output.");
+        }
+    }
+
+    /** Number of input bytes consumed by {@link #readInt} so far. */
+    public long getInputPosition() {
+        return inputRead - input.remaining();
+    }
+
+    /** Number of bytes printed so far, including those still buffered. */
+    public long getOutputPosition() {
+        return outputWritten + outputSize;
+    }
+
+    /**
+     * Continues a run restored from a checkpoint: skips the {@code inputPosition} bytes of input it had consumed and
+     * counts output from {@code outputPosition}, the output it had already printed.
+     */
+    public void resume(long inputPosition, long outputPosition) {
+        long skip = inputPosition - getInputPosition();
+        while (skip > 0) {
+            if (!input.hasRemaining() && !fill())
+                throw new EmulatorException("cannot resume: input is shorter than when the checkpoint was written");
+            int n = (int) Math.min(skip, input.remaining());
+            input.position(input.position() + n);
+            skip -= n;
+        }
+        outputWritten = outputPosition - outputSize;
+    }
+
+    /** Writes all buffered output to the underlying stream and flushes it. */
+    public void flush() {
+        try {
+            outputWritten += outputSize;
+            out.write(output, 0, outputSize);
+            outputSize = 0;
+            out.flush();
+        } catch (IOException e) {
+            throw new Error("Error in writing output.");
+        }
+    }
+}
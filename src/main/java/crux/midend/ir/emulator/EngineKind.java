@@ -0,0 +1,29 @@
+package crux.midend.ir.emulator;
+
+/**
+ * The execution engines that can be selected with {@code --emulator-engine=<name>}. All but {@link #AST} run the
+ * lowered IR; {@link #AST} interprets the type-checked AST and skips the lowering.
+ */
+public enum EngineKind {
+    INTERPRETER("interpreter"),
+    REGISTER("register"),
+    CLOSURE("closure"),
+    JIT("jit"),
+    AST("ast");
+
+    private final String mName;
+
+    EngineKind(String name) {
+        mName = name;
+    }
+
+    public String getName() { return mName; }
+
+    public static EngineKind fromName(String name) {
+        for (EngineKind kind : values()) {
+            if (kind.mName.equals(name))
+                return kind;
+        }
+        throw new RuntimeException(String.format("unknown emulator engine '%s'", name));
+    }
+}
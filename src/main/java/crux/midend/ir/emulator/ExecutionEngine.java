@@ -0,0 +1,23 @@
+package crux.midend.ir.emulator;
+
+import java.io.PrintStream;
+
+/**
+ * Anything that can execute a lowered {@link crux.midend.ir.core.Program}, starting at its main function.
+ */
+public interface ExecutionEngine {
+    int DEFAULT_MAX_CALL_DEPTH = 100000;
+
+    void run();
+
+    /** Limits the depth of Crux calls; deeper recursion fails with an {@link EmulatorException}. */
+    void setMaxCallDepth(int maxDepth);
+
+    /** Number of IR instructions executed so far, or -1 if this engine does not count them. */
+    default long getSteps() {
+        return -1;
+    }
+
+    /** Prints statistics about the last run, such as the memory footprint. */
+    void printStats(PrintStream ps);
+}
@@ -0,0 +1,468 @@
+package crux.midend.ir.emulator;
+
+import crux.frontend.types.IntType;
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.*;
+
+import java.util.*;
+
+import static crux.midend.ir.emulator.Opcodes.*;
+
+/**
+ * Translates the instruction graph of a {@link Function} into the flat encoding described in {@link Opcodes}.
+ * <p>
+ * Instructions are laid out by following the false (0th) successors, so straight-line code falls through and only
+ * merge points and true branches need explicit targets. Nops are dropped and return the pc of whatever follows them,
+ * which records them as run on every arrival there. A nop that leads into an instruction with other predecessors is the
+ * exception: it becomes a {@code GOTO} to that instruction, so a trace can tell the paths apart.
+ * <p>
+ * A compare followed by the jump on its result, and an address computation followed by the load or store through it,
+ * are fused into one superinstruction when the intermediate value has no other reader and the second instruction
+ * cannot be reached any other way. Under the same conditions, the chain {@code a[i] = a[i] op x} (address, load, an
+ * optional constant copy for {@code x}, arithmetic and a store through the same or a recomputed address) becomes a
+ * single update. A constant copied into a temp only to be the right operand of a compare-and-branch or of arithmetic
+ * is folded into it as a constant operand, and arithmetic whose result is only copied into a variable writes that
+ * variable directly, so {@code while (i < n)} and {@code i = i + 1} take one instruction each.
+ */
+final class FunctionCompiler extends InstVisitor {
+    private final Map<AddressVar, Long> offsetMap;
+    private final Map<String, Integer> functionIndex;
+
+    private int[] code;
+    private int size;
+    private Instruction[] sites;
+    private Instruction[][] fusedSites;
+    private Instruction[][] nopSites;
+    /** The nops dropped since the last instruction was emitted, which run right before the next one. */
+    private List<Instruction> pendingNops;
+    private Map<Variable, Integer> reads;
+    private Map<Instruction, Integer> preds;
+    /** Set by a visit that fused the following instructions into the one it emitted, in execution order. */
+    private Instruction[] fused;
+    private List<Long> constants;
+    private Map<Long, Integer> constantIndex;
+    private Map<Variable, Integer> slots;
+    private Map<Instruction, Integer> pcOf;
+    private List<Instruction> pendingTargets;
+    private List<Integer> pendingFixups;
+
+    FunctionCompiler(Map<AddressVar, Long> offsetMap, Map<String, Integer> functionIndex) {
+        this.offsetMap = offsetMap;
+        this.functionIndex = functionIndex;
+    }
+
+    CompiledFunction compile(Function f, int index) {
+        code = new int[64];
+        size = 0;
+        sites = new Instruction[64];
+        fusedSites = new Instruction[64][];
+        nopSites = new Instruction[64][];
+        pendingNops = new ArrayList<>();
+        countUses(f);
+        constants = new ArrayList<>();
+        constantIndex = new HashMap<>();
+        slots = new HashMap<>();
+        pcOf = new HashMap<>();
+        pendingTargets = new ArrayList<>();
+        pendingFixups = new ArrayList<>();
+
+        // Arguments occupy the first slots so callers can copy them in by position
+        for (LocalVar arg : f.getArguments()) {
+            slot(arg);
+        }
+
+        Deque<Instruction> worklist = new ArrayDeque<>();
+        if (f.getStart() != null)
+            worklist.push(f.getStart());
+        else
+            emit(RET_VOID);
+        while (!worklist.isEmpty()) {
+            Instruction inst = worklist.pop();
+            if (pcOf.containsKey(inst))
+                continue;
+            boolean returned = false;
+            while (inst != null && !pcOf.containsKey(inst)) {
+                int pc = size;
+                pcOf.put(inst, pc);
+                fused = null;
+                inst.accept(this);
+                if (size > pc)
+                    sites[pc] = inst;
+                if (fused != null) {
+                    // Continue after the instructions that were folded in
+                    for (Instruction folded : fused) {
+                        pcOf.put(folded, pc);
+                    }
+                    fusedSites[pc] = fused;
+                    inst = fused[fused.length - 1];
+                }
+                if (inst instanceof ReturnInst) {
+                    returned = true;
+                    break;
+                }
+                if (inst instanceof JumpInst)
+                    worklist.push(inst.getNext(1));
+                inst = inst.getNext(0);
+            }
+            if (returned)
+                continue;
+            if (inst == null) {
+                //Implicit return from void function
+                emit(RET_VOID);
+            } else {
+                emitJump(GOTO, inst);
+            }
+        }
+
+        for (int i = 0; i < pendingFixups.size(); i++) {
+            code[pendingFixups.get(i)] = pcOf.get(pendingTargets.get(i));
+        }
+
+        long[] constPool = new long[constants.size()];
+        for (int i = 0; i < constPool.length; i++) {
+            constPool[i] = constants.get(i);
+        }
+        return new CompiledFunction(f, index, Arrays.copyOf(code, size), constPool, slots.size(),
+                f.getArguments().size(), Arrays.copyOf(sites, size), Arrays.copyOf(fusedSites, size),
+                Arrays.copyOf(nopSites, size));
+    }
+
+    /** Counts the reads of every variable and the incoming edges of every instruction, which decide fusion. */
+    private void countUses(Function f) {
+        reads = new HashMap<>();
+        preds = new HashMap<>();
+        var counter = new InstVisitor() {
+            void read(Value v) {
+                if (v instanceof Variable)
+                    reads.merge((Variable) v, 1, Integer::sum);
+            }
+
+            public void visit(AddressAt i) { read(i.getOffset()); }
+            public void visit(BinaryOperator i) { read(i.getLeftOperand()); read(i.getRightOperand()); }
+            public void visit(CompareInst i) { read(i.getLeftOperand()); read(i.getRightOperand()); }
+            public void visit(CopyInst i) { read(i.getSrcValue()); }
+            public void visit(JumpInst i) { read(i.getPredicate()); }
+            public void visit(LoadInst i) { read(i.getSrcAddress()); }
+            public void visit(StoreInst i) { read(i.getSrcValue()); read(i.getDestAddress()); }
+            public void visit(UnaryNotInst i) { read(i.getInner()); }
+            public void visit(CallInst i) { i.getParams().forEach(this::read); }
+            public void visit(ReturnInst i) { read(i.getReturnValue()); }
+        };
+        for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+            if (block.isExit())
+                continue;
+            preds.put(block.getFirst(), block.numPredecessors());
+            for (int idx = 0; idx < block.size(); idx++) {
+                Instruction inst = block.get(idx);
+                inst.accept(counter);
+                if (idx > 0)
+                    preds.put(inst, 1);
+            }
+        }
+    }
+
+    /**
+     * Whether {@code next}, the fall-through successor of the instruction being compiled, can be fused into it: it is
+     * only reached from there, not yet laid out, and {@code value} passed between the two is read nowhere else.
+     */
+    private boolean canFuse(Instruction next, Variable value) {
+        return next != null && !pcOf.containsKey(next) && preds.getOrDefault(next, 0) == 1
+                && reads.getOrDefault(value, 0) == 1;
+    }
+
+    /**
+     * Matches the rest of {@code a[i] = a[i] op x} after {@code load}: an optional constant copy for {@code x}, the
+     * arithmetic, and a store of its result either through the address {@code load} read or through a recomputation
+     * of {@code address}, if given. Returns the chain from {@code load} to the store, or null.
+     */
+    private List<Instruction> matchUpdate(AddressAt address, LoadInst load) {
+        List<Instruction> chain = new ArrayList<>();
+        chain.add(load);
+        Instruction next = load.getNext(0);
+        CopyInst constant = null;
+        if (next instanceof CopyInst && ((CopyInst) next).getSrcValue() instanceof IntegerConstant
+                && canFuse(next, ((CopyInst) next).getDstVar())) {
+            constant = (CopyInst) next;
+            chain.add(next);
+            next = next.getNext(0);
+        }
+        if (!(next instanceof BinaryOperator) || !canFuse(next, load.getDst()))
+            return null;
+        var arith = (BinaryOperator) next;
+        Value operand;
+        if (arith.getLeftOperand() == load.getDst()) {
+            operand = arith.getRightOperand();
+        } else if (arith.getOperator() == BinaryOperator.Op.Add || arith.getOperator() == BinaryOperator.Op.Mul) {
+            operand = arith.getLeftOperand();
+        } else {
+            return null;
+        }
+        if (constant != null && operand != constant.getDstVar())
+            return null;
+        chain.add(arith);
+        next = arith.getNext(0);
+        if (address != null && next instanceof AddressAt && canFuse(next, arith.getDst())) {
+            var storeAddress = (AddressAt) next;
+            if (storeAddress.getBase() != address.getBase() || storeAddress.getOffset() != address.getOffset())
+                return null;
+            chain.add(storeAddress);
+            next = storeAddress.getNext(0);
+            if (!(next instanceof StoreInst) || !canFuse(next, storeAddress.getDst())
+                    || ((StoreInst) next).getDestAddress() != storeAddress.getDst())
+                return null;
+        } else if (!(next instanceof StoreInst) || !canFuse(next, arith.getDst())
+                || ((StoreInst) next).getDestAddress() != load.getSrcAddress()) {
+            return null;
+        }
+        if (((StoreInst) next).getSrcValue() != arith.getDst())
+            return null;
+        chain.add(next);
+        return chain;
+    }
+
+    /** The operand word of an update: the slot of {@code x} in {@code a[i] op x}, or -1 - constIndex. */
+    private int updateOperand(List<Instruction> chain) {
+        if (chain.get(1) instanceof CopyInst)
+            return -1 - constant(((IntegerConstant) ((CopyInst) chain.get(1)).getSrcValue()).getValue());
+        var arith = (BinaryOperator) chain.get(1);
+        return slot(arith.getLeftOperand() == ((LoadInst) chain.get(0)).getDst()
+                ? arith.getRightOperand() : arith.getLeftOperand());
+    }
+
+    private static int compareOpcode(CompareInst i) {
+        switch (i.getPredicate()) {
+            case GE: return CMP_GE;
+            case GT: return CMP_GT;
+            case LE: return CMP_LE;
+            case LT: return CMP_LT;
+            case EQ: return CMP_EQ;
+            default: return CMP_NE;
+        }
+    }
+
+    private static int arithOpcode(BinaryOperator i) {
+        switch (i.getOperator()) {
+            case Add: return ADD;
+            case Sub: return SUB;
+            case Mul: return MUL;
+            default: return DIV;
+        }
+    }
+
+    private void emit(int... words) {
+        if (size + words.length > code.length) {
+            int capacity = Math.max(code.length * 2, size + words.length);
+            code = Arrays.copyOf(code, capacity);
+            sites = Arrays.copyOf(sites, capacity);
+            fusedSites = Arrays.copyOf(fusedSites, capacity);
+            nopSites = Arrays.copyOf(nopSites, capacity);
+        }
+        if (!pendingNops.isEmpty()) {
+            nopSites[size] = pendingNops.toArray(new Instruction[0]);
+            pendingNops.clear();
+        }
+        for (int w : words) {
+            code[size++] = w;
+        }
+    }
+
+    private void emitJump(int opcode, Instruction target, int... operands) {
+        int[] words = new int[operands.length + 2];
+        words[0] = opcode;
+        System.arraycopy(operands, 0, words, 1, operands.length);
+        emit(words);
+        pendingFixups.add(size - 1);
+        pendingTargets.add(target);
+    }
+
+    private int slot(Value v) {
+        return slots.computeIfAbsent((Variable) v, k -> slots.size());
+    }
+
+    private int constant(long value) {
+        return constantIndex.computeIfAbsent(value, k -> {
+            constants.add(value);
+            return constants.size() - 1;
+        });
+    }
+
+    public void visit(AddressAt i) {
+        int base = constant(offsetMap.get(i.getBase()));
+        Instruction next = i.getNext(0);
+        if (next instanceof LoadInst && ((LoadInst) next).getSrcAddress() == i.getDst()
+                && i.getDst().getType() instanceof IntType && !pcOf.containsKey(next)
+                && preds.getOrDefault(next, 0) == 1) {
+            List<Instruction> chain = matchUpdate(i, (LoadInst) next);
+            // The store either recomputes the address or reuses it, in which case the load and store both read it
+            int readers = chain != null && chain.get(chain.size() - 2) instanceof AddressAt ? 1 : 2;
+            if (chain != null && reads.get(i.getDst()) == readers) {
+                var arith = (BinaryOperator) chain.get(chain.get(1) instanceof CopyInst ? 2 : 1);
+                if (i.getOffset() == null)
+                    emit(UPDATE_GLOBAL, arithOpcode(arith), base, updateOperand(chain));
+                else
+                    emit(UPDATE_IDX, arithOpcode(arith), base, slot(i.getOffset()), updateOperand(chain));
+                fused = chain.toArray(new Instruction[0]);
+                return;
+            }
+        }
+        if (canFuse(next, i.getDst())) {
+            int op = -1, value = 0;
+            if (next instanceof LoadInst && ((LoadInst) next).getSrcAddress() == i.getDst()
+                    && i.getDst().getType() instanceof IntType) {
+                op = i.getOffset() == null ? LOAD_GLOBAL : LOAD_IDX;
+                value = slot(((LoadInst) next).getDst());
+            } else if (next instanceof StoreInst && ((StoreInst) next).getDestAddress() == i.getDst()) {
+                op = i.getOffset() == null ? STORE_GLOBAL : STORE_IDX;
+                value = slot(((StoreInst) next).getSrcValue());
+            }
+            if (op >= 0) {
+                if (i.getOffset() == null)
+                    emit(op, value, base);
+                else
+                    emit(op, value, base, slot(i.getOffset()));
+                fused = new Instruction[] {next};
+                return;
+            }
+        }
+        if (i.getOffset() == null)
+            emit(ADDR, slot(i.getDst()), base);
+        else
+            emit(ADDR_IDX, slot(i.getDst()), base, slot(i.getOffset()));
+    }
+
+    public void visit(BinaryOperator i) {
+        CopyInst result = resultCopy(i);
+        emit(arithOpcode(i), slot(result != null ? result.getDstVar() : i.getDst()), slot(i.getLeftOperand()),
+                slot(i.getRightOperand()));
+        if (result != null)
+            fused = new Instruction[] {result};
+    }
+
+    /** The copy of the result of {@code arith} into a variable that follows it, if it can write there directly. */
+    private CopyInst resultCopy(BinaryOperator arith) {
+        Instruction next = arith.getNext(0);
+        if (next instanceof CopyInst && ((CopyInst) next).getSrcValue() == arith.getDst()
+                && canFuse(next, arith.getDst()))
+            return (CopyInst) next;
+        return null;
+    }
+
+    public void visit(CompareInst i) {
+        int opcode = compareOpcode(i);
+        if (isBranch(i)) {
+            // BR_xx follow the order of CMP_xx
+            emitJump(opcode - CMP_GE + BR_GE, i.getNext(0).getNext(1), slot(i.getLeftOperand()),
+                    slot(i.getRightOperand()));
+            fused = new Instruction[] {i.getNext(0)};
+            return;
+        }
+        emit(opcode, slot(i.getDst()), slot(i.getLeftOperand()), slot(i.getRightOperand()));
+    }
+
+    /** Whether {@code cmp} is followed by a jump on its result that it can be fused with. */
+    private boolean isBranch(CompareInst cmp) {
+        Instruction next = cmp.getNext(0);
+        return next instanceof JumpInst && ((JumpInst) next).getPredicate() == cmp.getDst()
+                && canFuse(next, cmp.getDst());
+    }
+
+    public void visit(CopyInst i) {
+        Value srcval = i.getSrcValue();
+        if (srcval instanceof IntegerConstant) {
+            int k = constant(((IntegerConstant) srcval).getValue());
+            Instruction next = i.getNext(0);
+            if (canFuse(next, i.getDstVar())) {
+                // The constant is read once, so it is not the left operand as well
+                if (next instanceof CompareInst && ((CompareInst) next).getRightOperand() == i.getDstVar()
+                        && isBranch((CompareInst) next)) {
+                    var cmp = (CompareInst) next;
+                    // BR_xx_K follow the order of CMP_xx too
+                    emitJump(compareOpcode(cmp) - CMP_GE + BR_GE_K, cmp.getNext(0).getNext(1),
+                            slot(cmp.getLeftOperand()), k);
+                    fused = new Instruction[] {cmp, cmp.getNext(0)};
+                    return;
+                }
+                if (next instanceof BinaryOperator && ((BinaryOperator) next).getRightOperand() == i.getDstVar()) {
+                    var arith = (BinaryOperator) next;
+                    CopyInst result = resultCopy(arith);
+                    // ADD_K and the others follow the order of ADD
+                    emit(arithOpcode(arith) - ADD + ADD_K, slot(result != null ? result.getDstVar() : arith.getDst()),
+                            slot(arith.getLeftOperand()), k);
+                    fused = result != null ? new Instruction[] {arith, result} : new Instruction[] {arith};
+                    return;
+                }
+            }
+            emit(CONST, slot(i.getDstVar()), k);
+        } else if (srcval instanceof BooleanConstant) {
+            emit(CONST, slot(i.getDstVar()), constant(((BooleanConstant) srcval).getValue() ? 1 : 0));
+        } else {
+            emit(MOV, slot(i.getDstVar()), slot(srcval));
+        }
+    }
+
+    public void visit(JumpInst i) {
+        emitJump(JUMP_IF, i.getNext(1), slot(i.getPredicate()));
+    }
+
+    public void visit(LoadInst i) {
+        AddressVar src = i.getSrcAddress();
+        if (src.getType() instanceof IntType) {
+            List<Instruction> chain = matchUpdate(null, i);
+            if (chain != null) {
+                var arith = (BinaryOperator) chain.get(chain.get(1) instanceof CopyInst ? 2 : 1);
+                emit(UPDATE, arithOpcode(arith), slot(src), updateOperand(chain));
+                fused = chain.subList(1, chain.size()).toArray(new Instruction[0]);
+                return;
+            }
+        }
+        emit(src.getType() instanceof IntType ? LOAD : LOAD_BOOL, slot(i.getDst()), slot(src));
+    }
+
+    public void visit(NopInst i) {
+        Instruction next = i.getNext(0);
+        if (next != null && !pcOf.containsKey(next) && preds.getOrDefault(next, 0) != 1)
+            emitJump(GOTO, next);
+        else
+            pendingNops.add(i);
+    }
+
+    public void visit(StoreInst i) {
+        emit(STORE, slot(i.getSrcValue()), slot(i.getDestAddress()));
+    }
+
+    public void visit(UnaryNotInst i) {
+        emit(NOT, slot(i.getDst()), slot(i.getInner()));
+    }
+
+    public void visit(CallInst i) {
+        //Chop off leading %
+        String fName = i.getCallee().getName().substring(1);
+        int dst = i.getDst() != null ? slot(i.getDst()) : -1;
+        List<Value> params = i.getParams();
+        Builtin builtin = Builtin.fromName(fName);
+        if (builtin != null) {
+            switch (builtin) {
+                case READ_INT: emit(READ_INT, dst); return;
+                case PRINT_INT: emit(PRINT_INT, slot(params.get(0))); return;
+                case PRINT_BOOL: emit(PRINT_BOOL, slot(params.get(0))); return;
+                case PRINTLN: emit(PRINTLN); return;
+            }
+        }
+        Integer callee = functionIndex.get(fName);
+        if (callee == null)
+            throw new RuntimeException(String.format("call to undefined function '%s'", fName));
+        int[] words = new int[4 + params.size()];
+        words[0] = CALL;
+        words[1] = callee;
+        words[2] = dst;
+        words[3] = params.size();
+        for (int j = 0; j < params.size(); j++) {
+            words[4 + j] = slot(params.get(j));
+        }
+        emit(words);
+    }
+
+    public void visit(ReturnInst i) {
+        emit(RET, slot(i.getReturnValue()));
+    }
+}
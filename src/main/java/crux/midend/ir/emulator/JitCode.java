@@ -0,0 +1,12 @@
+package crux.midend.ir.emulator;
+
+/**
+ * Base class of the classes generated by {@link JitCompiler}, one per compiled function.
+ */
+public abstract class JitCode {
+    /**
+     * Runs the function with the given register file and returns its return value. Execution starts at {@code entry},
+     * which is either 0 or the pc of a loop header, so an interpreted frame can continue in compiled code.
+     */
+    public abstract long invoke(JitRuntime rt, long[] regs, int entry);
+}
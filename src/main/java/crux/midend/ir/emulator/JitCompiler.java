@@ -0,0 +1,550 @@
+package crux.midend.ir.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static crux.midend.ir.emulator.Opcodes.*;
+
+/**
+ * Translates a {@link CompiledFunction} into a JVM class extending {@link JitCode}, so HotSpot can compile hot Crux
+ * code to native code. Every register slot becomes a JVM {@code long} local and every branch a bytecode branch;
+ * globals, I/O and calls go through the {@link JitRuntime} passed to {@link JitCode#invoke}.
+ * <p>
+ * The classes are written as version 49 class files, which the JVM verifies by type inference and therefore do not
+ * need stack map frames. Functions whose bytecode would not fit into a single method are not compiled.
+ */
+final class JitCompiler {
+    private static final String RUNTIME = "crux/midend/ir/emulator/JitRuntime";
+    private static final String CODE = "crux/midend/ir/emulator/JitCode";
+    private static final String INVOKE_DESC = "(L" + RUNTIME + ";[JI)J";
+    // Locals 0 to 3 hold this, the runtime, the register file and the entry pc
+    private static final int FIRST_SLOT_LOCAL = 4;
+    private static final int MAX_STACK = 8;
+
+    private final CompiledProgram program;
+    private final Loader loader = new Loader(JitCode.class.getClassLoader());
+
+    JitCompiler(CompiledProgram program) {
+        this.program = program;
+    }
+
+    /** Returns the compiled code for {@code f}, or {@code null} if it cannot be compiled. */
+    JitCode compile(CompiledFunction f) {
+        var name = String.format("crux.jit.F%d_%s", f.index, f.getName());
+        byte[] classFile = generate(f, name.replace('.', '/'));
+        if (classFile == null)
+            return null;
+        try {
+            Class<?> c = loader.define(name, classFile);
+            return (JitCode) c.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Keep interpreting, compiled code is only ever an optimization
+            return null;
+        }
+    }
+
+    private static final class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] b) {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+
+    private byte[] generate(CompiledFunction f, String className) {
+        if (FIRST_SLOT_LOCAL + 2L * f.numSlots > 0xFFFF)
+            return null;
+        var cp = new ConstantPool();
+        int thisClass = cp.classRef(className);
+        int superClass = cp.classRef(CODE);
+        int superInit = cp.methodRef(CODE, "<init>", "()V");
+        int initName = cp.utf8("<init>");
+        int initDesc = cp.utf8("()V");
+        int invokeName = cp.utf8("invoke");
+        int invokeDesc = cp.utf8(INVOKE_DESC);
+        int codeAttr = cp.utf8("Code");
+
+        var body = new MethodBody(cp);
+        if (!body.translate(f) || cp.count > 0xFFFF)
+            return null;
+
+        try {
+            var bytes = new ByteArrayOutputStream();
+            var out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(cp.count);
+            cp.bytes.writeTo(out);
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+
+            // public <init>() { super(); }
+            byte[] init = {0x2a, (byte) 0xb7, (byte) (superInit >> 8), (byte) superInit, (byte) 0xb1};
+            writeMethod(out, initName, initDesc, codeAttr, 1, 1, init);
+            writeMethod(out, invokeName, invokeDesc, codeAttr, MAX_STACK, FIRST_SLOT_LOCAL + 2 * f.numSlots,
+                    body.code.toByteArray());
+
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeAttr, int maxStack,
+                                    int maxLocals, byte[] code) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeAttr);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /** Bytecode of {@link JitCode#invoke} for one function. */
+    private final class MethodBody {
+        private final ConstantPool cp;
+        private final Code code = new Code();
+        // Branches to patch once every pc has its bytecode offset: opcode position, offset position, target pc
+        private final List<int[]> branches = new ArrayList<>();
+        private final List<int[]> switchTargets = new ArrayList<>();
+
+        MethodBody(ConstantPool cp) {
+            this.cp = cp;
+        }
+
+        boolean translate(CompiledFunction f) {
+            int[] insts = f.code;
+            long[] consts = f.constants;
+
+            // Load the whole register file, so calls (arguments only) and loop entries (every slot) look the same
+            for (int i = 0; i < f.numSlots; i++) {
+                code.u1(0x2c); // aload_2
+                pushInt(i);
+                code.u1(0x2f); // laload
+                local(0x37, i);
+            }
+
+            // Entry dispatch on pc 0 and every loop header, for continuing an interpreted frame
+            var entries = new TreeSet<Integer>();
+            for (int pc = 0; pc < insts.length; pc += Opcodes.length(insts, pc)) {
+                int target = insts[pc] == GOTO ? insts[pc + 1] : Opcodes.branchTarget(insts, pc);
+                if (target >= 0 && target <= pc)
+                    entries.add(target);
+            }
+            code.u1(0x1d); // iload_3
+            int switchPos = code.size();
+            code.u1(0xab); // lookupswitch
+            while (code.size() % 4 != 0)
+                code.u1(0);
+            switchTargets.add(new int[]{switchPos, code.size(), 0});
+            code.u4(0);
+            code.u4(entries.size());
+            for (int entry : entries) {
+                code.u4(entry);
+                switchTargets.add(new int[]{switchPos, code.size(), entry});
+                code.u4(0);
+            }
+
+            int[] offsets = new int[insts.length];
+            for (int pc = 0; pc < insts.length; pc += Opcodes.length(insts, pc)) {
+                offsets[pc] = code.size();
+                int a = OPERANDS[insts[pc]] > 0 ? insts[pc + 1] : 0;
+                int b = OPERANDS[insts[pc]] > 1 ? insts[pc + 2] : 0;
+                int c = OPERANDS[insts[pc]] > 2 ? insts[pc + 3] : 0;
+                switch (insts[pc]) {
+                    case CONST:
+                    case ADDR:
+                        ldc2(consts[b]);
+                        local(0x37, a);
+                        break;
+                    case MOV:
+                        local(0x16, b);
+                        local(0x37, a);
+                        break;
+                    case ADD: arith(0x61, a, b, c); break;
+                    case SUB: arith(0x65, a, b, c); break;
+                    case MUL: arith(0x69, a, b, c); break;
+                    case DIV: arith(0x6d, a, b, c); break;
+                    case CMP_GE: compare(0x9c, a, b, c); break;
+                    case CMP_GT: compare(0x9d, a, b, c); break;
+                    case CMP_LE: compare(0x9e, a, b, c); break;
+                    case CMP_LT: compare(0x9b, a, b, c); break;
+                    case CMP_EQ: compare(0x99, a, b, c); break;
+                    case CMP_NE: compare(0x9a, a, b, c); break;
+                    case NOT:
+                        local(0x16, b);
+                        code.u1(0x09); // lconst_0
+                        code.u1(0x94); // lcmp
+                        bool(0x99, a);
+                        break;
+                    case ADDR_IDX:
+                        address(consts[b], c);
+                        local(0x37, a);
+                        break;
+                    case LOAD:
+                    case LOAD_BOOL:
+                        code.u1(0x2b); // aload_1
+                        local(0x16, b);
+                        invoke(insts[pc] == LOAD ? "load" : "loadBool", "(J)J");
+                        local(0x37, a);
+                        break;
+                    case STORE:
+                        code.u1(0x2b);
+                        local(0x16, b);
+                        local(0x16, a);
+                        invoke("store", "(JJ)V");
+                        break;
+                    case JUMP_IF:
+                        local(0x16, a);
+                        code.u1(0x09);
+                        code.u1(0x94);
+                        branch(0x9a, b); // ifne
+                        break;
+                    case GOTO:
+                        branch(0xa7, a);
+                        break;
+                    case BR_GE: compareBranch(0x9c, a, b, c); break;
+                    case BR_GT: compareBranch(0x9d, a, b, c); break;
+                    case BR_LE: compareBranch(0x9e, a, b, c); break;
+                    case BR_LT: compareBranch(0x9b, a, b, c); break;
+                    case BR_EQ: compareBranch(0x99, a, b, c); break;
+                    case BR_NE: compareBranch(0x9a, a, b, c); break;
+                    case BR_GE_K: constantBranch(0x9c, a, consts[b], c); break;
+                    case BR_GT_K: constantBranch(0x9d, a, consts[b], c); break;
+                    case BR_LE_K: constantBranch(0x9e, a, consts[b], c); break;
+                    case BR_LT_K: constantBranch(0x9b, a, consts[b], c); break;
+                    case BR_EQ_K: constantBranch(0x99, a, consts[b], c); break;
+                    case BR_NE_K: constantBranch(0x9a, a, consts[b], c); break;
+                    case ADD_K: constantArith(0x61, a, b, consts[c]); break;
+                    case SUB_K: constantArith(0x65, a, b, consts[c]); break;
+                    case MUL_K: constantArith(0x69, a, b, consts[c]); break;
+                    case DIV_K: constantArith(0x6d, a, b, consts[c]); break;
+                    case LOAD_IDX:
+                    case LOAD_GLOBAL:
+                        code.u1(0x2b); // aload_1
+                        address(consts[b], insts[pc] == LOAD_IDX ? c : -1);
+                        invoke("load", "(J)J");
+                        local(0x37, a);
+                        break;
+                    case STORE_IDX:
+                    case STORE_GLOBAL:
+                        code.u1(0x2b);
+                        address(consts[b], insts[pc] == STORE_IDX ? c : -1);
+                        local(0x16, a);
+                        invoke("store", "(JJ)V");
+                        break;
+                    case UPDATE:
+                    case UPDATE_IDX:
+                    case UPDATE_GLOBAL: {
+                        int operand = insts[pc + OPERANDS[insts[pc]]];
+                        // runtime, runtime, address -> runtime, address, runtime, address
+                        code.u1(0x2b);
+                        code.u1(0x2b);
+                        if (insts[pc] == UPDATE)
+                            local(0x16, b);
+                        else
+                            address(consts[b], insts[pc] == UPDATE_IDX ? c : -1);
+                        code.u1(0x5d); // dup2_x1
+                        invoke("load", "(J)J");
+                        if (operand >= 0)
+                            local(0x16, operand);
+                        else
+                            ldc2(consts[-1 - operand]);
+                        code.u1(a == ADD ? 0x61 : a == SUB ? 0x65 : a == MUL ? 0x69 : 0x6d);
+                        invoke("store", "(JJ)V");
+                        break;
+                    }
+                    case CALL: {
+                        code.u1(0x2b);
+                        pushInt(a);
+                        pushInt(program.getFunction(a).numSlots);
+                        code.u1(0xbc); // newarray long
+                        code.u1(11);
+                        for (int j = 0; j < c; j++) {
+                            code.u1(0x59); // dup
+                            pushInt(j);
+                            local(0x16, insts[pc + 4 + j]);
+                            code.u1(0x50); // lastore
+                        }
+                        invoke("call", "(I[J)J");
+                        result(b);
+                        break;
+                    }
+                    case READ_INT:
+                        code.u1(0x2b);
+                        invoke("readInt", "()J");
+                        result(a);
+                        break;
+                    case PRINT_INT:
+                    case PRINT_BOOL:
+                        code.u1(0x2b);
+                        local(0x16, a);
+                        invoke(insts[pc] == PRINT_INT ? "printInt" : "printBool", "(J)V");
+                        break;
+                    case PRINTLN:
+                        code.u1(0x2b);
+                        invoke("println", "()V");
+                        break;
+                    case RET:
+                        local(0x16, a);
+                        code.u1(0xad); // lreturn
+                        break;
+                    case RET_VOID:
+                        code.u1(0x09);
+                        code.u1(0xad);
+                        break;
+                    default:
+                        return false;
+                }
+            }
+
+            if (code.size() > 0xFFFF)
+                return false;
+            for (int[] br : branches) {
+                int offset = offsets[br[2]] - br[0];
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                    return false;
+                code.patch2(br[1], offset);
+            }
+            for (int[] st : switchTargets) {
+                code.patch4(st[1], offsets[st[2]] - st[0]);
+            }
+            return true;
+        }
+
+        private void arith(int opcode, int dst, int lhs, int rhs) {
+            local(0x16, lhs);
+            local(0x16, rhs);
+            code.u1(opcode);
+            local(0x37, dst);
+        }
+
+        private void constantArith(int opcode, int dst, int lhs, long rhs) {
+            local(0x16, lhs);
+            ldc2(rhs);
+            code.u1(opcode);
+            local(0x37, dst);
+        }
+
+        /** Jumps to {@code target} if {@code lhs} compared to the constant {@code rhs} satisfies {@code ifOpcode}. */
+        private void constantBranch(int ifOpcode, int lhs, long rhs, int target) {
+            local(0x16, lhs);
+            ldc2(rhs);
+            code.u1(0x94); // lcmp
+            branch(ifOpcode, target);
+        }
+
+        /** Jumps to {@code target} if {@code lhs} compared to {@code rhs} satisfies {@code ifOpcode}. */
+        private void compareBranch(int ifOpcode, int lhs, int rhs, int target) {
+            local(0x16, lhs);
+            local(0x16, rhs);
+            code.u1(0x94); // lcmp
+            branch(ifOpcode, target);
+        }
+
+        /** Pushes {@code base + 8 * index}, or just {@code base} if {@code index} is -1. */
+        private void address(long base, int index) {
+            ldc2(base);
+            if (index >= 0) {
+                local(0x16, index);
+                code.u1(0x06); // iconst_3
+                code.u1(0x79); // lshl
+                code.u1(0x61); // ladd
+            }
+        }
+
+        private void compare(int ifOpcode, int dst, int lhs, int rhs) {
+            local(0x16, lhs);
+            local(0x16, rhs);
+            code.u1(0x94); // lcmp
+            bool(ifOpcode, dst);
+        }
+
+        /** Stores 1 into {@code dst} if the int on the stack satisfies {@code ifOpcode}, otherwise 0. */
+        private void bool(int ifOpcode, int dst) {
+            code.u1(ifOpcode);
+            code.u2(7);
+            code.u1(0x09); // lconst_0
+            code.u1(0xa7); // goto
+            code.u2(4);
+            code.u1(0x0a); // lconst_1
+            local(0x37, dst);
+        }
+
+        private void result(int dst) {
+            if (dst >= 0)
+                local(0x37, dst);
+            else
+                code.u1(0x58); // pop2
+        }
+
+        private void branch(int opcode, int targetPc) {
+            int pos = code.size();
+            code.u1(opcode);
+            branches.add(new int[]{pos, code.size(), targetPc});
+            code.u2(0);
+        }
+
+        private void invoke(String name, String desc) {
+            code.u1(0xb6); // invokevirtual
+            code.u2(cp.methodRef(RUNTIME, name, desc));
+        }
+
+        private void ldc2(long value) {
+            code.u1(0x14); // ldc2_w
+            code.u2(cp.longConst(value));
+        }
+
+        /** Emits an lload (0x16) or lstore (0x37) of the JVM local holding register slot {@code slot}. */
+        private void local(int opcode, int slot) {
+            int index = FIRST_SLOT_LOCAL + 2 * slot;
+            if (index <= 0xFF) {
+                code.u1(opcode);
+                code.u1(index);
+            } else {
+                code.u1(0xc4); // wide
+                code.u1(opcode);
+                code.u2(index);
+            }
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                code.u1(0x03 + value); // iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.u1(0x10); // bipush
+                code.u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.u1(0x11); // sipush
+                code.u2(value);
+            } else {
+                code.u1(0x13); // ldc_w
+                code.u2(cp.intConst(value));
+            }
+        }
+    }
+
+    private static final class Code {
+        private byte[] buf = new byte[256];
+        private int size;
+
+        int size() { return size; }
+
+        void u1(int b) {
+            if (size == buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            buf[size++] = (byte) b;
+        }
+
+        void u2(int v) {
+            u1(v >> 8);
+            u1(v);
+        }
+
+        void u4(int v) {
+            u2(v >> 16);
+            u2(v);
+        }
+
+        void patch2(int pos, int v) {
+            buf[pos] = (byte) (v >> 8);
+            buf[pos + 1] = (byte) v;
+        }
+
+        void patch4(int pos, int v) {
+            patch2(pos, v >> 16);
+            patch2(pos + 2, v);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static final class ConstantPool {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        int count = 1;
+
+        int utf8(String s) {
+            return entry("U" + s, 1, () -> {
+                out.writeByte(1);
+                out.writeUTF(s);
+            });
+        }
+
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            return entry("C" + internalName, 1, () -> {
+                out.writeByte(7);
+                out.writeShort(name);
+            });
+        }
+
+        int methodRef(String owner, String name, String desc) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descIndex = utf8(desc);
+            int nat = entry("N" + name + desc, 1, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descIndex);
+            });
+            return entry("M" + owner + "." + name + desc, 1, () -> {
+                out.writeByte(10);
+                out.writeShort(ownerIndex);
+                out.writeShort(nat);
+            });
+        }
+
+        int longConst(long v) {
+            // Longs take up two constant pool entries
+            return entry("J" + v, 2, () -> {
+                out.writeByte(5);
+                out.writeLong(v);
+            });
+        }
+
+        int intConst(int v) {
+            return entry("I" + v, 1, () -> {
+                out.writeByte(3);
+                out.writeInt(v);
+            });
+        }
+
+        private interface Writer {
+            void write() throws IOException;
+        }
+
+        private int entry(String key, int width, Writer writer) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            entries.put(key, count);
+            count += width;
+            return count - width;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package crux.midend.ir.emulator;
+
+/**
+ * The services JIT-compiled code calls back into. Globals, I/O and calls all go through the engine that owns the
+ * compiled code, so compiled and interpreted frames share the same memory and streams.
+ */
+public abstract class JitRuntime {
+    public abstract long load(long address);
+
+    public abstract long loadBool(long address);
+
+    public abstract void store(long address, long value);
+
+    /** Calls the function with the given index. {@code regs} is the callee's register file with the arguments set. */
+    public abstract long call(int function, long[] regs);
+
+    public abstract long readInt();
+
+    public abstract void printInt(long value);
+
+    public abstract void printBool(long value);
+
+    public abstract void println();
+}
@@ -0,0 +1,144 @@
+package crux.midend.ir.emulator;
+
+import java.util.Arrays;
+
+/**
+ * A bounded cache from the arguments of one function to its result, evicting the least recently used entry when full.
+ * Arguments and results are passed as in registers, with booleans as 0 and 1.
+ * <p>
+ * Keys and values are kept unboxed: entry {@code e} has its arguments at {@code keys[e * arity ...]}, is chained to
+ * the other entries of its hash bucket through {@code chain}, and sits in a doubly linked recency list through
+ * {@code older} and {@code newer}. All links are entry indices with -1 for none.
+ */
+public final class MemoCache {
+    private final int arity;
+    private final int capacity;
+    private final long[] keys;
+    private final long[] values;
+    private final int[] buckets;
+    private final int[] chain;
+    private final int[] older, newer;
+    private int size = 0;
+    private int newest = -1, oldest = -1;
+    private long hits = 0, misses = 0;
+
+    MemoCache(int arity, int capacity) {
+        this.arity = arity;
+        this.capacity = capacity;
+        keys = new long[capacity * arity];
+        values = new long[capacity];
+        buckets = new int[Integer.highestOneBit(Math.max(1, capacity - 1)) << 1];
+        Arrays.fill(buckets, -1);
+        chain = new int[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /** The entry holding the result for {@code args}, or -1 if there is none. */
+    public int find(long[] args) {
+        for (int e = buckets[bucket(args)]; e >= 0; e = chain[e]) {
+            if (matches(e, args)) {
+                hits++;
+                if (e != newest) {
+                    unlinkRecency(e);
+                    linkNewest(e);
+                }
+                return e;
+            }
+        }
+        misses++;
+        return -1;
+    }
+
+    public long value(int entry) {
+        return values[entry];
+    }
+
+    public void put(long[] args, long value) {
+        int b = bucket(args);
+        for (int e = buckets[b]; e >= 0; e = chain[e]) {
+            if (matches(e, args)) {
+                values[e] = value;
+                return;
+            }
+        }
+        int e;
+        if (size < capacity) {
+            e = size++;
+        } else {
+            e = oldest;
+            unlinkRecency(e);
+            unlinkBucket(e);
+        }
+        System.arraycopy(args, 0, keys, e * arity, arity);
+        values[e] = value;
+        chain[e] = buckets[b];
+        buckets[b] = e;
+        linkNewest(e);
+    }
+
+    private boolean matches(int e, long[] args) {
+        int base = e * arity;
+        for (int i = 0; i < arity; i++) {
+            if (keys[base + i] != args[i])
+                return false;
+        }
+        return true;
+    }
+
+    private int bucket(long[] args) {
+        return bucket(args, 0);
+    }
+
+    private int bucket(long[] words, int offset) {
+        long h = arity;
+        for (int i = 0; i < arity; i++)
+            h = (h + words[offset + i]) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (buckets.length - 1);
+    }
+
+    private void unlinkBucket(int e) {
+        int b = bucket(keys, e * arity);
+        if (buckets[b] == e) {
+            buckets[b] = chain[e];
+            return;
+        }
+        int prev = buckets[b];
+        while (chain[prev] != e)
+            prev = chain[prev];
+        chain[prev] = chain[e];
+    }
+
+    private void unlinkRecency(int e) {
+        if (older[e] >= 0)
+            newer[older[e]] = newer[e];
+        else
+            oldest = newer[e];
+        if (newer[e] >= 0)
+            older[newer[e]] = older[e];
+        else
+            newest = older[e];
+    }
+
+    private void linkNewest(int e) {
+        older[e] = newest;
+        newer[e] = -1;
+        if (newest >= 0)
+            newer[newest] = e;
+        else
+            oldest = e;
+        newest = e;
+    }
+}
@@ -0,0 +1,55 @@
+package crux.midend.ir.emulator;
+
+import crux.frontend.types.VoidType;
+import crux.midend.ir.analysis.PurityAnalysis;
+import crux.midend.ir.core.Function;
+import crux.midend.ir.core.Program;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * The result caches of one run: a {@link MemoCache} for every function of the program that {@link PurityAnalysis}
+ * finds pure and that returns a value. Engines look up a call in the cache of its callee before making it and fill
+ * the cache when it returns.
+ */
+public final class Memoizer {
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private final Map<Function, MemoCache> caches = new LinkedHashMap<>();
+
+    /** @param capacity the number of results kept per function */
+    public Memoizer(Program p, int capacity) {
+        if (capacity < 1)
+            throw new RuntimeException(String.format("invalid memo cache size %d", capacity));
+        var purity = new PurityAnalysis(p);
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            Function f = it.next();
+            if (purity.isPure(f) && !(f.getFuncType().getRet() instanceof VoidType))
+                caches.put(f, new MemoCache(f.getArguments().size(), capacity));
+        }
+    }
+
+    /** The cache of {@code f}, or null if calls of {@code f} are not memoized. */
+    public MemoCache cache(Function f) {
+        return caches.get(f);
+    }
+
+    public long getHits() {
+        return caches.values().stream().mapToLong(MemoCache::getHits).sum();
+    }
+
+    public long getMisses() {
+        return caches.values().stream().mapToLong(MemoCache::getMisses).sum();
+    }
+
+    /** Prints the hits, misses and entries of every memoized function, then the totals. */
+    public void printSummary(PrintStream ps) {
+        for (var entry : caches.entrySet()) {
+            MemoCache c = entry.getValue();
+            ps.printf("memo: %-20s %12d hits %12d misses %8d entries%n", entry.getKey().getName(), c.getHits(),
+                    c.getMisses(), c.size());
+        }
+        ps.printf("memo: %d functions memoized, %d hits, %d misses%n", caches.size(), getHits(), getMisses());
+    }
+}
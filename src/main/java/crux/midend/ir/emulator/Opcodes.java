@@ -0,0 +1,117 @@
+package crux.midend.ir.emulator;
+
+/**
+ * Opcodes of the flat instruction encoding produced by {@link FunctionCompiler}. Every instruction starts with its
+ * opcode, followed by a fixed number of int operands. Operands are slot indexes into the frame's register file, indexes
+ * into the function's constant pool or absolute pcs, as noted next to each opcode.
+ * <p>
+ * The opcodes after {@code RET_VOID} are superinstructions: {@link FunctionCompiler} emits one in place of a chain
+ * of adjacent IR instructions when the values passed along the chain are not read anywhere else, so they need no slot
+ * writes.
+ */
+final class Opcodes {
+    private Opcodes() {}
+
+    static final int CONST = 0;       // dst, constIndex
+    static final int MOV = 1;         // dst, src
+    static final int ADD = 2;         // dst, lhs, rhs
+    static final int SUB = 3;         // dst, lhs, rhs
+    static final int MUL = 4;         // dst, lhs, rhs
+    static final int DIV = 5;         // dst, lhs, rhs
+    static final int CMP_GE = 6;      // dst, lhs, rhs
+    static final int CMP_GT = 7;      // dst, lhs, rhs
+    static final int CMP_LE = 8;      // dst, lhs, rhs
+    static final int CMP_LT = 9;      // dst, lhs, rhs
+    static final int CMP_EQ = 10;     // dst, lhs, rhs
+    static final int CMP_NE = 11;     // dst, lhs, rhs
+    static final int NOT = 12;        // dst, src
+    static final int ADDR = 13;       // dst, constIndex of the global's base address
+    static final int ADDR_IDX = 14;   // dst, constIndex of the global's base address, index
+    static final int LOAD = 15;       // dst, address
+    static final int LOAD_BOOL = 16;  // dst, address
+    static final int STORE = 17;      // src, address
+    static final int JUMP_IF = 18;    // predicate, target pc
+    static final int GOTO = 19;       // target pc
+    static final int CALL = 20;       // function index, dst (or -1), argc, args...
+    static final int READ_INT = 21;   // dst (or -1)
+    static final int PRINT_INT = 22;  // src
+    static final int PRINT_BOOL = 23; // src
+    static final int PRINTLN = 24;    //
+    static final int RET = 25;        // src
+    static final int RET_VOID = 26;   //
+
+    static final int BR_GE = 27;      // lhs, rhs, target pc: compare and jump if the result is true
+    static final int BR_GT = 28;      // lhs, rhs, target pc
+    static final int BR_LE = 29;      // lhs, rhs, target pc
+    static final int BR_LT = 30;      // lhs, rhs, target pc
+    static final int BR_EQ = 31;      // lhs, rhs, target pc
+    static final int BR_NE = 32;      // lhs, rhs, target pc
+    static final int LOAD_IDX = 33;   // dst, constIndex of the global's base address, index
+    static final int STORE_IDX = 34;  // src, constIndex of the global's base address, index
+    static final int LOAD_GLOBAL = 35;  // dst, constIndex of the global's address
+    static final int STORE_GLOBAL = 36; // src, constIndex of the global's address
+    // Load, apply an arithmetic opcode with the loaded value on the left and store back to the same address. The
+    // operand is a slot, or -1 - constIndex for a constant
+    static final int UPDATE = 37;        // arithmetic opcode, address, operand
+    static final int UPDATE_IDX = 38;    // arithmetic opcode, constIndex of the global's base address, index, operand
+    static final int UPDATE_GLOBAL = 39; // arithmetic opcode, constIndex of the global's address, operand
+    // A constant copied into a temp right before the compare or arithmetic that reads it as its right operand
+    static final int BR_GE_K = 40;    // lhs, constIndex of rhs, target pc
+    static final int BR_GT_K = 41;    // lhs, constIndex of rhs, target pc
+    static final int BR_LE_K = 42;    // lhs, constIndex of rhs, target pc
+    static final int BR_LT_K = 43;    // lhs, constIndex of rhs, target pc
+    static final int BR_EQ_K = 44;    // lhs, constIndex of rhs, target pc
+    static final int BR_NE_K = 45;    // lhs, constIndex of rhs, target pc
+    static final int ADD_K = 46;      // dst, lhs, constIndex of rhs
+    static final int SUB_K = 47;      // dst, lhs, constIndex of rhs
+    static final int MUL_K = 48;      // dst, lhs, constIndex of rhs
+    static final int DIV_K = 49;      // dst, lhs, constIndex of rhs
+
+    /** Number of int operands following each opcode; CALL additionally carries argc argument slots. */
+    static final int[] OPERANDS = {
+            2, 2,
+            3, 3, 3, 3,
+            3, 3, 3, 3, 3, 3,
+            2,
+            2, 3,
+            2, 2, 2,
+            2, 1,
+            3,
+            1, 1, 1, 0,
+            1, 0,
+            3, 3, 3, 3, 3, 3,
+            3, 3,
+            2, 2,
+            3, 4, 3,
+            3, 3, 3, 3, 3, 3,
+            3, 3, 3, 3
+    };
+
+    /** The pc a conditional jump goes to when taken, or -1 if {@code pc} holds no conditional jump. */
+    static int branchTarget(int[] code, int pc) {
+        int op = code[pc];
+        if (op == JUMP_IF)
+            return code[pc + 2];
+        if (op >= BR_GE && op <= BR_NE || op >= BR_GE_K && op <= BR_NE_K)
+            return code[pc + 3];
+        return -1;
+    }
+
+    /** Applies the arithmetic opcode {@code ADD}, {@code SUB}, {@code MUL} or {@code DIV}. */
+    static long arith(int opcode, long lhs, long rhs) {
+        switch (opcode) {
+            case ADD: return lhs + rhs;
+            case SUB: return lhs - rhs;
+            case MUL: return lhs * rhs;
+            default: return lhs / rhs;
+        }
+    }
+
+    static int length(int[] code, int pc) {
+        int op = code[pc];
+        int len = 1 + OPERANDS[op];
+        if (op == CALL)
+            len += code[pc + 3];
+        return len;
+    }
+}
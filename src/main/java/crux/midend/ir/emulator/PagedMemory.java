@@ -0,0 +1,217 @@
+package crux.midend.ir.emulator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Global memory of an emulated program, stored as 8-byte words in fixed-size {@code long[]} pages. Pages are only
+ * allocated when they are first written, so huge, sparsely used arrays stay cheap. Every page keeps a bitmap of the
+ * words written so far, which is how reads of uninitialized memory are detected.
+ * <p>
+ * Addresses are byte addresses as computed by {@link crux.midend.ir.core.insts.AddressAt}, with the layout taken from
+ * the {@link crux.midend.ir.core.GlobalDecl}s of the program.
+ * <p>
+ * The memory can be saved into a region of a file and mapped back from it, see {@link #writeTo} and {@link #mapFrom}.
+ * Mapped pages are not copied up front: a page is copied out of the mapping the first time it is accessed, so
+ * restoring costs no more than reading the page directory however large the memory is.
+ */
+public final class PagedMemory {
+    public static final int PAGE_SHIFT = 12;
+    public static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_WORDS - 1;
+    /** A page followed by its bitmap of initialized words, as saved by {@link #writeTo}. */
+    private static final int RECORD_WORDS = PAGE_WORDS + PAGE_WORDS / 64;
+    /** Records per mapping, since a single mapping cannot exceed 2 GB. */
+    private static final int RECORDS_PER_CHUNK = (1 << 30) / (8 * RECORD_WORDS);
+    private static final long ALIGNMENT = 4096;
+
+    private final long reservedWords;
+    private final Runnable onUninitializedRead;
+    private long[][] pages;
+    private long[][] initialized;
+    private int allocatedPages;
+    /** Saved pages not accessed since {@link #mapFrom}, with the record of each page or -1. */
+    private LongBuffer[] mappedChunks;
+    private long[] mappedRecords;
+
+    /**
+     * @param words               the size of the global memory in words
+     * @param onUninitializedRead called whenever a word is read before it was written; the read then returns 0
+     */
+    public PagedMemory(long words, Runnable onUninitializedRead) {
+        reservedWords = words;
+        this.onUninitializedRead = onUninitializedRead;
+        int numPages = Math.toIntExact((words + PAGE_WORDS - 1) >>> PAGE_SHIFT);
+        pages = new long[numPages][];
+        initialized = new long[numPages][];
+    }
+
+    public long load(long address) {
+        long word = address >> 3;
+        long page = word >>> PAGE_SHIFT;
+        if (page < pages.length) {
+            long[] p = pages[(int) page];
+            int offset = (int) word & PAGE_MASK;
+            if (p != null && (initialized[(int) page][offset >>> 6] & (1L << offset)) != 0)
+                return p[offset];
+            if (p == null && fault((int) page))
+                return load(address);
+        }
+        onUninitializedRead.run();
+        return 0;
+    }
+
+    /** Like {@link #load} but without reporting uninitialized reads, for observers that must not change output. */
+    public long peek(long address) {
+        long word = address >> 3;
+        long page = word >>> PAGE_SHIFT;
+        if (word >= 0 && page < pages.length && pages[(int) page] != null)
+            return pages[(int) page][(int) word & PAGE_MASK];
+        if (word >= 0 && page < pages.length && fault((int) page))
+            return peek(address);
+        return 0;
+    }
+
+    /** Whether the word at {@code address} was written, without reporting anything. */
+    public boolean isInitialized(long address) {
+        long word = address >> 3;
+        long page = word >>> PAGE_SHIFT;
+        if (word < 0 || page >= pages.length)
+            return false;
+        if (pages[(int) page] == null && !fault((int) page))
+            return false;
+        int offset = (int) word & PAGE_MASK;
+        return (initialized[(int) page][offset >>> 6] & (1L << offset)) != 0;
+    }
+
+    public void store(long address, long value) {
+        long word = address >> 3;
+        if (word < 0)
+            throw new RuntimeException(String.format("store to invalid address %d", address));
+        int page = Math.toIntExact(word >>> PAGE_SHIFT);
+        if (page >= pages.length || pages[page] == null)
+            allocate(page);
+        int offset = (int) word & PAGE_MASK;
+        pages[page][offset] = value;
+        initialized[page][offset >>> 6] |= 1L << offset;
+    }
+
+    /** Stores {@code words} at consecutive words starting at {@code address}, such as the initial value of a global. */
+    public void initialize(long address, long[] words) {
+        for (int i = 0; i < words.length; i++)
+            store(address + 8L * i, words[i]);
+    }
+
+    private void allocate(int page) {
+        if (page >= pages.length) {
+            // Out of bounds array accesses are not checked by Crux, so grow instead of failing
+            int numPages = Math.max(page + 1, pages.length * 2);
+            pages = Arrays.copyOf(pages, numPages);
+            initialized = Arrays.copyOf(initialized, numPages);
+        }
+        pages[page] = new long[PAGE_WORDS];
+        initialized[page] = new long[PAGE_WORDS / 64];
+        allocatedPages++;
+        if (mappedRecords != null && page < mappedRecords.length && mappedRecords[page] >= 0) {
+            long record = mappedRecords[page];
+            mappedRecords[page] = -1;
+            LongBuffer chunk = mappedChunks[(int) (record / RECORDS_PER_CHUNK)].duplicate();
+            chunk.position((int) (record % RECORDS_PER_CHUNK) * RECORD_WORDS);
+            chunk.get(pages[page]).get(initialized[page]);
+        }
+    }
+
+    /** Copies in the saved page {@code page} if there is one that was not accessed yet. */
+    private boolean fault(int page) {
+        if (mappedRecords == null || page >= mappedRecords.length || mappedRecords[page] < 0)
+            return false;
+        allocate(page);
+        return true;
+    }
+
+    /**
+     * Saves the allocated pages to {@code channel} at {@code position}, which must be a multiple of 4096, and returns
+     * the position after them. Page data is aligned to 4096 bytes in the file, so it can be mapped back directly.
+     */
+    public long writeTo(FileChannel channel, long position) throws IOException {
+        long[] directory = new long[pages.length];
+        long records = 0;
+        for (int page = 0; page < pages.length; page++) {
+            if (pages[page] == null)
+                fault(page);
+            directory[page] = pages[page] != null ? records++ : -1;
+        }
+        long headerWords = 2 + directory.length;
+        var header = map(channel, FileChannel.MapMode.READ_WRITE, position, headerWords);
+        header.put(reservedWords).put(pages.length).put(directory);
+
+        long dataStart = align(position + 8 * headerWords);
+        for (long first = 0; first < records; first += RECORDS_PER_CHUNK) {
+            long count = Math.min(RECORDS_PER_CHUNK, records - first);
+            var chunk = map(channel, FileChannel.MapMode.READ_WRITE, dataStart + 8L * RECORD_WORDS * first,
+                    RECORD_WORDS * count);
+            for (int page = 0; page < pages.length; page++) {
+                if (directory[page] >= first && directory[page] < first + count)
+                    chunk.put(pages[page]).put(initialized[page]);
+            }
+        }
+        return align(dataStart + 8L * RECORD_WORDS * records);
+    }
+
+    /**
+     * Replaces the contents of this memory with the pages saved by {@link #writeTo} at {@code position}. The pages
+     * stay in the file until they are accessed; the mapping remains valid after {@code channel} is closed.
+     */
+    public void mapFrom(FileChannel channel, long position) throws IOException {
+        var header = map(channel, FileChannel.MapMode.READ_ONLY, position, 2);
+        long words = header.get();
+        int numPages = Math.toIntExact(header.get());
+        if (words != reservedWords)
+            throw new RuntimeException(String.format("saved memory has %d words instead of %d", words, reservedWords));
+        long[] directory = new long[numPages];
+        map(channel, FileChannel.MapMode.READ_ONLY, position + 16, numPages).get(directory);
+        long records = Arrays.stream(directory).filter(r -> r >= 0).count();
+
+        long dataStart = align(position + 8 * (2L + numPages));
+        var chunks = new LongBuffer[(int) ((records + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK)];
+        for (int i = 0; i < chunks.length; i++) {
+            long first = (long) i * RECORDS_PER_CHUNK;
+            long count = Math.min(RECORDS_PER_CHUNK, records - first);
+            chunks[i] = map(channel, FileChannel.MapMode.READ_ONLY, dataStart + 8L * RECORD_WORDS * first,
+                    RECORD_WORDS * count);
+        }
+        pages = new long[numPages][];
+        initialized = new long[numPages][];
+        allocatedPages = 0;
+        mappedChunks = chunks;
+        mappedRecords = directory;
+    }
+
+    private static LongBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long words)
+            throws IOException {
+        return channel.map(mode, position, 8 * words).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    public long getReservedWords() { return reservedWords; }
+
+    public int getAllocatedPages() { return allocatedPages; }
+
+    /** Bytes held by allocated pages, their bitmaps and the page directory. */
+    public long getFootprintBytes() {
+        long perPage = 8L * PAGE_WORDS + 8L * (PAGE_WORDS / 64);
+        return allocatedPages * perPage + 16L * pages.length;
+    }
+
+    public void printStats(PrintStream ps) {
+        ps.printf("memory: %d words reserved, %d of %d pages allocated (%d words per page), %d bytes%n",
+                reservedWords, allocatedPages, pages.length, PAGE_WORDS, getFootprintBytes());
+    }
+}
@@ -0,0 +1,178 @@
+package crux.midend.ir.emulator;
+
+import crux.midend.ir.core.Function;
+import crux.midend.ir.core.Instruction;
+import crux.midend.ir.core.Program;
+import crux.printing.IRPrinter;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Counts how often each IR instruction and each function is executed, and how many instructions (steps) were
+ * executed under each call path.
+ * <p>
+ * Call paths are kept in a calling context tree: every node stands for one path from {@code main} and counts the
+ * calls made along it and the steps executed directly in it (exclusive). Inclusive counts are the sums over subtrees
+ * and are only computed when a report is written, so the engines pay for one counter increment per step and one
+ * tree edge lookup per call.
+ * <p>
+ * Reports are a per-function summary, collapsed stacks as read by flamegraph.pl and speedscope, and the IR graph
+ * with hit counts on every instruction.
+ */
+public final class Profiler {
+    private static final class Node {
+        final Function f;
+        final Node parent;
+        // In the order of the first call, which keeps the reports the same from run to run
+        final LinkedHashMap<Function, Node> children = new LinkedHashMap<>();
+        long calls;
+        long self;
+
+        Node(Function f, Node parent) {
+            this.f = f;
+            this.parent = parent;
+        }
+    }
+
+    private final Node root = new Node(null, null);
+    private Node current = root;
+    private final IdentityHashMap<Instruction, long[]> hits = new IdentityHashMap<>();
+
+    /** Records a call of {@code f} from the current call path. */
+    public void enter(Function f) {
+        Node node = current.children.get(f);
+        if (node == null) {
+            node = new Node(f, current);
+            current.children.put(f, node);
+        }
+        node.calls++;
+        current = node;
+    }
+
+    /** Records the return from the current function. */
+    public void exit() {
+        current = current.parent;
+    }
+
+    public void step(Instruction inst) {
+        step(counter(inst));
+    }
+
+    /**
+     * The hit counter of {@code inst}, so that engines with their own instruction numbering can look it up once
+     * instead of on every step.
+     */
+    long[] counter(Instruction inst) {
+        return hits.computeIfAbsent(inst, i -> new long[1]);
+    }
+
+    void step(long[] counter) {
+        counter[0]++;
+        current.self++;
+    }
+
+    /** Number of times {@code inst} was executed. */
+    public long getHits(Instruction inst) {
+        long[] counter = hits.get(inst);
+        return counter != null ? counter[0] : 0;
+    }
+
+    /** Nodes of the calling context tree, parents before their children, without the root. */
+    private List<Node> nodes() {
+        List<Node> nodes = new ArrayList<>();
+        Deque<Node> worklist = new ArrayDeque<>(root.children.values());
+        while (!worklist.isEmpty()) {
+            Node node = worklist.pop();
+            nodes.add(node);
+            worklist.addAll(node.children.values());
+        }
+        return nodes;
+    }
+
+    /** Inclusive steps of every node, the sum of its own and all of its descendants' steps. */
+    private IdentityHashMap<Node, Long> inclusive(List<Node> nodes) {
+        var totals = new IdentityHashMap<Node, Long>();
+        // Walking backwards visits children before their parents
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            Node node = nodes.get(i);
+            long total = node.self;
+            for (Node child : node.children.values())
+                total += totals.get(child);
+            totals.put(node, total);
+        }
+        return totals;
+    }
+
+    private static final class FunctionStats {
+        final Function f;
+        long calls, exclusive, inclusive;
+
+        FunctionStats(Function f) {
+            this.f = f;
+        }
+    }
+
+    /**
+     * Prints calls, exclusive and inclusive steps per function, most expensive first. Recursive calls are only
+     * counted once in the inclusive steps.
+     */
+    public void printSummary(PrintStream ps) {
+        List<Node> nodes = nodes();
+        var totals = inclusive(nodes);
+        var stats = new LinkedHashMap<Function, FunctionStats>();
+        long steps = 0;
+        // Walk the tree depth first, tracking which functions are on the current path to spot recursive calls
+        var onPath = new HashMap<Function, Integer>();
+        Deque<Node> path = new ArrayDeque<>();
+        Deque<Iterator<Node>> pending = new ArrayDeque<>();
+        pending.push(root.children.values().iterator());
+        while (!pending.isEmpty()) {
+            Iterator<Node> it = pending.peek();
+            if (!it.hasNext()) {
+                pending.pop();
+                if (!path.isEmpty() && pending.size() == path.size())
+                    onPath.merge(path.pop().f, -1, Integer::sum);
+                continue;
+            }
+            Node node = it.next();
+            var s = stats.computeIfAbsent(node.f, FunctionStats::new);
+            s.calls += node.calls;
+            s.exclusive += node.self;
+            steps += node.self;
+            if (onPath.getOrDefault(node.f, 0) == 0)
+                s.inclusive += totals.get(node);
+            onPath.merge(node.f, 1, Integer::sum);
+            path.push(node);
+            pending.push(node.children.values().iterator());
+        }
+        var sorted = new ArrayList<>(stats.values());
+        sorted.sort(Comparator.comparingLong((FunctionStats s) -> s.exclusive).reversed());
+        ps.printf("profile: %d steps%n", steps);
+        ps.printf("  %-20s %12s %14s %8s %14s %8s%n", "function", "calls", "exclusive", "", "inclusive", "");
+        for (var s : sorted) {
+            ps.printf("  %-20s %12d %14d %7.2f%% %14d %7.2f%%%n", s.f.getName(), s.calls,
+                    s.exclusive, percent(s.exclusive, steps), s.inclusive, percent(s.inclusive, steps));
+        }
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+
+    /** Writes one {@code main;f;g <steps>} line for every call path that executed instructions itself. */
+    public void writeCollapsed(PrintStream ps) {
+        var paths = new IdentityHashMap<Node, String>();
+        for (Node node : nodes()) {
+            String path = node.parent == root ? node.f.getName() : paths.get(node.parent) + ";" + node.f.getName();
+            paths.put(node, path);
+            if (node.self > 0)
+                ps.println(path + " " + node.self);
+        }
+    }
+
+    /** Prints the IR of {@code p} in the format of {@code --print-ir} with the hit count of every instruction. */
+    public void writeAnnotatedIR(Program p, PrintStream ps) {
+        new IRPrinter(ps).print(p, inst -> "hits: " + getHits(inst));
+    }
+}
@@ -0,0 +1,763 @@
+package crux.midend.ir.emulator;
+
+import crux.midend.ir.core.Instruction;
+import crux.midend.ir.core.Program;
+import crux.midend.ir.core.insts.BinaryOperator;
+import crux.midend.ir.core.insts.CopyInst;
+import crux.midend.ir.core.insts.LoadInst;
+import crux.midend.ir.core.insts.NopInst;
+import crux.midend.ir.core.insts.StoreInst;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static crux.midend.ir.emulator.Opcodes.*;
+
+/**
+ * Executes a {@link CompiledProgram}. Unlike {@link crux.midend.ir.core.Emulator}, which keeps the locals of every
+ * call in a map of boxed values, each frame here owns an unboxed {@code long[]} register file and instructions are
+ * dispatched with a single switch over int opcodes.
+ * <p>
+ * With {@link #enableJit} the interpreter becomes the first tier of a tiered engine: it counts calls and loop
+ * back-edges per function and hands functions that cross a threshold to the {@link JitCompiler}. Calls to compiled
+ * functions run the generated code, and a frame that is still interpreting a hot loop continues in compiled code at
+ * the loop header.
+ * <p>
+ * Interpreted calls do not recurse on the JVM stack and do not allocate: frames live on an array-backed stack and are
+ * reused, and arguments are copied directly into the callee's slots. Exceeding {@link #setMaxCallDepth} is reported as
+ * an {@link EmulatorException}.
+ * <p>
+ * A {@link TraceSink} sees every instruction before it executes, and a {@link Profiler} counts it. Code compiled by
+ * the JIT is neither traced nor profiled, and does not use the caches of a {@link Memoizer}.
+ * <p>
+ * Without the JIT the whole state of a run is in the frame stack, the global memory and the I/O positions, which
+ * {@link #setCheckpoint} saves to a {@link Checkpoint} file every so many steps or on {@link #requestCheckpoint}, and
+ * {@link #restore} loads back to continue from there.
+ */
+public final class RegisterEmulator implements ExecutionEngine {
+    public static final int DEFAULT_JIT_CALL_THRESHOLD = 1000;
+    public static final int DEFAULT_JIT_LOOP_THRESHOLD = 10000;
+
+    private final CompiledProgram program;
+    private final PagedMemory memory;
+
+    private final EmulatorIO io;
+
+    private boolean jit = false;
+    private int callThreshold, loopThreshold;
+    private JitCompiler jitCompiler;
+    private JitCode[] jitCode;
+    private int[] callCounts, loopCounts;
+    private final Machine machine = new Machine();
+    private TraceSink trace;
+    private Profiler profiler;
+    private long[][][] profileCounters;
+    private long[][][][] fusedCounters;
+    private long[][][][] nopCounters;
+    private MemoCache[] memoCaches;
+    private long[] memoKey;
+
+    private Frame[] frames = new Frame[64];
+    private int depth = 0;
+    private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+    private long steps = 0;
+
+    private Path checkpointFile;
+    private long checkpointInterval;
+    private long nextCheckpoint = Long.MAX_VALUE;
+    private volatile boolean checkpointRequested = false;
+    private boolean restored = false;
+
+    public RegisterEmulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
+        this(new CompiledProgram(p), emulatorInput, emulatorOutput);
+    }
+
+    public RegisterEmulator(CompiledProgram program, InputStream emulatorInput, OutputStream emulatorOutput) {
+        this.program = program;
+        io = new EmulatorIO(emulatorInput, emulatorOutput);
+        memory = new PagedMemory(program.getGlobalWords(), () -> io.println("Reading from uninitialized memory"));
+        program.getInitialGlobals().forEach(memory::initialize);
+    }
+
+    public void enableJit() {
+        enableJit(DEFAULT_JIT_CALL_THRESHOLD, DEFAULT_JIT_LOOP_THRESHOLD);
+    }
+
+    public void enableJit(int callThreshold, int loopThreshold) {
+        jit = true;
+        this.callThreshold = callThreshold;
+        this.loopThreshold = loopThreshold;
+        jitCompiler = new JitCompiler(program);
+        jitCode = new JitCode[program.numFunctions()];
+        callCounts = new int[program.numFunctions()];
+        loopCounts = new int[program.numFunctions()];
+    }
+
+    /** Number of functions that were compiled to JVM bytecode so far. */
+    public int numJitCompiled() {
+        int count = 0;
+        if (jit) {
+            for (JitCode code : jitCode) {
+                if (code != null)
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    public void setMaxCallDepth(int maxDepth) {
+        maxCallDepth = maxDepth;
+    }
+
+    /**
+     * Number of bytecode instructions interpreted so far. Nops are mostly not compiled and control flow may add gotos,
+     * so this differs slightly from the IR instruction count. With the JIT enabled compiled code is not counted and
+     * this is -1.
+     */
+    public long getSteps() {
+        return jit ? -1 : steps;
+    }
+
+    public void setTraceSink(TraceSink sink) {
+        trace = sink;
+        // A sink may print to the same stream as the program
+        io.setAutoFlush(sink != null);
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        // Resolve the counter of every instruction up front, so a step is a plain array access
+        profileCounters = new long[program.numFunctions()][][];
+        fusedCounters = new long[program.numFunctions()][][][];
+        nopCounters = new long[program.numFunctions()][][][];
+        for (CompiledFunction f : program.functions) {
+            long[][] counters = profileCounters[f.index] = new long[f.code.length][];
+            fusedCounters[f.index] = counters(profiler, f.fusedSites);
+            nopCounters[f.index] = counters(profiler, f.nopSites);
+            for (int pc = 0; pc < f.code.length; pc++) {
+                if (f.sites[pc] != null)
+                    counters[pc] = profiler.counter(f.sites[pc]);
+            }
+        }
+    }
+
+    /** The counters of {@code sites}, by pc and then in the same order. */
+    private static long[][][] counters(Profiler profiler, Instruction[][] sites) {
+        long[][][] counters = new long[sites.length][][];
+        for (int pc = 0; pc < sites.length; pc++) {
+            if (sites[pc] != null) {
+                counters[pc] = new long[sites[pc].length][];
+                for (int j = 0; j < counters[pc].length; j++) {
+                    counters[pc][j] = profiler.counter(sites[pc][j]);
+                }
+            }
+        }
+        return counters;
+    }
+
+    /** Answers interpreted calls of pure functions from the caches of {@code memoizer} where possible. */
+    public void setMemoizer(Memoizer memoizer) {
+        memoCaches = new MemoCache[program.numFunctions()];
+        int maxArity = 0;
+        for (CompiledFunction f : program.functions) {
+            memoCaches[f.index] = memoizer.cache(f.function);
+            maxArity = Math.max(maxArity, f.function.getArguments().size());
+        }
+        memoKey = new long[maxArity];
+    }
+
+    /**
+     * Writes a checkpoint to {@code file} every {@code interval} steps, or only when requested if {@code interval} is
+     * 0. Checkpoints are not written while the JIT is enabled, since compiled code keeps its state on the JVM stack.
+     */
+    public void setCheckpoint(Path file, long interval) {
+        checkpointFile = file;
+        checkpointInterval = interval;
+        nextCheckpoint = interval > 0 ? steps + interval : Long.MAX_VALUE;
+    }
+
+    /**
+     * Asks for a checkpoint at the next opportunity; may be called from any thread, such as one watching for a request
+     * file.
+     */
+    public void requestCheckpoint() {
+        checkpointRequested = true;
+    }
+
+    /**
+     * Continues the run saved in {@code file} instead of starting from {@code main}: loads the frames, maps the
+     * global memory and skips the input the saved run had consumed. Returns the number of output bytes the saved run
+     * had printed, which are not printed again.
+     */
+    public long restore(Path file) {
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.read(file, program.fingerprint(), memory);
+        } catch (IOException e) {
+            throw new EmulatorException(String.format("cannot read checkpoint '%s': %s", file, e.getMessage()));
+        }
+        depth = 0;
+        for (int i = 0; i < checkpoint.functions.length; i++) {
+            Frame frame = push(program.functions[checkpoint.functions[i]]);
+            System.arraycopy(checkpoint.slots[i], 0, frame.regs, 0, checkpoint.slots[i].length);
+            frame.pc = checkpoint.pcs[i];
+            frame.retSlot = checkpoint.retSlots[i];
+        }
+        steps = checkpoint.steps;
+        if (checkpointInterval > 0)
+            nextCheckpoint = steps + checkpointInterval;
+        io.resume(checkpoint.inputPosition, checkpoint.outputPosition);
+        restored = true;
+        return checkpoint.outputPosition;
+    }
+
+    /**
+     * Called at loop back-edges and calls while checkpoints are enabled, with the pc of the top frame saved: writes
+     * a checkpoint if one is due.
+     */
+    private void safePoint(long executed) {
+        if (!jit && (checkpointRequested || steps + executed >= nextCheckpoint))
+            checkpoint(executed);
+    }
+
+    /** Saves the state at a safe point, after {@code executed} steps not yet added to {@link #steps}. */
+    private void checkpoint(long executed) {
+        io.flush();
+        var checkpoint = new Checkpoint();
+        checkpoint.fingerprint = program.fingerprint();
+        checkpoint.steps = steps + executed;
+        checkpoint.inputPosition = io.getInputPosition();
+        checkpoint.outputPosition = io.getOutputPosition();
+        checkpoint.functions = new int[depth];
+        checkpoint.pcs = new int[depth];
+        checkpoint.retSlots = new int[depth];
+        checkpoint.slots = new long[depth][];
+        for (int i = 0; i < depth; i++) {
+            Frame frame = frames[i];
+            checkpoint.functions[i] = frame.f.index;
+            checkpoint.pcs[i] = frame.pc;
+            checkpoint.retSlots[i] = frame.retSlot;
+            checkpoint.slots[i] = Arrays.copyOf(frame.regs, frame.f.numSlots);
+        }
+        try {
+            checkpoint.write(checkpointFile, memory);
+        } catch (IOException e) {
+            throw new EmulatorException(String.format("cannot write checkpoint '%s': %s", checkpointFile,
+                    e.getMessage()));
+        }
+        checkpointRequested = false;
+        if (checkpointInterval > 0)
+            nextCheckpoint = checkpoint.steps + checkpointInterval;
+    }
+
+    /**
+     * A call frame. Frames are owned by the frame stack and reused by every call made at the same depth; the
+     * register file only grows when a function needs more slots than any earlier user of the frame.
+     */
+    private static final class Frame {
+        CompiledFunction f;
+        long[] regs = new long[8];
+        int pc;
+        int retSlot;
+        /** Where the result is cached on return, with the arguments it was called with. */
+        MemoCache memo;
+        long[] memoKey = new long[0];
+    }
+
+    private Frame push(CompiledFunction f) {
+        if (depth == maxCallDepth)
+            throw EmulatorException.stackOverflow(maxCallDepth, f.getName());
+        if (depth == frames.length)
+            frames = Arrays.copyOf(frames, depth * 2);
+        Frame frame = frames[depth];
+        if (frame == null)
+            frame = frames[depth] = new Frame();
+        if (frame.regs.length < f.numSlots)
+            frame.regs = new long[f.numSlots];
+        else
+            Arrays.fill(frame.regs, 0, f.numSlots, 0);
+        frame.f = f;
+        frame.pc = 0;
+        frame.memo = null;
+        depth++;
+        return frame;
+    }
+
+    public void run() {
+        try {
+            if (!restored)
+                push(program.main);
+            if (profiler != null) {
+                for (int i = 0; i < depth; i++)
+                    profiler.enter(frames[i].f.function);
+            }
+            if (jit)
+                DeepStack.run(maxCallDepth, () -> execute(0));
+            else
+                execute(0);
+        } catch (StackOverflowError e) {
+            // Only compiled code recurses on the JVM stack, interpreted calls never get here
+            throw new EmulatorException(String.format("stack overflow: JVM stack exhausted at call depth %d", depth));
+        } finally {
+            io.flush();
+        }
+    }
+
+    /** Interprets the topmost frame until the stack shrinks back to {@code baseDepth} and returns its result. */
+    private long execute(int baseDepth) {
+        Frame frame = frames[depth - 1];
+        CompiledFunction f = frame.f;
+        int[] code = f.code;
+        long[] consts = f.constants;
+        long[] r = frame.regs;
+        int pc = frame.pc;
+        // Counted locally and published on return, which keeps a field write out of the dispatch loop
+        long executed = 0;
+
+        while (true) {
+            executed++;
+            if (trace != null)
+                traceStep(f, pc, r);
+            if (profiler != null)
+                profileStep(f, pc);
+            switch (code[pc]) {
+                case CONST: r[code[pc + 1]] = consts[code[pc + 2]]; pc += 3; break;
+                case MOV: r[code[pc + 1]] = r[code[pc + 2]]; pc += 3; break;
+                case ADD: r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]]; pc += 4; break;
+                case SUB: r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]]; pc += 4; break;
+                case MUL: r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]]; pc += 4; break;
+                case DIV: r[code[pc + 1]] = r[code[pc + 2]] / r[code[pc + 3]]; pc += 4; break;
+                case CMP_GE: r[code[pc + 1]] = r[code[pc + 2]] >= r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case CMP_GT: r[code[pc + 1]] = r[code[pc + 2]] > r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case CMP_LE: r[code[pc + 1]] = r[code[pc + 2]] <= r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case CMP_LT: r[code[pc + 1]] = r[code[pc + 2]] < r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case CMP_EQ: r[code[pc + 1]] = r[code[pc + 2]] == r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case CMP_NE: r[code[pc + 1]] = r[code[pc + 2]] != r[code[pc + 3]] ? 1 : 0; pc += 4; break;
+                case NOT: r[code[pc + 1]] = r[code[pc + 2]] == 0 ? 1 : 0; pc += 3; break;
+                case ADDR: r[code[pc + 1]] = consts[code[pc + 2]]; pc += 3; break;
+                case ADDR_IDX: r[code[pc + 1]] = consts[code[pc + 2]] + 8 * r[code[pc + 3]]; pc += 4; break;
+                case LOAD: r[code[pc + 1]] = load(r[code[pc + 2]]); pc += 3; break;
+                case LOAD_BOOL: r[code[pc + 1]] = load(r[code[pc + 2]]) != 0 ? 1 : 0; pc += 3; break;
+                case STORE: store(r[code[pc + 2]], r[code[pc + 1]]); pc += 3; break;
+                // Fused branches go forward in the usual layout, loops close with a GOTO, so they skip the OSR check
+                case BR_GE: pc = r[code[pc + 1]] >= r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_GT: pc = r[code[pc + 1]] > r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_LE: pc = r[code[pc + 1]] <= r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_LT: pc = r[code[pc + 1]] < r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_EQ: pc = r[code[pc + 1]] == r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_NE: pc = r[code[pc + 1]] != r[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_GE_K: pc = r[code[pc + 1]] >= consts[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_GT_K: pc = r[code[pc + 1]] > consts[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_LE_K: pc = r[code[pc + 1]] <= consts[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_LT_K: pc = r[code[pc + 1]] < consts[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_EQ_K: pc = r[code[pc + 1]] == consts[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case BR_NE_K: pc = r[code[pc + 1]] != consts[code[pc + 2]] ? code[pc + 3] : pc + 4; break;
+                case ADD_K: r[code[pc + 1]] = r[code[pc + 2]] + consts[code[pc + 3]]; pc += 4; break;
+                case SUB_K: r[code[pc + 1]] = r[code[pc + 2]] - consts[code[pc + 3]]; pc += 4; break;
+                case MUL_K: r[code[pc + 1]] = r[code[pc + 2]] * consts[code[pc + 3]]; pc += 4; break;
+                case DIV_K: r[code[pc + 1]] = r[code[pc + 2]] / consts[code[pc + 3]]; pc += 4; break;
+                case LOAD_IDX: r[code[pc + 1]] = load(consts[code[pc + 2]] + 8 * r[code[pc + 3]]); pc += 4; break;
+                case STORE_IDX: store(consts[code[pc + 2]] + 8 * r[code[pc + 3]], r[code[pc + 1]]); pc += 4; break;
+                case LOAD_GLOBAL: r[code[pc + 1]] = load(consts[code[pc + 2]]); pc += 3; break;
+                case STORE_GLOBAL: store(consts[code[pc + 2]], r[code[pc + 1]]); pc += 3; break;
+                case UPDATE: {
+                    long address = r[code[pc + 2]];
+                    int operand = code[pc + 3];
+                    long rhs = operand >= 0 ? r[operand] : consts[-1 - operand];
+                    store(address, arith(code[pc + 1], load(address), rhs));
+                    pc += 4;
+                    break;
+                }
+                case UPDATE_IDX: {
+                    long address = consts[code[pc + 2]] + 8 * r[code[pc + 3]];
+                    int operand = code[pc + 4];
+                    long rhs = operand >= 0 ? r[operand] : consts[-1 - operand];
+                    store(address, arith(code[pc + 1], load(address), rhs));
+                    pc += 5;
+                    break;
+                }
+                case UPDATE_GLOBAL: {
+                    long address = consts[code[pc + 2]];
+                    int operand = code[pc + 3];
+                    long rhs = operand >= 0 ? r[operand] : consts[-1 - operand];
+                    store(address, arith(code[pc + 1], load(address), rhs));
+                    pc += 4;
+                    break;
+                }
+                case JUMP_IF:
+                case GOTO: {
+                    int target;
+                    if (code[pc] == GOTO) {
+                        target = code[pc + 1];
+                    } else if (r[code[pc + 1]] != 0) {
+                        target = code[pc + 2];
+                    } else {
+                        pc += 3;
+                        break;
+                    }
+                    // Loops pass through here on every iteration, which makes back-edges safe points for checkpoints
+                    if (checkpointFile != null && target <= pc) {
+                        frame.pc = target;
+                        safePoint(executed);
+                    }
+                    if (jit && target <= pc) {
+                        JitCode compiled = hotLoop(f);
+                        if (compiled != null) {
+                            // Finish this frame in compiled code, then return from it as usual
+                            long value = compiled.invoke(machine, r, target);
+                            if (--depth == baseDepth) {
+                                steps += executed;
+                                return value;
+                            }
+                            frame = frames[depth - 1];
+                            f = frame.f;
+                            code = f.code;
+                            consts = f.constants;
+                            r = frame.regs;
+                            pc = frame.pc;
+                            if (frame.retSlot >= 0)
+                                r[frame.retSlot] = value;
+                            break;
+                        }
+                    }
+                    pc = target;
+                    break;
+                }
+                case READ_INT: {
+                    long value = io.readInt();
+                    if (code[pc + 1] >= 0)
+                        r[code[pc + 1]] = value;
+                    pc += 2;
+                    break;
+                }
+                case PRINT_INT: io.printInt(r[code[pc + 1]]); pc += 2; break;
+                case PRINT_BOOL: io.printBool(r[code[pc + 1]] != 0); pc += 2; break;
+                case PRINTLN: io.println(); pc += 1; break;
+                case CALL: {
+                    if (checkpointFile != null) {
+                        // As are calls, for recursion; the call itself runs again after a restore
+                        frame.pc = pc;
+                        safePoint(executed - 1);
+                    }
+                    CompiledFunction callee = program.functions[code[pc + 1]];
+                    int argc = code[pc + 3];
+                    if (jit) {
+                        JitCode compiled = hotCall(callee);
+                        if (compiled != null) {
+                            long[] args = new long[callee.numSlots];
+                            for (int j = 0; j < argc; j++) {
+                                args[j] = r[code[pc + 4 + j]];
+                            }
+                            long value = machine.invoke(compiled, callee, args);
+                            if (code[pc + 2] >= 0)
+                                r[code[pc + 2]] = value;
+                            pc += 4 + argc;
+                            break;
+                        }
+                    }
+                    MemoCache memo = memoCaches != null ? memoCaches[callee.index] : null;
+                    if (memo != null) {
+                        for (int j = 0; j < argc; j++) {
+                            memoKey[j] = r[code[pc + 4 + j]];
+                        }
+                        int entry = memo.find(memoKey);
+                        if (entry >= 0) {
+                            if (code[pc + 2] >= 0)
+                                r[code[pc + 2]] = memo.value(entry);
+                            pc += 4 + argc;
+                            break;
+                        }
+                    }
+                    frame.retSlot = code[pc + 2];
+                    frame.pc = pc + 4 + argc;
+
+                    // Arguments are copied straight into the callee's slots
+                    Frame calleeFrame = push(callee);
+                    if (profiler != null)
+                        profiler.enter(callee.function);
+                    long[] args = calleeFrame.regs;
+                    for (int j = 0; j < argc; j++) {
+                        args[j] = r[code[pc + 4 + j]];
+                    }
+                    if (memo != null) {
+                        if (calleeFrame.memoKey.length < argc)
+                            calleeFrame.memoKey = new long[argc];
+                        System.arraycopy(memoKey, 0, calleeFrame.memoKey, 0, argc);
+                        calleeFrame.memo = memo;
+                    }
+                    frame = calleeFrame;
+                    f = callee;
+                    code = f.code;
+                    consts = f.constants;
+                    r = args;
+                    pc = 0;
+                    break;
+                }
+                case RET:
+                case RET_VOID: {
+                    long value = code[pc] == RET ? r[code[pc + 1]] : 0;
+                    if (profiler != null)
+                        profiler.exit();
+                    if (frame.memo != null)
+                        frame.memo.put(frame.memoKey, value);
+                    if (--depth == baseDepth) {
+                        steps += executed;
+                        return value;
+                    }
+                    frame = frames[depth - 1];
+                    f = frame.f;
+                    code = f.code;
+                    consts = f.constants;
+                    r = frame.regs;
+                    pc = frame.pc;
+                    if (frame.retSlot >= 0)
+                        r[frame.retSlot] = value;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("bad opcode " + code[pc]);
+            }
+        }
+    }
+
+    private void profileStep(CompiledFunction f, int pc) {
+        long[][] nops = nopCounters[f.index][pc];
+        if (nops != null) {
+            for (long[] c : nops) {
+                profiler.step(c);
+            }
+        }
+        long[] counter = profileCounters[f.index][pc];
+        if (counter != null)
+            profiler.step(counter);
+        long[][] fused = fusedCounters[f.index][pc];
+        if (fused != null) {
+            for (long[] c : fused) {
+                profiler.step(c);
+            }
+        }
+    }
+
+    private static boolean compare(int cmpOpcode, long lhs, long rhs) {
+        switch (cmpOpcode) {
+            case CMP_GE: return lhs >= rhs;
+            case CMP_GT: return lhs > rhs;
+            case CMP_LE: return lhs <= rhs;
+            case CMP_LT: return lhs < rhs;
+            case CMP_EQ: return lhs == rhs;
+            default: return lhs != rhs;
+        }
+    }
+
+    /** Reports the instruction at {@code pc}, computing its effect from the registers it is about to read. */
+    private void traceStep(CompiledFunction f, int pc, long[] r) {
+        if (f.nopSites[pc] != null) {
+            for (Instruction nop : f.nopSites[pc]) {
+                trace.nop(nop);
+            }
+        }
+        Instruction site = f.sites[pc];
+        if (site == null)
+            return;
+        int[] code = f.code;
+        long[] consts = f.constants;
+        int opc = code[pc];
+        switch (opc) {
+            case CONST: trace.copy(site, consts[code[pc + 2]]); break;
+            case MOV: trace.copy(site, r[code[pc + 2]]); break;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV: {
+                long lhs = r[code[pc + 2]], rhs = r[code[pc + 3]];
+                long result = opc == DIV && rhs == 0 ? 0 : arith(opc, lhs, rhs);
+                trace.binop(site, lhs, rhs, result);
+                // The copy of the result into a variable, if it was fused in
+                if (f.fusedSites[pc] != null)
+                    trace.copy(f.fusedSites[pc][0], result);
+                break;
+            }
+            case ADD_K:
+            case SUB_K:
+            case MUL_K:
+            case DIV_K: {
+                int op = opc - ADD_K + ADD;
+                long lhs = r[code[pc + 2]], rhs = consts[code[pc + 3]];
+                long result = op == DIV && rhs == 0 ? 0 : arith(op, lhs, rhs);
+                Instruction[] fused = f.fusedSites[pc];
+                trace.copy(site, rhs);
+                trace.binop(fused[0], lhs, rhs, result);
+                if (fused.length > 1)
+                    trace.copy(fused[1], result);
+                break;
+            }
+            case CMP_GE:
+            case CMP_GT:
+            case CMP_LE:
+            case CMP_LT:
+            case CMP_EQ:
+            case CMP_NE: {
+                long lhs = r[code[pc + 2]], rhs = r[code[pc + 3]];
+                trace.compare(site, lhs, rhs, compare(opc, lhs, rhs));
+                break;
+            }
+            case BR_GE:
+            case BR_GT:
+            case BR_LE:
+            case BR_LT:
+            case BR_EQ:
+            case BR_NE: {
+                long lhs = r[code[pc + 1]], rhs = r[code[pc + 2]];
+                boolean result = compare(opc - BR_GE + CMP_GE, lhs, rhs);
+                trace.compare(site, lhs, rhs, result);
+                trace.jump(f.fusedSites[pc][0], result);
+                break;
+            }
+            case BR_GE_K:
+            case BR_GT_K:
+            case BR_LE_K:
+            case BR_LT_K:
+            case BR_EQ_K:
+            case BR_NE_K: {
+                long lhs = r[code[pc + 1]], rhs = consts[code[pc + 2]];
+                boolean result = compare(opc - BR_GE_K + CMP_GE, lhs, rhs);
+                trace.copy(site, rhs);
+                trace.compare(f.fusedSites[pc][0], lhs, rhs, result);
+                trace.jump(f.fusedSites[pc][1], result);
+                break;
+            }
+            case LOAD_IDX:
+            case LOAD_GLOBAL: {
+                long address = consts[code[pc + 2]] + (opc == LOAD_IDX ? 8 * r[code[pc + 3]] : 0);
+                trace.address(site, address);
+                trace.load(f.fusedSites[pc][0], address, memory.peek(address));
+                break;
+            }
+            case STORE_IDX:
+            case STORE_GLOBAL: {
+                long address = consts[code[pc + 2]] + (opc == STORE_IDX ? 8 * r[code[pc + 3]] : 0);
+                trace.address(site, address);
+                trace.store(f.fusedSites[pc][0], address, r[code[pc + 1]]);
+                break;
+            }
+            case UPDATE:
+            case UPDATE_IDX:
+            case UPDATE_GLOBAL: {
+                long address = opc == UPDATE ? r[code[pc + 2]]
+                        : consts[code[pc + 2]] + (opc == UPDATE_IDX ? 8 * r[code[pc + 3]] : 0);
+                int operand = code[pc + OPERANDS[opc]];
+                long value = memory.peek(address), rhs = operand >= 0 ? r[operand] : consts[-1 - operand];
+                long result = code[pc + 1] == DIV && rhs == 0 ? 0 : arith(code[pc + 1], value, rhs);
+                Instruction[] chain = f.fusedSites[pc];
+                // UPDATE starts at the load, the others at the address computation
+                var load = (LoadInst) (opc == UPDATE ? site : chain[0]);
+                if (opc == UPDATE)
+                    trace.load(site, address, value);
+                else
+                    trace.address(site, address);
+                for (Instruction folded : chain) {
+                    if (folded instanceof LoadInst) {
+                        trace.load(folded, address, value);
+                    } else if (folded instanceof CopyInst) {
+                        trace.copy(folded, rhs);
+                    } else if (folded instanceof BinaryOperator) {
+                        // Add and mul may have the loaded value on the right
+                        boolean left = ((BinaryOperator) folded).getLeftOperand() == load.getDst();
+                        trace.binop(folded, left ? value : rhs, left ? rhs : value, result);
+                    } else if (folded instanceof StoreInst) {
+                        trace.store(folded, address, result);
+                    } else {
+                        trace.address(folded, address);
+                    }
+                }
+                break;
+            }
+            case NOT: trace.not(site, r[code[pc + 2]] == 0); break;
+            case ADDR: trace.address(site, consts[code[pc + 2]]); break;
+            case ADDR_IDX: trace.address(site, consts[code[pc + 2]] + 8 * r[code[pc + 3]]); break;
+            case LOAD: trace.load(site, r[code[pc + 2]], memory.peek(r[code[pc + 2]])); break;
+            case LOAD_BOOL: trace.load(site, r[code[pc + 2]], memory.peek(r[code[pc + 2]]) != 0 ? 1 : 0); break;
+            case STORE: trace.store(site, r[code[pc + 2]], r[code[pc + 1]]); break;
+            case JUMP_IF: trace.jump(site, r[code[pc + 1]] != 0); break;
+            case READ_INT:
+            case PRINTLN: trace.call(site, new long[0]); break;
+            case PRINT_INT:
+            case PRINT_BOOL: trace.call(site, new long[] {r[code[pc + 1]]}); break;
+            case CALL: {
+                long[] args = new long[code[pc + 3]];
+                for (int j = 0; j < args.length; j++) {
+                    args[j] = r[code[pc + 4 + j]];
+                }
+                trace.call(site, args);
+                break;
+            }
+            case RET: trace.ret(site, r[code[pc + 1]]); break;
+            case RET_VOID: trace.ret(site, 0); break;
+            case GOTO: if (site instanceof NopInst) trace.nop(site); break;
+        }
+    }
+
+    private JitCode hotCall(CompiledFunction f) {
+        JitCode compiled = jitCode[f.index];
+        if (compiled == null && ++callCounts[f.index] == callThreshold)
+            compiled = jitCode[f.index] = jitCompiler.compile(f);
+        return compiled;
+    }
+
+    private JitCode hotLoop(CompiledFunction f) {
+        JitCode compiled = jitCode[f.index];
+        if (compiled == null && ++loopCounts[f.index] == loopThreshold)
+            compiled = jitCode[f.index] = jitCompiler.compile(f);
+        return compiled;
+    }
+
+    private long load(long address) {
+        return memory.load(address);
+    }
+
+    private void store(long address, long value) {
+        memory.store(address, value);
+    }
+
+    public void printStats(PrintStream ps) {
+        memory.printStats(ps);
+    }
+
+    /** Gives compiled code access to this engine's globals, I/O and functions. */
+    private final class Machine extends JitRuntime {
+        public long load(long address) { return RegisterEmulator.this.load(address); }
+
+        public long loadBool(long address) { return RegisterEmulator.this.load(address) != 0 ? 1 : 0; }
+
+        public void store(long address, long value) { RegisterEmulator.this.store(address, value); }
+
+        public long call(int function, long[] regs) {
+            CompiledFunction callee = program.functions[function];
+            JitCode compiled = jit ? hotCall(callee) : null;
+            if (compiled != null)
+                return invoke(compiled, callee, regs);
+            int base = depth;
+            System.arraycopy(regs, 0, push(callee).regs, 0, callee.numArgs);
+            return execute(base);
+        }
+
+        /** Runs compiled code for a call, counting it against the maximum call depth like an interpreted call. */
+        long invoke(JitCode compiled, CompiledFunction callee, long[] regs) {
+            if (depth == maxCallDepth)
+                throw EmulatorException.stackOverflow(maxCallDepth, callee.getName());
+            depth++;
+            long value = compiled.invoke(this, regs, 0);
+            depth--;
+            return value;
+        }
+
+        public long readInt() { return io.readInt(); }
+
+        public void printInt(long value) { io.printInt(value); }
+
+        public void printBool(long value) { io.printBool(value != 0); }
+
+        public void println() { io.println(); }
+    }
+}
@@ -0,0 +1,88 @@
+package crux.midend.ir.emulator;
+
+import crux.frontend.types.BoolType;
+import crux.frontend.types.Type;
+import crux.midend.ir.core.Instruction;
+import crux.midend.ir.core.Value;
+import crux.midend.ir.core.insts.*;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Prints every event as one line of text, which is what {@code --debug-emulator} shows.
+ */
+public final class TextTraceSink implements TraceSink {
+    private final PrintStream out;
+
+    public TextTraceSink(PrintStream out) {
+        this.out = out;
+    }
+
+    public void address(Instruction site, long address) {
+        out.println("AddressAt: " + ((AddressAt) site).getDst() + " = " + address);
+    }
+
+    public void binop(Instruction site, long lhs, long rhs, long result) {
+        var i = (BinaryOperator) site;
+        out.println("BinaryOperator: " + i.getDst() + "=" + lhs + i.getOperator() + rhs);
+    }
+
+    public void compare(Instruction site, long lhs, long rhs, boolean result) {
+        var i = (CompareInst) site;
+        out.println("CompareInst: " + i.getDst() + "=" + lhs + i.getPredicate() + rhs);
+    }
+
+    public void copy(Instruction site, long value) {
+        var i = (CopyInst) site;
+        out.println("CopyInst: " + i.getDstVar() + "=" + format(value, i.getDstVar().getType()));
+    }
+
+    public void not(Instruction site, boolean result) {
+        out.println("UnaryNotInst: " + result);
+    }
+
+    public void jump(Instruction site, boolean taken) {
+        out.println("Jump: " + ((JumpInst) site).getPredicate() + "=" + taken);
+    }
+
+    public void nop(Instruction site) {
+        out.println("Nop:");
+    }
+
+    public void load(Instruction site, long address, long value) {
+        var i = (LoadInst) site;
+        out.println("LoadInst: " + i.getDst() + "=" + format(value, i.getDst().getType()));
+    }
+
+    public void store(Instruction site, long address, long value) {
+        var i = (StoreInst) site;
+        out.println("StoreInst: *" + address + "=" + format(value, i.getSrcValue().getType()));
+    }
+
+    public void call(Instruction site, long[] args) {
+        var i = (CallInst) site;
+        List<Value> params = i.getParams();
+        var builder = new StringBuilder("[");
+        for (int j = 0; j < args.length; j++) {
+            if (j > 0)
+                builder.append(", ");
+            builder.append(format(args[j], params.get(j).getType()));
+        }
+        builder.append("]");
+        //Chop off leading %
+        out.println("Calling " + i.getCallee().getName().substring(1) + " with " + builder);
+    }
+
+    public void ret(Instruction site, long value) {
+        var i = (ReturnInst) site;
+        if (i.getReturnValue() == null)
+            out.println("ReturnInst: null");
+        else
+            out.println("ReturnInst: " + format(value, i.getReturnValue().getType()));
+    }
+
+    private static String format(long value, Type type) {
+        return type instanceof BoolType ? String.valueOf(value != 0) : String.valueOf(value);
+    }
+}
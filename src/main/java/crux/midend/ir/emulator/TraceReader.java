@@ -0,0 +1,77 @@
+package crux.midend.ir.emulator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static crux.midend.ir.emulator.BinaryTraceSink.*;
+
+/**
+ * Decodes a trace written by {@link BinaryTraceSink} back into one line of text per record. Usage:
+ * {@code java crux.midend.ir.emulator.TraceReader <trace file>}.
+ */
+public final class TraceReader {
+    private final HashMap<Integer, String> sites = new HashMap<>();
+    private final ByteBuffer records;
+
+    public TraceReader(Path path) throws IOException {
+        for (String line : Files.readAllLines(Path.of(path + ".sites"))) {
+            int tab = line.indexOf('\t');
+            sites.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+        }
+        records = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[MAGIC.length];
+        records.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException(path + " is not a trace file");
+        int version = records.getInt();
+        int recordBytes = records.getInt();
+        if (version != VERSION || recordBytes != RECORD_BYTES)
+            throw new IOException(String.format("unsupported trace version %d with %d byte records", version,
+                    recordBytes));
+    }
+
+    public void print(PrintStream ps) {
+        while (records.remaining() >= RECORD_BYTES) {
+            int tag = records.get();
+            int extra = records.get() & 0xff;
+            records.getShort();
+            int site = records.getInt();
+            long a = records.getLong(), b = records.getLong(), c = records.getLong();
+            ps.println(format(tag, extra, a, b, c) + "\t" + sites.getOrDefault(site, "?"));
+        }
+    }
+
+    private static String format(int tag, int extra, long a, long b, long c) {
+        switch (tag) {
+            case ADDRESS: return "address " + a;
+            case BINOP: return "binop " + a + " " + b + " -> " + c;
+            case COMPARE: return "compare " + a + " " + b + " -> " + (extra != 0);
+            case COPY: return "copy " + a;
+            case NOT: return "not -> " + (extra != 0);
+            case JUMP: return "jump " + (extra != 0 ? "taken" : "not taken");
+            case LOAD: return "load *" + a + " -> " + b;
+            case STORE: return "store *" + a + " = " + b;
+            case CALL: {
+                long[] args = Arrays.copyOf(new long[] {a, b, c}, Math.min(extra, 3));
+                return "call " + Arrays.toString(args) + (extra > 3 ? " (" + extra + " args)" : "");
+            }
+            case RET: return "ret " + a;
+            case NOP: return "nop";
+            default: return "unknown record " + tag;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: TraceReader <trace file>");
+            System.exit(1);
+        }
+        new TraceReader(Path.of(args[0])).print(System.out);
+    }
+}
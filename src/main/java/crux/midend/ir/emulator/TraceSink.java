@@ -0,0 +1,44 @@
+package crux.midend.ir.emulator;
+
+import crux.midend.ir.core.Instruction;
+
+/**
+ * Receives one typed event per executed instruction of an emulated program. Engines only check whether a sink is
+ * attached, so running without one costs a single predictable branch per instruction.
+ * <p>
+ * Every event carries the IR instruction it was produced by. Booleans are passed as 0 and 1 wherever an event has
+ * {@code long} operands.
+ */
+public interface TraceSink {
+    /** An {@link crux.midend.ir.core.insts.AddressAt} computed {@code address}. */
+    void address(Instruction site, long address);
+
+    void binop(Instruction site, long lhs, long rhs, long result);
+
+    void compare(Instruction site, long lhs, long rhs, boolean result);
+
+    void copy(Instruction site, long value);
+
+    void not(Instruction site, boolean result);
+
+    void jump(Instruction site, boolean taken);
+
+    /**
+     * A {@link crux.midend.ir.core.insts.NopInst}. Only the IR interpreter reports these; engines that compile the
+     * program drop nops along with the other instructions that only pass control on.
+     */
+    void nop(Instruction site);
+
+    void load(Instruction site, long address, long value);
+
+    void store(Instruction site, long address, long value);
+
+    /** A call to the function or builtin named by the {@link crux.midend.ir.core.insts.CallInst} {@code site}. */
+    void call(Instruction site, long[] args);
+
+    /** A return; {@code value} is 0 for a {@link crux.midend.ir.core.insts.ReturnInst} without a value. */
+    void ret(Instruction site, long value);
+
+    /** Called once the run is over, even if it failed. */
+    default void close() {}
+}
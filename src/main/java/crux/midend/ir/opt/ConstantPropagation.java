@@ -0,0 +1,264 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.*;
+
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation, after Wegman and Zadeck, "Constant Propagation with Conditional Branches"
+ * (TOPLAS 1991), for functions in SSA form.
+ * <p>
+ * Every variable starts out unknown and is lowered to a constant, or to "not constant" once it can have two values,
+ * while only the blocks that control can reach given the values found so far are looked at. So a constant condition
+ * keeps the branch it rules out from spoiling the values merged after it, and the other way around.
+ * <p>
+ * Afterwards every instruction whose result is constant becomes a {@link CopyInst} of the constant, phi operands that
+ * are constant are replaced by the constant, jumps on a constant condition are removed along with the code only they
+ * reached. The other instructions only take variables as operands, so they keep reading the now constant variable;
+ * the copies that are no longer read are left to dead code elimination.
+ * <p>
+ * Variables written more than once are taken to be not constant, so the pass is also correct, if less thorough,
+ * outside SSA form. Division by zero is not folded, so that it still fails at run time.
+ */
+public final class ConstantPropagation {
+    /** The lattice value of variables that are not constant; unknown variables have none. */
+    private static final Object VARYING = new Object();
+
+    private final Program program;
+    private final Function f;
+    private final ControlFlowGraph cfg;
+    private final Map<Value, Object> values = new IdentityHashMap<>();
+    private final boolean[] reached;
+    private final Set<Long> edges = new HashSet<>();
+    private final Deque<long[]> edgeWorklist = new ArrayDeque<>();
+    private final Deque<Instruction> worklist = new ArrayDeque<>();
+    private int folded, branches;
+
+    private ConstantPropagation(Program program, Function f) {
+        this.program = program;
+        this.f = f;
+        cfg = f.getControlFlowGraph();
+        reached = new boolean[cfg.size()];
+    }
+
+    /** Propagates the constants in every function of {@code p} and returns the number of instructions changed. */
+    public static int run(Program p) {
+        int changed = 0;
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            var pass = new ConstantPropagation(p, it.next());
+            pass.propagate();
+            pass.rewrite();
+            changed += pass.folded + pass.branches;
+        }
+        return changed;
+    }
+
+    private void propagate() {
+        if (cfg.getEntry().isExit())
+            return;
+        edgeWorklist.push(new long[] {-1, cfg.getEntry().getId()});
+        while (!edgeWorklist.isEmpty() || !worklist.isEmpty()) {
+            while (!edgeWorklist.isEmpty()) {
+                long[] edge = edgeWorklist.pop();
+                BasicBlock block = cfg.getBlock((int) edge[1]);
+                if (!edges.add(edge[0] * cfg.size() + edge[1]))
+                    continue;
+                if (!reached[block.getId()]) {
+                    reached[block.getId()] = true;
+                    for (Instruction inst : block.getInstructions()) {
+                        visit(inst, block);
+                    }
+                } else {
+                    // Only the phis merge another edge
+                    for (Instruction inst : block.getInstructions()) {
+                        if (!(inst instanceof PhiInst))
+                            break;
+                        visit(inst, block);
+                    }
+                }
+            }
+            while (!worklist.isEmpty()) {
+                Instruction inst = worklist.pop();
+                BasicBlock block = cfg.blockOf(inst);
+                if (block != null && reached[block.getId()])
+                    visit(inst, block);
+            }
+        }
+    }
+
+    private void visit(Instruction inst, BasicBlock block) {
+        Variable dst = inst.getDestination();
+        if (dst instanceof LocalVar) {
+            Object value = evaluate(inst, block);
+            Object old = values.get(dst);
+            if (value != null && old != VARYING && !value.equals(old)) {
+                values.put(dst, old == null ? value : VARYING);
+                for (Use u : dst.getUses()) {
+                    worklist.push(u.getUser());
+                }
+            }
+        }
+        if (inst == block.getLast()) {
+            if (inst instanceof JumpInst) {
+                Object condition = valueOf(((JumpInst) inst).getPredicate());
+                if (condition == VARYING) {
+                    addEdge(block, 0);
+                    addEdge(block, 1);
+                } else if (condition != null) {
+                    addEdge(block, (Boolean) condition ? 1 : 0);
+                }
+            } else {
+                for (int i = 0; i < block.numSuccessors(); i++) {
+                    addEdge(block, i);
+                }
+            }
+        }
+    }
+
+    private void addEdge(BasicBlock block, int successor) {
+        if (successor < block.numSuccessors() && !block.getSuccessor(successor).isExit())
+            edgeWorklist.push(new long[] {block.getId(), block.getSuccessor(successor).getId()});
+    }
+
+    /** The lattice value {@code inst} writes: null while unknown, a Long or Boolean constant, or {@link #VARYING}. */
+    private Object evaluate(Instruction inst, BasicBlock block) {
+        if (inst.getDestination().numDefs() > 1)
+            return VARYING;
+        if (inst instanceof CopyInst)
+            return valueOf(((CopyInst) inst).getSrcValue());
+        if (inst instanceof PhiInst) {
+            var phi = (PhiInst) inst;
+            Object result = null;
+            for (int k = 0; k < phi.numIncoming(); k++) {
+                BasicBlock pred = cfg.blockOf(phi.getIncomingInstruction(k));
+                if (pred == null || !edges.contains((long) pred.getId() * cfg.size() + block.getId()))
+                    continue;
+                Object value = valueOf(phi.getIncomingValue(k));
+                if (value == null)
+                    continue;
+                if (result != null && !result.equals(value))
+                    return VARYING;
+                result = value;
+            }
+            return result;
+        }
+        if (inst instanceof BinaryOperator) {
+            var op = (BinaryOperator) inst;
+            Object left = valueOf(op.getLeftOperand()), right = valueOf(op.getRightOperand());
+            if (left == VARYING || right == VARYING)
+                return VARYING;
+            if (left == null || right == null)
+                return null;
+            long l = (Long) left, r = (Long) right;
+            switch (op.getOperator()) {
+                case Add: return l + r;
+                case Sub: return l - r;
+                case Mul: return l * r;
+                default:
+                    // Left for run time, where it fails or, for the smallest value divided by -1, may trap
+                    if (r == 0 || (l == Long.MIN_VALUE && r == -1))
+                        return VARYING;
+                    return l / r;
+            }
+        }
+        if (inst instanceof CompareInst) {
+            var compare = (CompareInst) inst;
+            Object left = valueOf(compare.getLeftOperand()), right = valueOf(compare.getRightOperand());
+            if (left == VARYING || right == VARYING)
+                return VARYING;
+            if (left == null || right == null)
+                return null;
+            long l = (Long) left, r = (Long) right;
+            switch (compare.getPredicate()) {
+                case GE: return l >= r;
+                case GT: return l > r;
+                case LE: return l <= r;
+                case LT: return l < r;
+                case EQ: return l == r;
+                default: return l != r;
+            }
+        }
+        if (inst instanceof UnaryNotInst) {
+            Object inner = valueOf(((UnaryNotInst) inst).getInner());
+            return inner instanceof Boolean ? (Object) !(Boolean) inner : inner;
+        }
+        // Loads and calls
+        return VARYING;
+    }
+
+    private Object valueOf(Value v) {
+        if (v instanceof IntegerConstant)
+            return ((IntegerConstant) v).getValue();
+        if (v instanceof BooleanConstant)
+            return ((BooleanConstant) v).getValue();
+        // Arguments and variables without a write before they are read
+        if (!(v instanceof LocalVar) || ((LocalVar) v).numDefs() == 0)
+            return VARYING;
+        return values.get(v);
+    }
+
+    private Constant constant(LocalVar v) {
+        Object value = values.get(v);
+        if (value instanceof Long)
+            return IntegerConstant.get(program, (Long) value);
+        if (value instanceof Boolean)
+            return BooleanConstant.get(program, (Boolean) value);
+        return null;
+    }
+
+    private void rewrite() {
+        var jumps = new ArrayList<JumpInst>();
+        for (BasicBlock block : cfg.getBlocks()) {
+            if (!reached[block.getId()])
+                continue;
+            Instruction afterPhis = null;
+            for (Instruction inst : block.getInstructions()) {
+                if (!(inst instanceof PhiInst)) {
+                    afterPhis = inst;
+                    break;
+                }
+            }
+            for (Instruction inst : block.getInstructions()) {
+                if (inst instanceof JumpInst && constant(((JumpInst) inst).getPredicate()) != null)
+                    jumps.add((JumpInst) inst);
+                if (inst instanceof PhiInst)
+                    replaceConstantOperands((PhiInst) inst);
+                if (!(inst.getDestination() instanceof LocalVar))
+                    continue;
+                var dst = (LocalVar) inst.getDestination();
+                Constant c = constant(dst);
+                if (c == null || (inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() instanceof Constant))
+                    continue;
+                // A phi becomes a copy after the phis of its block, everything else a copy in its place
+                var copy = new CopyInst(dst, c);
+                if (!(inst instanceof PhiInst))
+                    f.insertBefore(inst, copy);
+                else if (afterPhis != null)
+                    f.insertBefore(afterPhis, copy);
+                else
+                    f.insertAfter(block.getLast(), copy);
+                f.remove(inst);
+                folded++;
+            }
+        }
+        for (JumpInst jump : jumps) {
+            var condition = (BooleanConstant) constant(jump.getPredicate());
+            f.remove(jump, condition.getValue() ? 1 : 0);
+            branches++;
+        }
+        if (!jumps.isEmpty())
+            f.removeUnreachable();
+    }
+
+    private void replaceConstantOperands(PhiInst phi) {
+        for (int k = 0; k < phi.numIncoming(); k++) {
+            Value v = phi.getIncomingValue(k);
+            if (v instanceof LocalVar && ((LocalVar) v).numDefs() > 0) {
+                Constant c = constant((LocalVar) v);
+                if (c != null)
+                    phi.setOperand(k, c);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.CopyInst;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Coalesces copies out of a variable that is written and read only once, by the copy, into the instruction that
+ * writes it: {@code $t = $x + $y; $x = $t} becomes {@code $x = $x + $y}. This is meant for after {@link
+ * SSADestructor}, whose copies into the destinations of phis read what the phi operands were, usually results computed
+ * just before.
+ * <p>
+ * Both must be in one block, with nothing between them reading or writing the destination of the copy, so the
+ * destination takes its new value no earlier than anything notices. The block is scanned once, keeping the position
+ * of the last access to every variable, in time linear in the size of the function.
+ */
+public final class CopyCoalescing {
+    private CopyCoalescing() {}
+
+    /** Coalesces the copies in every function of {@code p} and returns the number of copies removed. */
+    public static int run(Program p) {
+        int removed = 0;
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            removed += run(it.next());
+        }
+        return removed;
+    }
+
+    /** Coalesces the copies in {@code f} and returns the number of copies removed. */
+    public static int run(Function f) {
+        int removed = 0;
+        for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+            // Positions in the block of the last access to each variable and of the last write to it
+            var lastAccess = new IdentityHashMap<Value, Integer>();
+            var lastDef = new IdentityHashMap<Value, Integer>();
+            for (int i = 0; i < block.size(); i++) {
+                Instruction inst = block.get(i);
+                if (inst instanceof CopyInst) {
+                    var copy = (CopyInst) inst;
+                    Value src = copy.getSrcValue();
+                    LocalVar dst = copy.getDstVar();
+                    Integer at = lastDef.get(src);
+                    if (src instanceof LocalVar && src != dst && at != null && ((LocalVar) src).numDefs() == 1
+                            && src.numUses() == 1 && lastAccess.getOrDefault(dst, -1) <= at) {
+                        block.get(at).setDestination(dst);
+                        f.remove(copy);
+                        lastAccess.put(dst, at);
+                        lastDef.put(dst, at);
+                        removed++;
+                        continue;
+                    }
+                }
+                for (int k = 0; k < inst.numOperands(); k++) {
+                    lastAccess.put(inst.getOperand(k), i);
+                }
+                Variable dst = inst.getDestination();
+                if (dst != null) {
+                    lastAccess.put(dst, i);
+                    lastDef.put(dst, i);
+                }
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,55 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.CopyInst;
+
+import java.util.Iterator;
+
+/**
+ * Copy propagation for functions in SSA form: every instruction that reads the destination of a copy of a variable
+ * reads the source instead, so that the copies {@link crux.midend.ir.core.insts.PhiInst}s and later instructions went
+ * through are no longer read and {@link DeadCodeElimination} removes them.
+ * <p>
+ * Lowering writes every result to a temporary first and copies it into the variable of a {@code let}, and SSA form
+ * gives each such write a version of its own, so the arithmetic ends up writing the version that the rest of the
+ * function reads. Copies of constants are left alone: only copies and phis can read constants, and {@link
+ * ConstantPropagation} has already put the constants into those.
+ * <p>
+ * A copy is propagated when its destination is written only by the copy and its source is written at most once,
+ * which in SSA form means that the source holds the same value wherever the destination is read. Takes time linear in
+ * the number of uses.
+ */
+public final class CopyPropagation {
+    private CopyPropagation() {}
+
+    /** Propagates the copies in every function of {@code p} and returns the number of copies no longer read. */
+    public static int run(Program p) {
+        int forwarded = 0;
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            forwarded += run(it.next());
+        }
+        return forwarded;
+    }
+
+    /** Propagates the copies in {@code f} and returns the number of copies no longer read. */
+    public static int run(Function f) {
+        int forwarded = 0;
+        for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+            for (Instruction inst : block.getInstructions()) {
+                if (!(inst instanceof CopyInst))
+                    continue;
+                var copy = (CopyInst) inst;
+                // Earlier copies can have changed the source, so it is read now
+                Value src = copy.getSrcValue();
+                LocalVar dst = copy.getDstVar();
+                if (!(src instanceof LocalVar) || src == dst || dst.numDefs() != 1 || ((LocalVar) src).numDefs() > 1)
+                    continue;
+                if (dst.hasUses()) {
+                    dst.replaceAllUsesWith(src);
+                    forwarded++;
+                }
+            }
+        }
+        return forwarded;
+    }
+}
@@ -0,0 +1,227 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.*;
+
+import java.util.*;
+
+/**
+ * Removes the instructions that cannot change what a function does:
+ * <ul>
+ * <li>code that control cannot reach, such as code after a return, with {@link Function#removeUnreachable};</li>
+ * <li>the {@link NopInst}s that lowering uses as the branch and merge points of ifs, loops and {@code &&}/{@code ||},
+ * by sending the edges to each nop on to its successor;</li>
+ * <li>jumps whose two edges lead to the same instruction;</li>
+ * <li>instructions whose results are never needed: an instruction is live if it has an effect, calls, stores, returns
+ * and jumps, or if a live instruction reads its result, and all others go.</li>
+ * </ul>
+ * Blocks are the longest chains {@link ControlFlowGraph} can form, so once the nops between them are gone, straight-line
+ * chains of blocks come out as one block.
+ * <p>
+ * A division stays unless its divisor is a nonzero constant, since dividing by zero fails. A load stays unless the
+ * word it reads is known to have been written, see {@link WrittenMemory}, since reading uninitialized memory is
+ * reported. Works in and out of SSA form, in time linear in the size of the function.
+ */
+public final class DeadCodeElimination {
+    private final Function f;
+    private final Map<AddressVar, GlobalDecl> globals;
+    /** The loads that read a word known to have been written, the only ones that may go. */
+    private final Set<Instruction> writtenLoads = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** Jumps that may have both edges to one place, nops that may go, and instructions that may no longer be read. */
+    private final Deque<Instruction> worklist = new ArrayDeque<>();
+    private final Set<Instruction> deleted = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int removed;
+
+    private DeadCodeElimination(Function f, Map<AddressVar, GlobalDecl> globals) {
+        this.f = f;
+        this.globals = globals;
+    }
+
+    /** Removes the dead code of every function of {@code p} and returns the number of instructions removed. */
+    public static int run(Program p) {
+        var globals = WrittenMemory.globalsOf(p);
+        int removed = 0;
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            removed += run(it.next(), globals);
+        }
+        return removed;
+    }
+
+    /** Removes the dead code of {@code f}, whose program has {@code globals}, and returns the number removed. */
+    private static int run(Function f, Map<AddressVar, GlobalDecl> globals) {
+        var pass = new DeadCodeElimination(f, globals);
+        pass.removed = f.removeUnreachable();
+        pass.removeUnused();
+        pass.removeNops();
+        // Removing code can leave jumps with both edges to one place, whose conditions are unused in turn
+        for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+            if (!block.isExit() && block.getLast() instanceof JumpInst)
+                pass.worklist.push(block.getLast());
+        }
+        pass.drain();
+        return pass.removed;
+    }
+
+    private void removeUnused() {
+        ControlFlowGraph cfg = f.getControlFlowGraph();
+        var written = new WrittenMemory(f.getDominatorTree(), globals);
+        for (BasicBlock block : cfg.getBlocks()) {
+            for (Instruction inst : block.getInstructions()) {
+                if (inst instanceof LoadInst && written.isWritten((LoadInst) inst))
+                    writtenLoads.add(inst);
+            }
+        }
+        Set<Instruction> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Instruction> marked = new ArrayDeque<>();
+        for (BasicBlock block : cfg.getBlocks()) {
+            for (Instruction inst : block.getInstructions()) {
+                if (!isRemovable(inst) && live.add(inst))
+                    marked.push(inst);
+            }
+        }
+        while (!marked.isEmpty()) {
+            Instruction inst = marked.pop();
+            for (int k = 0; k < inst.numOperands(); k++) {
+                Value v = inst.getOperand(k);
+                if (!(v instanceof Variable))
+                    continue;
+                for (Instruction def : ((Variable) v).getDefs()) {
+                    if (live.add(def))
+                        marked.push(def);
+                }
+            }
+        }
+        for (BasicBlock block : cfg.getBlocks()) {
+            for (Instruction inst : block.getInstructions()) {
+                if (!live.contains(inst))
+                    delete(inst);
+            }
+        }
+    }
+
+    private void removeNops() {
+        for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+            for (Instruction inst : block.getInstructions()) {
+                if (inst instanceof NopInst && canRemove(inst))
+                    delete(inst);
+            }
+        }
+    }
+
+    /** Removes what is on the worklist and still dead, and what that leaves dead in turn. */
+    private void drain() {
+        while (!worklist.isEmpty()) {
+            Instruction inst = worklist.pop();
+            if (deleted.contains(inst))
+                continue;
+            if (inst instanceof JumpInst) {
+                if (inst.getNext(0) == inst.getNext(1) && inst.getNext(0) != inst)
+                    delete(inst);
+            } else if (inst instanceof NopInst) {
+                if (canRemove(inst))
+                    delete(inst);
+            } else if (!inst.getDestination().hasUses()) {
+                delete(inst);
+            }
+        }
+    }
+
+    /**
+     * Removes {@code inst}, keeping only the first edge of a jump, and puts on the worklist what may be dead now that
+     * it is gone.
+     */
+    private void delete(Instruction inst) {
+        var preds = new ArrayList<Instruction>(inst.numPredecessors());
+        for (int i = 0; i < inst.numPredecessors(); i++) {
+            preds.add(inst.getPredecessor(i));
+        }
+        var operands = new ArrayList<Value>(inst.numOperands());
+        for (int k = 0; k < inst.numOperands(); k++) {
+            operands.add(inst.getOperand(k));
+        }
+        Instruction next = inst.getNext(0);
+
+        if (inst instanceof JumpInst) {
+            f.remove(inst, 0);
+            removed++;
+        } else if (canRemove(inst)) {
+            f.remove(inst);
+            removed++;
+        } else {
+            // Its edges must stay, but not its operands, whose instructions may be gone
+            f.insertBefore(inst, new NopInst());
+            f.remove(inst);
+        }
+        deleted.add(inst);
+
+        for (Instruction pred : preds) {
+            if (pred instanceof JumpInst && pred.getNext(0) == pred.getNext(1))
+                worklist.push(pred);
+        }
+        // A nop kept for the edges of a jump may go once the jump has
+        if (inst instanceof JumpInst && next instanceof NopInst)
+            worklist.push(next);
+        for (Value v : operands) {
+            if (!(v instanceof Variable) || v.hasUses())
+                continue;
+            for (Instruction def : ((Variable) v).getDefs()) {
+                if (isRemovable(def))
+                    worklist.push(def);
+            }
+        }
+    }
+
+    /**
+     * Whether the edges to {@code inst}, which must have at most one successor, can be sent on to its successor
+     * without changing where control goes or which value a phi takes.
+     */
+    private boolean canRemove(Instruction inst) {
+        Instruction target = inst.getNext(0);
+        if (target == inst)
+            return false;
+        if (target == null) {
+            // A jump needs both of its edges
+            for (int i = 0; i < inst.numPredecessors(); i++) {
+                if (inst.getPredecessor(i).numNext() > 1)
+                    return false;
+            }
+            return true;
+        }
+        if (!(target instanceof PhiInst))
+            return true;
+        // The entry must not become a join
+        if (inst == f.getStart())
+            return false;
+        // A jump with its other edge to the phis as well would get two edges that must agree on every value
+        for (int i = 0; i < inst.numPredecessors(); i++) {
+            Instruction pred = inst.getPredecessor(i);
+            for (Instruction phi = target; phi instanceof PhiInst; phi = phi.getNext(0)) {
+                int k = ((PhiInst) phi).indexOfIncoming(pred), j = ((PhiInst) phi).indexOfIncoming(inst);
+                if (k < 0 || j < 0)
+                    break;
+                if (((PhiInst) phi).getIncomingValue(k) != ((PhiInst) phi).getIncomingValue(j))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /** Whether {@code inst} does nothing but compute its destination. */
+    private boolean isRemovable(Instruction inst) {
+        if (inst.getDestination() == null)
+            return false;
+        if (inst instanceof BinaryOperator && ((BinaryOperator) inst).getOperator() == BinaryOperator.Op.Div)
+            return isNonzeroConstant(((BinaryOperator) inst).getRightOperand());
+        if (inst instanceof LoadInst)
+            return writtenLoads.contains(inst);
+        return inst instanceof CopyInst || inst instanceof PhiInst || inst instanceof BinaryOperator
+                || inst instanceof CompareInst || inst instanceof UnaryNotInst || inst instanceof AddressAt;
+    }
+
+    private static boolean isNonzeroConstant(LocalVar v) {
+        if (v.numDefs() != 1 || !(v.getDefs().get(0) instanceof CopyInst))
+            return false;
+        Value source = ((CopyInst) v.getDefs().get(0)).getSrcValue();
+        return source instanceof IntegerConstant && ((IntegerConstant) source).getValue() != 0;
+    }
+}
@@ -0,0 +1,197 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.*;
+
+import java.util.*;
+
+/**
+ * Dominator-based value numbering, after Briggs, Cooper and Simpson, "Value Numbering" (Software: Practice and
+ * Experience 1997), for functions in SSA form: an instruction that computes what an instruction in a dominating block
+ * already computed, from the same operands, is removed and its result replaced by the earlier one. Expressions such as
+ * {@code a[i] = a[i] + b[i] * b[i]} compute the addresses of {@code a[i]} and {@code b[i]} once.
+ * <p>
+ * The blocks are visited in a preorder walk of the dominator tree with a table of the expressions computed so far,
+ * from which the expressions of a block are taken out again once its subtree is done, so a block only ever finds
+ * expressions from blocks that dominate it. SSA form makes every variable a value of its own, so an expression is its
+ * operator and its operand variables, with the operands of {@code +}, {@code *}, {@code ==} and {@code !=} in a fixed
+ * order and {@code >} and {@code >=} turned around. Copies of the same constant are numbered too.
+ * <p>
+ * Loads also take the state of memory into account, which changes with every store and call, as far as is known: a
+ * block continues with the state its immediate dominator ended with if that is its only predecessor, and starts with a
+ * state of its own otherwise. So a load is only ever replaced by one on a path without stores and calls between them,
+ * and only if the word it reads is known to have been written, see {@link WrittenMemory}: a read of uninitialized
+ * memory is reported every time. Takes time linear in the size of the function.
+ */
+public final class GlobalValueNumbering {
+    private final DominatorTree tree;
+    private final WrittenMemory written;
+    private final Map<Key, Variable> available = new HashMap<>();
+    private final List<Key> added = new ArrayList<>();
+    /** Numbers that put the operands of commutative operators in order. */
+    private final Map<Value, Integer> ids = new IdentityHashMap<>();
+    private final List<Instruction> redundant = new ArrayList<>();
+    /** The state of memory at the end of every block. */
+    private final int[] memoryAtEnd;
+    private int memory, memoryStates;
+
+    private GlobalValueNumbering(Function f, Map<AddressVar, GlobalDecl> globals) {
+        tree = f.getDominatorTree();
+        written = new WrittenMemory(tree, globals);
+        memoryAtEnd = new int[tree.getControlFlowGraph().size()];
+    }
+
+    /** Numbers the values of every function of {@code p} and returns the number of instructions replaced. */
+    public static int run(Program p) {
+        var globals = WrittenMemory.globalsOf(p);
+        int replaced = 0;
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            replaced += run(it.next(), globals);
+        }
+        return replaced;
+    }
+
+    /** Numbers the values of {@code f}, whose program has {@code globals}, and returns the number replaced. */
+    private static int run(Function f, Map<AddressVar, GlobalDecl> globals) {
+        var pass = new GlobalValueNumbering(f, globals);
+        pass.walk();
+        for (Instruction inst : pass.redundant) {
+            // Its edges stay where they decide which value a phi takes
+            if (inst.getNext(0) instanceof PhiInst)
+                f.insertBefore(inst, new NopInst());
+            f.remove(inst);
+        }
+        return pass.redundant.size();
+    }
+
+    private void walk() {
+        ControlFlowGraph cfg = tree.getControlFlowGraph();
+        if (cfg.getEntry().isExit())
+            return;
+        // Blocks to visit, each with the size of the expression list to go back to once it is done
+        Deque<BasicBlock> blocks = new ArrayDeque<>();
+        Deque<Integer> marks = new ArrayDeque<>();
+        blocks.push(cfg.getEntry());
+        marks.push(-1);
+        while (!blocks.isEmpty()) {
+            BasicBlock block = blocks.pop();
+            int mark = marks.pop();
+            if (mark >= 0) {
+                while (added.size() > mark) {
+                    available.remove(added.remove(added.size() - 1));
+                }
+                continue;
+            }
+            blocks.push(block);
+            marks.push(added.size());
+            visit(block);
+            for (BasicBlock child : tree.getChildren(block)) {
+                blocks.push(child);
+                marks.push(-1);
+            }
+        }
+    }
+
+    private void visit(BasicBlock block) {
+        BasicBlock idom = tree.getImmediateDominator(block);
+        if (idom != null && block.numPredecessors() == 1 && block.getPredecessor(0) == idom)
+            memory = memoryAtEnd[idom.getId()];
+        else
+            memory = ++memoryStates;
+        for (Instruction inst : block.getInstructions()) {
+            if (inst instanceof StoreInst || inst instanceof CallInst) {
+                memory = ++memoryStates;
+                continue;
+            }
+            Key key = keyOf(inst);
+            if (key == null || inst.getDestination().numDefs() != 1)
+                continue;
+            Variable earlier = available.get(key);
+            if (earlier != null) {
+                inst.getDestination().replaceAllUsesWith(earlier);
+                redundant.add(inst);
+            } else {
+                available.put(key, inst.getDestination());
+                added.add(key);
+            }
+        }
+        memoryAtEnd[block.getId()] = memory;
+    }
+
+    /** The expression {@code inst} computes, or null if it is not one that can be numbered. */
+    private Key keyOf(Instruction inst) {
+        // Variables written more than once, which SSA form leaves none of, can have different values
+        for (int k = 0; k < inst.numOperands(); k++) {
+            Value v = inst.getOperand(k);
+            if (v instanceof Variable && ((Variable) v).numDefs() > 1)
+                return null;
+        }
+        if (inst instanceof CopyInst) {
+            Value src = ((CopyInst) inst).getSrcValue();
+            return src instanceof Constant ? new Key(CopyInst.class, src, null, 0) : null;
+        }
+        if (inst instanceof BinaryOperator) {
+            var op = (BinaryOperator) inst;
+            BinaryOperator.Op operator = op.getOperator();
+            boolean commutative = operator == BinaryOperator.Op.Add || operator == BinaryOperator.Op.Mul;
+            return ordered(operator, op.getLeftOperand(), op.getRightOperand(), commutative);
+        }
+        if (inst instanceof CompareInst) {
+            var compare = (CompareInst) inst;
+            LocalVar left = compare.getLeftOperand(), right = compare.getRightOperand();
+            switch (compare.getPredicate()) {
+                case GT: return new Key(CompareInst.Predicate.LT, right, left, 0);
+                case GE: return new Key(CompareInst.Predicate.LE, right, left, 0);
+                case EQ:
+                case NE: return ordered(compare.getPredicate(), left, right, true);
+                default: return new Key(compare.getPredicate(), left, right, 0);
+            }
+        }
+        if (inst instanceof UnaryNotInst)
+            return new Key(UnaryNotInst.class, ((UnaryNotInst) inst).getInner(), null, 0);
+        if (inst instanceof AddressAt)
+            return new Key(AddressAt.class, ((AddressAt) inst).getBase(), ((AddressAt) inst).getOffset(), 0);
+        // A load that may read uninitialized memory reports it every time, so it cannot share a result
+        if (inst instanceof LoadInst && written.isWritten((LoadInst) inst))
+            return new Key(LoadInst.class, ((LoadInst) inst).getSrcAddress(), null, memory);
+        return null;
+    }
+
+    private Key ordered(Object operator, Value left, Value right, boolean commutative) {
+        if (commutative && id(left) > id(right))
+            return new Key(operator, right, left, 0);
+        return new Key(operator, left, right, 0);
+    }
+
+    private int id(Value v) {
+        return ids.computeIfAbsent(v, u -> ids.size());
+    }
+
+    /** An operator with its operands, which are compared by identity, and the state of memory for loads. */
+    private static final class Key {
+        private final Object operator;
+        private final Value left, right;
+        private final int memory;
+
+        Key(Object operator, Value left, Value right, int memory) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.memory = memory;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            var other = (Key) o;
+            return operator == other.operator && left == other.left && right == other.right
+                    && memory == other.memory;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(operator, System.identityHashCode(left), System.identityHashCode(right), memory);
+        }
+    }
+}
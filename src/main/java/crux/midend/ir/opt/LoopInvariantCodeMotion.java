@@ -0,0 +1,316 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.*;
+import crux.midend.ir.emulator.Builtin;
+
+import java.util.*;
+
+/**
+ * Loop-invariant code motion for functions in SSA form: instructions in a loop that compute the same value on every
+ * iteration, such as the address of a global or arithmetic on variables the loop does not write, are moved in front of
+ * the loop and run once.
+ * <p>
+ * Loops are the natural loops of the control flow graph: an edge to a block that dominates its source is a back edge,
+ * and the loop of a header is the header with all blocks that reach one of its back edges without passing through it.
+ * They are found inner loops first, after Havlak, "Nesting of Reducible and Irreducible Loops" (TOPLAS 1997), so that
+ * an inner loop is walked over as a whole rather than block by block, and form a tree. Each loop whose header is
+ * entered on one edge from outside gets a preheader on that edge, a {@link NopInst} in front of the phis and the
+ * {@link NopInst} that lowering starts a while loop with.
+ * <p>
+ * An instruction can leave a loop if no variable it reads is written in the loop, once the instructions before it have
+ * been moved. The blocks are visited in a preorder walk of the dominator tree, so those come first, and every
+ * instruction goes straight to the preheader of the outermost loop it can leave. The preheader also runs when the loop
+ * body does not, so only instructions that cannot fail are moved: copies, comparisons, {@code not}, addresses, and
+ * arithmetic other than division by a variable or by 0 or -1. Loads are only moved out of loops that neither store nor
+ * call anything but builtins, and only from a global word known to be in bounds and written before, by its initial
+ * value or by a store in a block that dominates the loop. Takes time linear in the size of the function times the
+ * depth of the loop nesting.
+ */
+public final class LoopInvariantCodeMotion {
+    private final Function f;
+    private final DominatorTree tree;
+    private final ControlFlowGraph cfg;
+    private WrittenMemory written;
+    /** The loops, inner loops before the loops around them. */
+    private final List<Loop> loops = new ArrayList<>();
+    /** The innermost loop of every block, or null outside loops. */
+    private final Loop[] loopOf;
+    /** The outermost loop each instruction to be moved leaves. */
+    private final Map<Instruction, Loop> leaves = new IdentityHashMap<>();
+
+    /** A natural loop, with the edge into it and the instructions to be put in its preheader. */
+    private static final class Loop {
+        final BasicBlock header;
+        Loop parent;
+        final List<Loop> children = new ArrayList<>();
+        /** Positions of the loop and of its last inner loop in a preorder walk of the loop tree. */
+        int first, last;
+        boolean writesMemory;
+        /** The instruction whose edge {@link #slot} is the one edge into the header from outside, or null. */
+        Instruction entry;
+        int slot;
+        final List<Instruction> hoisted = new ArrayList<>();
+
+        Loop(BasicBlock header) {
+            this.header = header;
+        }
+
+        boolean contains(Loop inner) {
+            return inner != null && first <= inner.first && inner.first <= last;
+        }
+    }
+
+    private LoopInvariantCodeMotion(Function f) {
+        this.f = f;
+        tree = f.getDominatorTree();
+        cfg = tree.getControlFlowGraph();
+        loopOf = new Loop[cfg.size()];
+    }
+
+    /** Moves the loop-invariant code of every function of {@code p} and returns the number of instructions moved. */
+    public static int run(Program p) {
+        var globals = WrittenMemory.globalsOf(p);
+        int hoisted = 0;
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            var pass = new LoopInvariantCodeMotion(it.next());
+            pass.findLoops();
+            if (pass.loops.isEmpty())
+                continue;
+            pass.written = new WrittenMemory(pass.tree, globals);
+            pass.findInvariant();
+            hoisted += pass.hoist();
+        }
+        return hoisted;
+    }
+
+    /** Fills in {@link #loops} and {@link #loopOf}. */
+    private void findLoops() {
+        List<BasicBlock> headers = new ArrayList<>();
+        for (BasicBlock block : tree.getPreorder()) {
+            for (int i = 0; i < block.numPredecessors(); i++) {
+                if (tree.dominates(block, block.getPredecessor(i))) {
+                    headers.add(block);
+                    break;
+                }
+            }
+        }
+        // Inner loops have deeper headers
+        headers.sort(Comparator.comparingInt((BasicBlock header) -> tree.getDepth(header)).reversed());
+        for (BasicBlock header : headers) {
+            var loop = new Loop(header);
+            loopOf[header.getId()] = loop;
+            Deque<BasicBlock> worklist = new ArrayDeque<>();
+            for (int i = 0; i < header.numPredecessors(); i++) {
+                if (tree.dominates(header, header.getPredecessor(i)))
+                    worklist.push(header.getPredecessor(i));
+            }
+            while (!worklist.isEmpty()) {
+                BasicBlock block = worklist.pop();
+                Loop inner = loopOf[block.getId()];
+                if (inner == null) {
+                    loopOf[block.getId()] = loop;
+                    pushPredecessors(block, worklist);
+                    continue;
+                }
+                while (inner.parent != null) {
+                    inner = inner.parent;
+                }
+                // An inner loop is entered only through its header
+                if (inner != loop) {
+                    inner.parent = loop;
+                    loop.children.add(inner);
+                    pushPredecessors(inner.header, worklist);
+                }
+            }
+            loops.add(loop);
+        }
+
+        for (BasicBlock block : cfg.getBlocks()) {
+            Loop loop = loopOf[block.getId()];
+            if (loop == null || loop.writesMemory)
+                continue;
+            for (Instruction inst : block.getInstructions()) {
+                if (inst instanceof StoreInst || inst instanceof CallInst && !callsBuiltin((CallInst) inst))
+                    loop.writesMemory = true;
+            }
+        }
+        int position = 0;
+        Deque<Loop> worklist = new ArrayDeque<>();
+        for (Loop loop : loops) {
+            if (loop.parent != null)
+                loop.parent.writesMemory |= loop.writesMemory;
+            else
+                worklist.push(loop);
+            findEntry(loop);
+        }
+        // Number the loop tree, giving every loop the positions of its inner loops
+        while (!worklist.isEmpty()) {
+            Loop loop = worklist.pop();
+            loop.first = position++;
+            for (Loop child : loop.children) {
+                worklist.push(child);
+            }
+        }
+        for (Loop loop : loops) {
+            loop.last = Math.max(loop.last, loop.first);
+            if (loop.parent != null)
+                loop.parent.last = Math.max(loop.parent.last, loop.last);
+        }
+    }
+
+    /** Pushes the predecessors of {@code block} that are not in the loop it heads, if it heads one. */
+    private void pushPredecessors(BasicBlock block, Deque<BasicBlock> worklist) {
+        boolean header = loopOf[block.getId()] != null && loopOf[block.getId()].header == block;
+        for (int i = 0; i < block.numPredecessors(); i++) {
+            BasicBlock pred = block.getPredecessor(i);
+            if (tree.getDepth(pred) >= 0 && !(header && tree.dominates(block, pred)))
+                worklist.push(pred);
+        }
+    }
+
+    private static boolean callsBuiltin(CallInst call) {
+        return Builtin.fromName(call.getCallee().getName().substring(1)) != null;
+    }
+
+    /** Finds the one edge into the header of {@code loop} from outside, if there is one. */
+    private void findEntry(Loop loop) {
+        Instruction head = loop.header.getFirst();
+        for (int i = 0; i < loop.header.numPredecessors(); i++) {
+            BasicBlock pred = loop.header.getPredecessor(i);
+            if (tree.getDepth(pred) < 0 || tree.dominates(loop.header, pred))
+                continue;
+            if (loop.entry != null) {
+                loop.entry = null;
+                return;
+            }
+            loop.entry = pred.getLast();
+        }
+        if (loop.entry == null)
+            return;
+        int edges = 0;
+        for (int slot = 0; slot < loop.entry.numNext(); slot++) {
+            if (loop.entry.getNext(slot) == head) {
+                loop.slot = slot;
+                edges++;
+            }
+        }
+        if (edges != 1)
+            loop.entry = null;
+    }
+
+    /** Decides which loops the instructions leave, in dominator preorder so that what they read has been decided. */
+    private void findInvariant() {
+        for (BasicBlock block : tree.getPreorder()) {
+            Loop inner = loopOf[block.getId()];
+            if (inner == null)
+                continue;
+            for (Instruction inst : block.getInstructions()) {
+                if (!canMove(inst))
+                    continue;
+                Loop outermost = null;
+                for (Loop loop = inner; loop != null && canLeave(inst, loop); loop = loop.parent) {
+                    outermost = loop;
+                }
+                if (outermost != null) {
+                    outermost.hoisted.add(inst);
+                    leaves.put(inst, outermost);
+                }
+            }
+        }
+    }
+
+    /** Moves the instructions to the preheaders of the loops they leave and returns how many there were. */
+    private int hoist() {
+        int hoisted = 0;
+        for (Loop loop : loops) {
+            if (loop.hoisted.isEmpty())
+                continue;
+            Instruction head = loop.header.getFirst();
+            var preheader = new NopInst();
+            f.setNext(loop.entry, loop.slot, preheader);
+            f.setNext(preheader, 0, head);
+            for (int i = 0; i < loop.header.size() && loop.header.get(i) instanceof PhiInst; i++) {
+                var phi = (PhiInst) loop.header.get(i);
+                int k = phi.indexOfIncoming(loop.entry);
+                if (k >= 0)
+                    phi.setIncomingInstruction(k, preheader);
+            }
+            Instruction last = preheader;
+            for (Instruction inst : loop.hoisted) {
+                Instruction copy = copyOf(inst);
+                f.insertAfter(last, copy);
+                last = copy;
+            }
+            hoisted += loop.hoisted.size();
+        }
+        for (Loop loop : loops) {
+            for (Instruction inst : loop.hoisted) {
+                // Its edges stay where they decide which value a phi takes
+                if (inst.getNext(0) instanceof PhiInst)
+                    f.insertBefore(inst, new NopInst());
+                f.remove(inst);
+            }
+        }
+        return hoisted;
+    }
+
+    /** Whether {@code inst} can be run in front of a loop, even if the loop body never runs. */
+    private boolean canMove(Instruction inst) {
+        if (inst.getDestination() == null || inst.getDestination().numDefs() != 1)
+            return false;
+        if (inst instanceof BinaryOperator && ((BinaryOperator) inst).getOperator() == BinaryOperator.Op.Div) {
+            Long divisor = WrittenMemory.constantOf(((BinaryOperator) inst).getRightOperand());
+            return divisor != null && divisor != 0 && divisor != -1;
+        }
+        return inst instanceof CopyInst || inst instanceof BinaryOperator || inst instanceof CompareInst
+                || inst instanceof UnaryNotInst || inst instanceof AddressAt || inst instanceof LoadInst;
+    }
+
+    /** Whether {@code inst}, which can leave the loops inside {@code loop}, can be moved out of it as well. */
+    private boolean canLeave(Instruction inst, Loop loop) {
+        if (loop.entry == null)
+            return false;
+        for (int k = 0; k < inst.numOperands(); k++) {
+            Value v = inst.getOperand(k);
+            if (v instanceof Variable && !isOutside((Variable) v, loop))
+                return false;
+        }
+        if (inst instanceof LoadInst)
+            return !loop.writesMemory && written.isWrittenBefore(((LoadInst) inst).getSrcAddress(), loop.header);
+        return true;
+    }
+
+    /** Whether {@code v} is written outside {@code loop}, where the instruction that writes it ends up. */
+    private boolean isOutside(Variable v, Loop loop) {
+        if (v.numDefs() == 0)
+            return true;
+        if (v.numDefs() > 1)
+            return false;
+        Instruction def = v.getDefs().get(0);
+        Loop left = leaves.get(def);
+        return !loop.contains(left != null ? left.parent : loopOf[cfg.blockOf(def).getId()]);
+    }
+
+    private static Instruction copyOf(Instruction inst) {
+        if (inst instanceof CopyInst)
+            return new CopyInst(((CopyInst) inst).getDstVar(), ((CopyInst) inst).getSrcValue());
+        if (inst instanceof BinaryOperator) {
+            var op = (BinaryOperator) inst;
+            return new BinaryOperator(op.getOperator(), op.getDst(), op.getLeftOperand(), op.getRightOperand());
+        }
+        if (inst instanceof CompareInst) {
+            var compare = (CompareInst) inst;
+            return new CompareInst(compare.getDst(), compare.getPredicate(), compare.getLeftOperand(),
+                    compare.getRightOperand());
+        }
+        if (inst instanceof UnaryNotInst)
+            return new UnaryNotInst(((UnaryNotInst) inst).getDst(), ((UnaryNotInst) inst).getInner());
+        if (inst instanceof AddressAt) {
+            var at = (AddressAt) inst;
+            return at.getOffset() != null ? new AddressAt(at.getDestination(), at.getBase(), at.getOffset())
+                    : new AddressAt(at.getDst(), at.getBase());
+        }
+        return new LoadInst(((LoadInst) inst).getDst(), ((LoadInst) inst).getSrcAddress());
+    }
+}
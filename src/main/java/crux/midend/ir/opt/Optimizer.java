@@ -0,0 +1,87 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.Function;
+import crux.midend.ir.core.Program;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Runs the optimization passes that an optimization level asks for over a program in SSA form: none at level 0, and
+ * from level 1 on {@link ConstantPropagation}, {@link CopyPropagation}, {@link GlobalValueNumbering}, {@link
+ * LoopInvariantCodeMotion} and {@link DeadCodeElimination}, and then {@link CopyCoalescing} once the program has
+ * left SSA form through {@link #leaveSSA}.
+ * <p>
+ * The emulator reports every read of uninitialized memory, and those reports are output like everything else the
+ * program prints, so no pass changes how often they happen: a load is only removed, merged with another or moved to
+ * where it may run when it did not before if the word it reads is known to have been written, see {@link
+ * WrittenMemory}.
+ * <p>
+ * For every pass it keeps the number of instructions it changed or removed and the size of the program after it, for
+ * {@link #printStats}.
+ */
+public final class Optimizer {
+    private final int level;
+    private final List<String> stats = new ArrayList<>();
+
+    public Optimizer(int level) {
+        if (level < 0)
+            throw new RuntimeException(String.format("invalid optimization level %d", level));
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /** Optimizes every function of {@code p}, which must be in SSA form and stays in it. */
+    public void optimize(Program p) {
+        stats.clear();
+        record("input", p, 0, "");
+        if (level >= 1) {
+            run("constant propagation", p, ConstantPropagation::run, "changed");
+            run("copy propagation", p, CopyPropagation::run, "forwarded");
+            run("value numbering", p, GlobalValueNumbering::run, "replaced");
+            run("loop-invariant code motion", p, LoopInvariantCodeMotion::run, "hoisted");
+            run("dead code elimination", p, DeadCodeElimination::run, "removed");
+        }
+    }
+
+    /** Takes every function of {@code p} out of SSA form, and coalesces the copies that leaves from level 1 on. */
+    public void leaveSSA(Program p) {
+        SSADestructor.destruct(p);
+        record("out of SSA form", p, 0, "");
+        if (level >= 1)
+            run("copy coalescing", p, CopyCoalescing::run, "removed");
+    }
+
+    private void run(String name, Program p, ToIntFunction<Program> pass, String verb) {
+        int count = pass.applyAsInt(p);
+        record(name, p, count, verb);
+    }
+
+    private void record(String name, Program p, int count, String verb) {
+        int instructions = 0, blocks = 0;
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            var cfg = it.next().getControlFlowGraph();
+            instructions += cfg.numInstructions();
+            // Not counting the exit block
+            blocks += cfg.size() - 1;
+        }
+        if (verb.isEmpty())
+            stats.add(String.format("%s: %d instructions in %d blocks", name, instructions, blocks));
+        else
+            stats.add(String.format("%s: %d instructions %s, %d instructions in %d blocks left", name, count, verb,
+                    instructions, blocks));
+    }
+
+    /** Prints, for the input and after every pass, how many instructions and blocks the program has. */
+    public void printStats(PrintStream ps) {
+        for (String line : stats) {
+            ps.println("optimizer: " + line);
+        }
+    }
+}
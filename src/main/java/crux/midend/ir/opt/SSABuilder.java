@@ -0,0 +1,228 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.NopInst;
+import crux.midend.ir.core.insts.PhiInst;
+import crux.midend.ir.emulator.DeepStack;
+
+import java.util.*;
+
+/**
+ * Puts functions in SSA form: every variable that is written more than once, or that was declared in the AST, gets a
+ * new version for each write, and {@link PhiInst}s merge the versions where control flow joins.
+ * <p>
+ * This is the algorithm of Braun et al., "Simple and Efficient Construction of Static Single Assignment Form" (CC
+ * 2013), which needs no dominance information: blocks are visited in reverse post-order and a read looks up the
+ * version written last in its block, or asks the predecessors for it, placing a phi where they could disagree. A block
+ * whose predecessors have not all been visited gets incomplete phis that are filled in once they have. Phis that turn
+ * out to merge only one value are removed right away, so the result has few phis besides the necessary ones, in time
+ * close to linear in the size of the function.
+ * <p>
+ * A read with no write before it on some path reads the original variable, which is the argument for arguments and
+ * uninitialized otherwise, just as before.
+ */
+public final class SSABuilder {
+    private static final int MIN_STACK_BLOCKS = 1024;
+
+    private final Function f;
+    private final ControlFlowGraph cfg;
+    /** The variables that get versions. */
+    private final Set<LocalVar> renamed = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** The version of each variable at the end of each block, for the blocks where it was asked for. */
+    private final List<Map<LocalVar, Value>> current;
+    private final boolean[] sealed;
+    private final int[] visitedPreds;
+    /** The incomplete phis of each unsealed block, with their variables. */
+    private final List<Map<PhiInst, LocalVar>> incomplete;
+    /** The variable of every phi that is still in the function. */
+    private final Map<PhiInst, LocalVar> phiVariable = new IdentityHashMap<>();
+    /** The phis whose operands are not all filled in yet, which must not be removed. */
+    private final Set<PhiInst> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** What the destinations of removed phis were replaced by. */
+    private final Map<Value, Value> replaced = new IdentityHashMap<>();
+    private final Map<LocalVar, Integer> versions = new IdentityHashMap<>();
+
+    private SSABuilder(Function f) {
+        this.f = f;
+        Instruction start = f.getStart();
+        // The entry must not be a join, since there is no edge to take the values on entry from
+        if (start != null && start.numPredecessors() > 0) {
+            var entry = new NopInst();
+            entry.setNext(0, start);
+            f.setStart(entry);
+        }
+        cfg = f.getControlFlowGraph();
+        current = new ArrayList<>(Collections.nCopies(cfg.size(), null));
+        incomplete = new ArrayList<>(Collections.nCopies(cfg.size(), null));
+        sealed = new boolean[cfg.size()];
+        visitedPreds = new int[cfg.size()];
+    }
+
+    /** Puts every function of {@code p} in SSA form. */
+    public static void build(Program p) {
+        var functions = new ArrayList<Function>();
+        int maxBlocks = 0;
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            Function f = it.next();
+            functions.add(f);
+            maxBlocks = Math.max(maxBlocks, f.getControlFlowGraph().size());
+        }
+        // Reads recurse through the predecessors, up to a few frames per block
+        DeepStack.run(Math.max(maxBlocks, MIN_STACK_BLOCKS), () -> {
+            for (Function f : functions) {
+                new SSABuilder(f).run();
+            }
+        });
+    }
+
+    private void run() {
+        for (BasicBlock block : cfg.getBlocks()) {
+            for (Instruction inst : block.getInstructions()) {
+                Variable dst = inst.getDestination();
+                if (dst instanceof LocalVar && (!dst.isTemporary() || dst.numDefs() > 1))
+                    renamed.add((LocalVar) dst);
+            }
+        }
+        if (renamed.isEmpty())
+            return;
+
+        sealed[cfg.getEntry().getId()] = true;
+        for (BasicBlock block : cfg.getReversePostOrder()) {
+            if (block.isExit())
+                continue;
+            for (Instruction inst : block.getInstructions()) {
+                for (int k = 0; k < inst.numOperands(); k++) {
+                    Value v = inst.getOperand(k);
+                    if (renamed.contains(v))
+                        inst.setOperand(k, read((LocalVar) v, block));
+                }
+                Variable dst = inst.getDestination();
+                if (renamed.contains(dst)) {
+                    LocalVar version = newVersion((LocalVar) dst);
+                    inst.setDestination(version);
+                    write((LocalVar) dst, block, version);
+                }
+            }
+            for (int i = 0; i < block.numSuccessors(); i++) {
+                BasicBlock succ = block.getSuccessor(i);
+                if (!succ.isExit() && ++visitedPreds[succ.getId()] == succ.numPredecessors())
+                    seal(succ);
+            }
+        }
+    }
+
+    private void write(LocalVar var, BasicBlock block, Value value) {
+        var defs = current.get(block.getId());
+        if (defs == null) {
+            defs = new IdentityHashMap<>(4);
+            current.set(block.getId(), defs);
+        }
+        defs.put(var, value);
+    }
+
+    private Value read(LocalVar var, BasicBlock block) {
+        var defs = current.get(block.getId());
+        Value value = defs != null ? defs.get(var) : null;
+        if (value != null)
+            return resolve(value);
+
+        if (!sealed[block.getId()]) {
+            PhiInst phi = newPhi(var, block);
+            var phis = incomplete.get(block.getId());
+            if (phis == null) {
+                phis = new LinkedHashMap<>();
+                incomplete.set(block.getId(), phis);
+            }
+            phis.put(phi, var);
+            value = phi.getDstVar();
+        } else if (block.numPredecessors() == 0) {
+            value = var;
+        } else if (block.numPredecessors() == 1) {
+            value = read(var, block.getPredecessor(0));
+        } else {
+            // Written before reading the predecessors, which ends the search around loops
+            PhiInst phi = newPhi(var, block);
+            write(var, block, phi.getDstVar());
+            value = addOperands(phi, var, block);
+        }
+        write(var, block, value);
+        return value;
+    }
+
+    private Value resolve(Value value) {
+        Value to;
+        while ((to = replaced.get(value)) != null) {
+            value = to;
+        }
+        return value;
+    }
+
+    private void seal(BasicBlock block) {
+        var phis = incomplete.get(block.getId());
+        if (phis != null) {
+            for (var entry : phis.entrySet()) {
+                addOperands(entry.getKey(), entry.getValue(), block);
+            }
+            incomplete.set(block.getId(), null);
+        }
+        sealed[block.getId()] = true;
+    }
+
+    private PhiInst newPhi(LocalVar var, BasicBlock block) {
+        int n = block.numPredecessors();
+        var incoming = new ArrayList<Instruction>(n);
+        for (int i = 0; i < n; i++) {
+            incoming.add(block.getPredecessor(i).getLast());
+        }
+        var phi = new PhiInst(newVersion(var), Collections.nCopies(n, var), incoming);
+        f.insertBefore(block.getFirst(), phi);
+        phiVariable.put(phi, var);
+        pending.add(phi);
+        return phi;
+    }
+
+    private Value addOperands(PhiInst phi, LocalVar var, BasicBlock block) {
+        for (int i = 0; i < block.numPredecessors(); i++) {
+            phi.setOperand(i, read(var, block.getPredecessor(i)));
+        }
+        pending.remove(phi);
+        return removeIfTrivial(phi);
+    }
+
+    /**
+     * Removes {@code phi} if it merges a single value besides itself, and then the phis that used it and may have
+     * become trivial in turn. Returns the value that stands for {@code phi}.
+     */
+    private Value removeIfTrivial(PhiInst phi) {
+        LocalVar dst = phi.getDstVar();
+        Value same = null;
+        for (int k = 0; k < phi.numIncoming(); k++) {
+            Value v = phi.getIncomingValue(k);
+            if (v == same || v == dst)
+                continue;
+            if (same != null)
+                return dst;
+            same = v;
+        }
+        // Only reachable through itself, so never written
+        if (same == null)
+            same = phiVariable.get(phi);
+
+        var uses = dst.getUses();
+        dst.replaceAllUsesWith(same);
+        replaced.put(dst, same);
+        phiVariable.remove(phi);
+        f.remove(phi);
+        for (Use u : uses) {
+            Instruction user = u.getUser();
+            if (user instanceof PhiInst && phiVariable.containsKey(user) && !pending.contains(user))
+                removeIfTrivial((PhiInst) user);
+        }
+        return resolve(same);
+    }
+
+    private LocalVar newVersion(LocalVar var) {
+        int n = versions.merge(var, 1, Integer::sum);
+        return new LocalVar(var.getType(), var.getName().substring(1) + "." + n);
+    }
+}
@@ -0,0 +1,133 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.CopyInst;
+import crux.midend.ir.core.insts.PhiInst;
+
+import java.util.*;
+
+/**
+ * Takes functions out of SSA form, for the engines and the code generator, which know no {@link PhiInst}.
+ * <p>
+ * The phis of a block become copies on each edge into it. The copies of one edge form a parallel copy, since all phis
+ * read before any of them writes, so they are put in an order where no copy overwrites a value that a later one still
+ * reads, with a temporary to break each cycle such as a swap. Each edge gets its own copies, placed on the edge
+ * itself rather than at the end of the predecessor, which is how a branch to several blocks with phis keeps the
+ * copies of one of them out of the other. Takes time linear in the number of phi operands.
+ */
+public final class SSADestructor {
+    private SSADestructor() {}
+
+    /** Replaces the phis of every function of {@code p} by copies. */
+    public static void destruct(Program p) {
+        for (Iterator<Function> it = p.getFunctions(); it.hasNext(); ) {
+            destruct(it.next());
+        }
+    }
+
+    /** Replaces the phis of {@code f} by copies. */
+    public static void destruct(Function f) {
+        // The phis of a block can lead straight to those of the next block
+        var groups = new ArrayList<List<PhiInst>>();
+        for (BasicBlock block : f.getControlFlowGraph().getBlocks()) {
+            var phis = new ArrayList<PhiInst>();
+            for (int i = 0; i < block.size() && block.get(i) instanceof PhiInst; i++) {
+                phis.add((PhiInst) block.get(i));
+            }
+            if (!phis.isEmpty())
+                groups.add(phis);
+        }
+        for (List<PhiInst> phis : groups) {
+            Instruction head = phis.get(0);
+            var preds = Collections.newSetFromMap(new IdentityHashMap<Instruction, Boolean>());
+            for (int i = 0; i < head.numPredecessors(); i++) {
+                preds.add(head.getPredecessor(i));
+            }
+            for (Instruction pred : preds) {
+                // Edges the phis know nothing about are never taken, such as the next edge of a return
+                int k = phis.get(0).indexOfIncoming(pred);
+                if (k < 0)
+                    continue;
+                var dsts = new ArrayList<LocalVar>(phis.size());
+                var srcs = new ArrayList<Value>(phis.size());
+                for (PhiInst phi : phis) {
+                    dsts.add(phi.getDstVar());
+                    srcs.add(phi.getIncomingValue(phi.indexOfIncoming(pred)));
+                }
+                for (int slot = 0; slot < pred.numNext(); slot++) {
+                    if (pred.getNext(slot) != head)
+                        continue;
+                    // A chain of its own for each edge, for a jump with both edges to this block
+                    var chain = sequentialize(f, dsts, srcs);
+                    if (chain.isEmpty())
+                        break;
+                    f.setNext(pred, slot, chain.get(0));
+                    for (int c = 1; c < chain.size(); c++) {
+                        f.setNext(chain.get(c - 1), 0, chain.get(c));
+                    }
+                    f.setNext(chain.get(chain.size() - 1), 0, head);
+                }
+            }
+            for (PhiInst phi : phis) {
+                f.remove(phi);
+            }
+        }
+    }
+
+    /**
+     * Orders the parallel copy {@code dsts[i] = srcs[i]} into sequential copies, following Boissinot et al.,
+     * "Revisiting Out-of-SSA Translation for Correctness, Code Quality, and Efficiency" (CGO 2009). A copy is emitted
+     * once its destination is no longer read by pending copies; when only cycles are left, one value of a cycle is
+     * saved in a temporary first.
+     */
+    static List<CopyInst> sequentialize(Function f, List<LocalVar> dsts, List<? extends Value> srcs) {
+        var copies = new ArrayList<CopyInst>();
+        var constants = new ArrayList<CopyInst>();
+        // Where the value a source had before the copy can be found now
+        var location = new IdentityHashMap<Value, Value>();
+        var source = new IdentityHashMap<LocalVar, Value>();
+        var todo = new ArrayDeque<LocalVar>();
+        for (int i = 0; i < dsts.size(); i++) {
+            LocalVar dst = dsts.get(i);
+            Value src = srcs.get(i);
+            if (src == dst)
+                continue;
+            // Constants are never overwritten, so their copies can come after all others
+            if (src instanceof Constant) {
+                constants.add(new CopyInst(dst, src));
+                continue;
+            }
+            location.put(src, src);
+            source.put(dst, src);
+            todo.push(dst);
+        }
+        var ready = new ArrayDeque<LocalVar>();
+        for (LocalVar dst : todo) {
+            if (!location.containsKey(dst))
+                ready.push(dst);
+        }
+        var done = Collections.newSetFromMap(new IdentityHashMap<LocalVar, Boolean>());
+        while (!todo.isEmpty()) {
+            while (!ready.isEmpty()) {
+                LocalVar dst = ready.pop();
+                Value src = source.get(dst);
+                Value at = location.get(src);
+                copies.add(new CopyInst(dst, at));
+                done.add(dst);
+                location.put(src, dst);
+                // The source was still in its own place and is now free to be overwritten
+                if (src == at && source.containsKey(src) && !done.contains(src))
+                    ready.push((LocalVar) src);
+            }
+            LocalVar dst = todo.pop();
+            if (!done.contains(dst)) {
+                LocalVar temp = f.getTempVar(dst.getType());
+                copies.add(new CopyInst(temp, dst));
+                location.put(dst, temp);
+                ready.push(dst);
+            }
+        }
+        copies.addAll(constants);
+        return copies;
+    }
+}
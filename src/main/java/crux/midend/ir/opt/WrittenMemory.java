@@ -0,0 +1,92 @@
+package crux.midend.ir.opt;
+
+import crux.midend.ir.core.*;
+import crux.midend.ir.core.insts.*;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * The words of globals a function is known to have written at a point, for the passes that remove, merge or move
+ * loads. A load of a word that was never written reports a read of uninitialized memory, and that report is output
+ * like any other, so such a load has to run exactly as often as in the program as written. A word is known to be
+ * written if it is in bounds of a global at a constant index, and the global has initial values or a store to the same
+ * word comes first on every path. Loads through any other address are taken to possibly read uninitialized memory.
+ */
+final class WrittenMemory {
+    private final DominatorTree tree;
+    private final Map<AddressVar, GlobalDecl> globals;
+    /** The stores to each word of a global with a constant index, by the global and the index. */
+    private final Map<AddressVar, Map<Long, List<StoreInst>>> stores = new HashMap<>();
+
+    WrittenMemory(DominatorTree tree, Map<AddressVar, GlobalDecl> globals) {
+        this.tree = tree;
+        this.globals = globals;
+        for (BasicBlock block : tree.getPreorder()) {
+            for (Instruction inst : block.getInstructions()) {
+                if (!(inst instanceof StoreInst))
+                    continue;
+                AddressAt at = addressOf(((StoreInst) inst).getDestAddress());
+                Long index = at != null ? indexOf(at) : null;
+                if (index != null) {
+                    stores.computeIfAbsent(at.getBase(), base -> new HashMap<>())
+                            .computeIfAbsent(index, i -> new ArrayList<>()).add((StoreInst) inst);
+                }
+            }
+        }
+    }
+
+    /** The globals of {@code p} by their addresses. */
+    static Map<AddressVar, GlobalDecl> globalsOf(Program p) {
+        var globals = new IdentityHashMap<AddressVar, GlobalDecl>();
+        for (Iterator<GlobalDecl> it = p.getGlobals(); it.hasNext(); ) {
+            GlobalDecl g = it.next();
+            globals.put(g.getAllocatedAddress(), g);
+        }
+        return globals;
+    }
+
+    /** Whether the word {@code load} reads has been written whenever it runs. */
+    boolean isWritten(LoadInst load) {
+        return isWritten(load.getSrcAddress(), store -> tree.dominates(store, load));
+    }
+
+    /** Whether the word {@code address} points to has been written whenever control enters {@code block}. */
+    boolean isWrittenBefore(AddressVar address, BasicBlock block) {
+        ControlFlowGraph cfg = tree.getControlFlowGraph();
+        return isWritten(address, store -> tree.strictlyDominates(cfg.blockOf(store), block));
+    }
+
+    private boolean isWritten(AddressVar address, Predicate<StoreInst> comesFirst) {
+        AddressAt at = addressOf(address);
+        Long index = at != null ? indexOf(at) : null;
+        GlobalDecl g = at != null ? globals.get(at.getBase()) : null;
+        if (index == null || g == null || index < 0 || index >= ((IntegerConstant) g.getNumElement()).getValue())
+            return false;
+        if (g.getInitialValues() != null)
+            return true;
+        for (StoreInst store : stores.getOrDefault(at.getBase(), Map.of()).getOrDefault(index, List.of())) {
+            if (comesFirst.test(store))
+                return true;
+        }
+        return false;
+    }
+
+    private static AddressAt addressOf(AddressVar address) {
+        if (address.numDefs() != 1 || !(address.getDefs().get(0) instanceof AddressAt))
+            return null;
+        return (AddressAt) address.getDefs().get(0);
+    }
+
+    /** The index {@code at} adds to its base, or null if it is not constant. */
+    private static Long indexOf(AddressAt at) {
+        return at.getOffset() != null ? constantOf(at.getOffset()) : Long.valueOf(0);
+    }
+
+    static Long constantOf(LocalVar v) {
+        if (v.numDefs() != 1 || !(v.getDefs().get(0) instanceof CopyInst))
+            return null;
+        Value source = ((CopyInst) v.getDefs().get(0)).getSrcValue();
+        return source instanceof IntegerConstant ? ((IntegerConstant) source).getValue() : null;
+    }
+}
@@ -17,4 +17,10 @@ public final class IRPrinter {
         var text = program.format(mValueFormatter);
         mStdOut.print(text);
     }
+
+    /** Prints the program with {@code annotator}'s text added below each instruction. */
+    public void print(Program program, java.util.function.Function<Instruction, String> annotator) {
+        var text = program.format(mValueFormatter, annotator);
+        mStdOut.print(text);
+    }
 }
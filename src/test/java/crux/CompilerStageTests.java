@@ -1,13 +1,22 @@
 package crux;
 
+import crux.midend.ir.emulator.BatchRunner;
+import crux.midend.ir.emulator.EngineKind;
+import crux.midend.ir.emulator.TraceReader;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.DynamicTest;
 import org.junit.jupiter.api.TestFactory;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -168,6 +177,418 @@ final class CompilerStageTests {
         }));
     }
 
+    /** Every emulator engine has to print exactly what the reference IR interpreter prints, on every ir program. */
+    @TestFactory
+    Stream<DynamicTest> emulatorEngines() throws IOException {
+        var tests = getTests("ir");
+        return Stream.of(EngineKind.values())
+                .filter(engine -> engine != EngineKind.INTERPRETER)
+                .flatMap(engine -> tests.stream().map(test -> dynamicTest(engine.getName() + ": " + test.in, () -> {
+                    var expectedOutput = emulate(test, driver -> {});
+                    var actualOutput = emulate(test, driver -> driver.setEmulatorEngine(engine.getName()));
+                    Assertions.assertEquals(expectedOutput, actualOutput, String.format(
+                            "The %s engine and the IR interpreter differ on program %s.", engine.getName(), test.in));
+                })));
+    }
+
+    /**
+     * A run of an ir program on the register engine that writes a checkpoint every few steps has to print what the
+     * program prints, and restoring its last checkpoint has to print exactly the rest: the output the checkpoint says
+     * was written, followed by the restored output, is the .out file. Programs that finish before their first
+     * checkpoint, without a call or a back edge, are skipped after the first check.
+     */
+    @TestFactory
+    Stream<DynamicTest> checkpoints() throws IOException {
+        return getTests("ir").stream().map(test -> dynamicTest("--emulator-checkpoint " + test.in, () -> {
+            var directory = Files.createTempDirectory("crux-test");
+            var checkpoint = directory.resolve("run.ckpt");
+            try {
+                var expectedOutput = readResourceToString(test.out);
+                var fullOutput = emulate(test, driver -> {
+                    driver.setEmulatorCheckpointFile(checkpoint.toString());
+                    driver.setEmulatorCheckpointInterval(10);
+                });
+                Assertions.assertEquals(expectedOutput, fullOutput);
+                Assumptions.assumeTrue(Files.exists(checkpoint), "The program wrote no checkpoint.");
+
+                var loader = getClass().getClassLoader();
+                var outStream = new ByteArrayOutputStream();
+                var errStream = new ByteArrayOutputStream();
+                var driver = new Driver(new PrintStream(outStream), new PrintStream(errStream));
+                driver.setInputStream(loader.getResourceAsStream(test.in));
+                driver.setEmulatorInput(loader.getResourceAsStream(test.input));
+                driver.setEmulatorRestoreFile(checkpoint.toString());
+                driver.run();
+
+                var restored = Pattern.compile("restored checkpoint '.*', continuing after (\\d+) bytes of output")
+                        .matcher(errStream.toString());
+                Assertions.assertTrue(restored.find(), errStream.toString());
+                int written = Integer.parseInt(restored.group(1));
+                Assertions.assertEquals(expectedOutput, fullOutput.substring(0, written) + outStream,
+                        String.format("Restoring a checkpoint of %s after %d bytes changes its output.", test.in,
+                                written));
+            } finally {
+                Files.deleteIfExists(checkpoint);
+                Files.deleteIfExists(directory);
+            }
+        }));
+    }
+
+    /** Only the register engine can checkpoint a run; asking another engine to is an error. */
+    @TestFactory
+    Stream<DynamicTest> uncheckpointableEngines() throws IOException {
+        var test = getTests("ir").get(0);
+        return Stream.of(EngineKind.values())
+                .filter(engine -> engine != EngineKind.REGISTER)
+                .map(engine -> dynamicTest(engine.getName() + " --emulator-checkpoint", () -> {
+                    var directory = Files.createTempDirectory("crux-test");
+                    var checkpoint = directory.resolve("run.ckpt");
+                    try {
+                        Assertions.assertEquals(String.format("error: the %s engine cannot checkpoint or restore a "
+                                        + "run, only the register engine can%n", engine.getName()),
+                                emulate(test, driver -> {
+                                    driver.setEmulatorCheckpointFile(checkpoint.toString());
+                                    driver.setEmulatorEngine(engine.getName());
+                                }));
+                        Assertions.assertFalse(Files.exists(checkpoint));
+                    } finally {
+                        Files.deleteIfExists(checkpoint);
+                        Files.deleteIfExists(directory);
+                    }
+                }));
+    }
+
+    /**
+     * The engines that can observe a run have to report it the same way: as the --debug-emulator text the emulator has
+     * always printed, in the .debug file of each ir program; as a binary trace that decodes to its .trace file, or to
+     * the end of it when only the last records are kept; and as a profile with the collapsed stacks and hit counts in
+     * its .collapsed and .profile.dot files.
+     */
+    @TestFactory
+    Stream<DynamicTest> observedRuns() throws IOException {
+        var tests = getTests("ir");
+        return Stream.of(EngineKind.INTERPRETER, EngineKind.REGISTER).flatMap(engine -> tests.stream().flatMap(test -> {
+            var name = test.in.replace(".crx", "");
+            Consumer<Driver> selectEngine = driver -> driver.setEmulatorEngine(engine.getName());
+            return Stream.of(
+                    dynamicTest(engine.getName() + " --debug-emulator " + test.in, () -> Assertions.assertEquals(
+                            readResourceToString(name + ".debug"), emulate(test, selectEngine.andThen(
+                                    Driver::enableDebugEmulator)))),
+                    dynamicTest(engine.getName() + " --emulator-trace " + test.in, () -> {
+                        var expected = readResourceToString(name + ".trace");
+                        Assertions.assertEquals(expected, trace(test, selectEngine, 0));
+                        var lines = expected.lines().collect(Collectors.toList());
+                        var last = lines.subList(Math.max(0, lines.size() - 7), lines.size());
+                        Assertions.assertEquals(last, trace(test, selectEngine, 7).lines().collect(Collectors.toList()),
+                                "A trace ring of 7 records has to keep the last 7 records.");
+                    }),
+                    dynamicTest(engine.getName() + " --emulator-profile " + test.in, () -> {
+                        var directory = Files.createTempDirectory("crux-test");
+                        try {
+                            var profile = directory.resolve("profile");
+                            emulate(test, selectEngine.andThen(driver -> driver.setEmulatorProfileFile(
+                                    profile.toString())));
+                            Assertions.assertEquals(readResourceToString(name + ".collapsed"),
+                                    Files.readString(profile));
+                            Assertions.assertEquals(readResourceToString(name + ".profile.dot"),
+                                    Files.readString(Path.of(profile + ".dot")));
+                        } finally {
+                            deleteDirectory(directory);
+                        }
+                    }));
+        }));
+    }
+
+    /**
+     * Runs {@code test} with a binary trace, keeping only the last {@code ring} records unless it is 0, and returns
+     * the trace as {@link TraceReader} decodes it with the instructions in its .sites file.
+     */
+    private String trace(InOut test, Consumer<Driver> configure, int ring) throws IOException {
+        var directory = Files.createTempDirectory("crux-test");
+        try {
+            var trace = directory.resolve("trace");
+            var output = emulate(test, configure.andThen(driver -> {
+                driver.setEmulatorTraceFile(trace.toString());
+                driver.setEmulatorTraceRing(ring);
+            }));
+            Assertions.assertEquals(readResourceToString(test.out), output);
+            var decoded = new ByteArrayOutputStream();
+            new TraceReader(trace).print(new PrintStream(decoded));
+            return decoded.toString();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            for (var file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /** Asking an engine that cannot trace or memoize a run to do so is an error, not a switch to another engine. */
+    @TestFactory
+    Stream<DynamicTest> unobservableEngines() throws IOException {
+        var test = getTests("ir").get(0);
+        return Stream.of(EngineKind.CLOSURE, EngineKind.JIT, EngineKind.AST).flatMap(engine -> Stream.of(
+                dynamicTest(engine.getName() + " --debug-emulator", () -> Assertions.assertEquals(
+                        String.format("error: the %s engine cannot trace a run, only the interpreter and register "
+                                + "engines can%n", engine.getName()),
+                        emulate(test, driver -> {
+                            driver.enableDebugEmulator();
+                            driver.setEmulatorEngine(engine.getName());
+                        }))),
+                dynamicTest(engine.getName() + " --emulator-memoize", () -> Assertions.assertEquals(
+                        String.format("error: the %s engine cannot memoize a run, only the interpreter and register "
+                                + "engines can%n", engine.getName()),
+                        emulate(test, driver -> {
+                            driver.enableEmulatorMemoize();
+                            driver.setEmulatorEngine(engine.getName());
+                        })))));
+    }
+
+    /**
+     * The memo programs have to print the same with their pure functions memoized, on both engines that memoize, and
+     * report exactly the hits, misses and entries in their .memo file with 4 results cached per function: fib reuses
+     * results, lru cycles through more arguments than fit and then through fewer, and impure has only one pure
+     * function among functions that read a global the program writes, print, or call such a function.
+     */
+    @TestFactory
+    Stream<DynamicTest> memoize() throws IOException {
+        var tests = getTests("memo");
+        return Stream.of(EngineKind.INTERPRETER, EngineKind.REGISTER).flatMap(engine -> tests.stream()
+                .map(test -> dynamicTest(engine.getName() + " --emulator-memoize " + test.in, () -> {
+                    var loader = getClass().getClassLoader();
+                    var outStream = new ByteArrayOutputStream();
+                    var errStream = new ByteArrayOutputStream();
+                    var driver = new Driver(new PrintStream(outStream), new PrintStream(errStream));
+                    driver.setInputStream(loader.getResourceAsStream(test.in));
+                    driver.enableEmulator();
+                    driver.setEmulatorInput(loader.getResourceAsStream(test.input));
+                    driver.setEmulatorEngine(engine.getName());
+                    driver.enableEmulatorMemoize();
+                    driver.setEmulatorMemoSize(4);
+                    driver.run();
+
+                    Assertions.assertEquals(readResourceToString(test.out), outStream.toString());
+                    Assertions.assertEquals(readResourceToString(test.in.replace(".crx", ".memo")),
+                            errStream.toString(), String.format("Memoizing %s on the %s engine hits or misses "
+                                    + "differently.", test.in, engine.getName()));
+                })));
+    }
+
+    /**
+     * Every batch program runs against the directory of inputs of the same name, with a call depth of 100, on every
+     * engine a batch can use and on one thread or several. Each input has to get its own output file matching its .out
+     * file, whatever the order the runs finish in. An input with an .err file has to fail with that error after
+     * writing its .out file, without affecting the other runs.
+     */
+    @TestFactory
+    Stream<DynamicTest> batches() throws IOException {
+        var tests = getTests("batch");
+        return Stream.of(EngineKind.values())
+                .filter(engine -> engine != EngineKind.AST)
+                .flatMap(engine -> Stream.of(1, 4).flatMap(threads -> tests.stream().map(test -> dynamicTest(
+                        String.format("%s --emulator-threads %d %s", engine.getName(), threads, test.in), () -> {
+                            var loader = getClass().getClassLoader();
+                            var inputs = Path.of(loader.getResource(test.in.replace(".crx", "")).toURI());
+                            var outputs = Files.createTempDirectory("crux-test");
+                            try {
+                                var errStream = new ByteArrayOutputStream();
+                                var driver = new Driver(new PrintStream(errStream), new PrintStream(errStream));
+                                driver.setInputStream(loader.getResourceAsStream(test.in));
+                                driver.setEmulatorEngine(engine.getName());
+                                driver.setEmulatorMaxCallDepth(100);
+                                driver.setEmulatorBatchInputs(inputs.toString());
+                                driver.setEmulatorBatchOutput(outputs.toString());
+                                driver.setEmulatorThreads(threads);
+                                driver.run();
+                                assertBatch(inputs, outputs, errStream.toString());
+                            } finally {
+                                deleteDirectory(outputs);
+                            }
+                        }))));
+    }
+
+    /** Checks the output files in {@code outputs} and the summary of a batch run over {@code inputs}. */
+    private static void assertBatch(Path inputs, Path outputs, String summary) throws IOException {
+        var expectedLines = new ArrayList<String>();
+        for (var input : BatchRunner.listInputs(inputs)) {
+            var name = input.getFileName().toString().replace(".in", "");
+            Assertions.assertEquals(Files.readString(inputs.resolve(name + ".out")),
+                    Files.readString(outputs.resolve(name + ".out")),
+                    String.format("The batch output for %s differs from expected output.", input.getFileName()));
+            var error = inputs.resolve(name + ".err");
+            expectedLines.add(input.getFileName() + " " + (Files.exists(error)
+                    ? "failed " + Files.readString(error).trim() : "ok"));
+        }
+        var actualLines = summary.lines()
+                .filter(line -> !line.startsWith("batch: "))
+                .map(line -> line.replaceAll("^(\\S+)\\s+(\\S+)\\s+.*? steps(\\s+(.*))?$", "$1 $2 $4").trim())
+                .collect(Collectors.toList());
+        Assertions.assertEquals(expectedLines, actualLines, summary);
+    }
+
+    /**
+     * The ir programs, plus the phi swap and lost copy cases in ssa, have to print the same through SSA form: emulated,
+     * where the IR interpreter runs the phis, and native, after SSA destruction. Copy propagation under -O1 is what
+     * turns the copies of the ssa programs into phis that read each other.
+     */
+    @TestFactory
+    Stream<DynamicTest> ssa() throws IOException {
+        var tests = new ArrayList<>(getTests("ir"));
+        tests.addAll(getTests("ssa"));
+        return Stream.of(0, 1).flatMap(level -> tests.stream().flatMap(test -> {
+            var name = String.format("--ssa -O%d %s", level, test.in);
+            Consumer<Driver> options = driver -> {
+                driver.enableSSA();
+                driver.setOptimizationLevel(level);
+            };
+            return Stream.of(
+                    dynamicTest("emulated " + name, () -> Assertions.assertEquals(
+                            readResourceToString(test.out).trim(), emulate(test, options).trim())),
+                    dynamicTest("native " + name, () -> Assertions.assertEquals(
+                            readResourceToString(test.out).trim(), compileAndRun(test, options).trim())));
+        }));
+    }
+
+    /**
+     * The ir programs, plus the programs in opt that each pin down what one pass may and may not change, have to print
+     * the same under -O1, emulated and native. That includes every report of a read of uninitialized memory.
+     */
+    @TestFactory
+    Stream<DynamicTest> optimize() throws IOException {
+        var tests = new ArrayList<>(getTests("ir"));
+        tests.addAll(getTests("opt"));
+        Consumer<Driver> options = driver -> driver.setOptimizationLevel(1);
+        return tests.stream().flatMap(test -> Stream.of(
+                dynamicTest("emulated -O1 " + test.in, () -> Assertions.assertEquals(
+                        readResourceToString(test.out).trim(), emulate(test, options).trim())),
+                dynamicTest("native -O1 " + test.in, () -> Assertions.assertEquals(
+                        withoutDiagnostics(readResourceToString(test.out)).trim(),
+                        compileAndRun(test, options).trim()))));
+    }
+
+    /** {@code output} without the emulator's reports of uninitialized reads, which native code does not check for. */
+    private static String withoutDiagnostics(String output) {
+        return output.replace("Reading from uninitialized memory\n", "");
+    }
+
+    /** The opt programs with a .cfg.dot file have to optimize to exactly that IR under -O1. */
+    @TestFactory
+    Stream<DynamicTest> optimizedIR() throws IOException {
+        var loader = getClass().getClassLoader();
+        return getTests("opt").stream()
+                .map(test -> test.in.replace(".crx", ".cfg.dot"))
+                .filter(expected -> loader.getResource(expected) != null)
+                .map(expected -> dynamicTest(expected, () -> {
+                    var outStream = new ByteArrayOutputStream();
+                    var outPrintStream = new PrintStream(outStream);
+                    var driver = new Driver(outPrintStream, outPrintStream);
+
+                    driver.setInputStream(loader.getResourceAsStream(expected.replace(".cfg.dot", ".crx")));
+                    driver.setOptimizationLevel(1);
+                    driver.enablePrintIR();
+                    driver.run();
+
+                    var expectedOutput = readResourceToString(expected);
+                    Assertions.assertEquals(expectedOutput.trim(), outStream.toString().trim(),
+                            String.format("Optimized IR for %s differs from expected output.", expected));
+                }));
+    }
+
+    /**
+     * Partial evaluation must not change what a program prints, emulated or native, whether it evaluates the whole
+     * program, the part before the first input, or nothing. The pe programs pin down which of these happens with the
+     * IR in their .cfg.dot file, and their .out file is the output without partial evaluation.
+     */
+    @TestFactory
+    Stream<DynamicTest> partialEvaluation() throws IOException {
+        var tests = new ArrayList<>(getTests("ir"));
+        tests.addAll(getTests("pe"));
+        Consumer<Driver> plain = driver -> {};
+        Consumer<Driver> options = Driver::enablePartialEvaluation;
+        return tests.stream().flatMap(test -> Stream.of(
+                dynamicTest("emulated --partial-eval " + test.in, () -> Assertions.assertEquals(
+                        readResourceToString(test.out), emulate(test, options))),
+                dynamicTest("native --partial-eval " + test.in, () -> Assertions.assertEquals(
+                        compileAndRun(test, plain), compileAndRun(test, options)))));
+    }
+
+    /** The pe programs have to evaluate to exactly the IR in their .cfg.dot file. */
+    @TestFactory
+    Stream<DynamicTest> partiallyEvaluatedIR() throws IOException {
+        var loader = getClass().getClassLoader();
+        return getTests("pe").stream()
+                .map(test -> test.in.replace(".crx", ".cfg.dot"))
+                .map(expected -> dynamicTest(expected, () -> {
+                    var outStream = new ByteArrayOutputStream();
+                    var outPrintStream = new PrintStream(outStream);
+                    var driver = new Driver(outPrintStream, outPrintStream);
+
+                    driver.setInputStream(loader.getResourceAsStream(expected.replace(".cfg.dot", ".crx")));
+                    driver.enablePartialEvaluation();
+                    driver.enablePrintIR();
+                    driver.run();
+
+                    var expectedOutput = readResourceToString(expected);
+                    Assertions.assertEquals(expectedOutput.trim(), outStream.toString().trim(),
+                            String.format("Partially evaluated IR for %s differs from expected output.", expected));
+                }));
+    }
+
+    /** Runs {@code test} in the emulator, with the options {@code configure} sets, and returns everything it printed. */
+    private String emulate(InOut test, Consumer<Driver> configure) {
+        var loader = getClass().getClassLoader();
+        var outStream = new ByteArrayOutputStream();
+        var outPrintStream = new PrintStream(outStream);
+        var driver = new Driver(outPrintStream, outPrintStream);
+
+        driver.setInputStream(loader.getResourceAsStream(test.in));
+        driver.enableEmulator();
+        driver.setEmulatorInput(loader.getResourceAsStream(test.input));
+        configure.accept(driver);
+        driver.run();
+        return outStream.toString();
+    }
+
+    /**
+     * Compiles {@code test} with the options {@code configure} sets, then assembles, runs and returns its output. The
+     * assembly and the executable go to a temporary directory, not the working tree.
+     */
+    private String compileAndRun(InOut test, Consumer<Driver> configure) throws IOException, InterruptedException {
+        var loader = getClass().getClassLoader();
+        var driver = new Driver();
+        var dir = Files.createTempDirectory("crux-test");
+        var assembly = dir.resolve("a.s");
+        var binary = dir.resolve("autotest.bin");
+        try {
+            driver.setInputStream(loader.getResourceAsStream(test.in));
+            driver.setAssemblyFile(assembly.toString());
+            configure.accept(driver);
+            driver.run();
+            Process build = new ProcessBuilder("gcc", assembly.toString(), "src/runtime/runtime.c", "-o",
+                    binary.toString()).start();
+            if (build.waitFor() != 0) {
+                throw new Error("Assembling and linking failed");
+            }
+            Process run = new ProcessBuilder(binary.toString()).start();
+            try (var input = loader.getResourceAsStream(test.input); var runInput = run.getOutputStream()) {
+                Objects.requireNonNull(input).transferTo(runInput);
+            }
+            var output = new String(run.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            run.waitFor();
+            return output;
+        } finally {
+            Files.deleteIfExists(assembly);
+            Files.deleteIfExists(binary);
+            Files.delete(dir);
+        }
+    }
+
     private List<InOut> getTests(String stageName) throws IOException {
         var loader = getClass().getClassLoader();
         var folder = String.format("crux/stages/%s", stageName);
@@ -0,0 +1,229 @@
+package crux.bench;
+
+import crux.frontend.ParseTreeLower;
+import crux.frontend.ast.DeclarationList;
+import crux.frontend.pt.CruxLexer;
+import crux.frontend.pt.CruxParser;
+import crux.frontend.types.TypeChecker;
+import crux.midend.ASTLower;
+import crux.midend.ir.core.Function;
+import crux.midend.ir.core.Program;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generated Crux programs and the front end steps the benchmarks in this package share. The benchmarks are plain
+ * {@code main} methods, not tests: run them from the test classpath after {@code mvn test-compile}, e.g.
+ * {@code java -Xss1g -cp target/classes:target/test-classes:<antlr4-runtime jar>
+ * crux.midend.ir.core.DominatorTreeBenchmark 1500 1}.
+ */
+public final class BenchmarkPrograms {
+    private BenchmarkPrograms() {}
+
+    /**
+     * A {@code main} of {@code width} nests of {@code depth} blocks, alternating {@code while} and {@code if/else}.
+     * Each nest is one deep path in the dominator tree, and the function has about {@code 3 * depth * width} blocks.
+     * The front end recurses once per level, so deep nests need a larger thread stack, e.g. {@code -Xss1g}.
+     */
+    public static String nestedBlocks(int depth, int width) {
+        var sb = new StringBuilder();
+        sb.append("func main() : void {\n");
+        sb.append("  var x : int;\n");
+        sb.append("  var i : int;\n");
+        sb.append("  let x = ::readInt();\n");
+        sb.append("  let i = 0;\n");
+        for (int k = 0; k < width; k++) {
+            for (int j = 0; j < depth; j++) {
+                if (j % 2 == 0)
+                    sb.append("  while (i < ").append(j).append(") { let i = i + 1;\n");
+                else
+                    sb.append("  if (x < ").append(j).append(") { let x = x + 1;\n");
+            }
+            for (int j = depth - 1; j >= 0; j--) {
+                sb.append(j % 2 == 0 ? "  }\n" : "  } else { let x = x - 1; }\n");
+            }
+        }
+        sb.append("  ::printInt(x);\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /** A short script that prints the squares of {@code 0} up to {@code n - 1}, one call per square. */
+    public static String squares(int n) {
+        return "func sq(x : int) : int { return x * x; }\n"
+                + "func main() : void {\n"
+                + "  var i : int;\n"
+                + "  let i = 0;\n"
+                + "  while (i < " + n + ") {\n"
+                + "    ::printInt(::sq(i));\n"
+                + "    ::println();\n"
+                + "    let i = i + 1;\n"
+                + "  }\n"
+                + "}\n";
+    }
+
+    /** Naive recursive Fibonacci of {@code n}: about {@code 1.6^n} calls. */
+    public static String fib(int n) {
+        return "func fib(n : int) : int {\n"
+                + "  if (n < 2) { return n; }\n"
+                + "  return ::fib(n - 1) + ::fib(n - 2);\n"
+                + "}\n"
+                + "func main() : void {\n"
+                + "  ::printInt(::fib(" + n + "));\n"
+                + "  ::println();\n"
+                + "}\n";
+    }
+
+    /** {@code passes} read-modify-write sweeps over a global array of {@code size} ints. */
+    public static String arrayLoop(int passes, int size) {
+        return "array a : int[" + size + "];\n"
+                + "func main() : void {\n"
+                + "  var i : int;\n"
+                + "  var j : int;\n"
+                + "  var s : int;\n"
+                + "  let i = 0;\n"
+                + "  while (i < " + size + ") {\n"
+                + "    let a[i] = 0;\n"
+                + "    let i = i + 1;\n"
+                + "  }\n"
+                + "  let j = 0;\n"
+                + "  let s = 0;\n"
+                + "  while (j < " + passes + ") {\n"
+                + "    let i = 0;\n"
+                + "    while (i < " + size + ") {\n"
+                + "      let a[i] = a[i] + i * 2;\n"
+                + "      let s = s + a[i];\n"
+                + "      let i = i + 1;\n"
+                + "    }\n"
+                + "    let j = j + 1;\n"
+                + "  }\n"
+                + "  ::printInt(s);\n"
+                + "  ::println();\n"
+                + "}\n";
+    }
+
+    /** {@code passes} sweeps of {@code a[i] = a[i] + 3} over a global array of {@code size} ints. */
+    public static String arrayUpdate(int passes, int size) {
+        return "array a : int[" + size + "];\n"
+                + "func main() : void {\n"
+                + "  var i : int;\n"
+                + "  var j : int;\n"
+                + "  let i = 0;\n"
+                + "  while (i < " + size + ") {\n"
+                + "    let a[i] = 0;\n"
+                + "    let i = i + 1;\n"
+                + "  }\n"
+                + "  let j = 0;\n"
+                + "  while (j < " + passes + ") {\n"
+                + "    let i = 0;\n"
+                + "    while (i < " + size + ") {\n"
+                + "      let a[i] = a[i] + 3;\n"
+                + "      let i = i + 1;\n"
+                + "    }\n"
+                + "    let j = j + 1;\n"
+                + "  }\n"
+                + "  ::printInt(a[0]);\n"
+                + "  ::println();\n"
+                + "}\n";
+    }
+
+    /** {@code passes} sums over a global array of {@code size} ints. */
+    public static String arraySum(int passes, int size) {
+        return "array a : int[" + size + "];\n"
+                + "func main() : void {\n"
+                + "  var i : int;\n"
+                + "  var j : int;\n"
+                + "  var s : int;\n"
+                + "  let i = 0;\n"
+                + "  while (i < " + size + ") {\n"
+                + "    let a[i] = i;\n"
+                + "    let i = i + 1;\n"
+                + "  }\n"
+                + "  let j = 0;\n"
+                + "  let s = 0;\n"
+                + "  while (j < " + passes + ") {\n"
+                + "    let i = 0;\n"
+                + "    while (i < " + size + ") {\n"
+                + "      let s = s + a[i];\n"
+                + "      let i = i + 1;\n"
+                + "    }\n"
+                + "    let j = j + 1;\n"
+                + "  }\n"
+                + "  ::printInt(s);\n"
+                + "  ::println();\n"
+                + "}\n";
+    }
+
+    /**
+     * {@code functions} functions of {@code branches} if/else statements each, with multipliers from a fixed seed,
+     * and a {@code main} that calls the first. 584 functions of 90 branches lower to about a million instructions.
+     */
+    public static String manyBranches(int functions, int branches) {
+        var random = new Random(1);
+        var sb = new StringBuilder();
+        sb.append("var g : int;\n");
+        for (int f = 0; f < functions; f++) {
+            sb.append("func f").append(f).append("(a : int, b : int) : int {\n");
+            sb.append("  var x : int;\n");
+            sb.append("  let x = a;\n");
+            for (int j = 0; j < branches; j++) {
+                int m = 2 + random.nextInt(8);
+                sb.append("  if (x < b + ").append(j).append(") { let x = x * ").append(m).append(" + a; }");
+                sb.append(" else { let x = x - ").append(m).append("; let g = g + 1; }\n");
+            }
+            sb.append("  return x;\n");
+            sb.append("}\n");
+        }
+        sb.append("func main() : void {\n");
+        sb.append("  ::printInt(::f0(1, 2));\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /** A parsed and type-checked program, ready to be lowered or interpreted. */
+    public static final class Checked {
+        public final DeclarationList ast;
+        public final TypeChecker typeChecker;
+
+        Checked(DeclarationList ast, TypeChecker typeChecker) {
+            this.ast = ast;
+            this.typeChecker = typeChecker;
+        }
+    }
+
+    public static Checked check(String source) {
+        var parser = new CruxParser(new CommonTokenStream(new CruxLexer(CharStreams.fromString(source))));
+        var parseTreeLower = new ParseTreeLower(System.err);
+        var ast = parseTreeLower.lower(parser.program());
+        if (parseTreeLower.hasEncounteredError())
+            throw new IllegalArgumentException("Benchmark program does not parse");
+        var typeChecker = new TypeChecker();
+        typeChecker.check(ast);
+        if (!typeChecker.getErrors().isEmpty())
+            throw new IllegalArgumentException("Benchmark program does not type-check: " + typeChecker.getErrors());
+        return new Checked(ast, typeChecker);
+    }
+
+    public static Program lower(String source) {
+        var checked = check(source);
+        return new ASTLower(checked.typeChecker).lower(checked.ast);
+    }
+
+    public static Function function(Program program, String name) {
+        for (var it = program.getFunctions(); it.hasNext();) {
+            var f = it.next();
+            if (f.getName().equals(name))
+                return f;
+        }
+        throw new IllegalArgumentException("No function " + name);
+    }
+
+    /** The median of the given times, which are sorted in place. */
+    public static long median(long[] times) {
+        Arrays.sort(times);
+        return times[times.length / 2];
+    }
+}
@@ -0,0 +1,69 @@
+package crux.bench;
+
+import crux.midend.ASTLower;
+import crux.midend.interp.ASTInterpreter;
+import crux.midend.ir.core.Emulator;
+import crux.midend.ir.emulator.ClosureEmulator;
+import crux.midend.ir.emulator.RegisterEmulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Times one emulator engine, from a type-checked program to the end of the run, over several runs in one JVM. The
+ * first run shows the cold start: class loading, verification and lowering, or the first specialization of the AST
+ * interpreter. The median of the remaining runs shows the steady state. Mode {@code lower} times only
+ * {@link ASTLower}.
+ * <p>
+ * Arguments: program ({@code squares}, {@code fib}, {@code array}, {@code update} or {@code sum}), mode
+ * ({@code interpreter}, {@code register}, {@code closure}, {@code ast} or {@code lower}) and repetitions (default 6).
+ */
+public final class EngineStartupBenchmark {
+    public static void main(String[] args) {
+        String source;
+        switch (args[0]) {
+            case "squares": source = BenchmarkPrograms.squares(10); break;
+            case "fib": source = BenchmarkPrograms.fib(27); break;
+            case "array": source = BenchmarkPrograms.arrayLoop(300, 1000); break;
+            case "update": source = BenchmarkPrograms.arrayUpdate(5000, 1000); break;
+            case "sum": source = BenchmarkPrograms.arraySum(5000, 1000); break;
+            default: throw new IllegalArgumentException("Unknown program " + args[0]);
+        }
+        String mode = args[1];
+        int reps = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+
+        var checked = BenchmarkPrograms.check(source);
+        long[] times = new long[reps];
+        for (int r = 0; r < reps; r++) {
+            var out = new ByteArrayOutputStream();
+            var in = InputStream.nullInputStream();
+            long start = System.nanoTime();
+            switch (mode) {
+                case "interpreter":
+                    new Emulator(new ASTLower(checked.typeChecker).lower(checked.ast), in, out).run();
+                    break;
+                case "register":
+                    new RegisterEmulator(new ASTLower(checked.typeChecker).lower(checked.ast), in, out).run();
+                    break;
+                case "closure":
+                    new ClosureEmulator(new ASTLower(checked.typeChecker).lower(checked.ast), in, out).run();
+                    break;
+                case "ast":
+                    new ASTInterpreter(checked.ast, checked.typeChecker, in, out).run();
+                    break;
+                case "lower":
+                    new ASTLower(checked.typeChecker).lower(checked.ast);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown mode " + mode);
+            }
+            times[r] = System.nanoTime() - start;
+        }
+
+        long first = times[0];
+        long rest = reps > 1 ? BenchmarkPrograms.median(Arrays.copyOfRange(times, 1, reps)) : first;
+        System.out.printf("%s %s: first run %.3f ms, median of the rest %.3f ms%n",
+                args[0], mode, first / 1e6, rest / 1e6);
+    }
+}
@@ -0,0 +1,44 @@
+package crux.bench;
+
+import crux.midend.ASTLower;
+import crux.midend.ir.core.Program;
+
+/**
+ * Measures the heap a lowered {@link BenchmarkPrograms#manyBranches} program retains, as used heap after collecting
+ * garbage, with the function bodies as instruction objects or packed by {@link ASTLower#enablePacking}. Use a heap
+ * large enough for the unpacked program, e.g. {@code -Xmx2g}.
+ * <p>
+ * Arguments: {@code objects} or {@code packed}, functions (default 584) and branches per function (default 90).
+ */
+public final class LoweredMemoryBenchmark {
+    public static void main(String[] args) {
+        boolean pack = args[0].equals("packed");
+        int functions = args.length > 1 ? Integer.parseInt(args[1]) : 584;
+        int branches = args.length > 2 ? Integer.parseInt(args[2]) : 90;
+
+        var checked = BenchmarkPrograms.check(BenchmarkPrograms.manyBranches(functions, branches));
+        long before = usedHeap();
+        var lower = new ASTLower(checked.typeChecker);
+        if (pack)
+            lower.enablePacking();
+        long start = System.nanoTime();
+        Program program = lower.lower(checked.ast);
+        long lowering = System.nanoTime() - start;
+        long after = usedHeap();
+
+        long instructions = 0;
+        for (var it = program.getFunctions(); it.hasNext();) {
+            instructions += it.next().getControlFlowGraph().numInstructions();
+        }
+        System.out.printf("%s: %d instructions, lowered in %.0f ms, %.1f MB retained%n",
+                pack ? "packed" : "objects", instructions, lowering / 1e6, (after - before) / 1e6);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        var runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
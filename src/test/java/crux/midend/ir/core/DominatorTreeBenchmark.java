@@ -0,0 +1,62 @@
+package crux.midend.ir.core;
+
+import crux.bench.BenchmarkPrograms;
+
+import java.util.Random;
+
+/**
+ * Times {@link DominatorTree} on the {@code main} of {@link BenchmarkPrograms#nestedBlocks}: the median over the
+ * repetitions of building the tree, of one million random {@link DominatorTree#dominates} queries and of the
+ * dominance frontiers of all blocks. It lives in this package to build a fresh tree every time, which
+ * {@link Function#getDominatorTree} would cache.
+ * <p>
+ * Arguments: depth, width (default 1) and repetitions (default 7).
+ */
+public final class DominatorTreeBenchmark {
+    private static final int QUERIES = 1_000_000;
+
+    public static void main(String[] args) {
+        int depth = Integer.parseInt(args[0]);
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int reps = args.length > 2 ? Integer.parseInt(args[2]) : 7;
+
+        var program = BenchmarkPrograms.lower(BenchmarkPrograms.nestedBlocks(depth, width));
+        var cfg = BenchmarkPrograms.function(program, "main").getControlFlowGraph();
+        var blocks = cfg.getBlocks();
+
+        long[] build = new long[reps];
+        long[] queries = new long[reps];
+        long[] frontiers = new long[reps];
+        var random = new Random(1);
+        long sink = 0;
+        int maxDepth = 0;
+        for (int r = 0; r < reps; r++) {
+            long start = System.nanoTime();
+            var tree = new DominatorTree(cfg);
+            build[r] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                var a = blocks.get(random.nextInt(blocks.size()));
+                var b = blocks.get(random.nextInt(blocks.size()));
+                if (tree.dominates(a, b))
+                    sink++;
+            }
+            queries[r] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (var b : blocks) {
+                sink += tree.getDominanceFrontier(b).size();
+            }
+            frontiers[r] = System.nanoTime() - start;
+
+            for (var b : blocks) {
+                maxDepth = Math.max(maxDepth, tree.getDepth(b));
+            }
+        }
+
+        System.out.printf("%d blocks, tree depth %d: tree %.2f ms, %d dominates %.1f ms, all frontiers %.2f ms (%d)%n",
+                blocks.size(), maxDepth, BenchmarkPrograms.median(build) / 1e6, QUERIES,
+                BenchmarkPrograms.median(queries) / 1e6, BenchmarkPrograms.median(frontiers) / 1e6, sink % 1000);
+    }
+}